@@ -0,0 +1,20 @@
+package ca.keal.persistence.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * A document being persisted or regenerated by an {@link ca.keal.persistence.XmlPersistor}, from the start of the call
+ * until it returns.
+ */
+@Category("XML Persistence")
+abstract class DocumentEvent extends Event {
+  
+  @Label("Root Class")
+  Class<?> rootClass;
+  
+  @Label("Toplevel Elements")
+  int toplevels;
+  
+}
@@ -0,0 +1,70 @@
+package ca.keal.persistence.jfr;
+
+import ca.keal.persistence.PersistenceTracer;
+import ca.keal.persistence.XmlPersistor;
+
+/**
+ * A {@link PersistenceTracer} which records JDK Flight Recorder events: {@code ca.keal.persistence.PersistDocument}
+ * and {@code ca.keal.persistence.RegenerateDocument} for each document, with the root class and the number of
+ * toplevel elements, and {@code ca.keal.persistence.PersistToplevel} and {@code ca.keal.persistence.RegenerateToplevel}
+ * for each toplevel object, with its class, tag, ID and number of child elements. Each event lasts from the start of
+ * what it traces until the end.
+ * 
+ * The events are enabled and given thresholds through JFR settings, as any others are; the toplevel events are
+ * disabled by default, since there may be very many of them. Nothing is recorded for events which are disabled, or
+ * while no recording is running.
+ * @see XmlPersistor#setTracer(PersistenceTracer)
+ */
+public final class JfrTracer implements PersistenceTracer {
+  
+  @Override
+  public Object documentStarted(boolean persisting) {
+    DocumentEvent event = persisting ? new PersistDocumentEvent() : new RegenerateDocumentEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return event;
+  }
+  
+  @Override
+  public void documentFinished(Object span, boolean persisting, Class<?> rootClass, int toplevels) {
+    if (span == null) {
+      return;
+    }
+    DocumentEvent event = (DocumentEvent) span;
+    event.end();
+    if (event.shouldCommit()) {
+      event.rootClass = rootClass;
+      event.toplevels = toplevels;
+      event.commit();
+    }
+  }
+  
+  @Override
+  public Object toplevelStarted(boolean persisting) {
+    ToplevelEvent event = persisting ? new PersistToplevelEvent() : new RegenerateToplevelEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return event;
+  }
+  
+  @Override
+  public void toplevelFinished(Object span, boolean persisting, Class<?> cls, String tag, String id, int elements) {
+    if (span == null) {
+      return;
+    }
+    ToplevelEvent event = (ToplevelEvent) span;
+    event.end();
+    if (event.shouldCommit()) {
+      event.objectClass = cls;
+      event.tag = tag;
+      event.id = id;
+      event.elements = elements;
+      event.commit();
+    }
+  }
+  
+}
@@ -0,0 +1,11 @@
+package ca.keal.persistence.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** A document being persisted by {@link ca.keal.persistence.XmlPersistor#toXml} or one of its relatives. */
+@Name("ca.keal.persistence.PersistDocument")
+@Label("Persist Document")
+@Description("A document persisted by an XmlPersistor")
+final class PersistDocumentEvent extends DocumentEvent {}
@@ -0,0 +1,11 @@
+package ca.keal.persistence.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** A document being regenerated by {@link ca.keal.persistence.XmlPersistor#fromXml} or one of its relatives. */
+@Name("ca.keal.persistence.RegenerateDocument")
+@Label("Regenerate Document")
+@Description("A document regenerated by an XmlPersistor")
+final class RegenerateDocumentEvent extends DocumentEvent {}
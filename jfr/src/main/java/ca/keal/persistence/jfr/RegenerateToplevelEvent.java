@@ -0,0 +1,13 @@
+package ca.keal.persistence.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** A toplevel object being regenerated. There may be very many of these, so they are disabled by default. */
+@Name("ca.keal.persistence.RegenerateToplevel")
+@Label("Regenerate Toplevel Object")
+@Description("A toplevel object regenerated by an XmlPersistor, including the objects first reached through its fields")
+@Enabled(false)
+final class RegenerateToplevelEvent extends ToplevelEvent {}
@@ -0,0 +1,25 @@
+package ca.keal.persistence.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * A toplevel object being persisted or regenerated, including the objects first reached through its fields.
+ */
+@Category("XML Persistence")
+abstract class ToplevelEvent extends Event {
+  
+  @Label("Class")
+  Class<?> objectClass;
+  
+  @Label("Tag")
+  String tag;
+  
+  @Label("ID")
+  String id;
+  
+  @Label("Elements")
+  int elements;
+  
+}
@@ -0,0 +1,95 @@
+package ca.keal.persistence.jfr;
+
+import ca.keal.persistence.Persist;
+import ca.keal.persistence.Persistable;
+import ca.keal.persistence.XmlPersistor;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class JfrTracerTest {
+  
+  @Persistable(toplevel=true, tag="shelf", idField="id")
+  @SuppressWarnings("unused")
+  private static class Shelf {
+    private final int id = 1;
+    @Persist("first") private Book first = new Book(7, "First");
+    @Persist("second") private Book second = new Book(8, "Second");
+  }
+  
+  @Persistable(toplevel=true, tag="book", idField="id")
+  @SuppressWarnings("unused")
+  private static class Book {
+    private final int id;
+    @Persist("title") private final String title;
+    private Book(int id, String title) {
+      this.id = id;
+      this.title = title;
+    }
+  }
+  
+  private static List<RecordedEvent> record(boolean toplevels) throws Exception {
+    XmlPersistor<Shelf> persistor = new XmlPersistor<>(Shelf.class);
+    persistor.setTracer(new JfrTracer());
+    Path file = Files.createTempFile("jfr", ".jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable("ca.keal.persistence.PersistDocument");
+      recording.enable("ca.keal.persistence.RegenerateDocument");
+      if (toplevels) {
+        recording.enable("ca.keal.persistence.PersistToplevel");
+        recording.enable("ca.keal.persistence.RegenerateToplevel");
+      }
+      recording.start();
+      persistor.fromXml(persistor.toXml(new Shelf()));
+      recording.stop();
+      recording.dump(file);
+      return RecordingFile.readAllEvents(file).stream()
+          .filter(event -> event.getEventType().getName().startsWith("ca.keal.persistence."))
+          .collect(Collectors.toList());
+    } finally {
+      Files.delete(file);
+    }
+  }
+  
+  private static String name(RecordedEvent event) {
+    return event.getEventType().getName().substring("ca.keal.persistence.".length());
+  }
+  
+  @Test
+  void documentsAndToplevelsAreRecorded() throws Exception {
+    List<RecordedEvent> events = record(true);
+    assertThat(events).extracting(JfrTracerTest::name).containsExactlyInAnyOrder("PersistDocument",
+        "PersistToplevel", "PersistToplevel", "PersistToplevel", "RegenerateDocument", "RegenerateToplevel",
+        "RegenerateToplevel", "RegenerateToplevel");
+    
+    for (RecordedEvent event : events) {
+      if (name(event).endsWith("Document")) {
+        assertThat(event.getClass("rootClass").getName()).isEqualTo(Shelf.class.getName());
+        assertThat(event.getInt("toplevels")).isEqualTo(3);
+      } else if (event.getString("tag").equals("shelf")) {
+        assertThat(event.getString("id")).isEqualTo("1");
+        assertThat(event.getInt("elements")).isEqualTo(2);
+      } else {
+        assertThat(event.getClass("objectClass").getName()).isEqualTo(Book.class.getName());
+        assertThat(event.getString("id")).isIn("7", "8");
+        assertThat(event.getInt("elements")).isEqualTo(1);
+      }
+      assertThat(event.getDuration().toNanos()).isPositive();
+    }
+  }
+  
+  @Test
+  void toplevelsAreDisabledByDefault() throws Exception {
+    assertThat(record(false)).extracting(JfrTracerTest::name)
+        .containsExactlyInAnyOrder("PersistDocument", "RegenerateDocument");
+  }
+  
+}
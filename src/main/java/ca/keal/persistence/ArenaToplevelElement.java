@@ -0,0 +1,129 @@
+package ca.keal.persistence;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A {@link ToplevelElement} read by {@link FastElementReader} whose descendants are kept in an {@link ElementArena}
+ * rather than as objects. They are only made into objects when they are first needed, which is usually when the element
+ * is regenerated, and are let go of once it has been, so that only the subtrees of the toplevel elements being
+ * regenerated at any one time exist as objects.
+ */
+final class ArenaToplevelElement extends ToplevelElement {
+  
+  private final ElementArena arena;
+  
+  /** The node of this element in {@link #arena}. */
+  private final int node;
+  
+  /** Whether the children have been made into objects, and are held by {@link ParentElement}. */
+  private boolean materialized = false;
+  
+  /** Whether the children have been changed, in which case they are never let go of. */
+  private boolean changed = false;
+  
+  /**
+   * Create a new {@link ArenaToplevelElement}.
+   * @param tag The name of the tag of this XML element. This must be a valid XML tag name as determined by
+   *  {@link PersistenceUtil#isValidXmlTag(String)}.
+   * @param id The ID of this {@link ToplevelElement} by which other elements may refer to it.
+   * @param root Whether this element is the root element.
+   * @param arena The arena holding the descendants of this element.
+   * @param node The node of this element in {@code arena}.
+   * @throws PersistenceException If {@code tag} is not a valid XML tag name.
+   * @throws NullPointerException If {@code id} is {@code null}.
+   */
+  ArenaToplevelElement(String tag, String id, boolean root, ElementArena arena, int node) {
+    super(tag, id, root);
+    this.arena = arena;
+    this.node = node;
+  }
+  
+  /**
+   * @return The arena holding the descendants of this element, as they were read, or {@code null} if they have been
+   *  changed since.
+   */
+  ElementArena getArena() {
+    return changed ? null : arena;
+  }
+  
+  /**
+   * @return Whether the children are currently held as objects.
+   */
+  boolean isMaterialized() {
+    return materialized;
+  }
+  
+  /** Make the children into objects, unless they already have been. */
+  private void materialize() {
+    if (!materialized) {
+      materialized = true;
+      for (PersistedElement child : arena.children(node)) {
+        super.addChild(child);
+      }
+    }
+  }
+  
+  @Override
+  void regenerated() {
+    if (materialized && !changed) {
+      clearChildren();
+      materialized = false;
+    }
+  }
+  
+  @Override
+  public void addChild(PersistedElement child) {
+    materialize();
+    changed = true;
+    super.addChild(child);
+  }
+  
+  @Override
+  public List<PersistedElement> getChildrenByTag(String tag) {
+    materialize();
+    return super.getChildrenByTag(tag);
+  }
+  
+  @Override
+  public List<PersistedElement> getChildren() {
+    materialize();
+    return super.getChildren();
+  }
+  
+  @Override
+  public int getChildCount() {
+    materialize();
+    return super.getChildCount();
+  }
+  
+  @Override
+  public boolean replaceChild(PersistedElement child, PersistedElement replacement) {
+    materialize();
+    changed = true;
+    return super.replaceChild(child, replacement);
+  }
+  
+  @Override
+  public boolean removeChild(PersistedElement child) {
+    materialize();
+    changed = true;
+    return super.removeChild(child);
+  }
+  
+  @Override
+  public Element toXmlElement(Document doc) {
+    materialize();
+    return super.toXmlElement(doc);
+  }
+  
+  @Override
+  protected void writeContents(XmlChannelWriter out) throws IOException {
+    materialize();
+    super.writeContents(out);
+  }
+  
+}
@@ -0,0 +1,75 @@
+package ca.keal.persistence;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.IOException;
+
+/**
+ * A {@link PersistedElement} which refers back to a non-toplevel object that is persisted elsewhere in the document,
+ * in the {@link ParentElement} bearing the same shared ID. This is how an embedded object reachable through more than
+ * one field is persisted only once.
+ * @see ParentElement#getSharedId()
+ */
+class BackReferenceElement extends PersistedElement {
+  
+  /** The shared ID of the {@link ParentElement} referred to. */
+  private final int ref;
+  
+  /**
+   * Create a new {@link BackReferenceElement}.
+   * @param tag The name of the tag of this XML element. This must be a valid XML tag name as determined by
+   *  {@link PersistenceUtil#isValidXmlTag(String)}.
+   * @param ref The shared ID of the {@link ParentElement} referred to.
+   * @throws PersistenceException If {@code tag} is not a valid XML tag name.
+   */
+  public BackReferenceElement(String tag, int ref) {
+    super(tag);
+    this.ref = ref;
+  }
+  
+  /**
+   * @return The shared ID of the {@link ParentElement} referred to.
+   */
+  public int getRef() {
+    return ref;
+  }
+  
+  /**
+   * Create an XML element from this {@link BackReferenceElement}. The element will be empty with the tag provided in
+   * the constructor and the attribute {@code ref} containing the shared ID referred to.
+   * @param doc The {@link Document} with which to create the element.
+   * @return An XML element representing this {@link BackReferenceElement}.
+   */
+  @Override
+  public Element toXmlElement(Document doc) {
+    Element element = super.toXmlElement(doc);
+    element.setAttribute("ref", Integer.toString(ref));
+    return element;
+  }
+  
+  @Override
+  protected void writeAttributes(XmlChannelWriter out) throws IOException {
+    out.attribute("ref", Integer.toString(ref));
+  }
+  
+  /**
+   * Create a {@link BackReferenceElement} from a given XML element. The {@link BackReferenceElement} will have the same
+   * tag name as the XML element.
+   * @param element An XML element in a valid format. It must have no children and exactly one attribute, {@code ref},
+   *  containing a shared ID.
+   * @return A {@link BackReferenceElement} representing the XML element.
+   * @throws RegenerationException If the XML element has children or bad attributes.
+   */
+  public static BackReferenceElement fromXmlElement(Element element) throws RegenerationException {
+    if (PersistenceUtil.elementHasChildren(element)) {
+      throw new RegenerationException("Tried to get a BackReferenceElement from its XML element, but it has children!");
+    }
+    if (element.getAttributes().getLength() > 1) {
+      throw new RegenerationException(
+          "Tried to get a BackReferenceElement from its XML element, but it has too many attributes!");
+    }
+    return new BackReferenceElement(element.getTagName(), ParentElement.parseIdAttribute(element.getAttribute("ref")));
+  }
+  
+}
@@ -0,0 +1,73 @@
+package ca.keal.persistence;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.IOException;
+
+/**
+ * A {@link PersistedElement} which stands for a copy of a {@link TemplateElement}: it is regenerated exactly as the
+ * template's contents would be, as a separate object each time. Only written when subtree deduplication is enabled.
+ * @see XmlPersistor#setDeduplicateSubtrees(boolean)
+ */
+class CopyElement extends PersistedElement {
+  
+  /** The ID of the {@link TemplateElement} copied. */
+  private final int template;
+  
+  /**
+   * Create a new {@link CopyElement}.
+   * @param tag The name of the tag of this XML element. This must be a valid XML tag name as determined by
+   *  {@link PersistenceUtil#isValidXmlTag(String)}.
+   * @param template The ID of the {@link TemplateElement} copied.
+   * @throws PersistenceException If {@code tag} is not a valid XML tag name.
+   */
+  public CopyElement(String tag, int template) {
+    super(tag);
+    this.template = template;
+  }
+  
+  /**
+   * @return The ID of the {@link TemplateElement} copied.
+   */
+  public int getTemplate() {
+    return template;
+  }
+  
+  /**
+   * Create an XML element from this {@link CopyElement}. The element will be empty with the tag provided in the
+   * constructor and the attribute {@code copy-of} containing the ID of the template copied.
+   * @param doc The {@link Document} with which to create the element.
+   * @return An XML element representing this {@link CopyElement}.
+   */
+  @Override
+  public Element toXmlElement(Document doc) {
+    Element element = super.toXmlElement(doc);
+    element.setAttribute("copy-of", Integer.toString(template));
+    return element;
+  }
+  
+  @Override
+  protected void writeAttributes(XmlChannelWriter out) throws IOException {
+    out.attribute("copy-of", Integer.toString(template));
+  }
+  
+  /**
+   * Create a {@link CopyElement} from a given XML element. The {@link CopyElement} will have the same tag name as the
+   * XML element.
+   * @param element An XML element in a valid format. It must have no children and exactly one attribute,
+   *  {@code copy-of}, containing a template ID.
+   * @return A {@link CopyElement} representing the XML element.
+   * @throws RegenerationException If the XML element has children or bad attributes.
+   */
+  public static CopyElement fromXmlElement(Element element) throws RegenerationException {
+    if (PersistenceUtil.elementHasChildren(element)) {
+      throw new RegenerationException("Tried to get a CopyElement from its XML element, but it has children!");
+    }
+    if (element.getAttributes().getLength() > 1) {
+      throw new RegenerationException("Tried to get a CopyElement from its XML element, but it has too many attributes!");
+    }
+    return new CopyElement(element.getTagName(), ParentElement.parseIdAttribute(element.getAttribute("copy-of")));
+  }
+  
+}
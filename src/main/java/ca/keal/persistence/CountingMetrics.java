@@ -0,0 +1,212 @@
+package ca.keal.persistence;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link PersistenceMetrics} which add up everything measured, since they were created or last {@link #reset()}. They
+ * may be shared by several persistors and threads at once. {@link JmxMetrics} exposes them as an MBean.
+ * @see XmlPersistor#setMetrics(PersistenceMetrics)
+ */
+public final class CountingMetrics implements PersistenceMetrics {
+  
+  /** The number of objects of a class persisted and regenerated, and the time they took. */
+  private static final class ClassCounts {
+    private final LongAdder persisted = new LongAdder();
+    private final LongAdder persistNanos = new LongAdder();
+    private final LongAdder regenerated = new LongAdder();
+    private final LongAdder regenerateNanos = new LongAdder();
+  }
+  
+  private final LongAdder toplevelPersisted = new LongAdder();
+  private final LongAdder embeddedPersisted = new LongAdder();
+  private final LongAdder nullsPersisted = new LongAdder();
+  private final LongAdder toplevelRegenerated = new LongAdder();
+  private final LongAdder embeddedRegenerated = new LongAdder();
+  private final LongAdder nullsRegenerated = new LongAdder();
+  private final LongAdder bytesWritten = new LongAdder();
+  private final LongAdder bytesRead = new LongAdder();
+  private final LongAdder cacheHits = new LongAdder();
+  private final LongAdder cacheMisses = new LongAdder();
+  
+  /** The number of times each phase has finished, and the time they took. */
+  private final Map<Phase, LongAdder> phaseCounts = new EnumMap<>(Phase.class);
+  private final Map<Phase, LongAdder> phaseNanos = new EnumMap<>(Phase.class);
+  
+  private final Map<Class<?>, ClassCounts> classes = new ConcurrentHashMap<>();
+  
+  /** Create metrics with every count at zero. */
+  public CountingMetrics() {
+    for (Phase phase : Phase.values()) {
+      phaseCounts.put(phase, new LongAdder());
+      phaseNanos.put(phase, new LongAdder());
+    }
+  }
+  
+  private ClassCounts countsOf(Class<?> cls) {
+    return classes.computeIfAbsent(cls, c -> new ClassCounts());
+  }
+  
+  @Override
+  public void objectPersisted(Class<?> cls, boolean toplevel, long nanos) {
+    (toplevel ? toplevelPersisted : embeddedPersisted).increment();
+    ClassCounts counts = countsOf(cls);
+    counts.persisted.increment();
+    counts.persistNanos.add(nanos);
+  }
+  
+  @Override
+  public void nullPersisted() {
+    nullsPersisted.increment();
+  }
+  
+  @Override
+  public void objectRegenerated(Class<?> cls, boolean toplevel, long nanos) {
+    (toplevel ? toplevelRegenerated : embeddedRegenerated).increment();
+    ClassCounts counts = countsOf(cls);
+    counts.regenerated.increment();
+    counts.regenerateNanos.add(nanos);
+  }
+  
+  @Override
+  public void nullRegenerated() {
+    nullsRegenerated.increment();
+  }
+  
+  @Override
+  public void bytesWritten(long bytes) {
+    bytesWritten.add(bytes);
+  }
+  
+  @Override
+  public void bytesRead(long bytes) {
+    bytesRead.add(bytes);
+  }
+  
+  @Override
+  public void phase(Phase phase, long nanos) {
+    phaseCounts.get(phase).increment();
+    phaseNanos.get(phase).add(nanos);
+  }
+  
+  @Override
+  public void cacheLookup(Class<?> cls, boolean hit) {
+    (hit ? cacheHits : cacheMisses).increment();
+  }
+  
+  /** @return The number of objects persisted to toplevel elements. */
+  public long getToplevelObjectsPersisted() {
+    return toplevelPersisted.sum();
+  }
+  
+  /** @return The number of objects persisted to embedded elements. */
+  public long getEmbeddedObjectsPersisted() {
+    return embeddedPersisted.sum();
+  }
+  
+  /** @return The number of {@code null} fields persisted. */
+  public long getNullsPersisted() {
+    return nullsPersisted.sum();
+  }
+  
+  /** @return The number of objects regenerated from toplevel elements, not counting those found in a cache. */
+  public long getToplevelObjectsRegenerated() {
+    return toplevelRegenerated.sum();
+  }
+  
+  /** @return The number of objects regenerated from embedded elements. */
+  public long getEmbeddedObjectsRegenerated() {
+    return embeddedRegenerated.sum();
+  }
+  
+  /** @return The number of {@code null} fields regenerated. */
+  public long getNullsRegenerated() {
+    return nullsRegenerated.sum();
+  }
+  
+  /** @return The number of bytes of persisted documents written. */
+  public long getBytesWritten() {
+    return bytesWritten.sum();
+  }
+  
+  /** @return The number of bytes of persisted documents read. */
+  public long getBytesRead() {
+    return bytesRead.sum();
+  }
+  
+  /** @return The number of times {@code phase} has finished. */
+  public long getPhaseCount(Phase phase) {
+    return phaseCounts.get(phase).sum();
+  }
+  
+  /** @return The total time {@code phase} has taken, in nanoseconds. */
+  public long getPhaseNanos(Phase phase) {
+    return phaseNanos.get(phase).sum();
+  }
+  
+  /** @return The classes of which any objects have been persisted or regenerated. */
+  public Set<Class<?>> getClasses() {
+    return Collections.unmodifiableSet(classes.keySet());
+  }
+  
+  /** @return The number of objects of class {@code cls} persisted. */
+  public long getObjectsPersisted(Class<?> cls) {
+    ClassCounts counts = classes.get(cls);
+    return counts == null ? 0 : counts.persisted.sum();
+  }
+  
+  /** @return The total time taken to persist the objects of class {@code cls}, in nanoseconds. */
+  public long getPersistNanos(Class<?> cls) {
+    ClassCounts counts = classes.get(cls);
+    return counts == null ? 0 : counts.persistNanos.sum();
+  }
+  
+  /** @return The number of objects of class {@code cls} regenerated. */
+  public long getObjectsRegenerated(Class<?> cls) {
+    ClassCounts counts = classes.get(cls);
+    return counts == null ? 0 : counts.regenerated.sum();
+  }
+  
+  /** @return The total time taken to regenerate the objects of class {@code cls}, in nanoseconds. */
+  public long getRegenerateNanos(Class<?> cls) {
+    ClassCounts counts = classes.get(cls);
+    return counts == null ? 0 : counts.regenerateNanos.sum();
+  }
+  
+  /** @return The number of toplevel objects found in a {@link ToplevelCache}. */
+  public long getCacheHits() {
+    return cacheHits.sum();
+  }
+  
+  /** @return The number of toplevel objects looked up in a {@link ToplevelCache} but not found. */
+  public long getCacheMisses() {
+    return cacheMisses.sum();
+  }
+  
+  /** @return The fraction of lookups in a {@link ToplevelCache} which found an object, or 0 if there were none. */
+  public double getCacheHitRate() {
+    long hits = getCacheHits();
+    long lookups = hits + getCacheMisses();
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+  
+  /**
+   * Start counting again from zero. Measurements made at the same time by other threads may or may not be kept.
+   */
+  public void reset() {
+    for (LongAdder adder : new LongAdder[] {toplevelPersisted, embeddedPersisted, nullsPersisted, toplevelRegenerated,
+        embeddedRegenerated, nullsRegenerated, bytesWritten, bytesRead, cacheHits, cacheMisses}) {
+      adder.reset();
+    }
+    for (Phase phase : Phase.values()) {
+      phaseCounts.get(phase).reset();
+      phaseNanos.get(phase).reset();
+    }
+    classes.clear();
+  }
+  
+}
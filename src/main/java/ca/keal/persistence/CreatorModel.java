@@ -0,0 +1,223 @@
+package ca.keal.persistence;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The compiled form of a @{@link PersistCreator} constructor or static factory method: a {@link MethodHandle} taking all
+ * arguments as one array, plus the @{@link Persist} field each argument corresponds to. Part of a
+ * {@link PersistableModel}; immutable.
+ * 
+ * @param <T> The @{@link Persistable} class created.
+ */
+final class CreatorModel<T> {
+  
+  private final Class<T> cls;
+  private final PersistCreator annotation;
+  
+  /** Takes an {@code Object[]} of arguments and returns an {@code Object}. */
+  private final MethodHandle handle;
+  
+  /** The field corresponding to each parameter, or {@code null} for the ID parameter. */
+  private final Field[] fields;
+  
+  /** The tags of the fields passed to the creator. */
+  private final Set<String> tags;
+  
+  /** The index of the @{@link PersistCreator.Id} parameter, or -1 if there is none. */
+  private final int idParameter;
+  
+  private CreatorModel(Class<T> cls, PersistCreator annotation, MethodHandle handle, Field[] fields, int idParameter) {
+    this.cls = cls;
+    this.annotation = annotation;
+    this.handle = handle;
+    this.fields = fields;
+    this.idParameter = idParameter;
+    
+    Set<String> tags = new HashSet<>();
+    for (Field field : fields) {
+      if (field != null) {
+        tags.add(field.getAnnotation(Persist.class).value());
+      }
+    }
+    this.tags = tags;
+  }
+  
+  /**
+   * Find and compile the @{@link PersistCreator} of {@code cls}.
+   * @param persistFields The @{@link Persist} fields of {@code cls}.
+   * @return The compiled creator, or {@code null} if {@code cls} has no @{@link PersistCreator}.
+   * @throws PersistenceException If the creator is not valid as described in {@link PersistCreator}.
+   */
+  static <T> CreatorModel<T> find(Class<T> cls, Persistable persistable, List<Field> persistFields) {
+    Executable creator = null;
+    for (Constructor<?> constructor : cls.getDeclaredConstructors()) {
+      creator = checkCandidate(cls, creator, constructor);
+    }
+    for (Method method : cls.getDeclaredMethods()) {
+      creator = checkCandidate(cls, creator, method);
+    }
+    if (creator == null) {
+      return null;
+    }
+    
+    Map<String, Field> fieldsByTag = new HashMap<>();
+    for (Field field : persistFields) {
+      fieldsByTag.put(field.getAnnotation(Persist.class).value(), field);
+    }
+    
+    // Match up each parameter with its field or the ID
+    Class<?>[] parameterTypes = creator.getParameterTypes();
+    Annotation[][] parameterAnnotations = creator.getParameterAnnotations();
+    Field[] fields = new Field[parameterTypes.length];
+    int idParameter = -1;
+    for (int i = 0; i < parameterTypes.length; i++) {
+      Persist persist = findAnnotation(parameterAnnotations[i], Persist.class);
+      boolean isId = findAnnotation(parameterAnnotations[i], PersistCreator.Id.class) != null;
+      
+      if (isId && persist == null) {
+        if (!persistable.toplevel() || idParameter != -1) {
+          throw new PersistenceException("@PersistCreator of " + cls.getCanonicalName() + " may only have an @Id "
+              + "parameter if the class is toplevel, and only one.");
+        }
+        idParameter = i;
+      } else if (persist != null && !isId) {
+        Field field = fieldsByTag.get(persist.value());
+        if (field == null) {
+          throw new PersistenceException("@PersistCreator parameter of " + cls.getCanonicalName() + " has tag '"
+              + persist.value() + "', but there is no @Persist field with that tag.");
+        }
+        if (!wrap(parameterTypes[i]).isAssignableFrom(wrap(field.getType()))) {
+          throw new PersistenceException("@PersistCreator parameter of " + cls.getCanonicalName() + " with tag '"
+              + persist.value() + "' cannot accept the field's type, " + field.getType().getCanonicalName() + ".");
+        }
+        fields[i] = field;
+      } else {
+        throw new PersistenceException("Each @PersistCreator parameter of " + cls.getCanonicalName()
+            + " must be annotated with exactly one of @Persist or @PersistCreator.Id.");
+      }
+    }
+    
+    // Compile it to a handle taking an Object[], which converts (and unboxes) each argument as it is spread
+    MethodHandle handle;
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      creator.setAccessible(true);
+      if (creator instanceof Constructor) {
+        handle = lookup.unreflectConstructor((Constructor<?>) creator);
+      } else {
+        handle = lookup.unreflect((Method) creator);
+      }
+    } catch (IllegalAccessException | SecurityException e) {
+      throw new PersistenceException("@PersistCreator of " + cls.getCanonicalName() + " is inaccessible.", e);
+    }
+    handle = handle.asSpreader(Object[].class, parameterTypes.length)
+        .asType(MethodType.methodType(Object.class, Object[].class));
+    
+    return new CreatorModel<>(cls, creator.getAnnotation(PersistCreator.class), handle, fields, idParameter);
+  }
+  
+  /** Check whether {@code candidate} is a creator, and make sure there's only one. Returns the creator so far. */
+  private static Executable checkCandidate(Class<?> cls, Executable creator, Executable candidate) {
+    if (!candidate.isAnnotationPresent(PersistCreator.class)) {
+      return creator;
+    }
+    if (creator != null) {
+      throw new PersistenceException(cls.getCanonicalName() + " has more than one @PersistCreator.");
+    }
+    if (candidate instanceof Method) {
+      Method method = (Method) candidate;
+      if (!Modifier.isStatic(method.getModifiers()) || !cls.isAssignableFrom(method.getReturnType())) {
+        throw new PersistenceException("@PersistCreator method " + method.getName() + " in "
+            + cls.getCanonicalName() + " must be static and return an instance of the class.");
+      }
+    } else if (Modifier.isAbstract(cls.getModifiers())) {
+      throw new PersistenceException("@PersistCreator constructor of " + cls.getCanonicalName()
+          + " cannot be used because the class is abstract.");
+    }
+    return candidate;
+  }
+  
+  private static <A extends Annotation> A findAnnotation(Annotation[] annotations, Class<A> type) {
+    for (Annotation annotation : annotations) {
+      if (type.isInstance(annotation)) {
+        return type.cast(annotation);
+      }
+    }
+    return null;
+  }
+  
+  /** Get the boxed version of {@code cls} if it is primitive. */
+  private static Class<?> wrap(Class<?> cls) {
+    return cls.isPrimitive() ? MethodType.methodType(cls).wrap().returnType() : cls;
+  }
+  
+  /**
+   * @return The number of parameters the creator takes.
+   */
+  int getParameterCount() {
+    return fields.length;
+  }
+  
+  /**
+   * @return The @{@link Persist} field whose value is passed as parameter {@code i}, or {@code null} if it is the ID
+   *  parameter.
+   */
+  Field getField(int i) {
+    return fields[i];
+  }
+  
+  /**
+   * @return The index of the ID parameter, or -1 if the ID is not passed to the creator.
+   */
+  int getIdParameter() {
+    return idParameter;
+  }
+  
+  /**
+   * @return Whether the @{@link Persist} field with the given tag is passed to the creator.
+   */
+  boolean takesTag(String tag) {
+    return tags.contains(tag);
+  }
+  
+  /**
+   * @return What to do about references to an object of this class made while its arguments are being regenerated.
+   */
+  PersistCreator.CyclePolicy getCyclePolicy() {
+    return annotation.cycles();
+  }
+  
+  /**
+   * Call the creator with the given arguments.
+   * @throws RegenerationException If the creator throws an exception or returns {@code null}.
+   */
+  @SuppressWarnings("unchecked")
+  T create(Object[] args) throws RegenerationException {
+    Object created;
+    try {
+      created = (Object) handle.invokeExact(args);
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new RegenerationException("@PersistCreator of " + cls.getCanonicalName() + " threw an exception.", t);
+    }
+    if (created == null) {
+      throw new RegenerationException("@PersistCreator of " + cls.getCanonicalName() + " returned null.");
+    }
+    return (T) created;
+  }
+  
+}
@@ -0,0 +1,219 @@
+package ca.keal.persistence;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copies a graph of @{@link Persistable} objects straight from their {@link PersistableModel}s, without persisting it
+ * to elements or text, into the graph that persisting and regenerating it would produce. Each @{@link Persist} field is
+ * copied as the strategy for its declared type would persist and regenerate it: primitives, {@code String}s,
+ * {@link LargeText}s, {@link LargeBytes} and {@link ToplevelHandle}s are immutable, so they are shared with the
+ * original; @{@link Persistable} objects are copied recursively. Toplevel objects are copied once per tag and ID, so
+ * distinct objects sharing an ID become the first one copied, and embedded objects are copied once each, so their
+ * sharing and cycles are kept. Classes with a @{@link PersistCreator} are created through it, with the same handling of
+ * cycles as in regeneration.
+ * 
+ * A {@link DeepCopier} copies a single graph.
+ * @see XmlPersistor#deepCopy(Object)
+ */
+final class DeepCopier {
+  
+  /** Which fields are copied. */
+  private final Projection projection;
+  
+  /** The copy of each object copied so far. */
+  private final Map<Object, Object> copies = new IdentityHashMap<>();
+  
+  /** The first toplevel object seen with each tag and ID, which is the one copied. */
+  private final Map<ItemID, Object> toplevels = new HashMap<>();
+  
+  private final DuplicatePersistableChecker duplicateChecker = new DuplicatePersistableChecker();
+  
+  /** The cycle policies of the objects whose creators are still collecting their arguments. */
+  private final Map<Object, PersistCreator.CyclePolicy> pending = new IdentityHashMap<>();
+  
+  /** The fields waiting for the copy of each pending object to be created. */
+  private final Map<Object, List<DeferredField>> deferredFields = new IdentityHashMap<>();
+  
+  /** The pending object referred to by the last value copied, which had to be left {@code null}, or {@code null}. */
+  private Object deferred = null;
+  
+  DeepCopier(Projection projection) {
+    this.projection = projection;
+  }
+  
+  /**
+   * Copy {@code source}, an instance of the @{@link Persistable} class {@code cls}, and everything reachable from it.
+   * @throws PersistenceException If a class isn't properly @{@link Persistable}, a field can't be accessed, or a
+   *  creator fails.
+   */
+  <T> T copy(Class<T> cls, T source) {
+    return copyObject(cls, source);
+  }
+  
+  /** Copy the value of {@code field} in {@code owner}. */
+  @SuppressWarnings("unchecked")
+  private <F> F copyField(Field field, Object owner) {
+    F value;
+    try {
+      value = (F) field.get(owner);
+    } catch (IllegalAccessException e) {
+      throw new PersistenceException("Cannot copy field protected by access control: " + field.getName()
+          + " in " + field.getDeclaringClass());
+    }
+    Class<F> type = (Class<F>) field.getType();
+    if (value == null || type.isPrimitive() || type.equals(String.class) || type.equals(LargeText.class)
+        || type.equals(LargeBytes.class) || type.equals(ToplevelHandle.class)) {
+      return value;
+    }
+    return copyObject(type, value);
+  }
+  
+  /**
+   * Copy {@code source} as an instance of {@code cls}, unless it has already been copied.
+   * @return The copy, or {@code null} if it is pending and the reference was deferred.
+   */
+  private <T> T copyObject(Class<T> cls, T source) {
+    Object existing = copies.get(source);
+    if (existing != null) {
+      return cls.cast(existing);
+    }
+    
+    PersistableModel<T> model = PersistableModel.of(cls);
+    if (model.isToplevel()) {
+      String tag = model.getPersistable().tag();
+      duplicateChecker.checkAndRegister(tag, cls);
+      Object first = toplevels.putIfAbsent(new ItemID(tag, model.getIdString(source)), source);
+      if (first != null && first != source) {
+        // A different object with the same ID; only the first one is kept, just as when persisting
+        source = cls.cast(first);
+        existing = copies.get(source);
+        if (existing != null) {
+          return cls.cast(existing);
+        }
+      }
+    }
+    
+    PersistCreator.CyclePolicy policy = pending.get(source);
+    if (policy != null) { // Its creator is still collecting its arguments, so there's a cycle back to it
+      if (policy == PersistCreator.CyclePolicy.FAIL) {
+        throw new PersistenceException("An instance of " + cls.getCanonicalName() + " is referenced while its "
+            + "@PersistCreator is still collecting its arguments; use @PersistCreator(cycles = DEFER) to allow this "
+            + "cycle.");
+      }
+      deferred = source;
+      return null;
+    }
+    
+    CreatorModel<T> creator = model.getCreator();
+    T copy = creator == null ? instantiate(model, source) : create(model, creator, source);
+    fillIn(model, creator, source, copy);
+    return copy;
+  }
+  
+  /** Instantiate a blank copy of {@code source}, with its ID if it is toplevel, and record it. */
+  private <T> T instantiate(PersistableModel<T> model, T source) {
+    T copy = model.newInstance();
+    if (model.isToplevel()) {
+      model.setId(copy, model.getId(source));
+    }
+    copies.put(source, copy);
+    return copy;
+  }
+  
+  /** Create a copy of {@code source} through {@code creator}, record it and set any fields waiting for it. */
+  private <T> T create(PersistableModel<T> model, CreatorModel<T> creator, T source) {
+    // The copy can't be recorded until it exists, so mark the source pending to catch references to it meanwhile
+    pending.put(source, creator.getCyclePolicy());
+    Object[] args = new Object[creator.getParameterCount()];
+    for (int i = 0; i < args.length; i++) {
+      Field field = creator.getField(i);
+      if (field == null) {
+        args[i] = model.getId(source);
+        continue;
+      }
+      
+      args[i] = copyField(field, source);
+      if (takeDeferred() != null) {
+        throw new PersistenceException("An object is referenced while its @PersistCreator is still collecting its "
+            + "arguments, and the reference cannot be deferred because it is passed to the @PersistCreator of "
+            + model.getModelledClass().getCanonicalName() + " as '" + field.getAnnotation(Persist.class).value()
+            + "'.");
+      }
+    }
+    
+    T copy;
+    try {
+      copy = creator.create(args);
+    } catch (RegenerationException e) {
+      throw new PersistenceException("Could not copy an instance of " + model.getModelledClass().getCanonicalName()
+          + ".", e);
+    }
+    if (model.isToplevel() && creator.getIdParameter() == -1) {
+      model.setId(copy, model.getId(source));
+    }
+    pending.remove(source);
+    copies.put(source, copy);
+    
+    List<DeferredField> waiting = deferredFields.remove(source);
+    if (waiting != null) {
+      for (DeferredField field : waiting) {
+        set(field.obj, field.field, copy);
+      }
+    }
+    return copy;
+  }
+  
+  /** Copy each field of {@code source} into {@code copy}, except those taken by its creator or left out. */
+  private <T> void fillIn(PersistableModel<T> model, CreatorModel<T> creator, T source, T copy) {
+    for (Field field : model.getPersistFields()) {
+      String tag = field.getAnnotation(Persist.class).value();
+      if (!projection.includes(model.getModelledClass(), tag) || (creator != null && creator.takesTag(tag))) {
+        continue;
+      }
+      
+      // Copy the field, unless it refers to an object which doesn't exist yet
+      Object value = copyField(field, source);
+      Object waitingFor = takeDeferred();
+      if (waitingFor == null) {
+        set(copy, field, value);
+      } else {
+        deferredFields.computeIfAbsent(waitingFor, ref -> new ArrayList<>()).add(new DeferredField(copy, field));
+      }
+    }
+  }
+  
+  /** @return The pending object referred to by the last value copied, or {@code null}, and forget it. */
+  private Object takeDeferred() {
+    Object taken = deferred;
+    deferred = null;
+    return taken;
+  }
+  
+  private static void set(Object obj, Field field, Object value) {
+    try {
+      field.set(obj, value);
+    } catch (IllegalAccessException e) {
+      throw new PersistenceException("Cannot copy field protected by access control: " + field.getName()
+          + " in " + field.getDeclaringClass());
+    }
+  }
+  
+  /** A field of a copy which is waiting for the copy of a pending object to be created. */
+  private static final class DeferredField {
+    
+    private final Object obj;
+    private final Field field;
+    
+    private DeferredField(Object obj, Field field) {
+      this.obj = obj;
+      this.field = field;
+    }
+    
+  }
+  
+}
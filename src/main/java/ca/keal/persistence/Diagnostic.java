@@ -0,0 +1,125 @@
+package ca.keal.persistence;
+
+/**
+ * Something suspicious, but not fatal, found while persisting or regenerating, as passed to a
+ * {@link DiagnosticListener}. Which of its parts are set depends on its {@link Kind}; the rest are {@code null}.
+ * @see Diagnostics
+ */
+public final class Diagnostic {
+  
+  /** The kinds of diagnostic. */
+  public enum Kind {
+    /** The document element of a document isn't {@code <persisted>}. Has a tag. */
+    ROOT_TAG_NAME,
+    /** The document element of a document has attributes. */
+    ROOT_ATTRIBUTES,
+    /** Two toplevel elements have the same tag and ID, and the later one replaces the earlier. Has a tag and ID. */
+    DUPLICATE_TOPLEVEL_ELEMENT,
+    /** Two objects were regenerated for the same toplevel tag and ID. Has a tag and ID. */
+    DUPLICATE_REGISTRATION,
+    /**
+     * Distinct toplevel objects being persisted have the same tag and ID, so only the first is persisted. Has a class,
+     * tag and ID.
+     */
+    SHARED_TOPLEVEL_ID,
+    /**
+     * An element has a child which doesn't correspond to any @{@link Persist} field of the class regenerated from it.
+     * Has a class, tag and child tag.
+     */
+    UNUSED_CHILD,
+    /** A toplevel element wasn't regenerated, since nothing refers to it. Has a tag and ID. */
+    UNUSED_TOPLEVEL
+  }
+  
+  private final Kind kind;
+  private final Class<?> cls;
+  private final String tag;
+  private final String id;
+  private final String childTag;
+  private final long suppressed;
+  
+  Diagnostic(Kind kind, Class<?> cls, String tag, String id, String childTag, long suppressed) {
+    this.kind = kind;
+    this.cls = cls;
+    this.tag = tag;
+    this.id = id;
+    this.childTag = childTag;
+    this.suppressed = suppressed;
+  }
+  
+  public Kind getKind() {
+    return kind;
+  }
+  
+  /**
+   * @return The class being persisted or regenerated, or {@code null} if there isn't one.
+   */
+  public Class<?> getPersistingClass() {
+    return cls;
+  }
+  
+  /**
+   * @return The tag of the element concerned, or {@code null} if there isn't one.
+   */
+  public String getTag() {
+    return tag;
+  }
+  
+  /**
+   * @return The ID of the toplevel element or object concerned, or {@code null} if there isn't one.
+   */
+  public String getId() {
+    return id;
+  }
+  
+  /**
+   * @return The tag of the unused child, or {@code null} if this isn't an {@link Kind#UNUSED_CHILD} diagnostic.
+   */
+  public String getChildTag() {
+    return childTag;
+  }
+  
+  /**
+   * @return How many diagnostics of the same kind, reported to the same {@link Diagnostics}, were suppressed by its
+   *  sampling or rate limit since the last one which wasn't.
+   */
+  public long getSuppressed() {
+    return suppressed;
+  }
+  
+  /**
+   * @return A description of the diagnostic, made when it is asked for.
+   */
+  public String getMessage() {
+    switch (kind) {
+      case ROOT_TAG_NAME:
+        return "root tag name is '" + tag + "', not 'persisted'.";
+      case ROOT_ATTRIBUTES:
+        return "root tag has attributes.";
+      case DUPLICATE_TOPLEVEL_ELEMENT:
+        return "added duplicate item with tag name '" + tag + "' and id '" + id + "' to toplevel list's map; this "
+            + "probably means there's a duplicate ID.";
+      case DUPLICATE_REGISTRATION:
+        return "registering duplicate object under itemID: " + new ItemID(tag, id);
+      case SHARED_TOPLEVEL_ID:
+        return "distinct instances of " + cls.getCanonicalName() + " share the toplevel tag name '" + tag
+            + "' and id '" + id + "'; only the first one persisted will be regenerated.";
+      case UNUSED_CHILD:
+        return "<" + tag + "> element contains child element that does not correspond to any @Persist-annotated "
+            + "field in " + cls.getCanonicalName() + ": '" + childTag + "'.";
+      case UNUSED_TOPLEVEL:
+        return "unused toplevel element with tag name '" + tag + "' and id '" + id + "'.";
+      default:
+        throw new AssertionError(kind);
+    }
+  }
+  
+  /**
+   * @return The message, followed by the number of similar diagnostics suppressed, if any.
+   */
+  @Override
+  public String toString() {
+    return suppressed == 0 ? getMessage() : getMessage() + " (" + suppressed + " more like this were suppressed)";
+  }
+  
+}
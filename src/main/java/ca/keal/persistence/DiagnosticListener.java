@@ -0,0 +1,18 @@
+package ca.keal.persistence;
+
+/**
+ * Receives the {@link Diagnostic}s passed on by {@link Diagnostics}, after sampling and rate limiting. May be called
+ * by several threads at once.
+ */
+@FunctionalInterface
+public interface DiagnosticListener {
+  
+  /** Ignores every diagnostic. */
+  DiagnosticListener NONE = diagnostic -> {};
+  
+  /** Prints each diagnostic to {@link System#err} as a warning. */
+  DiagnosticListener CONSOLE = diagnostic -> System.err.println("Warning: " + diagnostic);
+  
+  void diagnosed(Diagnostic diagnostic);
+  
+}
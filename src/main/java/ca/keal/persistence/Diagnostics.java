@@ -0,0 +1,154 @@
+package ca.keal.persistence;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the {@link Diagnostic}s found while persisting and regenerating, and passes a sample of them on to a
+ * {@link DiagnosticListener}, since they were created or last {@link #reset()}. Of each kind of diagnostic, the first
+ * few are passed on, then only one in so many; and no more than so many of any kind are passed on in each second. The
+ * rest are only counted, and each diagnostic passed on says how many like it were suppressed since the last one, so a
+ * malformed document with millions of unused elements costs millions of increments, not millions of messages. They
+ * may be shared by several persistors and threads at once.
+ * @see XmlPersistor#setDiagnostics(Diagnostics)
+ */
+public final class Diagnostics {
+  
+  private static final Diagnostic.Kind[] KINDS = Diagnostic.Kind.values();
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+  
+  /**
+   * The diagnostics used by whatever isn't told otherwise by a persistor, such as a {@link ToplevelList} made on its
+   * own.
+   */
+  static final Diagnostics SHARED = new Diagnostics(DiagnosticListener.CONSOLE);
+  
+  private final DiagnosticListener listener;
+  
+  /** The number of diagnostics of each kind reported, and of those suppressed since the last one passed on. */
+  private final AtomicLongArray counts = new AtomicLongArray(KINDS.length);
+  private final AtomicLongArray suppressed = new AtomicLongArray(KINDS.length);
+  private final AtomicLong delivered = new AtomicLong();
+  
+  private volatile int sampleFirst = 10;
+  private volatile int sampleOneIn = 1000;
+  private volatile int perSecond = 20;
+  
+  /** The start of the current second of rate limiting, and how many diagnostics were passed on in it. */
+  private long windowStart = System.nanoTime();
+  private int windowDelivered = 0;
+  
+  /**
+   * Create diagnostics passing their sample on to {@code listener}.
+   * @throws NullPointerException If {@code listener} is {@code null}.
+   */
+  public Diagnostics(DiagnosticListener listener) {
+    if (listener == null) {
+      throw new NullPointerException("listener cannot be null; use DiagnosticListener.NONE");
+    }
+    this.listener = listener;
+  }
+  
+  /** @return The listener to which the sample of diagnostics is passed on. */
+  public DiagnosticListener getListener() {
+    return listener;
+  }
+  
+  /**
+   * Set which diagnostics of each kind are passed on: the first {@code first}, then every {@code oneIn}th after them.
+   * Defaults to the first 10, then one in 1000.
+   * @throws IllegalArgumentException If {@code first} is negative or {@code oneIn} isn't positive.
+   */
+  public void setSampling(int first, int oneIn) {
+    if (first < 0 || oneIn < 1) {
+      throw new IllegalArgumentException("Cannot sample the first " + first + ", then one in " + oneIn);
+    }
+    sampleFirst = first;
+    sampleOneIn = oneIn;
+  }
+  
+  /**
+   * Set the most diagnostics passed on in each second, of all kinds together; {@code 0} passes none on at all.
+   * Defaults to 20.
+   * @throws IllegalArgumentException If {@code perSecond} is negative.
+   */
+  public void setRateLimit(int perSecond) {
+    if (perSecond < 0) {
+      throw new IllegalArgumentException("Cannot pass on " + perSecond + " diagnostics per second");
+    }
+    this.perSecond = perSecond;
+  }
+  
+  /**
+   * @return The number of diagnostics of the given kind reported, whether or not they were passed on.
+   */
+  public long getCount(Diagnostic.Kind kind) {
+    return counts.get(kind.ordinal());
+  }
+  
+  /**
+   * @return The number of diagnostics of every kind reported, whether or not they were passed on.
+   */
+  public long getTotalCount() {
+    long total = 0;
+    for (int i = 0; i < KINDS.length; i++) {
+      total += counts.get(i);
+    }
+    return total;
+  }
+  
+  /**
+   * @return The number of diagnostics passed on to the listener.
+   */
+  public long getDelivered() {
+    return delivered.get();
+  }
+  
+  /** Set every count back to zero, and restart the sampling of every kind and the rate limit. */
+  public void reset() {
+    for (int i = 0; i < KINDS.length; i++) {
+      counts.set(i, 0);
+      suppressed.set(i, 0);
+    }
+    delivered.set(0);
+    synchronized (this) {
+      windowStart = System.nanoTime();
+      windowDelivered = 0;
+    }
+  }
+  
+  /**
+   * Report a diagnostic, counting it, and passing it on if it is sampled and within the rate limit. It is only made
+   * if it is passed on. Whichever parts its kind doesn't have are {@code null}.
+   */
+  void report(Diagnostic.Kind kind, Class<?> cls, String tag, String id, String childTag) {
+    int i = kind.ordinal();
+    long n = counts.incrementAndGet(i);
+    if (!isSampled(n) || !takePermit()) {
+      suppressed.incrementAndGet(i);
+      return;
+    }
+    delivered.incrementAndGet();
+    listener.diagnosed(new Diagnostic(kind, cls, tag, id, childTag, suppressed.getAndSet(i, 0)));
+  }
+  
+  private boolean isSampled(long n) {
+    int first = sampleFirst;
+    return n <= first || (n - first) % sampleOneIn == 0;
+  }
+  
+  private synchronized boolean takePermit() {
+    long now = System.nanoTime();
+    if (now - windowStart >= SECOND) {
+      windowStart = now;
+      windowDelivered = 0;
+    }
+    if (windowDelivered >= perSecond) {
+      return false;
+    }
+    windowDelivered++;
+    return true;
+  }
+  
+}
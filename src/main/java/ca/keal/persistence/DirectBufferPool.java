@@ -0,0 +1,52 @@
+package ca.keal.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A global pool of direct {@link ByteBuffer}s of a fixed size, so that the {@link XmlChannelWriter}s of repeated
+ * persists don't each allocate (and leave to the garbage collector) their own off-heap memory. At most
+ * {@link #MAX_POOLED} buffers are kept; any beyond that are simply dropped when released.
+ */
+final class DirectBufferPool {
+  
+  /** The size of every pooled buffer. */
+  static final int BUFFER_SIZE = 64 * 1024;
+  
+  /** The most buffers kept in the pool at once. */
+  private static final int MAX_POOLED = 64;
+  
+  private static final Queue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+  
+  /** The number of buffers in the pool; kept separately because {@link Queue#size()} is O(n) here. */
+  private static final AtomicInteger POOLED = new AtomicInteger();
+  
+  private DirectBufferPool() {}
+  
+  /**
+   * @return A cleared direct buffer of {@link #BUFFER_SIZE} bytes, from the pool if there are any there.
+   */
+  static ByteBuffer acquire() {
+    ByteBuffer buffer = POOL.poll();
+    if (buffer == null) {
+      return ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+    POOLED.decrementAndGet();
+    buffer.clear();
+    return buffer;
+  }
+  
+  /**
+   * Return {@code buffer}, which must have come from {@link #acquire()}, to the pool. It must not be used afterwards.
+   */
+  static void release(ByteBuffer buffer) {
+    if (POOLED.incrementAndGet() <= MAX_POOLED) {
+      POOL.offer(buffer);
+    } else {
+      POOLED.decrementAndGet();
+    }
+  }
+  
+}
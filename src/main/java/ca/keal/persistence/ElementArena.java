@@ -0,0 +1,202 @@
+package ca.keal.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact store of the elements inside the toplevel elements of a document read by {@link FastElementReader}, kept
+ * as parallel arrays rather than as an object per element: each element is a node, an index into arrays holding its
+ * tag (as a symbol), its kind, its next sibling, and the range of its raw text in the document (or, for shared
+ * elements, back-references and copies, the ID they carry). Nodes are added in document order, so an element's first
+ * child, if it has any, is the node after it. A node costs 17 bytes, where the smallest element object, with its slot
+ * in its parent's list, costs several times that.
+ * 
+ * The elements are only made into {@link PersistedElement} objects by {@link #children(int)}, one toplevel element's
+ * subtree at a time, when it is regenerated; see {@link ArenaToplevelElement}. The nodes of shared elements are
+ * recorded by shared ID as they are set, so that {@link #sharedElement(int)} can make just one of them into an object
+ * when it is referred to before it is regenerated.
+ */
+final class ElementArena {
+  
+  // The kinds of node
+  /** A {@link LazyTextElement}, whose text is the range of the document. */
+  static final int TEXT = 0;
+  /** A {@link TextElement} without any text. */
+  static final int EMPTY_TEXT = 1;
+  /** A {@link NullElement}. */
+  static final int NULL = 2;
+  /** A {@link BackReferenceElement}, whose shared ID is the start of the range. */
+  static final int BACK_REFERENCE = 3;
+  /** A {@link CopyElement}, whose template ID is the start of the range. */
+  static final int COPY = 4;
+  /** A {@link ParentElement}, whose shared ID (or {@link ParentElement#NOT_SHARED}) is the start of the range. */
+  static final int PARENT = 5;
+  
+  /** The number of low bits of each kind byte holding the kind; the rest hold the text's flags. */
+  private static final int KIND_BITS = 3;
+  private static final int KIND_MASK = (1 << KIND_BITS) - 1;
+  
+  /** The bit of the kind byte of a {@link #PARENT} node set if it has children; text nodes use it for their flags. */
+  private static final int HAS_CHILDREN = 0x80;
+  
+  private static final int NONE = -1;
+  
+  /** The whole document. */
+  private final ByteBuffer document;
+  
+  /** The distinct tags, by symbol. */
+  private String[] symbols = new String[16];
+  private final Map<String, Integer> symbolIds = new HashMap<>();
+  
+  private int[] tags = new int[1024];
+  private byte[] kinds = new byte[1024];
+  private int[] nextSiblings = new int[1024];
+  private int[] starts = new int[1024];
+  private int[] ends = new int[1024];
+  private int size = 0;
+  
+  /** The nodes of the shared {@link #PARENT} elements, by shared ID. */
+  private final Map<Integer, Integer> sharedNodes = new HashMap<>();
+  
+  /**
+   * @param document The whole document, which the ranges of text refer to.
+   */
+  ElementArena(ByteBuffer document) {
+    this.document = document;
+  }
+  
+  /**
+   * Add a node with the tag {@code tag} and no children, whose kind is to be set by {@link #set}.
+   * @return The node.
+   */
+  int add(String tag) {
+    if (size == tags.length) {
+      int capacity = size * 2;
+      tags = Arrays.copyOf(tags, capacity);
+      kinds = Arrays.copyOf(kinds, capacity);
+      nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+      starts = Arrays.copyOf(starts, capacity);
+      ends = Arrays.copyOf(ends, capacity);
+    }
+    int node = size++;
+    tags[node] = symbol(tag);
+    kinds[node] = 0;
+    nextSiblings[node] = NONE;
+    return node;
+  }
+  
+  private int symbol(String tag) {
+    Integer symbol = symbolIds.get(tag);
+    if (symbol == null) {
+      symbol = symbolIds.size();
+      if (symbol == symbols.length) {
+        symbols = Arrays.copyOf(symbols, symbol * 2);
+      }
+      symbols[symbol] = tag;
+      symbolIds.put(tag, symbol);
+    }
+    return symbol;
+  }
+  
+  /**
+   * Set what {@code node} is, after it is added, or after its children are.
+   * @param kind The kind of node, one of the constants above.
+   * @param start The offset in the document of its raw text, or the ID it carries.
+   * @param end The offset in the document just after its raw text.
+   * @param flags The flags of {@link FastElementReader} describing its raw text.
+   */
+  void set(int node, int kind, int start, int end, int flags) {
+    kinds[node] = (byte) (kinds[node] & HAS_CHILDREN | kind | flags << KIND_BITS);
+    starts[node] = start;
+    ends[node] = end;
+    if (kind == PARENT && start != ParentElement.NOT_SHARED) {
+      sharedNodes.put(start, node);
+    }
+  }
+  
+  /**
+   * Make {@code child}, the last node added along with its descendants, the next child of {@code parent}, after
+   * {@code previous}, its last child so far, if it has any.
+   */
+  void link(int parent, int previous, int child) {
+    if (previous == NONE) {
+      kinds[parent] |= HAS_CHILDREN;
+    } else {
+      nextSiblings[previous] = child;
+    }
+  }
+  
+  /**
+   * @return New elements for the children of {@code node}, and everything inside them, in order.
+   */
+  List<PersistedElement> children(int node) {
+    List<PersistedElement> children = new ArrayList<>();
+    for (int child = firstChild(node); child != NONE; child = nextSiblings[child]) {
+      children.add(element(child));
+    }
+    return children;
+  }
+  
+  /**
+   * @return A new element for the shared element with the given shared ID, and everything inside it, or {@code null}
+   *  if there is none in the arena.
+   */
+  ParentElement sharedElement(int sharedId) {
+    Integer node = sharedNodes.get(sharedId);
+    return node == null ? null : (ParentElement) element(node);
+  }
+  
+  /** @return A new element for {@code node}, and everything inside it. */
+  private PersistedElement element(int node) {
+    String tag = symbols[tags[node]];
+    int kind = kinds[node] & KIND_MASK;
+    switch (kind) {
+      case TEXT:
+        return new LazyTextElement(tag, document, starts[node], ends[node], (kinds[node] & 0xFF) >>> KIND_BITS);
+      case EMPTY_TEXT:
+        return new TextElement(tag, "");
+      case NULL:
+        return new NullElement(tag);
+      case BACK_REFERENCE:
+        return new BackReferenceElement(tag, starts[node]);
+      case COPY:
+        return new CopyElement(tag, starts[node]);
+      case PARENT:
+        ParentElement parent = new ParentElement(tag);
+        if (starts[node] != ParentElement.NOT_SHARED) {
+          parent.setSharedId(starts[node]);
+        }
+        for (int child = firstChild(node); child != NONE; child = nextSiblings[child]) {
+          parent.addChild(element(child));
+        }
+        return parent;
+      default:
+        throw new IllegalStateException("Unknown kind of node: " + kind);
+    }
+  }
+  
+  private int firstChild(int node) {
+    return (kinds[node] & HAS_CHILDREN) != 0 ? node + 1 : NONE;
+  }
+  
+  /** Shrink the arrays to the number of nodes, once no more are to be added. */
+  void trim() {
+    tags = Arrays.copyOf(tags, size);
+    kinds = Arrays.copyOf(kinds, size);
+    nextSiblings = Arrays.copyOf(nextSiblings, size);
+    starts = Arrays.copyOf(starts, size);
+    ends = Arrays.copyOf(ends, size);
+  }
+  
+  /**
+   * @return The number of nodes.
+   */
+  int size() {
+    return size;
+  }
+  
+}
@@ -0,0 +1,969 @@
+package ca.keal.persistence;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A strict tokenizer for the subset of XML that persisted documents are written in, reading the children of
+ * {@code <persisted>} straight from the bytes of a UTF-8 document into {@link PersistedElement}s without building a
+ * DOM. Element text is not decoded as it is read; see {@link LazyTextElement}. The descendants of toplevel elements
+ * may be read into an {@link ElementArena} instead of objects; see {@link #readCompact(ByteBuffer)}.
+ * 
+ * The reader only accepts what it knows how to read exactly as the DOM parser and the {@code fromXmlElement()} methods
+ * would: elements with ASCII names, attributes, text with the predefined and numeric character references and CDATA
+ * sections, and comments outside toplevel elements, in UTF-8. Anything else - DTDs, processing instructions,
+ * namespaces, other encodings, malformed XML, or elements which break the rules of persisted elements - makes
+ * {@link #read(ByteBuffer)} return {@code null}, so that the document can be read by the standard parser instead,
+ * which will give the proper result or error.
+ * 
+ * Documents known to be intact, such as by a checksum, may be read trusting that they are well-formed (see
+ * {@link #readTrusted(ByteBuffer, boolean)}), which skips checking characters, references and end tags.
+ */
+final class FastElementReader {
+  
+  // Flags describing raw text, for decoding
+  /** The text contains UTF-8 sequences. */
+  static final int NON_ASCII = 1;
+  /** The text contains character or entity references. */
+  static final int REFERENCES = 2;
+  /** The text contains carriage returns, which are normalized to newlines. */
+  static final int CARRIAGE_RETURNS = 4;
+  /** The text contains tabs or newlines, which are normalized to spaces in attribute values. */
+  static final int WHITESPACE = 8;
+  /** The text contains CDATA sections. */
+  static final int CDATA = 16;
+  
+  /** The number of element and attribute names cached; must be a power of 2. */
+  private static final int NAME_CACHE_SIZE = 256;
+  
+  private static final Pattern DECLARATION = Pattern.compile("<\\?xml\\s+version\\s*=\\s*(['\"])1\\.0\\1"
+      + "(\\s+encoding\\s*=\\s*(['\"])(?i:utf-8)\\3)?(\\s+standalone\\s*=\\s*(['\"])(yes|no)\\5)?\\s*\\?>");
+  
+  private static final byte[] BYTE_ORDER_MARK = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+  
+  /** Thrown on anything the reader doesn't recognise; no stack trace, so it's cheap to throw. */
+  private static final class Unrecognised extends Exception {
+    private Unrecognised() {
+      super(null, null, false, false);
+    }
+  }
+  
+  private static final Unrecognised UNRECOGNISED = new Unrecognised();
+  
+  private final ByteBuffer in;
+  private final int limit;
+  private int pos = 0;
+  
+  /** Decoded element and attribute names, by hash. Element names are only cached if they're valid tags. */
+  private final String[] elementNames = new String[NAME_CACHE_SIZE];
+  private final String[] attributeNames = new String[NAME_CACHE_SIZE];
+  
+  // The attributes of the last start tag read
+  private String[] attributeKeys = new String[4];
+  private String[] attributeValues = new String[4];
+  private int attributeCount;
+  private boolean selfClosing;
+  
+  /** The arena to read the descendants of toplevel elements into, or {@code null} to read them as objects. */
+  private final ElementArena arena;
+  
+  /** Whether the document is trusted to be well-formed, so that it needn't be checked. */
+  private final boolean trusted;
+  
+  private FastElementReader(ByteBuffer in, boolean compact, boolean trusted) {
+    this.in = in;
+    this.limit = in.limit();
+    this.arena = compact ? new ElementArena(in) : null;
+    this.trusted = trusted;
+  }
+  
+  /**
+   * Read the children of the document element of {@code document}, the bytes of a whole persisted document from
+   * position 0 to its limit.
+   * @return The children, in document order: {@link TemplateElement}s and {@link ToplevelElement}s. {@code null} if
+   *  the document contains anything the reader doesn't recognise, in which case the standard parser should be used.
+   */
+  static List<ParentElement> read(ByteBuffer document) {
+    try {
+      return new FastElementReader(document, false, false).readDocument();
+    } catch (Unrecognised e) {
+      return null;
+    }
+  }
+  
+  /**
+   * Read the children of the document element of {@code document}, as {@link #read(ByteBuffer)} does, except that the
+   * descendants of the toplevel elements are read into an {@link ElementArena}, and the toplevel elements are
+   * {@link ArenaToplevelElement}s. Templates are read as objects.
+   */
+  static List<ParentElement> readCompact(ByteBuffer document) {
+    try {
+      return new FastElementReader(document, true, false).readDocument();
+    } catch (Unrecognised e) {
+      return null;
+    }
+  }
+  
+  /**
+   * Read the children of the document element of {@code document}, as {@link #read(ByteBuffer)} or
+   * {@link #readCompact(ByteBuffer)} does, trusting that it is well-formed XML written by
+   * {@link XmlPersistor#toXml(Object, java.nio.channels.WritableByteChannel)}: text, attribute values and references
+   * aren't checked, and end tags are assumed to match their start tags. The result is only the same as that of
+   * {@link #read(ByteBuffer)} if the document really is well-formed.
+   * @param compact Whether to read the descendants of the toplevel elements into an {@link ElementArena}.
+   */
+  static List<ParentElement> readTrusted(ByteBuffer document, boolean compact) {
+    try {
+      return new FastElementReader(document, compact, true).readDocument();
+    } catch (Unrecognised e) {
+      return null;
+    }
+  }
+  
+  private List<ParentElement> readDocument() throws Unrecognised {
+    if (startsWith(BYTE_ORDER_MARK)) {
+      pos += BYTE_ORDER_MARK.length;
+    }
+    if (startsWith("<?xml") && pos + 5 < limit && isWhitespace(in.get(pos + 5))) {
+      readDeclaration();
+    }
+    skipMisc();
+    
+    expect('<');
+    if (!readName(elementNames, true).equals("persisted")) {
+      throw UNRECOGNISED; // let the standard path warn about it
+    }
+    readStartTagRest();
+    if (attributeCount != 0) {
+      throw UNRECOGNISED;
+    }
+    
+    List<ParentElement> elements = new ArrayList<>();
+    if (!selfClosing) {
+      while (true) {
+        scanChars('<', false); // text here is ignored
+        if (startsWith("</")) {
+          pos += 2;
+          readEndTag("persisted");
+          break;
+        } else if (startsWith("<!--")) {
+          skipComment();
+        } else if (pos < limit) {
+          pos++;
+          elements.add(readToplevel());
+        } else {
+          throw UNRECOGNISED;
+        }
+      }
+    }
+    
+    skipMisc();
+    if (pos != limit) {
+      throw UNRECOGNISED;
+    }
+    if (arena != null) {
+      arena.trim();
+    }
+    return elements;
+  }
+  
+  /** Read a toplevel or template element, just after its {@code '<'}. */
+  private ParentElement readToplevel() throws Unrecognised {
+    String tag = readName(elementNames, true);
+    readStartTagRest();
+    
+    ParentElement element;
+    String template = attribute("template");
+    if (template != null) {
+      if (attributeCount > 1) {
+        throw UNRECOGNISED;
+      }
+      element = new TemplateElement(tag, parseId(template));
+    } else {
+      String id = attribute("id");
+      if (id == null) {
+        throw UNRECOGNISED;
+      }
+      if (arena != null) {
+        return readCompactToplevel(tag, id, attribute("root") != null);
+      }
+      element = new ToplevelElement(tag, id, attribute("root") != null);
+    }
+    
+    if (!selfClosing) {
+      while (true) {
+        scanChars('<', false); // text here is ignored
+        if (startsWith("</")) {
+          pos += 2;
+          readEndTag(tag);
+          return element;
+        } else if (pos < limit && in.get(pos) == '<') {
+          pos++;
+          element.addChild(readChild());
+        } else {
+          throw UNRECOGNISED;
+        }
+      }
+    }
+    return element;
+  }
+  
+  /** Read the children of a toplevel element into the arena, just after its start tag. */
+  private ArenaToplevelElement readCompactToplevel(String tag, String id, boolean root) throws Unrecognised {
+    int node = arena.add(tag);
+    arena.set(node, ElementArena.PARENT, ParentElement.NOT_SHARED, 0, 0);
+    if (!selfClosing) {
+      int previous = -1;
+      while (true) {
+        scanChars('<', false); // text here is ignored
+        if (startsWith("</")) {
+          pos += 2;
+          readEndTag(tag);
+          break;
+        } else if (pos < limit && in.get(pos) == '<') {
+          pos++;
+          int child = readChildNode();
+          arena.link(node, previous, child);
+          previous = child;
+        } else {
+          throw UNRECOGNISED;
+        }
+      }
+    }
+    return new ArenaToplevelElement(tag, id, root, arena, node);
+  }
+  
+  /**
+   * Read a child of a toplevel element (or of another child) into the arena, just after its {@code '<'}, by the same
+   * rules as {@link #readChild()}.
+   * @return Its node.
+   */
+  private int readChildNode() throws Unrecognised {
+    String tag = readName(elementNames, true);
+    readStartTagRest();
+    int attributes = attributeCount;
+    boolean isNull = attribute("null") != null;
+    String ref = attribute("ref");
+    String copyOf = attribute("copy-of");
+    String shared = attribute("shared");
+    
+    int node = arena.add(tag);
+    boolean hasChildren = false;
+    int textStart = pos;
+    int textEnd = pos;
+    int textFlags = 0;
+    if (!selfClosing) {
+      int start = pos;
+      int flags = 0;
+      int previous = -1;
+      while (true) {
+        flags |= scanChars('<', false);
+        if (startsWith("<![CDATA[")) {
+          flags |= skipCdata() | CDATA;
+          continue;
+        }
+        if (!hasChildren) {
+          textStart = start;
+          textEnd = pos;
+          textFlags = flags;
+        }
+        if (startsWith("</")) {
+          pos += 2;
+          readEndTag(tag);
+          break;
+        } else if (pos < limit && in.get(pos) == '<') {
+          pos++;
+          hasChildren = true;
+          int child = readChildNode();
+          arena.link(node, previous, child);
+          previous = child;
+          start = pos;
+          flags = 0;
+        } else {
+          throw UNRECOGNISED;
+        }
+      }
+    }
+    
+    if (isNull) {
+      if (hasChildren || textEnd > textStart || attributes > 1) {
+        throw UNRECOGNISED;
+      }
+      arena.set(node, ElementArena.NULL, 0, 0, 0);
+    } else if (ref != null) {
+      if (hasChildren || attributes > 1) {
+        throw UNRECOGNISED;
+      }
+      arena.set(node, ElementArena.BACK_REFERENCE, parseId(ref), 0, 0);
+    } else if (copyOf != null) {
+      if (hasChildren || attributes > 1) {
+        throw UNRECOGNISED;
+      }
+      arena.set(node, ElementArena.COPY, parseId(copyOf), 0, 0);
+    } else if (shared != null || hasChildren) {
+      if (attributes > (shared == null ? 0 : 1)) {
+        throw UNRECOGNISED;
+      }
+      arena.set(node, ElementArena.PARENT, shared == null ? ParentElement.NOT_SHARED : parseId(shared), 0, 0);
+    } else if (attributes > 0) {
+      throw UNRECOGNISED;
+    } else if (textEnd == textStart) {
+      arena.set(node, ElementArena.EMPTY_TEXT, 0, 0, 0);
+    } else {
+      arena.set(node, ElementArena.TEXT, textStart, textEnd, textFlags);
+    }
+    return node;
+  }
+  
+  /** Read a child of a toplevel element (or of another child), just after its {@code '<'}. */
+  private PersistedElement readChild() throws Unrecognised {
+    String tag = readName(elementNames, true);
+    readStartTagRest();
+    int attributes = attributeCount;
+    boolean isNull = attribute("null") != null;
+    String ref = attribute("ref");
+    String copyOf = attribute("copy-of");
+    String shared = attribute("shared");
+    
+    // Whether it's a ParentElement or a TextElement depends on whether it turns out to have children
+    ParentElement parent = null;
+    int textStart = pos;
+    int textEnd = pos;
+    int textFlags = 0;
+    if (!selfClosing) {
+      int start = pos;
+      int flags = 0;
+      while (true) {
+        flags |= scanChars('<', false);
+        if (startsWith("<![CDATA[")) {
+          flags |= skipCdata() | CDATA;
+          continue;
+        }
+        if (parent == null) {
+          textStart = start;
+          textEnd = pos;
+          textFlags = flags;
+        }
+        if (startsWith("</")) {
+          pos += 2;
+          readEndTag(tag);
+          break;
+        } else if (pos < limit && in.get(pos) == '<') {
+          pos++;
+          if (parent == null) {
+            parent = new ParentElement(tag);
+          }
+          parent.addChild(readChild());
+          start = pos;
+          flags = 0;
+        } else {
+          throw UNRECOGNISED;
+        }
+      }
+    }
+    
+    // The same rules, in the same order, as ParentElement#createChildElement
+    if (isNull) {
+      if (parent != null || textEnd > textStart || attributes > 1) {
+        throw UNRECOGNISED;
+      }
+      return new NullElement(tag);
+    } else if (ref != null) {
+      if (parent != null || attributes > 1) {
+        throw UNRECOGNISED;
+      }
+      return new BackReferenceElement(tag, parseId(ref));
+    } else if (copyOf != null) {
+      if (parent != null || attributes > 1) {
+        throw UNRECOGNISED;
+      }
+      return new CopyElement(tag, parseId(copyOf));
+    } else if (shared != null || parent != null) {
+      if (attributes > (shared == null ? 0 : 1)) {
+        throw UNRECOGNISED;
+      }
+      if (parent == null) {
+        parent = new ParentElement(tag);
+      }
+      if (shared != null) {
+        parent.setSharedId(parseId(shared));
+      }
+      return parent;
+    } else if (attributes > 0) {
+      throw UNRECOGNISED;
+    } else if (textEnd == textStart) {
+      return new TextElement(tag, "");
+    }
+    return new LazyTextElement(tag, in, textStart, textEnd, textFlags);
+  }
+  
+  /** Read the attributes and end of a start tag, after its name. */
+  private void readStartTagRest() throws Unrecognised {
+    attributeCount = 0;
+    selfClosing = false;
+    while (true) {
+      boolean spaced = skipWhitespace();
+      if (pos >= limit) {
+        throw UNRECOGNISED;
+      }
+      byte b = in.get(pos);
+      if (b == '>') {
+        pos++;
+        return;
+      } else if (b == '/') {
+        pos++;
+        expect('>');
+        selfClosing = true;
+        return;
+      } else if (!spaced) {
+        throw UNRECOGNISED;
+      }
+      
+      String key = readName(attributeNames, false);
+      skipWhitespace();
+      expect('=');
+      skipWhitespace();
+      if (pos >= limit || (in.get(pos) != '"' && in.get(pos) != '\'')) {
+        throw UNRECOGNISED;
+      }
+      byte quote = in.get(pos++);
+      int start = pos;
+      int flags = scanChars(quote, true);
+      String value = decode(in, start, pos, flags, true);
+      pos++;
+      
+      if (!trusted && attribute(key) != null) {
+        throw UNRECOGNISED; // duplicate attribute
+      }
+      if (attributeCount == attributeKeys.length) {
+        attributeKeys = Arrays.copyOf(attributeKeys, attributeCount * 2);
+        attributeValues = Arrays.copyOf(attributeValues, attributeCount * 2);
+      }
+      attributeKeys[attributeCount] = key;
+      attributeValues[attributeCount] = value;
+      attributeCount++;
+    }
+  }
+  
+  /** @return The value of the attribute {@code key} of the last start tag read, or {@code null} if it has none. */
+  private String attribute(String key) {
+    for (int i = 0; i < attributeCount; i++) {
+      if (attributeKeys[i].equals(key)) {
+        return attributeValues[i];
+      }
+    }
+    return null;
+  }
+  
+  /** Read an end tag for {@code tag}, just after its {@code "</"}. */
+  private void readEndTag(String tag) throws Unrecognised {
+    if (trusted) {
+      pos += tag.length(); // names are ASCII
+    } else if (!readName(elementNames, true).equals(tag)) {
+      throw UNRECOGNISED;
+    }
+    skipWhitespace();
+    expect('>');
+  }
+  
+  /**
+   * Read an element or attribute name made of ASCII letters, digits, {@code '_'}, {@code '-'} and {@code '.'}, looking
+   * it up in {@code cache} so that each distinct name is only decoded once.
+   * @param element Whether it's an element name, in which case it must also be a valid tag.
+   */
+  private String readName(String[] cache, boolean element) throws Unrecognised {
+    int start = pos;
+    if (pos >= limit || !isNameStart(in.get(pos))) {
+      throw UNRECOGNISED;
+    }
+    int hash = 0;
+    byte b;
+    while (pos < limit && isNameChar(b = in.get(pos))) {
+      hash = 31 * hash + b;
+      pos++;
+    }
+    
+    int slot = hash & (NAME_CACHE_SIZE - 1);
+    String cached = cache[slot];
+    if (cached != null && cached.length() == pos - start) {
+      int i = 0;
+      while (i < cached.length() && cached.charAt(i) == in.get(start + i)) {
+        i++;
+      }
+      if (i == cached.length()) {
+        return cached;
+      }
+    }
+    
+    String name = decode(in, start, pos, 0, false);
+    if (element && !trusted && !PersistenceUtil.isValidXmlTag(name)) {
+      throw UNRECOGNISED;
+    }
+    cache[slot] = name;
+    return name;
+  }
+  
+  /**
+   * Check the characters up to the next {@code stop} (or the end of the document, if not in an attribute value),
+   * leaving {@link #pos} there.
+   * @return The flags describing the characters.
+   */
+  private int scanChars(int stop, boolean attribute) throws Unrecognised {
+    if (trusted) {
+      return skipChars(stop, attribute);
+    }
+    int start = pos;
+    int flags = 0;
+    while (pos < limit) {
+      byte b = in.get(pos);
+      if (b == stop) {
+        return flags;
+      } else if (b >= 0x20) {
+        if (b == '&') {
+          pos = checkReference(pos);
+          flags |= REFERENCES;
+          continue;
+        } else if (b == '<') {
+          throw UNRECOGNISED;
+        } else if (b == '>' && !attribute && pos - start >= 2 && in.get(pos - 1) == ']' && in.get(pos - 2) == ']') {
+          throw UNRECOGNISED; // "]]>" isn't allowed in text
+        }
+        pos++;
+      } else if (b >= 0) {
+        if (b == '\r') {
+          flags |= CARRIAGE_RETURNS;
+        } else if (b == '\n' || b == '\t') {
+          flags |= WHITESPACE;
+        } else {
+          throw UNRECOGNISED;
+        }
+        pos++;
+      } else {
+        pos = checkUtf8(pos);
+        flags |= NON_ASCII;
+      }
+    }
+    if (attribute) {
+      throw UNRECOGNISED;
+    }
+    return flags;
+  }
+  
+  /** Skip the characters up to the next {@code stop}, as {@link #scanChars} does, without checking them. */
+  private int skipChars(int stop, boolean attribute) throws Unrecognised {
+    int flags = 0;
+    while (pos < limit) {
+      byte b = in.get(pos);
+      if (b == stop) {
+        return flags;
+      } else if (b < 0) {
+        flags |= NON_ASCII;
+      } else if (b == '&') {
+        flags |= REFERENCES;
+      } else if (b == '\r') {
+        flags |= CARRIAGE_RETURNS;
+      } else if (b == '\n' || b == '\t') {
+        flags |= WHITESPACE;
+      }
+      pos++;
+    }
+    if (attribute) {
+      throw UNRECOGNISED;
+    }
+    return flags;
+  }
+  
+  /** Check the UTF-8 sequence of a legal XML character starting at {@code p}, returning the offset after it. */
+  private int checkUtf8(int p) throws Unrecognised {
+    int lead = in.get(p) & 0xFF;
+    int length;
+    if (lead >= 0xC2 && lead <= 0xDF) {
+      length = 2;
+    } else if (lead >= 0xE0 && lead <= 0xEF) {
+      length = 3;
+    } else if (lead >= 0xF0 && lead <= 0xF4) {
+      length = 4;
+    } else {
+      throw UNRECOGNISED;
+    }
+    if (p + length > limit) {
+      throw UNRECOGNISED;
+    }
+    
+    int codePoint = lead & (0x7F >> length);
+    for (int i = 1; i < length; i++) {
+      int continuation = in.get(p + i) & 0xFF;
+      if ((continuation & 0xC0) != 0x80) {
+        throw UNRECOGNISED;
+      }
+      codePoint = codePoint << 6 | continuation & 0x3F;
+    }
+    if (length == 3 && codePoint < 0x800 || length == 4 && codePoint < 0x10000 || !isXmlChar(codePoint)) {
+      throw UNRECOGNISED;
+    }
+    return p + length;
+  }
+  
+  /** Check the character or entity reference starting at {@code p}, returning the offset after it. */
+  private int checkReference(int p) throws Unrecognised {
+    int semicolon = p + 1;
+    while (semicolon < limit && semicolon - p <= 10 && in.get(semicolon) != ';') {
+      semicolon++;
+    }
+    if (semicolon >= limit || in.get(semicolon) != ';') {
+      throw UNRECOGNISED;
+    }
+    
+    if (in.get(p + 1) == '#') {
+      boolean hex = p + 2 < semicolon && in.get(p + 2) == 'x';
+      int digitsStart = hex ? p + 3 : p + 2;
+      if (digitsStart == semicolon) {
+        throw UNRECOGNISED;
+      }
+      int codePoint = 0;
+      for (int i = digitsStart; i < semicolon; i++) {
+        int digit = Character.digit(in.get(i), hex ? 16 : 10);
+        if (digit < 0) {
+          throw UNRECOGNISED;
+        }
+        codePoint = codePoint * (hex ? 16 : 10) + digit;
+      }
+      if (!isXmlChar(codePoint)) {
+        throw UNRECOGNISED;
+      }
+    } else {
+      String name = decode(in, p + 1, semicolon, 0, false);
+      if (resolveEntity(name) == null) {
+        throw UNRECOGNISED;
+      }
+    }
+    return semicolon + 1;
+  }
+  
+  private void readDeclaration() throws Unrecognised {
+    int start = pos;
+    while (pos + 1 < limit && !(in.get(pos) == '?' && in.get(pos + 1) == '>')) {
+      if (in.get(pos) < 0) {
+        throw UNRECOGNISED;
+      }
+      pos++;
+    }
+    pos += 2;
+    if (pos > limit || !DECLARATION.matcher(decode(in, start, pos, 0, false)).matches()) {
+      throw UNRECOGNISED;
+    }
+  }
+  
+  /** Skip whitespace and comments. */
+  private void skipMisc() throws Unrecognised {
+    while (true) {
+      skipWhitespace();
+      if (startsWith("<!--")) {
+        skipComment();
+      } else {
+        return;
+      }
+    }
+  }
+  
+  /** Skip a comment, starting at its {@code "<!--"}. */
+  private void skipComment() throws Unrecognised {
+    pos += 4;
+    while (pos < limit) {
+      byte b = in.get(pos);
+      if (b == '-' && pos + 1 < limit && in.get(pos + 1) == '-') {
+        if (pos + 2 < limit && in.get(pos + 2) == '>') {
+          pos += 3;
+          return;
+        }
+        throw UNRECOGNISED; // "--" isn't allowed in comments
+      } else if (b < 0) {
+        pos = checkUtf8(pos);
+      } else if (b < 0x20 && b != '\r' && b != '\n' && b != '\t') {
+        throw UNRECOGNISED;
+      } else {
+        pos++;
+      }
+    }
+    throw UNRECOGNISED;
+  }
+  
+  /**
+   * Skip a CDATA section, starting at its {@code "<![CDATA["}.
+   * @return The flags describing its contents.
+   */
+  private int skipCdata() throws Unrecognised {
+    pos += 9;
+    int flags = 0;
+    while (pos < limit) {
+      byte b = in.get(pos);
+      if (b == ']' && pos + 2 < limit && in.get(pos + 1) == ']' && in.get(pos + 2) == '>') {
+        pos += 3;
+        return flags;
+      } else if (b < 0) {
+        pos = checkUtf8(pos);
+        flags |= NON_ASCII;
+      } else if (b < 0x20 && b != '\n' && b != '\t') {
+        if (b != '\r') {
+          throw UNRECOGNISED;
+        }
+        flags |= CARRIAGE_RETURNS;
+        pos++;
+      } else {
+        pos++;
+      }
+    }
+    throw UNRECOGNISED;
+  }
+  
+  /** @return Whether there was any whitespace. */
+  private boolean skipWhitespace() {
+    int start = pos;
+    while (pos < limit && isWhitespace(in.get(pos))) {
+      pos++;
+    }
+    return pos > start;
+  }
+  
+  private void expect(char c) throws Unrecognised {
+    if (pos >= limit || in.get(pos) != c) {
+      throw UNRECOGNISED;
+    }
+    pos++;
+  }
+  
+  private boolean startsWith(String ascii) {
+    if (pos + ascii.length() > limit) {
+      return false;
+    }
+    for (int i = 0; i < ascii.length(); i++) {
+      if (in.get(pos + i) != ascii.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  private boolean startsWith(byte[] bytes) {
+    if (pos + bytes.length > limit) {
+      return false;
+    }
+    for (int i = 0; i < bytes.length; i++) {
+      if (in.get(pos + i) != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /** Parse a shared or template ID, giving up on the fast path if it's invalid. */
+  private static int parseId(String id) throws Unrecognised {
+    try {
+      return ParentElement.parseIdAttribute(id);
+    } catch (RegenerationException e) {
+      throw UNRECOGNISED;
+    }
+  }
+  
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+  }
+  
+  private static boolean isNameStart(byte b) {
+    return b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b == '_';
+  }
+  
+  private static boolean isNameChar(byte b) {
+    return isNameStart(b) || b >= '0' && b <= '9' || b == '-' || b == '.';
+  }
+  
+  private static boolean isXmlChar(int c) {
+    return c == '\t' || c == '\n' || c == '\r' || c >= 0x20 && c <= 0xD7FF || c >= 0xE000 && c <= 0xFFFD
+        || c >= 0x10000 && c <= 0x10FFFF;
+  }
+  
+  /** @return The character a predefined entity stands for, or {@code null} if {@code name} isn't one. */
+  private static String resolveEntity(String name) {
+    switch (name) {
+      case "lt":
+        return "<";
+      case "gt":
+        return ">";
+      case "amp":
+        return "&";
+      case "quot":
+        return "\"";
+      case "apos":
+        return "'";
+      default:
+        return null;
+    }
+  }
+  
+  /**
+   * Decode the checked raw text between {@code start} and {@code end} in {@code document}, normalizing line endings
+   * (and, in attribute values, whitespace) and resolving references as an XML parser would.
+   * @param flags The flags describing the raw text, as found when it was checked.
+   */
+  static String decode(ByteBuffer document, int start, int end, int flags, boolean attribute) {
+    byte[] bytes = new byte[end - start];
+    ByteBuffer source = document.duplicate();
+    source.position(start);
+    source.get(bytes);
+    String raw = new String(bytes, (flags & NON_ASCII) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+    
+    int normalize = REFERENCES | CARRIAGE_RETURNS | CDATA | (attribute ? WHITESPACE : 0);
+    if ((flags & normalize) == 0) {
+      return raw;
+    }
+    
+    StringBuilder decoded = new StringBuilder(raw.length());
+    for (int i = 0; i < raw.length(); i++) {
+      char c = raw.charAt(i);
+      if (c == '<') { // only ever the start of a CDATA section
+        int cdataEnd = raw.indexOf("]]>", i);
+        for (int j = i + 9; j < cdataEnd; j++) {
+          char cdata = raw.charAt(j);
+          if (cdata != '\r') {
+            decoded.append(cdata);
+          } else if (j + 1 >= cdataEnd || raw.charAt(j + 1) != '\n') {
+            decoded.append('\n');
+          }
+        }
+        i = cdataEnd + 2;
+      } else if (c == '\r') {
+        if (i + 1 < raw.length() && raw.charAt(i + 1) == '\n') {
+          i++;
+        }
+        decoded.append(attribute ? ' ' : '\n');
+      } else if (attribute && (c == '\n' || c == '\t')) {
+        decoded.append(' ');
+      } else if (c == '&') {
+        int semicolon = raw.indexOf(';', i);
+        String name = raw.substring(i + 1, semicolon);
+        if (name.startsWith("#x")) {
+          decoded.appendCodePoint(Integer.parseInt(name.substring(2), 16));
+        } else if (name.startsWith("#")) {
+          decoded.appendCodePoint(Integer.parseInt(name.substring(1)));
+        } else {
+          decoded.append(resolveEntity(name));
+        }
+        i = semicolon;
+      } else {
+        decoded.append(c);
+      }
+    }
+    return decoded.toString();
+  }
+  
+  /**
+   * Decode the checked raw text of an element between {@code start} and {@code end} in {@code document} as
+   * {@link #decode(ByteBuffer, int, int, int, boolean)} would, but write it to {@code out} as UTF-8 instead of returning
+   * it. Runs of raw bytes which need no decoding, which are already UTF-8, are copied straight to {@code out}, so the
+   * text is never held as a whole.
+   * @param flags The flags describing the raw text, as found when it was checked.
+   * @throws IOException If {@code out} can't be written to.
+   */
+  static void decodeTo(ByteBuffer document, int start, int end, int flags, OutputStream out) throws IOException {
+    ByteBuffer source = document.duplicate();
+    byte[] chunk = new byte[8192];
+    if ((flags & (REFERENCES | CARRIAGE_RETURNS | CDATA)) == 0) {
+      copy(source, start, end, chunk, out);
+      return;
+    }
+    
+    int run = start; // the start of the run of bytes not yet copied
+    int cdataEnd = -1; // the offset of the "]]>" ending the current CDATA section, or -1 if not in one
+    for (int i = start; i < end; i++) {
+      byte b = document.get(i);
+      if (i == cdataEnd) {
+        copy(source, run, i, chunk, out);
+        i += 2;
+        run = i + 1;
+        cdataEnd = -1;
+      } else if (b == '\r') {
+        copy(source, run, i, chunk, out);
+        out.write('\n');
+        if (i + 1 < end && document.get(i + 1) == '\n') {
+          i++;
+        }
+        run = i + 1;
+      } else if (cdataEnd != -1) {
+        // everything else in a CDATA section is literal
+      } else if (b == '<') { // only ever the start of a CDATA section
+        copy(source, run, i, chunk, out);
+        i += 8;
+        run = i + 1;
+        cdataEnd = indexOfCdataEnd(document, run, end);
+      } else if (b == '&') {
+        copy(source, run, i, chunk, out);
+        int semicolon = i + 1;
+        while (document.get(semicolon) != ';') {
+          semicolon++;
+        }
+        if (document.get(i + 1) == '#') {
+          boolean hex = document.get(i + 2) == 'x';
+          int codePoint = 0;
+          for (int j = hex ? i + 3 : i + 2; j < semicolon; j++) {
+            codePoint = codePoint * (hex ? 16 : 10) + Character.digit(document.get(j), 16);
+          }
+          writeUtf8(codePoint, out);
+        } else {
+          // The checked text only has predefined entities: lt, gt, amp, apos, and quot
+          byte first = document.get(i + 1);
+          out.write(first == 'l' ? '<' : first == 'g' ? '>' : first == 'q' ? '"' : semicolon - i == 4 ? '&' : '\'');
+        }
+        i = semicolon;
+        run = i + 1;
+      }
+    }
+    copy(source, run, end, chunk, out);
+  }
+  
+  /** Write {@code codePoint} to {@code out} in UTF-8. */
+  private static void writeUtf8(int codePoint, OutputStream out) throws IOException {
+    if (codePoint < 0x80) {
+      out.write(codePoint);
+    } else if (codePoint < 0x800) {
+      out.write(0xC0 | codePoint >> 6);
+      out.write(0x80 | codePoint & 0x3F);
+    } else if (codePoint < 0x10000) {
+      out.write(0xE0 | codePoint >> 12);
+      out.write(0x80 | codePoint >> 6 & 0x3F);
+      out.write(0x80 | codePoint & 0x3F);
+    } else {
+      out.write(0xF0 | codePoint >> 18);
+      out.write(0x80 | codePoint >> 12 & 0x3F);
+      out.write(0x80 | codePoint >> 6 & 0x3F);
+      out.write(0x80 | codePoint & 0x3F);
+    }
+  }
+  
+  /** @return The offset of the first {@code "]]>"} in {@code document} from {@code from}, before {@code end}. */
+  private static int indexOfCdataEnd(ByteBuffer document, int from, int end) {
+    for (int i = from; i + 2 < end; i++) {
+      if (document.get(i) == ']' && document.get(i + 1) == ']' && document.get(i + 2) == '>') {
+        return i;
+      }
+    }
+    throw new IllegalStateException("Unterminated CDATA section in checked text");
+  }
+  
+  /** Copy the bytes between {@code start} and {@code end} in {@code source} to {@code out} through {@code chunk}. */
+  private static void copy(ByteBuffer source, int start, int end, byte[] chunk, OutputStream out) throws IOException {
+    source.position(start);
+    for (int left = end - start; left > 0; ) {
+      int length = Math.min(left, chunk.length);
+      source.get(chunk, 0, length);
+      out.write(chunk, 0, length);
+      left -= length;
+    }
+  }
+  
+}
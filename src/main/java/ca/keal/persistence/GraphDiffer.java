@@ -0,0 +1,156 @@
+package ca.keal.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the {@link ToplevelElement}s persisted from two object graphs (or read from a persisted document and
+ * persisted from a graph) and works out a {@link GraphPatch} turning the first into the second. Toplevel elements are
+ * matched by tag and ID; those only in the second are added whole, those only in the first are removed, and for those
+ * in both, only the children (that is, the fields) whose contents differ are included.
+ * 
+ * Children are compared structurally, except that {@link StreamedElement}s are only the same if they stream the same
+ * value object, since comparing their text would mean reading it all. Shared embedded elements can't be compared at
+ * all, since their shared IDs depend on the order of the whole document, so they make the diff fail.
+ * @see XmlPersistor#diff(Object, Object)
+ */
+final class GraphDiffer {
+  
+  /** The templates of the first set of elements, by template ID, for resolving its {@link CopyElement}s. */
+  private final Map<Integer, TemplateElement> templates;
+  
+  GraphDiffer(Map<Integer, TemplateElement> templates) {
+    this.templates = templates;
+  }
+  
+  /**
+   * @return A patch which turns the graph persisted as {@code from} into the one persisted as {@code to}.
+   * @throws PersistenceException If the root elements of {@code from} and {@code to} have different tags or IDs, or
+   *  either contains a shared embedded element.
+   */
+  GraphPatch diff(Collection<ToplevelElement> from, Collection<ToplevelElement> to) {
+    Map<ItemID, ToplevelElement> unmatched = new LinkedHashMap<>();
+    ItemID fromRoot = null;
+    for (ToplevelElement element : from) {
+      ItemID itemID = new ItemID(element.getTag(), element.getId());
+      unmatched.put(itemID, element);
+      if (element.isRoot()) {
+        fromRoot = itemID;
+      }
+    }
+    
+    List<ToplevelElement> added = new ArrayList<>();
+    List<ToplevelElement> changed = new ArrayList<>();
+    for (ToplevelElement element : to) {
+      ItemID itemID = new ItemID(element.getTag(), element.getId());
+      if (element.isRoot() && !itemID.equals(fromRoot)) {
+        throw new PersistenceException("Cannot diff graphs with different roots: " + fromRoot + " and " + itemID);
+      }
+      
+      ToplevelElement previous = unmatched.remove(itemID);
+      if (previous == null) {
+        checkUnshared(element);
+        added.add(element);
+      } else {
+        ToplevelElement changes = changes(previous, element);
+        if (!changes.getChildren().isEmpty()) {
+          changed.add(changes);
+        }
+      }
+    }
+    
+    return new GraphPatch(added, changed, new ArrayList<>(unmatched.keySet()));
+  }
+  
+  /** @return A {@link ToplevelElement} holding the children of {@code to} which differ from those of {@code from}. */
+  private ToplevelElement changes(ToplevelElement from, ToplevelElement to) {
+    ToplevelElement changes = new ToplevelElement(to.getTag(), to.getId());
+    List<PersistedElement> fromChildren = from.getChildren();
+    List<PersistedElement> toChildren = to.getChildren();
+    for (int i = 0; i < toChildren.size(); i++) {
+      PersistedElement child = toChildren.get(i);
+      // Fields are almost always in the same order, so look in the same place first
+      List<PersistedElement> previous = i < fromChildren.size() && fromChildren.get(i).getTag().equals(child.getTag())
+          ? fromChildren.subList(i, i + 1) : from.getChildrenByTag(child.getTag());
+      if (previous.size() != 1 || !same(previous.get(0), child)) {
+        checkUnshared(child);
+        changes.addChild(child);
+      }
+    }
+    return changes;
+  }
+  
+  /** @return Whether {@code from} and {@code to} would be regenerated the same way. */
+  private boolean same(PersistedElement from, PersistedElement to) {
+    if (from instanceof CopyElement) {
+      TemplateElement template = templates.get(((CopyElement) from).getTemplate());
+      if (template == null) {
+        return false; // the copy can't be regenerated anyway, so it had better be replaced
+      }
+      from = template;
+    }
+    if (isShared(from) || isShared(to)) {
+      throw new PersistenceException("Cannot diff graphs which share embedded objects: <" + to.getTag()
+          + "> is shared.");
+    }
+    
+    if (from instanceof StreamedElement || to instanceof StreamedElement) {
+      return from instanceof StreamedElement && to instanceof StreamedElement
+          && ((StreamedElement) from).getValue() == ((StreamedElement) to).getValue();
+    } else if (from instanceof NullElement || to instanceof NullElement) {
+      return from instanceof NullElement && to instanceof NullElement;
+    } else if (from instanceof TextElement && to instanceof TextElement) {
+      return ((TextElement) from).getText().equals(((TextElement) to).getText());
+    } else if (from instanceof ParentElement && to instanceof ParentElement) {
+      List<PersistedElement> fromChildren = ((ParentElement) from).getChildren();
+      List<PersistedElement> toChildren = ((ParentElement) to).getChildren();
+      if (fromChildren.size() != toChildren.size()) {
+        return false;
+      }
+      for (int i = 0; i < fromChildren.size(); i++) {
+        if (!fromChildren.get(i).getTag().equals(toChildren.get(i).getTag())
+            || !same(fromChildren.get(i), toChildren.get(i))) {
+          return false;
+        }
+      }
+      return true;
+    } else {
+      // An embedded object with no fields may be read back as empty text
+      return isEmpty(from) && isEmpty(to);
+    }
+  }
+  
+  /** @return Whether {@code element} is empty text or a {@link ParentElement} without children. */
+  private static boolean isEmpty(PersistedElement element) {
+    if (element instanceof TextElement) {
+      return ((TextElement) element).getText().isEmpty();
+    }
+    return element instanceof ParentElement && ((ParentElement) element).getChildren().isEmpty();
+  }
+  
+  /** @return Whether {@code element} is a shared {@link ParentElement} or a back-reference to one. */
+  private static boolean isShared(PersistedElement element) {
+    return element instanceof BackReferenceElement
+        || (element instanceof ParentElement && ((ParentElement) element).getSharedId() != ParentElement.NOT_SHARED);
+  }
+  
+  /**
+   * Check that {@code element} and its descendants are neither shared nor back-references to shared elements.
+   * @throws PersistenceException If one is.
+   */
+  private static void checkUnshared(PersistedElement element) {
+    if (isShared(element)) {
+      throw new PersistenceException("Cannot diff graphs which share embedded objects: <" + element.getTag()
+          + "> is shared.");
+    }
+    if (element instanceof ParentElement) {
+      for (PersistedElement child : ((ParentElement) element).getChildren()) {
+        checkUnshared(child);
+      }
+    }
+  }
+  
+}
@@ -0,0 +1,185 @@
+package ca.keal.persistence;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The difference between two persisted object graphs, as made by {@link XmlPersistor#diff(Object, Object)}: the
+ * toplevel elements added, the toplevel elements removed, and the fields changed within the toplevel elements in both.
+ * Its size depends on how much changed rather than on the size of the graphs. A patch is applied to a graph in place by
+ * {@link XmlPersistor#applyPatch(PatchableGraph, GraphPatch)}.
+ * 
+ * Patches are persisted in the same format as documents, as {@code <patch>} documents whose children are toplevel
+ * elements with a {@code patch} attribute: {@code patch="add"} elements are added in full, {@code patch="change"}
+ * elements contain only the changed fields, and {@code patch="remove"} elements are empty.
+ */
+public final class GraphPatch {
+  
+  private static final String ROOT_ELEMENT_NAME = "patch";
+  private static final String OPERATION_ATTRIBUTE = "patch";
+  private static final String ADD = "add";
+  private static final String CHANGE = "change";
+  private static final String REMOVE = "remove";
+  
+  private final List<ToplevelElement> added;
+  private final List<ToplevelElement> changed;
+  private final List<ItemID> removed;
+  
+  /**
+   * Create a new {@link GraphPatch}.
+   * @param added The toplevel elements to add, in full.
+   * @param changed Toplevel elements containing only the children of the fields to change.
+   * @param removed The tags and IDs of the toplevel elements to remove.
+   */
+  GraphPatch(List<ToplevelElement> added, List<ToplevelElement> changed, List<ItemID> removed) {
+    this.added = Collections.unmodifiableList(added);
+    this.changed = Collections.unmodifiableList(changed);
+    this.removed = Collections.unmodifiableList(removed);
+  }
+  
+  /**
+   * @return Whether this patch changes nothing.
+   */
+  public boolean isEmpty() {
+    return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+  }
+  
+  List<ToplevelElement> getAdded() {
+    return added;
+  }
+  
+  List<ToplevelElement> getChanged() {
+    return changed;
+  }
+  
+  List<ItemID> getRemoved() {
+    return removed;
+  }
+  
+  /**
+   * @return This patch as an XML document.
+   */
+  public Document toXml() {
+    Document doc;
+    try {
+      doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+    } catch (ParserConfigurationException e) {
+      throw new IllegalStateException("Something has, apparently, gone very wrong.", e);
+    }
+    
+    Element rootElement = doc.createElement(ROOT_ELEMENT_NAME);
+    doc.appendChild(rootElement);
+    for (ItemID itemID : removed) {
+      Element element = doc.createElement(itemID.getName());
+      element.setAttribute("id", itemID.getId());
+      element.setAttribute(OPERATION_ATTRIBUTE, REMOVE);
+      rootElement.appendChild(element);
+    }
+    for (ToplevelElement toplevel : added) {
+      Element element = toplevel.toXmlElement(doc);
+      element.setAttribute(OPERATION_ATTRIBUTE, ADD);
+      rootElement.appendChild(element);
+    }
+    for (ToplevelElement toplevel : changed) {
+      Element element = toplevel.toXmlElement(doc);
+      element.setAttribute(OPERATION_ATTRIBUTE, CHANGE);
+      rootElement.appendChild(element);
+    }
+    return doc;
+  }
+  
+  /**
+   * Write this patch to {@code out} as a UTF-8 encoded XML document, the same as that returned by {@link #toXml()},
+   * without building a DOM. {@code out} is not closed.
+   * @throws NullPointerException If {@code out} is {@code null}.
+   * @throws PersistenceException If an error is encountered when writing to {@code out}.
+   */
+  public void write(WritableByteChannel out) {
+    if (out == null) {
+      throw new NullPointerException("Cannot write to a null channel");
+    }
+    
+    try (XmlChannelWriter writer = new XmlChannelWriter(out)) {
+      writer.startElement(ROOT_ELEMENT_NAME);
+      for (ItemID itemID : removed) {
+        writer.startElement(itemID.getName());
+        writer.attribute("id", itemID.getId());
+        writer.attribute(OPERATION_ATTRIBUTE, REMOVE);
+        writer.endElement(itemID.getName());
+      }
+      for (ToplevelElement toplevel : added) {
+        write(writer, toplevel, ADD);
+      }
+      for (ToplevelElement toplevel : changed) {
+        write(writer, toplevel, CHANGE);
+      }
+      writer.endElement(ROOT_ELEMENT_NAME);
+    } catch (IOException e) {
+      throw new PersistenceException("Could not write the patch.", e);
+    }
+  }
+  
+  /** Write {@code toplevel} with the given operation, which as a toplevel element it has no attribute for. */
+  private static void write(XmlChannelWriter writer, ToplevelElement toplevel, String operation) throws IOException {
+    writer.startElement(toplevel.getTag());
+    writer.attribute("id", toplevel.getId());
+    writer.attribute(OPERATION_ATTRIBUTE, operation);
+    for (PersistedElement child : toplevel.getChildren()) {
+      child.write(writer);
+    }
+    writer.endElement(toplevel.getTag());
+  }
+  
+  /**
+   * Read a patch from the XML document {@code doc}, as written by {@link #toXml()} or
+   * {@link #write(WritableByteChannel)}.
+   * @throws NullPointerException If {@code doc} is {@code null}.
+   * @throws RegenerationException If {@code doc} isn't a valid patch.
+   */
+  public static GraphPatch fromXml(Document doc) throws RegenerationException {
+    if (doc == null) {
+      throw new NullPointerException("Cannot read a patch from a null Document");
+    }
+    
+    Element docRoot = doc.getDocumentElement();
+    if (!docRoot.getTagName().equals(ROOT_ELEMENT_NAME)) {
+      throw new RegenerationException("Not a patch: root tag name is '" + docRoot.getTagName() + "', not '"
+          + ROOT_ELEMENT_NAME + "'.");
+    }
+    
+    List<ToplevelElement> added = new ArrayList<>();
+    List<ToplevelElement> changed = new ArrayList<>();
+    List<ItemID> removed = new ArrayList<>();
+    for (int i = 0; i < docRoot.getChildNodes().getLength(); i++) {
+      Node childNode = docRoot.getChildNodes().item(i);
+      if (!(childNode instanceof Element)) continue;
+      
+      Element child = (Element) childNode;
+      String operation = child.getAttribute(OPERATION_ATTRIBUTE);
+      if (operation.equals(REMOVE)) {
+        if (!child.hasAttribute("id")) {
+          throw new RegenerationException("<" + child.getTagName() + "> is removed by the patch, but has no `id`.");
+        }
+        removed.add(new ItemID(child.getTagName(), child.getAttribute("id")));
+      } else if (operation.equals(ADD)) {
+        added.add(ToplevelElement.fromXmlElement(child));
+      } else if (operation.equals(CHANGE)) {
+        changed.add(ToplevelElement.fromXmlElement(child));
+      } else {
+        throw new RegenerationException("<" + child.getTagName() + "> has an unknown patch operation: '" + operation
+            + "'.");
+      }
+    }
+    return new GraphPatch(added, changed, removed);
+  }
+  
+}
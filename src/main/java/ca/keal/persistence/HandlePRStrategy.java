@@ -0,0 +1,58 @@
+package ca.keal.persistence;
+
+/**
+ * A {@link PersistRegenStrategy} for {@link ToplevelHandle}s, which persists a handle as a reference to the ID of the
+ * toplevel object it refers to, just like a reference to the object itself, and regenerates it as a handle on that
+ * object in the {@link ToplevelStore} being loaded from, without loading the object.
+ * @param <T> {@link ToplevelHandle}; it is generic only so that it can be picked like any other strategy.
+ */
+class HandlePRStrategy<T> extends PersistRegenStrategy<T> {
+  
+  /** The class of the objects which regenerated handles refer to, or {@code null} if it isn't known. */
+  private final Class<?> referencedClass;
+  
+  /**
+   * Create a new {@link HandlePRStrategy}.
+   * @param cls {@link ToplevelHandle}.
+   * @param referencedClass The class of the objects which regenerated handles refer to: the type argument of the
+   *  field the handle is in. {@code null} if it isn't known, in which case handles can only be persisted.
+   */
+  public HandlePRStrategy(Class<T> cls, Class<?> referencedClass) {
+    super(cls);
+    this.referencedClass = referencedClass;
+  }
+  
+  /**
+   * @return A {@link TextElement} with the tag of the @{@link Persist} annotation's {@code value} and the ID of the
+   *  object the handle refers to.
+   * @see PersistRegenStrategy#persist(PersistingState, Persist, Object)
+   */
+  @Override
+  public PersistedElement persist(PersistingState state, Persist persistAnno, T toPersist) {
+    return new TextElement(persistAnno.value(), ((ToplevelHandle<?>) toPersist).getId());
+  }
+  
+  @Override
+  @SuppressWarnings("unchecked")
+  public T regenerate(RegenState state, PersistedElement toRegen) throws RegenerationException {
+    if (!(toRegen instanceof TextElement)) {
+      throw new RegenerationException("Need a TextElement to regenerate a ToplevelHandle");
+    }
+    ToplevelStore store = state.getToplevelStore();
+    if (store == null) {
+      throw new RegenerationException("<" + toRegen.getTag() + "> is a ToplevelHandle, which can only be regenerated "
+          + "by a ToplevelStore.");
+    }
+    if (referencedClass == null) {
+      throw new RegenerationException("<" + toRegen.getTag() + "> is a ToplevelHandle, so its field must be declared "
+          + "as ToplevelHandle<T> for the toplevel class T it refers to.");
+    }
+    try {
+      return (T) store.handle(referencedClass, ((TextElement) toRegen).getText());
+    } catch (PersistenceException e) {
+      throw new RegenerationException("<" + toRegen.getTag() + "> is a ToplevelHandle on "
+          + referencedClass.getCanonicalName() + ", which can't be stored.", e);
+    }
+  }
+  
+}
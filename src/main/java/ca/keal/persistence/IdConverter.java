@@ -0,0 +1,166 @@
+package ca.keal.persistence;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Converts the IDs of toplevel @{@link Persistable} objects to and from their string form. Converters are resolved
+ * once per ID type and cached, so that no reflective lookups are done when persisting or regenerating each object.
+ * 
+ * An ID type may be a primitive, a boxed primitive, a {@code String}, or any class which has a static
+ * {@code fromString(String)} method or a single-{@code String}-argument constructor (checked in that order).
+ * 
+ * @param <I> The type of ID converted by this converter.
+ */
+final class IdConverter<I> {
+  
+  /** The cache of converters for each ID type. */
+  private static final ConcurrentMap<Class<?>, IdConverter<?>> CONVERTERS = new ConcurrentHashMap<>();
+  
+  /** Converts a string to an ID. Like {@link java.util.function.Function}, but may throw. */
+  @FunctionalInterface
+  private interface FromString<I> {
+    I convert(String id) throws Throwable;
+  }
+  
+  /** The type of ID this converter converts. */
+  private final Class<I> type;
+  
+  /** The resolved string-to-ID conversion, or {@code null} if {@link #type} cannot be converted from a string. */
+  private final FromString<I> fromString;
+  
+  /** Describes the conversion for error messages, i.e. "fromString(String) method". */
+  private final String description;
+  
+  private IdConverter(Class<I> type, FromString<I> fromString, String description) {
+    this.type = type;
+    this.fromString = fromString;
+    this.description = description;
+  }
+  
+  /**
+   * Get the converter for the given ID type, resolving and caching it if this is the first time it is requested.
+   * @throws NullPointerException If {@code type} is {@code null}.
+   */
+  @SuppressWarnings("unchecked")
+  static <I> IdConverter<I> forType(Class<I> type) {
+    if (type == null) {
+      throw new NullPointerException("Cannot convert ids of null type");
+    }
+    IdConverter<I> converter = (IdConverter<I>) CONVERTERS.get(type);
+    if (converter == null) {
+      converter = resolve(type);
+      IdConverter<I> existing = (IdConverter<I>) CONVERTERS.putIfAbsent(type, converter);
+      if (existing != null) {
+        converter = existing;
+      }
+    }
+    return converter;
+  }
+  
+  /** Find the appropriate conversion for {@code type}. This does all of the reflective work. */
+  @SuppressWarnings("unchecked")
+  private static <I> IdConverter<I> resolve(Class<I> type) {
+    // Primitives + String; we can ignore all the unchecked warnings because we check the class beforehand
+    if (type.equals(boolean.class) || type.equals(Boolean.class)) {
+      return new IdConverter<>(type, id -> (I) Boolean.valueOf(id), "boolean");
+    } else if (type.equals(byte.class) || type.equals(Byte.class)) {
+      return new IdConverter<>(type, id -> (I) Byte.valueOf(id), "byte");
+    } else if (type.equals(char.class) || type.equals(Character.class)) {
+      return new IdConverter<>(type, id -> (I) Character.valueOf(id.charAt(0)), "char");
+    } else if (type.equals(short.class) || type.equals(Short.class)) {
+      return new IdConverter<>(type, id -> (I) Short.valueOf(id), "short");
+    } else if (type.equals(int.class) || type.equals(Integer.class)) {
+      return new IdConverter<>(type, id -> (I) Integer.valueOf(id), "int");
+    } else if (type.equals(long.class) || type.equals(Long.class)) {
+      return new IdConverter<>(type, id -> (I) Long.valueOf(id), "long");
+    } else if (type.equals(float.class) || type.equals(Float.class)) {
+      return new IdConverter<>(type, id -> (I) Float.valueOf(id), "float");
+    } else if (type.equals(double.class) || type.equals(Double.class)) {
+      return new IdConverter<>(type, id -> (I) Double.valueOf(id), "double");
+    } else if (type.equals(String.class)) {
+      return new IdConverter<>(type, id -> (I) id, "String");
+    }
+    
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    MethodType converterType = MethodType.methodType(Object.class, String.class);
+    
+    // Look for fromString(String) method
+    try {
+      Method method = type.getMethod("fromString", String.class);
+      if (Modifier.isStatic(method.getModifiers()) && type.isAssignableFrom(method.getReturnType())) {
+        method.setAccessible(true);
+        MethodHandle handle = lookup.unreflect(method).asType(converterType);
+        return new IdConverter<>(type, id -> (I) (Object) handle.invokeExact(id), "fromString(String) method");
+      }
+    } catch (NoSuchMethodException | IllegalAccessException | SecurityException e) {
+      // no usable fromString(String) method
+    }
+    
+    // Look for single-argument String constructor
+    try {
+      Constructor<I> constructor = type.getDeclaredConstructor(String.class);
+      if (!Modifier.isAbstract(type.getModifiers())) {
+        constructor.setAccessible(true);
+        MethodHandle handle = lookup.unreflectConstructor(constructor).asType(converterType);
+        return new IdConverter<>(type, id -> (I) (Object) handle.invokeExact(id),
+            "single-argument String constructor");
+      }
+    } catch (NoSuchMethodException | IllegalAccessException | SecurityException e) {
+      // no usable constructor
+    }
+    
+    // Unconvertible; we only complain when someone actually tries to convert an id
+    return new IdConverter<>(type, null, null);
+  }
+  
+  /**
+   * @return The type of ID converted by this converter.
+   */
+  Class<I> getType() {
+    return type;
+  }
+  
+  /**
+   * @return Whether the ID type is {@code byte}, {@code short}, {@code int} or {@code long}, or one of their boxed
+   *  forms. The string forms of such IDs are canonical decimal {@code long}s.
+   */
+  boolean isIntegral() {
+    return type.equals(byte.class) || type.equals(Byte.class) || type.equals(short.class) || type.equals(Short.class)
+        || type.equals(int.class) || type.equals(Integer.class) || type.equals(long.class) || type.equals(Long.class);
+  }
+  
+  /**
+   * Convert a string, as generated by {@link #toString(Object)}, back into an ID.
+   * @throws RegenerationException If the ID type cannot be converted from a string or if the conversion fails.
+   */
+  I fromString(String id) throws RegenerationException {
+    if (fromString == null) {
+      throw new RegenerationException("Unable to convert id '" + id + "' to type '" + type.getCanonicalName() + "'.");
+    }
+    try {
+      return fromString.convert(id);
+    } catch (NumberFormatException e) {
+      throw new RegenerationException("Could not conform id '" + id + "' to '" + type.getCanonicalName() + "'.", e);
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new RegenerationException("Could not call " + description, t);
+    }
+  }
+  
+  /**
+   * Convert an ID to its string form, which is simply its {@code toString()}.
+   * @throws NullPointerException If {@code id} is {@code null}.
+   */
+  String toString(Object id) {
+    return id.toString();
+  }
+  
+}
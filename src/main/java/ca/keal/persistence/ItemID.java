@@ -1,8 +1,9 @@
 package ca.keal.persistence;
 
 /**
- * Simple POJO used as an index in {@link ToplevelList} and {@link RegenToplevelRegistry}. Encapsulates name + id.
- * Neither may be null.
+ * Simple POJO identifying a toplevel element or object by name + id. Neither may be null. (Lookups in
+ * {@link ToplevelList} and {@link RegenToplevelRegistry} go through {@link ToplevelIndex} instead, which doesn't need
+ * one of these per lookup.)
  */
 class ItemID {
   
@@ -28,7 +29,7 @@ class ItemID {
   
   @Override
   public int hashCode() {
-    return 37 * name.hashCode() * id.hashCode();
+    return 31 * name.hashCode() + id.hashCode();
   }
   
   @Override
@@ -0,0 +1,188 @@
+package ca.keal.persistence;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * Exposes {@link CountingMetrics} through JMX, as a {@link PersistenceMetricsMXBean}, so that they can be watched
+ * with tools such as JConsole. The counts are read from the metrics whenever they are asked for.
+ */
+public final class JmxMetrics implements PersistenceMetricsMXBean {
+  
+  /** The domain of the names under which metrics are registered. */
+  public static final String DOMAIN = "ca.keal.persistence";
+  
+  private final CountingMetrics metrics;
+  
+  /** The name under which this is registered, or {@code null} if it isn't. */
+  private ObjectName registeredName = null;
+  
+  /**
+   * Create a {@link JmxMetrics} exposing {@code metrics}.
+   * @throws NullPointerException If {@code metrics} is {@code null}.
+   */
+  public JmxMetrics(CountingMetrics metrics) {
+    if (metrics == null) {
+      throw new NullPointerException("Cannot expose null metrics");
+    }
+    this.metrics = metrics;
+  }
+  
+  /**
+   * Register this with the platform MBean server, as {@code ca.keal.persistence:type=PersistenceMetrics,name=}
+   * {@code name}.
+   * @return The name under which it is registered.
+   * @throws IllegalStateException If this is already registered.
+   * @throws PersistenceException If it can't be registered, such as if {@code name} is taken.
+   */
+  public synchronized ObjectName register(String name) {
+    if (registeredName != null) {
+      throw new IllegalStateException("Already registered as " + registeredName);
+    }
+    try {
+      ObjectName objectName = new ObjectName(DOMAIN + ":type=PersistenceMetrics,name=" + ObjectName.quote(name));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+      registeredName = objectName;
+      return objectName;
+    } catch (JMException e) {
+      throw new PersistenceException("Could not register the metrics '" + name + "'.", e);
+    }
+  }
+  
+  /**
+   * Unregister this from the platform MBean server, if it is registered.
+   * @throws PersistenceException If it can't be unregistered.
+   */
+  public synchronized void unregister() {
+    if (registeredName == null) {
+      return;
+    }
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      if (server.isRegistered(registeredName)) {
+        server.unregisterMBean(registeredName);
+      }
+      registeredName = null;
+    } catch (JMException e) {
+      throw new PersistenceException("Could not unregister the metrics " + registeredName + ".", e);
+    }
+  }
+  
+  /** @return The metrics exposed. */
+  public CountingMetrics getMetrics() {
+    return metrics;
+  }
+  
+  @Override
+  public long getToplevelObjectsPersisted() {
+    return metrics.getToplevelObjectsPersisted();
+  }
+  
+  @Override
+  public long getEmbeddedObjectsPersisted() {
+    return metrics.getEmbeddedObjectsPersisted();
+  }
+  
+  @Override
+  public long getNullsPersisted() {
+    return metrics.getNullsPersisted();
+  }
+  
+  @Override
+  public long getToplevelObjectsRegenerated() {
+    return metrics.getToplevelObjectsRegenerated();
+  }
+  
+  @Override
+  public long getEmbeddedObjectsRegenerated() {
+    return metrics.getEmbeddedObjectsRegenerated();
+  }
+  
+  @Override
+  public long getNullsRegenerated() {
+    return metrics.getNullsRegenerated();
+  }
+  
+  @Override
+  public long getBytesWritten() {
+    return metrics.getBytesWritten();
+  }
+  
+  @Override
+  public long getBytesRead() {
+    return metrics.getBytesRead();
+  }
+  
+  @Override
+  public long getCacheHits() {
+    return metrics.getCacheHits();
+  }
+  
+  @Override
+  public long getCacheMisses() {
+    return metrics.getCacheMisses();
+  }
+  
+  @Override
+  public double getCacheHitRate() {
+    return metrics.getCacheHitRate();
+  }
+  
+  @Override
+  public Map<String, Long> getPhaseCounts() {
+    Map<String, Long> counts = new TreeMap<>();
+    for (PersistenceMetrics.Phase phase : PersistenceMetrics.Phase.values()) {
+      counts.put(phase.name(), metrics.getPhaseCount(phase));
+    }
+    return counts;
+  }
+  
+  @Override
+  public Map<String, Long> getPhaseNanos() {
+    Map<String, Long> nanos = new TreeMap<>();
+    for (PersistenceMetrics.Phase phase : PersistenceMetrics.Phase.values()) {
+      nanos.put(phase.name(), metrics.getPhaseNanos(phase));
+    }
+    return nanos;
+  }
+  
+  @Override
+  public Map<String, Long> getObjectsPersistedByClass() {
+    return byClass(metrics::getObjectsPersisted);
+  }
+  
+  @Override
+  public Map<String, Long> getPersistNanosByClass() {
+    return byClass(metrics::getPersistNanos);
+  }
+  
+  @Override
+  public Map<String, Long> getObjectsRegeneratedByClass() {
+    return byClass(metrics::getObjectsRegenerated);
+  }
+  
+  @Override
+  public Map<String, Long> getRegenerateNanosByClass() {
+    return byClass(metrics::getRegenerateNanos);
+  }
+  
+  /** @return {@code count} of each class measured, by class name. */
+  private Map<String, Long> byClass(ToLongFunction<Class<?>> count) {
+    Map<String, Long> counts = new TreeMap<>();
+    for (Class<?> cls : metrics.getClasses()) {
+      counts.merge(cls.getName(), count.applyAsLong(cls), Long::sum);
+    }
+    return counts;
+  }
+  
+  @Override
+  public void reset() {
+    metrics.reset();
+  }
+  
+}
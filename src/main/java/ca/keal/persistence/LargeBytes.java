@@ -0,0 +1,169 @@
+package ca.keal.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+
+/**
+ * Binary data too large to be held in memory comfortably, which may be @{@link Persist}ed in place of a
+ * {@code byte[]}. It is persisted as base64, in lines of 76 characters, and like {@link LargeText}, it is read from its
+ * {@link Source} whenever it is needed, so
+ * {@link XmlPersistor#toXml(Object, java.nio.channels.WritableByteChannel)} streams it to the document a chunk at a
+ * time.
+ * 
+ * When regenerated, the data is decoded into a temporary file, which backs the regenerated {@link LargeBytes}; see
+ * {@link XmlPersistor#setSpillDirectory(Path)}. As with {@link LargeText}, whoever regenerated the data must
+ * {@link #close()} it once it is no longer needed to delete the file.
+ */
+public final class LargeBytes implements StreamedValue, Closeable {
+  
+  /** The number of base64 characters in each line. */
+  private static final int LINE_LENGTH = 76;
+  
+  /** Opens a new {@link InputStream} over the data each time it is called. */
+  @FunctionalInterface
+  public interface Source {
+    InputStream open() throws IOException;
+  }
+  
+  private final Source source;
+  
+  /** The file holding the data, or {@code null} if it comes from elsewhere. */
+  private final Path file;
+  
+  /** Whether {@link #file} was created to decode the data into when it was regenerated, and so belongs to this. */
+  private final boolean spilled;
+  
+  private LargeBytes(Source source, Path file, boolean spilled) {
+    this.source = source;
+    this.file = file;
+    this.spilled = spilled;
+  }
+  
+  /**
+   * @return A {@link LargeBytes} whose data is read from a new {@link InputStream} opened by {@code source} whenever
+   *  it is needed.
+   * @throws NullPointerException If {@code source} is {@code null}.
+   */
+  public static LargeBytes of(Source source) {
+    if (source == null) {
+      throw new NullPointerException("A LargeBytes cannot have a null source");
+    }
+    return new LargeBytes(source, null, false);
+  }
+  
+  /**
+   * @return A {@link LargeBytes} holding {@code bytes}, which are already in memory anyway. {@code bytes} is not
+   *  copied.
+   * @throws NullPointerException If {@code bytes} is {@code null}.
+   */
+  public static LargeBytes of(byte[] bytes) {
+    if (bytes == null) {
+      throw new NullPointerException("A LargeBytes cannot have null bytes");
+    }
+    return new LargeBytes(() -> new ByteArrayInputStream(bytes), null, false);
+  }
+  
+  /**
+   * @return A {@link LargeBytes} whose data is the contents of {@code file}.
+   * @throws NullPointerException If {@code file} is {@code null}.
+   */
+  public static LargeBytes of(Path file) {
+    if (file == null) {
+      throw new NullPointerException("A LargeBytes cannot have a null file");
+    }
+    return new LargeBytes(() -> Files.newInputStream(file), file, false);
+  }
+  
+  /**
+   * @return A {@link LargeBytes} backed by {@code file}, into which it was decoded and which {@link #close()}
+   *  deletes.
+   */
+  static LargeBytes spilled(Path file) {
+    return new LargeBytes(() -> Files.newInputStream(file), file, true);
+  }
+  
+  /**
+   * @return A new {@link InputStream} over the data, which the caller must close.
+   * @throws IOException If the data's source can't be opened.
+   */
+  public InputStream openStream() throws IOException {
+    return source.open();
+  }
+  
+  /**
+   * @return All of the data, read into memory.
+   * @throws IOException If the data's source can't be read.
+   */
+  public byte[] read() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (InputStream in = source.open()) {
+      copy(in, bytes);
+    }
+    return bytes.toByteArray();
+  }
+  
+  /**
+   * @return The file holding the data (such as the file to which a regenerated {@link LargeBytes} was spilled), or
+   *  {@code null} if it comes from a {@code byte[]} or some other {@link Source}.
+   */
+  public Path getFile() {
+    return file;
+  }
+  
+  /**
+   * Delete the file into which this data was decoded, if it was regenerated; the data can't be read afterwards. Does
+   * nothing to data from a {@code byte[]}, a file passed to {@link #of(Path)} or any other {@link Source}.
+   * @throws IOException If the file can't be deleted.
+   */
+  @Override
+  public void close() throws IOException {
+    if (spilled) {
+      Files.deleteIfExists(file);
+    }
+  }
+  
+  @Override
+  public void writeXmlText(Writer out) throws IOException {
+    // Base64 is ASCII, so each encoded byte is a char
+    OutputStream chars = new OutputStream() {
+      private final char[] chunk = new char[8192];
+      
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+      }
+      
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        for (int start = off; start < off + len; start += chunk.length) {
+          int length = Math.min(chunk.length, off + len - start);
+          for (int i = 0; i < length; i++) {
+            chunk[i] = (char) b[start + i];
+          }
+          out.write(chunk, 0, length);
+        }
+      }
+    };
+    
+    try (InputStream in = source.open();
+         OutputStream encoder = Base64.getMimeEncoder(LINE_LENGTH, new byte[] {'\n'}).wrap(chars)) {
+      copy(in, encoder);
+    }
+  }
+  
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] chunk = new byte[8192];
+    for (int read = in.read(chunk); read != -1; read = in.read(chunk)) {
+      out.write(chunk, 0, read);
+    }
+  }
+  
+}
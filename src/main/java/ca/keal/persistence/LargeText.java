@@ -0,0 +1,134 @@
+package ca.keal.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Text too large to be held in memory comfortably, which may be @{@link Persist}ed in place of a {@code String}. The
+ * text is read from its {@link Source} whenever it is needed, so
+ * {@link XmlPersistor#toXml(Object, java.nio.channels.WritableByteChannel)} streams it to the document a chunk at a
+ * time instead of building it as one huge {@code String}. (A DOM built by {@link XmlPersistor#toXml(Object)} holds
+ * the whole text, of course.)
+ * 
+ * When regenerated, the text is spilled to a temporary file, which backs the regenerated {@link LargeText}; see
+ * {@link XmlPersistor#setSpillDirectory(Path)}. {@link XmlPersistor#fromXml(Path)} copies the text to the file
+ * straight from the document, without ever decoding it into a {@code String}. The file belongs to whoever regenerated
+ * the text, who must {@link #close()} it once it is no longer needed to delete the file.
+ */
+public final class LargeText implements StreamedValue, Closeable {
+  
+  /** Opens a new {@link Reader} over the text each time it is called. */
+  @FunctionalInterface
+  public interface Source {
+    Reader open() throws IOException;
+  }
+  
+  private final Source source;
+  
+  /** The UTF-8 file holding the text, or {@code null} if it comes from elsewhere. */
+  private final Path file;
+  
+  /** Whether {@link #file} was created to spill the text to when it was regenerated, and so belongs to this. */
+  private final boolean spilled;
+  
+  private LargeText(Source source, Path file, boolean spilled) {
+    this.source = source;
+    this.file = file;
+    this.spilled = spilled;
+  }
+  
+  /**
+   * @return A {@link LargeText} whose text is read from a new {@link Reader} opened by {@code source} whenever it is
+   *  needed.
+   * @throws NullPointerException If {@code source} is {@code null}.
+   */
+  public static LargeText of(Source source) {
+    if (source == null) {
+      throw new NullPointerException("A LargeText cannot have a null source");
+    }
+    return new LargeText(source, null, false);
+  }
+  
+  /**
+   * @return A {@link LargeText} holding {@code text}, which is already in memory anyway.
+   * @throws NullPointerException If {@code text} is {@code null}.
+   */
+  public static LargeText of(String text) {
+    if (text == null) {
+      throw new NullPointerException("A LargeText cannot have null text");
+    }
+    return new LargeText(() -> new StringReader(text), null, false);
+  }
+  
+  /**
+   * @return A {@link LargeText} whose text is the contents of {@code file}, encoded in UTF-8.
+   * @throws NullPointerException If {@code file} is {@code null}.
+   */
+  public static LargeText of(Path file) {
+    if (file == null) {
+      throw new NullPointerException("A LargeText cannot have a null file");
+    }
+    return new LargeText(() -> Files.newBufferedReader(file, StandardCharsets.UTF_8), file, false);
+  }
+  
+  /** @return A {@link LargeText} backed by {@code file}, to which it was spilled and which {@link #close()} deletes. */
+  static LargeText spilled(Path file) {
+    return new LargeText(() -> Files.newBufferedReader(file, StandardCharsets.UTF_8), file, true);
+  }
+  
+  /**
+   * @return A new {@link Reader} over the text, which the caller must close.
+   * @throws IOException If the text's source can't be opened.
+   */
+  public Reader openReader() throws IOException {
+    return source.open();
+  }
+  
+  /**
+   * @return The whole text, read into memory.
+   * @throws IOException If the text's source can't be read.
+   */
+  public String read() throws IOException {
+    StringWriter text = new StringWriter();
+    writeXmlText(text);
+    return text.toString();
+  }
+  
+  /**
+   * @return The UTF-8 file holding the text (such as the file to which a regenerated {@link LargeText} was spilled),
+   *  or {@code null} if it comes from a {@code String} or some other {@link Source}.
+   */
+  public Path getFile() {
+    return file;
+  }
+  
+  /**
+   * Delete the file to which this text was spilled, if it was regenerated; the text can't be read afterwards. Does
+   * nothing to text from a {@code String}, a file passed to {@link #of(Path)} or any other {@link Source}.
+   * @throws IOException If the file can't be deleted.
+   */
+  @Override
+  public void close() throws IOException {
+    if (spilled) {
+      Files.deleteIfExists(file);
+    }
+  }
+  
+  @Override
+  public void writeXmlText(Writer out) throws IOException {
+    char[] chunk = new char[8192];
+    try (Reader in = source.open()) {
+      for (int read = in.read(chunk); read != -1; read = in.read(chunk)) {
+        out.write(chunk, 0, read);
+      }
+    }
+  }
+  
+}
@@ -0,0 +1,70 @@
+package ca.keal.persistence;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link TextElement} read by {@link FastElementReader} whose text is only decoded from the document's bytes when it
+ * is first needed, so that the text of elements which are never regenerated is never decoded at all.
+ */
+class LazyTextElement extends TextElement {
+  
+  /** The whole document. */
+  private final ByteBuffer document;
+  
+  /** The range of the raw, undecoded text in {@link #document}. */
+  private final int start;
+  private final int end;
+  
+  /** What the raw text contains, as the flags of {@link FastElementReader}, which determine how to decode it. */
+  private final int flags;
+  
+  /** The decoded text, or {@code null} if it hasn't been decoded yet. Racy but idempotent. */
+  private String text;
+  
+  /**
+   * Create a new {@link LazyTextElement}.
+   * @param tag The name of the tag of this XML element. This must be a valid XML tag name as determined by
+   *   {@link PersistenceUtil#isValidXmlTag(String)}.
+   * @param document The whole document, which must have been checked by {@link FastElementReader}.
+   * @param start The offset in {@code document} of the first byte of the raw text.
+   * @param end The offset in {@code document} just after the last byte of the raw text.
+   * @param flags The flags describing the raw text.
+   * @throws PersistenceException If {@code tag} is not a valid XML tag name.
+   */
+  LazyTextElement(String tag, ByteBuffer document, int start, int end, int flags) {
+    super(tag);
+    this.document = document;
+    this.start = start;
+    this.end = end;
+    this.flags = flags;
+  }
+  
+  /**
+   * @return The text contained in this element, decoded now if this is the first time it has been requested.
+   */
+  @Override
+  public String getText() {
+    String text = this.text;
+    if (text == null) {
+      text = FastElementReader.decode(document, start, end, flags, false);
+      this.text = text;
+    }
+    return text;
+  }
+  
+  /**
+   * Write the text contained in this element to {@code out} as UTF-8. Unless the text has already been decoded, it is
+   * decoded straight from the document's bytes to {@code out}, without ever being held as a whole.
+   */
+  @Override
+  void writeText(OutputStream out) throws IOException {
+    if (text != null) {
+      super.writeText(out);
+    } else {
+      FastElementReader.decodeTo(document, start, end, flags, out);
+    }
+  }
+  
+}
@@ -3,6 +3,8 @@ package ca.keal.persistence;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import java.io.IOException;
+
 /**
  * A {@link PersistedElement} which represents a null value.
  */
@@ -32,6 +34,11 @@ class NullElement extends PersistedElement {
     return element;
   }
   
+  @Override
+  protected void writeAttributes(XmlChannelWriter out) throws IOException {
+    out.attribute("null", "true");
+  }
+  
   /**
    * Create a {@link NullElement} from a given XML element. The {@link NullElement} will have the same tag name as the
    * XML element.
@@ -24,6 +24,7 @@ class NullPRStrategy<T> extends PersistRegenStrategy<T> {
          + toPersist.toString() + "'.");
     }
     
+    state.getMetrics().nullPersisted();
     return new NullElement(persistAnno.value());
   }
   
@@ -33,6 +34,7 @@ class NullPRStrategy<T> extends PersistRegenStrategy<T> {
       throw new RegenerationException("NullPRStrategy can only regenerate from NullElements - attempted to regenerate " 
           + "from '" + toRegen.getTag() + "', a '" + toRegen.getClass().getCanonicalName() + "'.");
     }
+    state.getMetrics().nullRegenerated();
     return null; // intentional; the corresponding object is indeed null.
   }
   
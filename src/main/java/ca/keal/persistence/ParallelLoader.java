@@ -0,0 +1,442 @@
+package ca.keal.persistence;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the toplevel elements of a persisted document on disk using several threads. Since
+ * the children of {@code <persisted>} are independent of one another, the file is first scanned (byte by byte, without
+ * parsing) for the boundaries between them, then split at those boundaries into chunks which are parsed concurrently,
+ * each wrapped in a {@code <persisted>} element of its own. The elements of each chunk are then merged in document
+ * order, so that loading them warns about duplicate IDs and detects multiple roots just as
+ * {@link XmlPersistor#fromXml(org.w3c.dom.Document)} does.
+ * 
+ * Only works for encodings in which markup is ASCII, i.e. UTF-8 (the default) and the ISO-8859 and similar families,
+ * and for documents without a DOCTYPE, whose entities each chunk would need; for any others, no elements are read, and
+ * the standard parser should be used instead.
+ * @see XmlPersistor#fromXml(Path, int)
+ */
+final class ParallelLoader {
+  
+  /** How many chunks to split the file into per thread, so that threads which finish early can pick up more work. */
+  private static final int CHUNKS_PER_THREAD = 4;
+  
+  /** The largest chunk, so that every chunk can be mapped at once. */
+  private static final long MAX_CHUNK_SIZE = 1L << 30;
+  
+  private static final int SCAN_BUFFER_SIZE = 1 << 20;
+  
+  private static final Pattern ENCODING_DECLARATION = Pattern.compile(
+      "^<\\?xml[^>]*encoding\\s*=\\s*[\"']([A-Za-z0-9._\\-]+)[\"']");
+  
+  private static final byte[] CHUNK_START = "<persisted>".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] CHUNK_END = "</persisted>".getBytes(StandardCharsets.US_ASCII);
+  
+  private final Path file;
+  private final int threads;
+  
+  private final XMLInputFactory inputFactory;
+  
+  private ParallelLoader(Path file, int threads) {
+    this.file = file;
+    this.threads = threads;
+    inputFactory = XMLInputFactory.newInstance();
+    inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+  }
+  
+  /**
+   * Read every toplevel element (and template) in {@code file} using {@code threads} threads.
+   * @param diagnostics Where to report a document element which isn't a plain {@code <persisted>}.
+   * @return The children of the document element, in document order: {@link TemplateElement}s and
+   *  {@link ToplevelElement}s. {@code null} if the file's encoding is not ASCII-compatible or it has a DOCTYPE, in
+   *  which case the standard parser should be used.
+   * @throws RegenerationException If the file can't be read or is malformed.
+   */
+  static List<ParentElement> load(Path file, int threads, Diagnostics diagnostics) throws RegenerationException {
+    return new ParallelLoader(file, threads).load(diagnostics);
+  }
+  
+  private List<ParentElement> load(Diagnostics diagnostics) throws RegenerationException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      Charset charset = detectCharset(channel);
+      if (charset == null) {
+        return null;
+      }
+      Scanner scanner = new Scanner(Math.max(1, channel.size() / ((long) threads * CHUNKS_PER_THREAD)));
+      scanner.scan(channel);
+      if (scanner.doctype) {
+        return null;
+      }
+      
+      String rootTag = readString(channel, scanner.rootStart, scanner.rootEnd, charset);
+      Matcher rootMatcher = Pattern.compile("^<([^\\s/>]+)\\s*(/?)>$").matcher(rootTag);
+      String rootName = rootTag.replaceFirst("^<([^\\s/>]+)[\\s\\S]*$", "$1");
+      if (!rootName.equals("persisted")) {
+        diagnostics.report(Diagnostic.Kind.ROOT_TAG_NAME, null, rootName, null, null);
+      }
+      if (!rootMatcher.matches()) {
+        diagnostics.report(Diagnostic.Kind.ROOT_ATTRIBUTES, null, null, null, null);
+      }
+      
+      // Parse each chunk concurrently
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+        List<Future<List<ParentElement>>> parsed = new ArrayList<>();
+        for (long[] chunk : scanner.chunks) {
+          parsed.add(executor.submit(() -> parseChunk(channel, chunk[0], chunk[1], charset)));
+        }
+        
+        // Merge them in document order
+        List<ParentElement> elements = new ArrayList<>();
+        for (Future<List<ParentElement>> chunk : parsed) {
+          elements.addAll(await(chunk));
+        }
+        return elements;
+      } finally {
+        executor.shutdownNow();
+      }
+    } catch (IOException e) {
+      throw new RegenerationException("Could not read " + file + ".", e);
+    }
+  }
+  
+  /** Wait for a chunk to be parsed, unwrapping whatever went wrong. */
+  private List<ParentElement> await(Future<List<ParentElement>> chunk) throws RegenerationException {
+    try {
+      return chunk.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RegenerationException("Interrupted while loading " + file + ".", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RegenerationException) {
+        throw (RegenerationException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RegenerationException("Could not load " + file + ".", cause);
+    }
+  }
+  
+  /** Parse the children of {@code <persisted>} between the given offsets. */
+  private List<ParentElement> parseChunk(FileChannel channel, long start, long end, Charset charset)
+      throws IOException, RegenerationException {
+    ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    InputStream in = new SequenceInputStream(Collections.enumeration(Arrays.asList(
+        new ByteArrayInputStream(CHUNK_START), new ByteBufferInputStream(bytes), new ByteArrayInputStream(CHUNK_END))));
+    
+    List<ParentElement> elements = new ArrayList<>();
+    try {
+      XMLStreamReader reader = inputFactory.createXMLStreamReader(in, charset.name());
+      reader.nextTag();
+      while (reader.next() != XMLStreamConstants.END_DOCUMENT) {
+        if (reader.getEventType() != XMLStreamConstants.START_ELEMENT) continue;
+        if (reader.getAttributeValue(null, "template") != null) {
+          elements.add(StaxElementReader.readTemplate(reader));
+        } else {
+          elements.add(StaxElementReader.readToplevel(reader));
+        }
+      }
+      reader.close();
+    } catch (XMLStreamException e) {
+      throw new RegenerationException("Could not parse " + file + " between bytes " + start + " and " + end + ".", e);
+    }
+    return elements;
+  }
+  
+  /**
+   * Work out the encoding of the file from its XML declaration, defaulting to UTF-8.
+   * @return The encoding, or {@code null} if it is not ASCII-compatible or isn't supported, in which case the standard
+   *  parser reports it.
+   */
+  private static Charset detectCharset(FileChannel channel) throws IOException {
+    ByteBuffer prolog = ByteBuffer.allocate(256);
+    channel.read(prolog, 0);
+    prolog.flip();
+    if (prolog.remaining() >= 2 && (prolog.get(0) == 0 || prolog.get(1) == 0 || (prolog.get(0) & 0xFE) == 0xFE)) {
+      return null;
+    }
+    
+    Matcher matcher = ENCODING_DECLARATION.matcher(StandardCharsets.ISO_8859_1.decode(prolog));
+    Charset charset;
+    try {
+      charset = matcher.find() ? Charset.forName(matcher.group(1)) : StandardCharsets.UTF_8;
+    } catch (IllegalArgumentException e) { // an illegal or unsupported name
+      return null;
+    }
+    if (!charset.equals(StandardCharsets.UTF_8) && !charset.newEncoder().canEncode('<')
+        || charset.name().startsWith("UTF-16") || charset.name().startsWith("UTF-32")) {
+      return null;
+    }
+    return charset;
+  }
+  
+  private static String readString(FileChannel channel, long start, long end, Charset charset) throws IOException {
+    ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+    channel.read(bytes, start);
+    bytes.flip();
+    return charset.decode(bytes).toString();
+  }
+  
+  /**
+   * Finds the boundaries between the children of the document element by tracking the depth of elements, byte by
+   * byte, skipping over comments, CDATA sections, processing instructions, declarations and quoted attribute values.
+   * Groups the children into chunks of at least a target size as it goes.
+   */
+  private static final class Scanner {
+    
+    // States
+    private static final int TEXT = 0;
+    private static final int TAG_OPEN = 1; // just after '<'
+    private static final int START_TAG = 2;
+    private static final int START_TAG_QUOTED = 3;
+    private static final int END_TAG = 4;
+    private static final int BANG = 5; // just after "<!"
+    private static final int COMMENT = 6;
+    private static final int CDATA = 7;
+    private static final int DECLARATION = 8;
+    private static final int PROCESSING_INSTRUCTION = 9;
+    
+    private final long targetChunkSize;
+    
+    /** The chunks found so far, each as {start, end}. */
+    private final List<long[]> chunks = new ArrayList<>();
+    
+    /** The offsets of the start tag of the document element. */
+    private long rootStart = -1;
+    private long rootEnd = -1;
+    
+    private int state = TEXT;
+    private int depth = 0;
+    private byte quote;
+    private boolean selfClosing;
+    
+    /** How much of the current state's terminator (e.g. "-->") has been matched, or the depth in a declaration. */
+    private int matched;
+    
+    /** The start of the current tag. */
+    private long tagStart;
+    
+    /** The start of the current chunk, or -1 if it hasn't started yet. */
+    private long chunkStart = -1;
+    
+    /** Whether a DOCTYPE was found in the prolog, in which case scanning stops there. */
+    private boolean doctype = false;
+    
+    private Scanner(long targetChunkSize) {
+      this.targetChunkSize = Math.min(targetChunkSize, MAX_CHUNK_SIZE / 2);
+    }
+    
+    void scan(FileChannel channel) throws IOException, RegenerationException {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(SCAN_BUFFER_SIZE);
+      long offset = 0;
+      while (channel.read(buffer, offset) > 0) {
+        buffer.flip();
+        int limit = buffer.limit();
+        for (int i = 0; i < limit; i++) {
+          step(buffer.get(i), offset + i);
+          if (doctype) {
+            return;
+          }
+        }
+        offset += limit;
+        buffer.clear();
+      }
+      
+      if (rootStart == -1 || depth != 0 || state != TEXT) {
+        throw new RegenerationException("The document is not well-formed: it ends inside an element or tag.");
+      }
+      if (chunkStart != -1) {
+        throw new RegenerationException("The document is not well-formed: it ends inside the document element.");
+      }
+    }
+    
+    private void step(byte b, long position) throws RegenerationException {
+      switch (state) {
+        case TEXT:
+          if (b == '<') {
+            state = TAG_OPEN;
+            tagStart = position;
+          }
+          break;
+        case TAG_OPEN:
+          if (b == '/') {
+            state = END_TAG;
+          } else if (b == '!') {
+            state = BANG;
+          } else if (b == '?') {
+            state = PROCESSING_INSTRUCTION;
+            matched = 0;
+          } else {
+            state = START_TAG;
+            selfClosing = false;
+          }
+          break;
+        case START_TAG:
+          if (b == '"' || b == '\'') {
+            state = START_TAG_QUOTED;
+            quote = b;
+          } else if (b == '>') {
+            endStartTag(position);
+          } else {
+            selfClosing = b == '/';
+          }
+          break;
+        case START_TAG_QUOTED:
+          if (b == quote) {
+            state = START_TAG;
+          }
+          break;
+        case END_TAG:
+          if (b == '>') {
+            state = TEXT;
+            depth--;
+            if (depth == 1) {
+              endChild(position + 1);
+            } else if (depth == 0 && chunkStart != -1) {
+              // End of the document element, so whatever's left is the last chunk
+              chunks.add(new long[] {chunkStart, tagStart});
+              chunkStart = -1;
+            } else if (depth < 0) {
+              throw new RegenerationException("The document is not well-formed: unmatched end tag at byte "
+                  + tagStart + ".");
+            }
+          }
+          break;
+        case BANG:
+          if (b == '-') {
+            state = COMMENT;
+          } else if (b == '[') {
+            state = CDATA;
+          } else {
+            state = DECLARATION;
+            doctype = depth == 0; // the only declaration allowed outside the document element
+          }
+          matched = 0;
+          break;
+        case COMMENT: // "<!-" so far; ends with "-->"
+          if (b == '-') {
+            matched++;
+          } else if (b == '>' && matched >= 2) {
+            state = TEXT;
+          } else {
+            matched = 0;
+          }
+          break;
+        case CDATA: // "<![" so far; ends with "]]>"
+          if (b == ']') {
+            matched++;
+          } else if (b == '>' && matched >= 2) {
+            state = TEXT;
+          } else {
+            matched = 0;
+          }
+          break;
+        case DECLARATION: // e.g. a DOCTYPE, possibly with an internal subset in brackets
+          if (b == '[') {
+            matched++;
+          } else if (b == ']') {
+            matched--;
+          } else if (b == '>' && matched <= 0) {
+            state = TEXT;
+          }
+          break;
+        case PROCESSING_INSTRUCTION: // ends with "?>"
+          if (b == '>' && matched == 1) {
+            state = TEXT;
+          } else {
+            matched = b == '?' ? 1 : 0;
+          }
+          break;
+        default:
+          throw new IllegalStateException("Unknown scanner state " + state);
+      }
+    }
+    
+    private void endStartTag(long position) {
+      state = TEXT;
+      if (depth == 0) {
+        rootStart = tagStart;
+        rootEnd = position + 1;
+      } else if (depth == 1 && chunkStart == -1) {
+        chunkStart = tagStart;
+      }
+      
+      if (!selfClosing) {
+        depth++;
+      } else if (depth == 1) {
+        endChild(position + 1);
+      }
+    }
+    
+    /** A child of the document element ends just before {@code end}; end the chunk here if it's big enough. */
+    private void endChild(long end) {
+      if (end - chunkStart >= targetChunkSize) {
+        chunks.add(new long[] {chunkStart, end});
+        chunkStart = -1;
+      }
+    }
+    
+  }
+  
+  /** Reads from a {@link ByteBuffer}, such as a mapped region of a file. */
+  private static final class ByteBufferInputStream extends InputStream {
+    
+    private final ByteBuffer buffer;
+    
+    private ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+    
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+    
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int read = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, read);
+      return read;
+    }
+    
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+    
+  }
+  
+}
@@ -4,6 +4,7 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -13,12 +14,21 @@ import java.util.stream.Collectors;
 /**
  * A {@link PersistedElement} which is a parent element of other {@link PersistedElement}s. This will be used to store
  * persistable objects.
+ * 
+ * An element storing a non-toplevel object which is referred to from elsewhere in the document by
+ * {@link BackReferenceElement}s has a shared ID, persisted as the attribute {@code shared}.
  */
 class ParentElement extends PersistedElement {
   
+  /** The shared ID of an element which is not referred to by any {@link BackReferenceElement}. */
+  static final int NOT_SHARED = -1;
+  
   /** The list of children of this element. */
   private final List<PersistedElement> children = new ArrayList<>();
   
+  /** The shared ID of this element, or {@link #NOT_SHARED}. */
+  private int sharedId = NOT_SHARED;
+  
   /**
    * Create a new {@link ParentElement} with the specified tag name.
    * @param tag The name of the tag of this XML element. This must be a valid XML tag name as determined by
@@ -65,6 +75,33 @@ class ParentElement extends PersistedElement {
     return Collections.unmodifiableList(children);
   }
   
+  /**
+   * @return The number of children that have previously been added.
+   */
+  public int getChildCount() {
+    return children.size();
+  }
+  
+  /**
+   * Replace a child of this {@link ParentElement} with another element, in the same position.
+   * @param child The child {@link PersistedElement} to replace.
+   * @param replacement The {@link PersistedElement} to put in its place.
+   * @return {@code true} if {@code child} existed in this {@link ParentElement}; in other words, if the child was
+   * replaced.
+   * @throws NullPointerException If {@code replacement} is {@code null}.
+   */
+  public boolean replaceChild(PersistedElement child, PersistedElement replacement) {
+    if (replacement == null) {
+      throw new NullPointerException("Cannot add null child element");
+    }
+    int index = children.indexOf(child);
+    if (index == -1) {
+      return false;
+    }
+    children.set(index, replacement);
+    return true;
+  }
+  
   /**
    * Remove a child from this {@link ParentElement}. The child will no longer appear inside this element.
    * @param child The child {@link PersistedElement} to remove.
@@ -75,33 +112,95 @@ class ParentElement extends PersistedElement {
     return children.remove(child);
   }
   
+  /**
+   * Remove every child from this {@link ParentElement}.
+   */
+  void clearChildren() {
+    children.clear();
+  }
+  
+  /**
+   * @return The ID by which {@link BackReferenceElement}s refer to this element, or {@link #NOT_SHARED} if there are
+   *  none.
+   */
+  public int getSharedId() {
+    return sharedId;
+  }
+  
+  /**
+   * Set the ID by which {@link BackReferenceElement}s refer to this element.
+   * @param sharedId A non-negative ID, unique in the document, or {@link #NOT_SHARED}.
+   */
+  public void setSharedId(int sharedId) {
+    this.sharedId = sharedId;
+  }
+  
   /**
    * Create an XML element from this {@link ParentElement}. The created {@link Element} has this element's tag name and
-   * contains the XML representations of all child {@link PersistedElement}s.
+   * contains the XML representations of all child {@link PersistedElement}s. If this element is shared, it has the
+   * attribute {@code shared} containing its shared ID.
    * @param doc The {@link Document} with which to create the element.
    * @return An XML element representing this {@link ParentElement} containing all child elements' XML representations.
    */
   @Override
   public Element toXmlElement(Document doc) {
     Element element = super.toXmlElement(doc);
+    if (sharedId != NOT_SHARED) {
+      element.setAttribute("shared", Integer.toString(sharedId));
+    }
     for (PersistedElement child : children) {
       element.appendChild(child.toXmlElement(doc));
     }
     return element;
   }
   
+  @Override
+  protected void writeAttributes(XmlChannelWriter out) throws IOException {
+    if (sharedId != NOT_SHARED) {
+      out.attribute("shared", Integer.toString(sharedId));
+    }
+  }
+  
+  @Override
+  protected void writeContents(XmlChannelWriter out) throws IOException {
+    for (PersistedElement child : children) {
+      child.write(out);
+    }
+  }
+  
   /**
    * Create a {@link ParentElement} from a given XML element. The {@link ParentElement} will have the same tag name
    * as the XML element, and each child element will be loaded in as well.
-   * @param element An XML element in a valid format. It must not have attributes.
+   * @param element An XML element in a valid format. It must not have attributes other than {@code shared}.
    * @return A {@link ParentElement} representing the XML element.
-   * @throws RegenerationException If the XML element has attributes, or one of its children has an issue.
+   * @throws RegenerationException If the XML element has other attributes, or one of its children has an issue.
    */
   public static ParentElement fromXmlElement(Element element) throws RegenerationException {
-    if (element.hasAttributes()) {
+    boolean shared = element.hasAttribute("shared");
+    if (element.getAttributes().getLength() > (shared ? 1 : 0)) {
       throw new RegenerationException("Tried to get a ParentElement from its XML element, but it has attributes!");
     }
-    return fromXmlElement(element, ParentElement::new);
+    ParentElement parent = fromXmlElement(element, ParentElement::new);
+    if (shared) {
+      parent.setSharedId(parseIdAttribute(element.getAttribute("shared")));
+    }
+    return parent;
+  }
+  
+  /**
+   * Parse a shared or template ID from an attribute of an XML element, such as {@code shared} or {@code ref}.
+   * @throws RegenerationException If {@code id} is not a non-negative integer.
+   */
+  static int parseIdAttribute(String id) throws RegenerationException {
+    try {
+      int sharedId = Integer.parseInt(id);
+      if (sharedId >= 0) {
+        return sharedId;
+      }
+    } catch (NumberFormatException e) {
+      // fall through
+    }
+    throw new RegenerationException("'" + id + "' is not a valid shared or template ID");
   }
   
   /**
@@ -131,7 +230,11 @@ class ParentElement extends PersistedElement {
   private static PersistedElement createChildElement(Element child) throws RegenerationException {
     if (child.hasAttribute("null")) {
       return NullElement.fromXmlElement(child);
-    } else if (PersistenceUtil.elementHasChildren(child)) {
+    } else if (child.hasAttribute("ref")) {
+      return BackReferenceElement.fromXmlElement(child);
+    } else if (child.hasAttribute("copy-of")) {
+      return CopyElement.fromXmlElement(child);
+    } else if (child.hasAttribute("shared") || PersistenceUtil.elementHasChildren(child)) {
       return ParentElement.fromXmlElement(child);
     } else {
       return TextElement.fromXmlElement(child);
@@ -0,0 +1,121 @@
+package ca.keal.persistence;
+
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An object graph which {@link GraphPatch}es may be applied to in place, made by {@link XmlPersistor#track(Object)}.
+ * It keeps an index of the toplevel objects in the graph by tag and ID, which is kept up to date as patches are
+ * applied, so that applying a patch only touches the objects it changes instead of the whole graph.
+ * 
+ * The index is only kept up to date by applying patches, so the graph shouldn't be changed in any other way while it
+ * is tracked.
+ * @param <R> The type of the root object.
+ * @see XmlPersistor#applyPatch(PatchableGraph, GraphPatch)
+ */
+public final class PatchableGraph<R> {
+  
+  private final R root;
+  
+  /** The toplevel objects in the graph, by tag and ID. */
+  private final RegenToplevelRegistry toplevels = new RegenToplevelRegistry();
+  
+  /** The @{@link Persistable} class of the toplevel objects with each tag, as they are persisted. */
+  private final Map<String, Class<?>> toplevelClasses = new HashMap<>();
+  
+  private PatchableGraph(R root) {
+    this.root = root;
+  }
+  
+  /**
+   * Index the toplevel objects in the graph of {@code root}, an instance of the @{@link Persistable} class
+   * {@code rootClass}, by walking every @{@link Persist} field reachable from it.
+   * @throws PersistenceException If a class isn't properly @{@link Persistable} or a field can't be accessed.
+   */
+  static <R> PatchableGraph<R> track(Class<R> rootClass, R root) {
+    PatchableGraph<R> graph = new PatchableGraph<>(root);
+    Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+    Deque<Object> objects = new ArrayDeque<>();
+    Deque<Class<?>> classes = new ArrayDeque<>();
+    objects.push(root);
+    classes.push(rootClass);
+    
+    while (!objects.isEmpty()) {
+      Object obj = objects.pop();
+      Class<?> cls = classes.pop();
+      if (!visited.add(obj)) continue;
+      
+      PersistableModel<?> model = PersistableModel.of(cls);
+      if (model.isToplevel() && !graph.register(model, obj)) {
+        continue; // a different object with the same ID, which won't be persisted
+      }
+      
+      for (Field field : model.getPersistFields()) {
+        Class<?> type = field.getType();
+        if (type.isPrimitive() || type.equals(String.class) || type.equals(LargeText.class)
+            || type.equals(LargeBytes.class) || type.equals(ToplevelHandle.class)) {
+          continue;
+        }
+        Object value;
+        try {
+          value = field.get(obj);
+        } catch (IllegalAccessException e) {
+          throw new PersistenceException("Cannot track field protected by access control: " + field.getName()
+              + " in " + field.getDeclaringClass());
+        }
+        if (value != null) {
+          objects.push(value);
+          classes.push(type);
+        }
+      }
+    }
+    return graph;
+  }
+  
+  /**
+   * Register the toplevel object {@code obj}, unless a different object with the same tag and ID already is.
+   * @return Whether {@code obj} was registered.
+   */
+  @SuppressWarnings("unchecked")
+  private <T> boolean register(PersistableModel<T> model, Object obj) {
+    String tag = model.getPersistable().tag();
+    String id = model.getIdString((T) obj);
+    if (toplevels.contains(tag, id)) {
+      return false;
+    }
+    toplevels.register(tag, id, obj);
+    toplevelClasses.put(tag, model.getModelledClass());
+    return true;
+  }
+  
+  /**
+   * @return The root object of the graph.
+   */
+  public R getRoot() {
+    return root;
+  }
+  
+  /**
+   * @return The toplevel objects in the graph, by tag and ID, in which those added by patches are registered.
+   */
+  RegenToplevelRegistry getToplevelRegistry() {
+    return toplevels;
+  }
+  
+  /**
+   * @return The @{@link Persistable} class as which the toplevel object {@code obj}, with the tag {@code tag}, is
+   *  persisted: that of the other objects with its tag if the graph was tracked with any, or else its own class, as it
+   *  must have been regenerated from a patch.
+   */
+  Class<?> getToplevelClass(String tag, Object obj) {
+    Class<?> cls = toplevelClasses.get(tag);
+    return cls != null ? cls : obj.getClass();
+  }
+  
+}
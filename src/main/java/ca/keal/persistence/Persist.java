@@ -17,10 +17,13 @@ import java.lang.annotation.Target;
  * The type in which the annotated field is contained must be annotated @{@link Persistable}; otherwise, this annotation
  * will have no effect. This field's type must be a persistable type: either marked @{@link Persistable}, a primitive,
  * or a {@code String}.
+ * 
+ * This annotation may also be applied to a parameter of a @{@link PersistCreator}, in which case it names the
+ * @{@code Persist} field whose value the parameter receives.
  */
 @Documented
 @Retention(RetentionPolicy.RUNTIME)
-@Target(ElementType.FIELD)
+@Target({ElementType.FIELD, ElementType.PARAMETER})
 public @interface Persist {
   
   /**
@@ -29,4 +32,11 @@ public @interface Persist {
    */
   String value();
   
+  /**
+   * Whether to write the annotated field's text in CDATA sections rather than escaping it, which is much faster for
+   * large strings with many characters that would need escaping, such as JSON or markup. Only affects {@code String}
+   * and primitive fields; documents are read the same way either way. Defaults to {@code false}.
+   */
+  boolean cdata() default false;
+  
 }
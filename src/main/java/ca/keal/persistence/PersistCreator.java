@@ -0,0 +1,65 @@
+package ca.keal.persistence;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks the constructor or static factory method through which objects of a @{@link Persistable} type are regenerated.
+ * Without one, objects are instantiated blank and every @{@link Persist} field is then set reflectively; with one, the
+ * values of the creator's parameters are regenerated first and passed in a single call, so immutable types with
+ * {@code final} fields can be regenerated as they would normally be constructed.
+ * 
+ * Every parameter of the creator must be annotated either @{@link Persist}, with the tag of a @{@link Persist} field in
+ * the class (its value is regenerated as that field's would be, so the parameter must accept the field's type), or,
+ * for toplevel types, @{@link Id}, in which case it receives the regenerated ID. Any @{@link Persist} fields which are
+ * not passed to the creator (and the ID field, if not passed) are set reflectively after the creator returns.
+ * 
+ * At most one constructor or method in a class may be annotated @{@code PersistCreator}. A static method must return
+ * an instance of the class.
+ * 
+ * Since a toplevel object does not exist until its creator returns, it cannot be referenced while its creator's
+ * arguments are being regenerated; what happens if it is (i.e. if there is a cycle of references back to it) is
+ * decided by {@link #cycles()}.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.CONSTRUCTOR, ElementType.METHOD})
+public @interface PersistCreator {
+  
+  /**
+   * What to do when a toplevel object is referenced while its creator's arguments are still being regenerated.
+   * Defaults to {@link CyclePolicy#FAIL}.
+   */
+  CyclePolicy cycles() default CyclePolicy.FAIL;
+  
+  /**
+   * Marks the parameter of a @{@link PersistCreator} of a toplevel type which receives the object's ID, converted to
+   * the type of its {@link Persistable#idField()}.
+   */
+  @Documented
+  @Retention(RetentionPolicy.RUNTIME)
+  @Target(ElementType.PARAMETER)
+  @interface Id {}
+  
+  /**
+   * Policies for references to a toplevel object made while its @{@link PersistCreator} is still collecting its
+   * arguments.
+   */
+  enum CyclePolicy {
+    
+    /** Fail the regeneration with a {@link RegenerationException} describing the cycle. */
+    FAIL,
+    
+    /**
+     * Leave each such reference {@code null} at first, and set it to the object once the creator has returned. This
+     * only works for references held in @{@link Persist} fields which are set reflectively; a reference which would
+     * have to be passed to a creator still fails with a {@link RegenerationException}.
+     */
+    DEFER
+    
+  }
+  
+}
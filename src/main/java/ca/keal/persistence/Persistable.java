@@ -53,4 +53,21 @@ public @interface Persistable {
    */
   String tag() default "";
   
+  /**
+   * If {@code true}, objects of this type will be regenerated by calling the type's no-argument constructor (of any
+   * visibility), if it has one, before the @{@link Persist} fields are regenerated into them. This is faster than the
+   * default and lets fields which are not @{@link Persist}ed be initialized as usual, but the constructor must be cheap
+   * and free of side effects. Defaults to {@code false}, in which case no constructor is called at all.
+   */
+  boolean useConstructor() default false;
+  
+  /**
+   * If {@code true}, objects of this type are immutable once regenerated, so a single object may be shared between
+   * everything regenerated from documents containing identical elements for it, through a {@link ToplevelCache}. This
+   * may only be set on toplevel types, and their @{@link Persist} fields (and those of the objects embedded in them)
+   * must not refer to toplevel objects, since those could differ between documents. Defaults to {@code false}.
+   * @see XmlPersistor#setToplevelCache(ToplevelCache)
+   */
+  boolean shareable() default false;
+  
 }
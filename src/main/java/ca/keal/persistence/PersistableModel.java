@@ -0,0 +1,371 @@
+package ca.keal.persistence;
+
+import org.objenesis.Objenesis;
+import org.objenesis.ObjenesisStd;
+import org.objenesis.instantiator.ObjectInstantiator;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The compiled model of a class marked @{@link Persistable}. Everything that can be worked out about the class ahead of
+ * time - its verified annotation, its @{@link Persist} fields, its creator, its ID field, how to convert its ID and
+ * how to instantiate it - is resolved once when the model is built (or first needed) and then shared between all
+ * persisting and regeneration of instances of that class.
+ * 
+ * Models are immutable and cached globally, so they may be used from multiple threads at once.
+ * 
+ * @param <T> The @{@link Persistable} class this model describes.
+ */
+final class PersistableModel<T> {
+  
+  /** The cache of models for each class. */
+  private static final ConcurrentMap<Class<?>, PersistableModel<?>> MODELS = new ConcurrentHashMap<>();
+  
+  /** Used to instantiate classes without calling a constructor. We keep the instantiators ourselves, so no cache. */
+  private static final Objenesis OBJENESIS = new ObjenesisStd(false);
+  
+  private final Class<T> cls;
+  private final Persistable persistable;
+  
+  /** The accessible fields marked @{@link Persist} in the entire hierarchy of the class, except java.lang.Object. */
+  private final List<Field> persistFields;
+  
+  /** The compiled @{@link PersistCreator}, or {@code null} if the class has none. */
+  private final CreatorModel<T> creator;
+  
+  /** The accessible ID field, or {@code null} if the class is not toplevel. */
+  private final Field idField;
+  
+  /** The converter for the ID field's type, or {@code null} if the class is not toplevel. */
+  private final IdConverter<?> idConverter;
+  
+  /** Whether the ID field is a primitive or boxed integral type, so that it can be indexed without a string. */
+  private final boolean integralId;
+  
+  /**
+   * Creates blank instances for regeneration. Resolved when first needed, since classes which are only ever persisted
+   * never need one; racy but idempotent.
+   */
+  private volatile ObjectInstantiator<T> instantiator;
+  
+  private PersistableModel(Class<T> cls) {
+    this.cls = cls;
+    this.persistable = PersistenceUtil.verifyAndGetPersistable(cls);
+    this.persistFields = findPersistFields(cls);
+    this.creator = CreatorModel.find(cls, persistable, persistFields);
+    if (persistable.shareable()) {
+      Field reference = findToplevelReference(persistFields, new HashSet<>());
+      if (reference != null) {
+        throw new PersistenceException(cls.getCanonicalName() + " is @Persistable with shareable=true, so it cannot "
+            + "refer to the toplevel " + reference.getType().getCanonicalName() + " through '" + reference.getName()
+            + "'.");
+      }
+    }
+    
+    // Encode the tags of the class ahead of time, so that writing them never has to
+    for (Field field : persistFields) {
+      XmlChannelWriter.encodeName(field.getAnnotation(Persist.class).value());
+    }
+    if (persistable.toplevel()) {
+      XmlChannelWriter.encodeName(persistable.tag());
+    }
+    
+    if (persistable.toplevel()) {
+      try {
+        idField = cls.getDeclaredField(persistable.idField());
+      } catch (NoSuchFieldException e) {
+        // Yeah this never happens, this case was caught in verifyAndGetPersistable()
+        throw new PersistenceException("This should not happen. idField of '" + cls.getCanonicalName()
+            + "' does not exist despite being verified previously.");
+      }
+      idField.setAccessible(true);
+      idConverter = IdConverter.forType(idField.getType());
+      integralId = idConverter.isIntegral();
+    } else {
+      idField = null;
+      idConverter = null;
+      integralId = false;
+    }
+  }
+  
+  /**
+   * Get all of the declared fields marked @{@link Persist} in the entire hierarchy of {@code cls}, except for
+   * java.lang.Object, set accessible. We need declared fields so as to be able to access non-public fields. Also make
+   * sure that there are no duplicate @{@link Persist} values, as that would make it impossible to regenerate the class
+   * structure.
+   */
+  private static List<Field> findPersistFields(Class<?> cls) {
+    List<Field> fields = new ArrayList<>();
+    Set<String> persistValuesSeen = new HashSet<>();
+    for (Class<?> currentClass = cls; !currentClass.equals(Object.class); currentClass = currentClass.getSuperclass()) {
+      for (Field field : currentClass.getDeclaredFields()) {
+        Persist persistAnno = field.getAnnotation(Persist.class);
+        if (persistAnno == null) continue;
+        if (!persistValuesSeen.add(persistAnno.value())) {
+          throw new PersistenceException("Duplicate @Persist values are not allowed in one class: '"
+              + persistAnno.value() + "' seen twice in '" + cls.getCanonicalName() + "'.");
+        }
+        field.setAccessible(true);
+        fields.add(field);
+      }
+    }
+    return Collections.unmodifiableList(fields);
+  }
+  
+  /**
+   * Find a field of a toplevel type among {@code fields}, the @{@link Persist} fields of a class or of a class embedded
+   * in it, or among the fields of the classes embedded in them. The classes are inspected directly, since their models
+   * may well be being built already. A {@link ToplevelHandle} doesn't count, since it refers to a toplevel object
+   * without holding it.
+   * @return The field, or {@code null} if there is none.
+   */
+  private static Field findToplevelReference(List<Field> fields, Set<Class<?>> checked) {
+    for (Field field : fields) {
+      Class<?> type = field.getType();
+      if (type.isPrimitive() || type.equals(String.class) || type.equals(LargeText.class)
+          || type.equals(LargeBytes.class) || type.equals(ToplevelHandle.class) || !checked.add(type)) {
+        continue;
+      }
+      Persistable persistable = type.getAnnotation(Persistable.class);
+      if (persistable != null && persistable.toplevel()) {
+        return field;
+      }
+      Field reference = findToplevelReference(findPersistFields(type), checked);
+      if (reference != null) {
+        return reference;
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * @return A @{@link Persist} field of the modelled class, or of a class embedded in it, which refers to a toplevel
+   *  object directly rather than through a {@link ToplevelHandle}, or {@code null} if there is none.
+   * @throws PersistenceException If an embedded class has duplicate @{@link Persist} values.
+   */
+  Field findToplevelReference() {
+    return findToplevelReference(persistFields, new HashSet<>());
+  }
+  
+  /**
+   * Get the model of {@code cls}, building and caching it if this is the first time it is requested.
+   * @throws PersistenceException If {@code cls} is not properly annotated @{@link Persistable}, as determined by
+   *  {@link PersistenceUtil#verifyAndGetPersistable(Class)}.
+   */
+  @SuppressWarnings("unchecked")
+  static <T> PersistableModel<T> of(Class<T> cls) {
+    PersistableModel<T> model = (PersistableModel<T>) MODELS.get(cls);
+    if (model == null) {
+      // Not computeIfAbsent(): building a model may be slow and there's no harm in building one twice
+      model = new PersistableModel<>(cls);
+      PersistableModel<T> existing = (PersistableModel<T>) MODELS.putIfAbsent(cls, model);
+      if (existing != null) {
+        model = existing;
+      }
+    }
+    return model;
+  }
+  
+  /**
+   * @return The class this model describes.
+   */
+  Class<T> getModelledClass() {
+    return cls;
+  }
+  
+  /**
+   * @return The verified @{@link Persistable} annotation of the modelled class.
+   */
+  Persistable getPersistable() {
+    return persistable;
+  }
+  
+  /**
+   * @return An unmodifiable list of the accessible fields marked @{@link Persist} in the modelled class and its
+   *  superclasses.
+   */
+  List<Field> getPersistFields() {
+    return persistFields;
+  }
+  
+  /**
+   * @return The compiled @{@link PersistCreator} of the modelled class, or {@code null} if it has none.
+   */
+  CreatorModel<T> getCreator() {
+    return creator;
+  }
+  
+  /**
+   * @return Whether the modelled class is toplevel.
+   */
+  boolean isToplevel() {
+    return persistable.toplevel();
+  }
+  
+  /**
+   * @return Whether objects of the modelled class may be shared between regenerations.
+   */
+  boolean isShareable() {
+    return persistable.shareable();
+  }
+  
+  /**
+   * Get the string form of the ID of {@code obj}, which must be an instance of a toplevel class.
+   * @throws PersistenceException If the ID field cannot be accessed.
+   * @throws NullPointerException If the ID is {@code null}.
+   */
+  String getIdString(T obj) {
+    try {
+      return idConverter.toString(idField.get(obj));
+    } catch (IllegalAccessException e) {
+      throw new PersistenceException("The specified idField, '" + persistable.idField() + "' in '"
+          + cls.getCanonicalName() + "' is inaccessible and cannot be persisted.");
+    }
+  }
+  
+  /**
+   * Get the ID of {@code obj}, which must be an instance of a toplevel class, as it is stored in the ID field.
+   * @throws PersistenceException If the ID field cannot be accessed.
+   */
+  Object getId(T obj) {
+    try {
+      return idField.get(obj);
+    } catch (IllegalAccessException e) {
+      throw new PersistenceException("The specified idField, '" + persistable.idField() + "' in '"
+          + cls.getCanonicalName() + "' is inaccessible and cannot be persisted.");
+    }
+  }
+  
+  /**
+   * @return Whether the modelled class is toplevel and has an ID of integral type ({@code byte}, {@code short},
+   *  {@code int}, {@code long} or their boxed forms), in which case {@link #getIdLong(Object)} may be used.
+   */
+  boolean hasIntegralId() {
+    return integralId;
+  }
+  
+  /**
+   * Get the ID of {@code obj} as a {@code long}, without boxing it if the ID field is primitive. May only be called if
+   * {@link #hasIntegralId()}.
+   * @throws PersistenceException If the ID field cannot be accessed.
+   * @throws NullPointerException If the ID is a {@code null} boxed value.
+   */
+  long getIdLong(T obj) {
+    try {
+      if (idField.getType().isPrimitive()) {
+        return idField.getLong(obj);
+      }
+      return ((Number) idField.get(obj)).longValue();
+    } catch (IllegalAccessException e) {
+      throw new PersistenceException("The specified idField, '" + persistable.idField() + "' in '"
+          + cls.getCanonicalName() + "' is inaccessible and cannot be persisted.");
+    }
+  }
+  
+  /**
+   * @return Whether {@code obj} has the ID {@code id}, compared without converting the ID to a string if it is
+   *  integral. May only be called if the modelled class is toplevel.
+   * @throws PersistenceException If the ID field cannot be accessed.
+   */
+  boolean hasId(T obj, String id) {
+    if (!integralId) {
+      return getIdString(obj).equals(id);
+    }
+    try {
+      return getIdLong(obj) == Long.parseLong(id);
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+  
+  /**
+   * Create a new instance of the modelled class for regeneration. Unless the class opts in to
+   * {@link Persistable#useConstructor()} and has a no-argument constructor, no constructor is called, so all fields
+   * have their default values ({@code 0}, {@code false} or {@code null}).
+   * @throws PersistenceException If the no-argument constructor throws an exception.
+   * @throws org.objenesis.ObjenesisException If the class cannot be instantiated, i.e. because it is abstract.
+   */
+  T newInstance() {
+    ObjectInstantiator<T> instantiator = this.instantiator;
+    if (instantiator == null) {
+      instantiator = resolveInstantiator();
+      this.instantiator = instantiator;
+    }
+    return instantiator.newInstance();
+  }
+  
+  /** Pick how to instantiate the modelled class: through its no-argument constructor if asked to, else Objenesis. */
+  @SuppressWarnings("unchecked")
+  private ObjectInstantiator<T> resolveInstantiator() {
+    if (persistable.useConstructor() && !Modifier.isAbstract(cls.getModifiers())) {
+      try {
+        Constructor<T> constructor = cls.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        MethodHandle handle = MethodHandles.lookup().unreflectConstructor(constructor)
+            .asType(MethodType.methodType(Object.class));
+        return () -> {
+          try {
+            return (T) handle.invokeExact();
+          } catch (RuntimeException | Error e) {
+            throw e;
+          } catch (Throwable t) {
+            throw new PersistenceException("The no-argument constructor of " + cls.getCanonicalName() + " threw an "
+                + "exception.", t);
+          }
+        };
+      } catch (NoSuchMethodException | IllegalAccessException | SecurityException e) {
+        // No usable no-argument constructor, so we'll have to do without one
+      }
+    }
+    return OBJENESIS.getInstantiatorOf(cls);
+  }
+  
+  /**
+   * Convert {@code id} to the type of the ID field of the modelled class, which must be toplevel.
+   * @throws RegenerationException If {@code id} cannot be converted.
+   */
+  Object convertId(String id) throws RegenerationException {
+    return idConverter.fromString(id);
+  }
+  
+  /**
+   * Set the ID field of {@code obj}, which must be an instance of a toplevel class, to {@code id}, which must already be
+   * of the ID field's type.
+   * @throws PersistenceException If the ID field cannot be set.
+   */
+  void setId(T obj, Object id) {
+    try {
+      idField.set(obj, id);
+    } catch (IllegalAccessException e) {
+      throw new PersistenceException("Could not set ID field '" + persistable.idField() + "' in "
+          + cls.getCanonicalName());
+    }
+  }
+  
+  /**
+   * Convert {@code id} to the type of the ID field and set the ID field of {@code obj}, which must be an instance of a
+   * toplevel class.
+   * @throws RegenerationException If {@code id} cannot be converted or the ID field cannot be set.
+   */
+  void setIdFromString(T obj, String id) throws RegenerationException {
+    try {
+      idField.set(obj, convertId(id));
+    } catch (IllegalAccessException e) {
+      throw new RegenerationException("Could not regenerate ID field '" + persistable.idField() + "' in "
+          + cls.getCanonicalName(), e);
+    }
+  }
+  
+}
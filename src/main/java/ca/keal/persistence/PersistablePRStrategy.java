@@ -1,9 +1,6 @@
 package ca.keal.persistence;
 
-import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -54,9 +51,9 @@ public class PersistablePRStrategy<T> extends PersistRegenStrategy<T> {
    */
   @Override
   public PersistedElement persist(PersistingState state, Persist persistAnno, T toPersist) {
-    Persistable persistable = PersistenceUtil.verifyAndGetPersistable(getPersistingClass());
-    if (persistable.toplevel()) {
-      return persistToplevel(state, persistAnno, persistable, toPersist);
+    PersistableModel<T> model = PersistableModel.of(getPersistingClass());
+    if (model.isToplevel()) {
+      return persistToplevel(state, persistAnno, model, toPersist);
     } else {
       return persistNonToplevel(state, persistAnno, toPersist);
     }
@@ -67,39 +64,64 @@ public class PersistablePRStrategy<T> extends PersistRegenStrategy<T> {
    * @see #persist(PersistingState, Persist, Object)
    */
   private PersistedElement persistToplevel(PersistingState state, Persist persistAnno,
-                                           Persistable persistable, T toPersist) {
+                                           PersistableModel<T> model, T toPersist) {
+    // If we've seen this exact object before, all we need is a reference to it
+    TextElement reference = state.getToplevelReference(toPersist);
+    if (reference != null) {
+      if (!reference.getTag().equals(persistAnno.value())) {
+        reference = new TextElement(persistAnno.value(), reference.getText());
+        state.putToplevelReference(toPersist, reference);
+      }
+      return reference;
+    }
+    
+    Persistable persistable = model.getPersistable();
+    
     // Check/register the tag to avoid duplicate tags
     state.getDuplicateChecker().checkAndRegister(persistable.tag(), getPersistingClass());
     
-    // Extract the id from the idField
+    // Extract the id from the idField; integral ids are looked up without converting them to strings first
+    ToplevelElement existing;
     String id;
-    try {
-      Field idField = getPersistingClass().getDeclaredField(persistable.idField());
-      idField.setAccessible(true);
-      id = idField.get(toPersist).toString();
-    } catch (NoSuchFieldException e) {
-      // Yeah this never happens, this case was caught in verifyAndGetPersistable()
-      System.err.println("ERROR: THIS SHOULD NOT HAPPEN. The idField specified in the @Persistable annotation of '"
-          + getPersistingClass().getCanonicalName() + "' does not exist despite passing previous tests. There is a "
-          + "bug in PersistenceUtil.verifyAndGetPersistable() - please tell developer.");
-      throw new PersistenceException("This should not happen. idField of '" + getPersistingClass().getCanonicalName()
-          + "' does not exist despite being verified previously.");
-    } catch (IllegalAccessException e) {
-      throw new PersistenceException("The specified idField, '" + persistable.idField() + "' in '"
-          + getPersistingClass().getCanonicalName() + "' is inaccessible and cannot be persisted.");
+    if (model.hasIntegralId()) {
+      long numericId = model.getIdLong(toPersist);
+      existing = state.getToplevelList().getElement(persistable.tag(), numericId);
+      id = existing == null ? Long.toString(numericId) : existing.getId();
+    } else {
+      id = model.getIdString(toPersist);
+      existing = state.getToplevelList().getElement(persistable.tag(), id);
     }
     
-    // Generate a new toplevel element for it only if it isn't persisted already
-    if (!state.getToplevelList().contains(persistable.tag(), id)) {
+    if (existing == null) {
+      // Generate a new toplevel element for it
       ToplevelElement toplevelElement = new ToplevelElement(persistable.tag(), id);
-      // We add the element before we populate it so that other elements can refer to this element's toplevel id
-      // (i.e. we're reserving this element's place in the toplevel list)
+      // We add the element and its reference before we populate it so that other elements can refer to this element's
+      // toplevel id (i.e. we're reserving this element's place in the toplevel list)
+      reference = new TextElement(persistAnno.value(), id);
       state.getToplevelList().addElement(toplevelElement);
+      state.putToplevelReference(toPersist, reference);
+      PersistenceMetrics metrics = state.getMetrics();
+      PersistenceTracer tracer = state.getTracer();
+      long start = metrics.isEnabled() ? System.nanoTime() : 0;
+      Object span = tracer.isEnabled() ? tracer.toplevelStarted(true) : null;
       populateStructure(state, toplevelElement, toPersist);
+      int elements = toplevelElement.getChildCount(); // before they're spilled
+      state.toplevelFinished(toplevelElement);
+      if (metrics.isEnabled()) {
+        metrics.objectPersisted(getPersistingClass(), true, System.nanoTime() - start);
+      }
+      if (tracer.isEnabled()) {
+        tracer.toplevelFinished(span, true, getPersistingClass(), persistable.tag(), id, elements);
+      }
+    } else {
+      // Every object we've persisted is in the identity map, so this is a different object with the same id
+      state.getDiagnostics().report(Diagnostic.Kind.SHARED_TOPLEVEL_ID, getPersistingClass(), persistable.tag(), id,
+          null);
+      reference = new TextElement(persistAnno.value(), id);
     }
     
     // Return a reference to the toplevel element
-    return new TextElement(persistAnno.value(), id);
+    return reference;
   }
   
   /**
@@ -107,48 +129,30 @@ public class PersistablePRStrategy<T> extends PersistRegenStrategy<T> {
    * @see #persist(PersistingState, Persist, Object)
    */
   private PersistedElement persistNonToplevel(PersistingState state, Persist persistAnno, T toPersist) {
-    // Generate and return a new element
+    // If we've seen this exact object before, refer back to its element instead of persisting it again
+    int sharedId = state.shareEmbedded(toPersist);
+    if (sharedId != ParentElement.NOT_SHARED) {
+      return new BackReferenceElement(persistAnno.value(), sharedId);
+    }
+    
+    // Generate and return a new element; it's recorded before it's populated so that cycles back to it terminate
     ParentElement element = new ParentElement(persistAnno.value());
+    state.putEmbeddedElement(toPersist, element);
+    PersistenceMetrics metrics = state.getMetrics();
+    long start = metrics.isEnabled() ? System.nanoTime() : 0;
     populateStructure(state, element, toPersist);
-    return element;
-  }
-  
-  /**
-   * Get all of the declared fields in the entire hierarchy of getPersistingClass(), except for java.lang.Object,
-   * set accessible and return. We need declared fields so as to be able to access non-public fields.
-   */
-  private List<Field> getAllDeclaredFields() {
-    List<Field> fields = new ArrayList<>();
-    Class<?> currentClass = getPersistingClass();
-    while (!currentClass.equals(Object.class)) {
-      for (Field field : currentClass.getDeclaredFields()) {
-        field.setAccessible(true);
-        fields.add(field);
-      }
-      currentClass = currentClass.getSuperclass();
+    if (metrics.isEnabled()) {
+      metrics.objectPersisted(getPersistingClass(), false, System.nanoTime() - start);
     }
-    return fields;
+    return element;
   }
   
-  /**
-   * Populate {@code parent} with the persisted representations of each field in {@code toPersist}. Also make sure that
-   * there are no duplicate @Persist values, as that would make it impossible to regenerate the class structure.
-   */
+  /** Populate {@code parent} with the persisted representations of each field in {@code toPersist}. */
   private void populateStructure(PersistingState state, ParentElement parent, T toPersist) {
-    List<String> persistValuesSeen = new ArrayList<>();
-    
-    for (Field field : getAllDeclaredFields()) {
+    for (Field field : PersistableModel.of(getPersistingClass()).getPersistFields()) {
       Persist persistAnno = field.getAnnotation(Persist.class);
-      if (persistAnno != null) {
-        if (persistValuesSeen.contains(persistAnno.value())) {
-          throw new PersistenceException("Duplicate @Persist values are not allowed in one class: '"
-            + persistAnno.value() + "' seen twice in '" + getPersistingClass().getCanonicalName() + "'.");
-        }
-        
-        PersistedElement child = persistWithStrategy(field.getType(), field, state, persistAnno, toPersist);
-        parent.addChild(child);
-        persistValuesSeen.add(persistAnno.value());
-      }
+      PersistedElement child = persistWithStrategy(field.getType(), field, state, persistAnno, toPersist);
+      parent.addChild(child);
     }
   }
   
@@ -168,12 +172,14 @@ public class PersistablePRStrategy<T> extends PersistRegenStrategy<T> {
   /**
    * <p>Regenerate an instance of the class returned by {@link #getPersistingClass()} from XML elements.</p>
    * 
-   * <p>There are three possible cases when this class is called. {@code toRegen} may be either a {@link TextElement}
+   * <p>There are four possible cases when this class is called. {@code toRegen} may be either a {@link TextElement}
    * representing a reference to a {@link ToplevelElement} (and therefore containing its ID), a {@link ToplevelElement},
-   * or a regular {@link ParentElement}.</p>
+   * a regular {@link ParentElement}, or a {@link BackReferenceElement} referring to a shared {@link ParentElement}.
+   * (A {@link CopyElement} is regenerated just as its {@link TemplateElement} would be.)</p>
    * 
-   * <p>In the first case, we first check to see if the corresponding object has already been regenerated. If not, we
-   * generate it from the corresponding {@link ToplevelElement}.</p>
+   * <p>In the first and last cases, we first check to see if the corresponding object has already been regenerated.
+   * If not, we generate it from the corresponding {@link ToplevelElement} or {@link ParentElement}. The same goes for
+   * a shared {@link ParentElement} itself.</p>
    * 
    * <p>Then, in all cases, we iterate through the fields marked @{@link Persist} and regenerate each using an
    * appropriate strategy.</p>
@@ -187,23 +193,32 @@ public class PersistablePRStrategy<T> extends PersistRegenStrategy<T> {
    */
   @Override
   public T regenerate(RegenState state, PersistedElement toRegen) throws RegenerationException {
-    Persistable persistable = PersistenceUtil.verifyAndGetPersistable(getPersistingClass());
+    PersistableModel<T> model = PersistableModel.of(getPersistingClass());
     
-    // 3 cases: either it's a toplevel parent, an inner-level parent, or a toplevel reference
+    // 4 cases: either it's a toplevel parent, an inner-level parent, a toplevel reference or a back-reference
     
     if (toRegen instanceof TextElement) {
       TextElement textElement = (TextElement) toRegen;
       if (textElement.getText().isEmpty()) {
         // Empty ParentElement representing embedded object with no @Persist fields
-        return regenerateNonToplevel(state, persistable, new ParentElement(textElement.getTag()));
+        return regenerateNonToplevel(state, model, new ParentElement(textElement.getTag()));
       } else {
         // TextElement containing reference to ToplevelElement
-        return regenerateReference(state, persistable, textElement);
+        return regenerateReference(state, model, textElement);
       }
     } else if (toRegen instanceof ToplevelElement) {
-      return regenerateToplevel(state, persistable, (ToplevelElement) toRegen);
+      return regenerateToplevel(state, model, (ToplevelElement) toRegen);
     } else if (toRegen instanceof ParentElement) {
-      return regenerateNonToplevel(state, persistable, (ParentElement) toRegen);
+      return regenerateNonToplevel(state, model, (ParentElement) toRegen);
+    } else if (toRegen instanceof BackReferenceElement) {
+      return regenerateBackReference(state, model, (BackReferenceElement) toRegen);
+    } else if (toRegen instanceof CopyElement) {
+      int templateId = ((CopyElement) toRegen).getTemplate();
+      TemplateElement template = state.getTemplate(templateId);
+      if (template == null) {
+        throw new RegenerationException("Template " + templateId + " is copied, but doesn't exist.");
+      }
+      return regenerateNonToplevel(state, model, template);
     } else {
       // Wrong kind of element
       throw new RegenerationException("PersistablePRStrategy cannot regenerate from "
@@ -212,20 +227,45 @@ public class PersistablePRStrategy<T> extends PersistRegenStrategy<T> {
   }
   
   /** Regenerate from a {@link TextElement} containing a reference to a {@link ToplevelElement}. */
-  private T regenerateReference(RegenState state, Persistable persistable, TextElement toRegen)
+  private T regenerateReference(RegenState state, PersistableModel<T> model, TextElement toRegen)
       throws RegenerationException {
-    if (!persistable.toplevel()) {
+    if (!model.isToplevel()) {
       throw new RegenerationException("Encountered toplevel reference to non-toplevel persistable class");
     }
     
-    String name = persistable.tag();
+    String name = model.getPersistable().tag();
     String id = toRegen.getText();
     
-    if (state.getToplevelRegistry().contains(name, id)) { // Try to find if we've already regenerated it
-      return state.getToplevelRegistry().get(name, id);
-    } else if (state.getToplevelList().contains(name, id)) { // Regenerate from the toplevel element
-      ToplevelElement element = state.getToplevelList().getElement(name, id);
-      return regenerateToplevel(state, persistable, element);
+    T regenerated = state.getToplevelRegistry().get(name, id);
+    if (regenerated != null) { // We've already regenerated it
+      return regenerated;
+    }
+    
+    PersistCreator.CyclePolicy pending = state.getToplevelRegistry().getPendingPolicy(name, id);
+    if (pending != null) { // Its creator is still collecting its arguments, so there's a cycle back to it
+      if (pending == PersistCreator.CyclePolicy.FAIL) {
+        throw new RegenerationException("Toplevel element with tag name '" + name + "' and id '" + id
+            + "' is referenced while its @PersistCreator is still collecting its arguments; use "
+            + "@PersistCreator(cycles = DEFER) to allow this cycle.");
+      }
+      state.deferReference(new ItemID(name, id));
+      return null;
+    }
+    
+    ToplevelElement element = state.getToplevelList().getElement(name, id);
+    if (element == null && state.getToplevelSource() != null) { // We only have part of the document, so go get it
+      element = state.getToplevelSource().fetchToplevel(getPersistingClass(), name, id);
+      if (element == null) {
+        return null; // The reference is to be left unresolved
+      }
+      state.getToplevelList().addElement(element);
+    }
+    if (element != null) { // Regenerate from the toplevel element
+      ToplevelCache cache = state.getToplevelCache();
+      if (cache != null && model.isShareable() && state.getProjection().isAll()) {
+        return regenerateCached(state, model, cache, element);
+      }
+      return regenerateToplevel(state, model, element);
     } else {
       // Reference doesn't exist
       throw new RegenerationException("Toplevel element with tag name '" + name + "' and id '" + id
@@ -233,147 +273,336 @@ public class PersistablePRStrategy<T> extends PersistRegenStrategy<T> {
     }
   }
   
+  /**
+   * Reuse the object cached in {@code cache} for the shareable toplevel element {@code toRegen}, or else regenerate it
+   * and cache it, registering the result either way. Projected regenerations skip the cache, since they would cache
+   * incomplete objects.
+   */
+  private T regenerateCached(RegenState state, PersistableModel<T> model, ToplevelCache cache,
+      ToplevelElement toRegen) throws RegenerationException {
+    Long hash = ToplevelCache.contentHash(state, toRegen);
+    if (hash == null) {
+      return regenerateToplevel(state, model, toRegen);
+    }
+    
+    Class<T> cls = model.getModelledClass();
+    T cached = cache.get(cls, toRegen.getId(), hash);
+    state.getMetrics().cacheLookup(cls, cached != null);
+    // Never regenerate into an existing object, which may itself be cached and shared with other graphs
+    state.takeOffered();
+    if (cached != null) {
+      toRegen.regenerated();
+      state.getToplevelRegistry().register(toRegen.getTag(), toRegen.getId(), cached);
+      return cached;
+    }
+    
+    T regenerated = regenerateToplevel(state, model, toRegen);
+    cache.put(cls, toRegen.getId(), hash, regenerated);
+    return regenerated;
+  }
+  
   /** Regenerate from a {@link ToplevelElement}, registering the result. */
-  private T regenerateToplevel(RegenState state, Persistable persistable, ToplevelElement toRegen)
+  private T regenerateToplevel(RegenState state, PersistableModel<T> model, ToplevelElement toRegen)
       throws RegenerationException {
-    if (!persistable.toplevel()) {
+    PersistenceMetrics metrics = state.getMetrics();
+    PersistenceTracer tracer = state.getTracer();
+    long start = metrics.isEnabled() ? System.nanoTime() : 0;
+    Object span = tracer.isEnabled() ? tracer.toplevelStarted(false) : null;
+    T regenerated;
+    int elements;
+    try {
+      regenerated = regenerateToplevelOnce(state, model, toRegen);
+      elements = toRegen.getChildCount();
+    } finally {
+      toRegen.regenerated();
+    }
+    if (metrics.isEnabled()) {
+      metrics.objectRegenerated(getPersistingClass(), true, System.nanoTime() - start);
+    }
+    if (tracer.isEnabled()) {
+      tracer.toplevelFinished(span, false, getPersistingClass(), toRegen.getTag(), toRegen.getId(), elements);
+    }
+    return regenerated;
+  }
+  
+  /** The implementation of {@link #regenerateToplevel}, which is done with {@code toRegen} afterwards. */
+  private T regenerateToplevelOnce(RegenState state, PersistableModel<T> model, ToplevelElement toRegen)
+      throws RegenerationException {
+    if (!model.isToplevel()) {
       throw new RegenerationException("Cannot regenerate toplevel element to non-toplevel @Persistable class");
     }
     
-    // Instantiate the element
-    T regenerated = instantiatePersistingClass(state);
+    Object offered = state.takeOffered();
+    CreatorModel<T> creator = model.getCreator();
+    if (creator != null) {
+      return createToplevel(state, model, creator, toRegen);
+    }
     
-    // Set the idField
-    try {
-      Field idField = getPersistingClass().getDeclaredField(persistable.idField());
-      idField.setAccessible(true);
-      idField.set(regenerated, conformIdTo(idField.getType(), toRegen.getId()));
-    } catch (NoSuchFieldException e) {
-      // once again, this was verified in verifyAndGetPersistable
-      System.err.println("ERROR: THIS SHOULD NOT HAPPEN. The idField specified in the @Persistable annotation of '"
-          + getPersistingClass().getCanonicalName() + "' does not exist despite passing previous tests. There is a "
-          + "bug in PersistenceUtil.verifyAndGetPersistable() - please tell developer.");
-      throw new RegenerationException("This should not happen. idField of '" + getPersistingClass().getCanonicalName()
-          + "' does not exist despite being verified previously.");
-    } catch (IllegalAccessException e) {
-      throw new RegenerationException("Could not regenerate ID field '" + persistable.idField() + "' in "
-          + getPersistingClass().getCanonicalName(), e);
+    // Instantiate the element, unless there's an existing one to reuse
+    T regenerated = state.claimToplevel(model, toRegen.getTag(), toRegen.getId(), offered);
+    if (regenerated == null) {
+      regenerated = instantiatePersistingClass(state);
     }
     
+    // Set the idField
+    model.setIdFromString(regenerated, toRegen.getId());
+    
     // Register it
     state.getToplevelRegistry().register(toRegen.getTag(), toRegen.getId(), regenerated);
     
     // Fill it in
     // We register before we fill in the object so that if any field references this object, it can find it
-    fillInRegenerated(state, regenerated, toRegen);
+    fillInRegenerated(state, model, regenerated, toRegen);
+    
+    return regenerated;
+  }
+  
+  /** Regenerate from a {@link ToplevelElement} through the class's @{@link PersistCreator}, registering the result. */
+  private T createToplevel(RegenState state, PersistableModel<T> model, CreatorModel<T> creator,
+                           ToplevelElement toRegen) throws RegenerationException {
+    String name = toRegen.getTag();
+    String id = toRegen.getId();
+    
+    // The object can't be registered until it exists, so mark it pending to catch references to it in the meantime
+    state.getToplevelRegistry().registerPending(name, id, creator.getCyclePolicy());
+    T regenerated = creator.create(regenerateCreatorArguments(state, model, creator, toRegen));
+    if (creator.getIdParameter() == -1) {
+      model.setIdFromString(regenerated, id);
+    }
+    state.getToplevelRegistry().register(name, id, regenerated);
+    state.resolveDeferredFields(new ItemID(name, id), regenerated);
+    
+    // Fill in whatever the creator didn't take
+    fillInRegenerated(state, model, regenerated, toRegen);
     
     return regenerated;
   }
   
-  /** Regenerate from a non-toplevel {@link ParentElement}. */
-  private T regenerateNonToplevel(RegenState state, Persistable persistable, ParentElement toRegen)
+  /** Regenerate from a {@link BackReferenceElement} referring to a shared {@link ParentElement}. */
+  private T regenerateBackReference(RegenState state, PersistableModel<T> model, BackReferenceElement toRegen)
       throws RegenerationException {
-    if (persistable.toplevel()) {
+    int ref = toRegen.getRef();
+    
+    Object regenerated = state.getSharedObject(ref);
+    if (regenerated != null) { // We've already regenerated it
+      return castShared(ref, regenerated);
+    }
+    
+    PersistCreator.CyclePolicy pending = state.getPendingSharedPolicy(ref);
+    if (pending != null) { // Its creator is still collecting its arguments, so there's a cycle back to it
+      if (pending == PersistCreator.CyclePolicy.FAIL) {
+        throw new RegenerationException("Shared element " + ref + " is referenced while its @PersistCreator is "
+            + "still collecting its arguments; use @PersistCreator(cycles = DEFER) to allow this cycle.");
+      }
+      state.deferReference(ref);
+      return null;
+    }
+    
+    // It's referred to before its own element has been regenerated, so go and get that element
+    ParentElement element = state.getSharedElement(ref);
+    if (element == null && state.getToplevelSource() != null) {
+      return null; // It's in a part of the document we weren't asked to load
+    } else if (element == null) {
+      throw new RegenerationException("Shared element " + ref + " is referenced, but doesn't exist.");
+    }
+    return regenerateNonToplevel(state, model, element);
+  }
+  
+  /** Cast an object regenerated from a shared element to the persisting class. */
+  private T castShared(int sharedId, Object shared) throws RegenerationException {
+    if (!getPersistingClass().isInstance(shared)) {
+      throw new RegenerationException("Shared element " + sharedId + " was regenerated as a "
+          + shared.getClass().getCanonicalName() + ", but is referenced as a "
+          + getPersistingClass().getCanonicalName() + ".");
+    }
+    return getPersistingClass().cast(shared);
+  }
+  
+  /** Regenerate from a non-toplevel {@link ParentElement}, registering the result if it is shared. */
+  private T regenerateNonToplevel(RegenState state, PersistableModel<T> model, ParentElement toRegen)
+      throws RegenerationException {
+    if (model.isToplevel()) {
       throw new RegenerationException("Cannot regenerate non-toplevel element to toplevel @Persistable class");
     }
     
-    // Just regenerate it
-    T regenerated = instantiatePersistingClass(state);
-    fillInRegenerated(state, regenerated, toRegen);
+    PersistenceMetrics metrics = state.getMetrics();
+    long start = metrics.isEnabled() ? System.nanoTime() : 0;
+    int sharedId = toRegen.getSharedId();
+    if (sharedId == ParentElement.NOT_SHARED) {
+      // Just regenerate it
+      T regenerated = instantiateOrCreate(state, model, toRegen);
+      fillInRegenerated(state, model, regenerated, toRegen);
+      if (metrics.isEnabled()) {
+        metrics.objectRegenerated(getPersistingClass(), false, System.nanoTime() - start);
+      }
+      return regenerated;
+    }
+    
+    Object existing = state.getSharedObject(sharedId);
+    if (existing != null) { // A back-reference got here first
+      return castShared(sharedId, existing);
+    }
+    
+    // We register before we fill in the object so that back-references to it in its fields can find it
+    CreatorModel<T> creator = model.getCreator();
+    if (creator != null) {
+      state.putPendingSharedObject(sharedId, creator.getCyclePolicy());
+    }
+    T regenerated = instantiateOrCreate(state, model, toRegen);
+    state.putSharedObject(sharedId, regenerated);
+    state.resolveDeferredFields(sharedId, regenerated);
+    fillInRegenerated(state, model, regenerated, toRegen);
+    if (metrics.isEnabled()) {
+      metrics.objectRegenerated(getPersistingClass(), false, System.nanoTime() - start);
+    }
     return regenerated;
   }
   
-  /** Regenerate each field marked @Persist inside {@code regenerated}. */
-  private void fillInRegenerated(RegenState state, T regenerated, ParentElement toRegen) throws RegenerationException {
+  /**
+   * Reuse the existing object offered to be reused, instantiate a blank instance of the persisting class, or create one
+   * through its creator if it has one.
+   */
+  private T instantiateOrCreate(RegenState state, PersistableModel<T> model, ParentElement toRegen)
+      throws RegenerationException {
+    Object offered = state.takeOffered();
+    CreatorModel<T> creator = model.getCreator();
+    if (creator == null) {
+      T reused = state.claim(getPersistingClass(), offered);
+      return reused != null ? reused : instantiatePersistingClass(state);
+    }
+    return creator.create(regenerateCreatorArguments(state, model, creator, toRegen));
+  }
+  
+  /** Regenerate each argument of {@code creator} from the corresponding child of {@code toRegen}, or its ID. */
+  private Object[] regenerateCreatorArguments(RegenState state, PersistableModel<T> model, CreatorModel<T> creator,
+                                              ParentElement toRegen) throws RegenerationException {
+    Object[] args = new Object[creator.getParameterCount()];
+    for (int i = 0; i < args.length; i++) {
+      Field field = creator.getField(i);
+      if (field == null) {
+        args[i] = model.convertId(((ToplevelElement) toRegen).getId());
+        continue;
+      }
+      
+      String tag = field.getAnnotation(Persist.class).value();
+      PersistedElement child = findChild(toRegen, tag);
+      args[i] = PersistenceUtil.pickStrategy(field, child).regenerate(state, child);
+      
+      if (state.takeDeferredReference() != null) {
+        throw new RegenerationException("An object is referenced while its @PersistCreator is still collecting its "
+            + "arguments, and the reference cannot be deferred because it is passed to the @PersistCreator of "
+            + getPersistingClass().getCanonicalName() + " as '" + tag + "'.");
+      }
+    }
+    return args;
+  }
+  
+  /**
+   * Find the only child of {@code parent} with the given tag.
+   * @throws RegenerationException If there is no such child or more than one.
+   */
+  private static PersistedElement findChild(ParentElement parent, String tag) throws RegenerationException {
+    List<PersistedElement> childrenWithTag = parent.getChildrenByTag(tag);
+    
+    if (childrenWithTag.isEmpty()) {
+      throw new RegenerationException("Cannot find element with tag: '" + tag + "'.");
+    } else if (childrenWithTag.size() > 1) {
+      throw new RegenerationException("Multiple elements with same parent with tag: '" + tag + "'.");
+    }
+    
+    return childrenWithTag.get(0);
+  }
+  
+  /**
+   * Regenerate each field marked @Persist inside {@code regenerated}, except for those already passed to its
+   * @{@link PersistCreator} and those left out of the {@link Projection}, whose elements are skipped entirely.
+   */
+  private void fillInRegenerated(RegenState state, PersistableModel<T> model, T regenerated, ParentElement toRegen)
+      throws RegenerationException {
+    CreatorModel<T> creator = model.getCreator();
+    
     // Persist each @Persist field; keep track of what child elements we use
     List<PersistedElement> usedChildren = new ArrayList<>();
     
-    for (Field field : getAllDeclaredFields()) {
-      Persist persistAnno = field.getAnnotation(Persist.class);
-      if (persistAnno == null) continue;
-      
-      // Find the corresponding child element
-      List<PersistedElement> childrenWithTag = toRegen.getChildrenByTag(persistAnno.value());
-      
-      if (childrenWithTag.isEmpty()) {
-        throw new RegenerationException("Cannot find element with tag: '" + persistAnno.value() + "'.");
-      } else if (childrenWithTag.size() > 1) {
-        throw new RegenerationException("Multiple elements with same parent with tag: '" + persistAnno.value() + "'.");
+    for (Field field : model.getPersistFields()) {
+      String tag = field.getAnnotation(Persist.class).value();
+      if (!state.getProjection().includes(getPersistingClass(), tag)) {
+        usedChildren.addAll(toRegen.getChildrenByTag(tag));
+        continue;
       }
       
-      PersistedElement child = childrenWithTag.get(0);
+      // Find the corresponding child element
+      PersistedElement child = findChild(toRegen, tag);
       usedChildren.add(child);
+      if (creator != null && creator.takesTag(tag)) continue;
       
-      // Regenerate the child into the object
-      try {
-        field.set(regenerated, PersistenceUtil.pickStrategy(field.getType(), child).regenerate(state, child));
-      } catch (IllegalAccessException e) {
-        throw new RegenerationException("Could not access field '" + field.getName() + "' in '"
-            + getPersistingClass().getCanonicalName() + "' to regenerate it.", e);
-      }
+      regenerateField(state, regenerated, field, child);
     }
     
-    // Warn if there are unused fields
+    // Report any children which don't correspond to fields
     for (PersistedElement child : toRegen.getChildren()) {
       if (!usedChildren.contains(child)) {
-        System.out.println("Warning: <" + toRegen.getTag()
-            + "> element contains child element that does not correspond to any @Persist-annotated field in "
-            + getPersistingClass().getCanonicalName() + ": '" + child.getTag() + "'.");
+        state.getDiagnostics().report(Diagnostic.Kind.UNUSED_CHILD, getPersistingClass(), toRegen.getTag(), null,
+            child.getTag());
       }
     }
   }
   
-  /** Instantiate an instance of the class returned by {@link #getPersistingClass()} using Objenesis. */
-  private T instantiatePersistingClass(RegenState state) {
-    return state.getObjenesis().newInstance(getPersistingClass());
-  }
-  
-  @SuppressWarnings("unchecked")
-  private static <I> I conformIdTo(Class<I> cls, String id) throws RegenerationException {
-    // Primitives + String
+  /**
+   * Regenerate {@code child} into {@code field} of {@code regenerated}, unless it's a reference to an object which
+   * doesn't exist yet, in which case the field is set once the object is created.
+   */
+  private void regenerateField(RegenState state, T regenerated, Field field, PersistedElement child)
+      throws RegenerationException {
     try {
-      if (cls.equals(boolean.class) || cls.equals(Boolean.class)) {
-        return (I) Boolean.valueOf(Boolean.parseBoolean(id));
-      } else if (cls.equals(byte.class) || cls.equals(Byte.class)) {
-        return (I) new Byte(Byte.parseByte(id));
-      } else if (cls.equals(char.class) || cls.equals(Character.class)) {
-        return (I) new Character(id.charAt(0));
-      } else if (cls.equals(short.class) || cls.equals(Short.class)) {
-        return (I) new Short(Short.parseShort(id));
-      } else if (cls.equals(int.class) || cls.equals(Integer.class)) {
-        return (I) new Integer(Integer.parseInt(id));
-      } else if (cls.equals(long.class) || cls.equals(Long.class)) {
-        return (I) new Long(Long.parseLong(id));
-      } else if (cls.equals(float.class) || cls.equals(Float.class)) {
-        return (I) new Float(Float.parseFloat(id));
-      } else if (cls.equals(double.class) || cls.equals(Double.class)) {
-        return (I) new Double(Double.parseDouble(id));
-      } else if (cls.equals(String.class)) {
-        return (I) id;
+      Object existing = state.isReusing() ? field.get(regenerated) : null;
+      state.offerReusable(existing);
+      Object value = PersistenceUtil.pickStrategy(field, child).regenerate(state, child);
+      state.offerReusable(null);
+      Object deferred = state.takeDeferredReference();
+      if (deferred == null) {
+        // An equal string already in the field is left as it is
+        if (!(value instanceof String && value.equals(existing))) {
+          field.set(regenerated, value);
+        }
+      } else {
+        state.deferField(deferred, regenerated, field);
       }
-    } catch (NumberFormatException e) {
-      throw new RegenerationException("Could not conform id '" + id + "' to '" + cls.getCanonicalName() + "'.", e);
+    } catch (IllegalAccessException e) {
+      throw new RegenerationException("Could not access field '" + field.getName() + "' in '"
+          + getPersistingClass().getCanonicalName() + "' to regenerate it.", e);
     }
-    
-    // Look for fromString(String) method
-    try {
-      Method fromString = cls.getMethod("fromString", String.class);
-      return (I) fromString.invoke(null, id);
-    } catch (NoSuchMethodException e) {
-      // no fromString(String) method
-    } catch (IllegalAccessException | InvocationTargetException e) {
-      throw new RegenerationException("Could not call fromString(String) method", e);
+  }
+  
+  /**
+   * Regenerate the fields of the existing object {@code toPatch} which have elements in {@code changes}, in place,
+   * leaving its other fields alone. Fields passed to a @{@link PersistCreator} are set directly; the creator isn't
+   * called again.
+   * @throws RegenerationException If {@code changes} has an element which doesn't correspond to exactly one
+   *  @{@link Persist} field, or an error is encountered when regenerating a field.
+   */
+  void patch(RegenState state, T toPatch, ParentElement changes) throws RegenerationException {
+    int used = 0;
+    for (Field field : PersistableModel.of(getPersistingClass()).getPersistFields()) {
+      List<PersistedElement> children = changes.getChildrenByTag(field.getAnnotation(Persist.class).value());
+      if (children.isEmpty()) continue;
+      if (children.size() > 1) {
+        throw new RegenerationException("Multiple elements with same parent with tag: '" + children.get(0).getTag()
+            + "'.");
+      }
+      regenerateField(state, toPatch, field, children.get(0));
+      used++;
     }
     
-    // Look for single-argument String constructor
-    try {
-      Constructor constructor = cls.getConstructor(String.class);
-      return (I) constructor.newInstance(id);
-    } catch (NoSuchMethodException e) {
-      throw new RegenerationException("Unable to convert id '" + id + "' to type '" + cls.getCanonicalName() + "'.");
-    } catch (IllegalAccessException | InvocationTargetException | InstantiationException e) {
-      throw new RegenerationException("Could not call single-argument String constructor", e);
+    if (used < changes.getChildren().size()) {
+      throw new RegenerationException("<" + changes.getTag() + "> patch changes a field which doesn't correspond to "
+          + "any @Persist-annotated field in " + getPersistingClass().getCanonicalName() + ".");
     }
   }
   
+  /** Instantiate an instance of the class returned by {@link #getPersistingClass()} using its model's instantiator. */
+  private T instantiatePersistingClass(RegenState state) {
+    return PersistableModel.of(getPersistingClass()).newInstance();
+  }
+  
 }
@@ -3,6 +3,8 @@ package ca.keal.persistence;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import java.io.IOException;
+
 /**
  * An XML element representing a persisted value. This is the superclass of the persistence-specific abstraction of
  * the org.w3c.dom library. This superclass has a tag name, which must be a valid XML tag name, and can create an
@@ -10,6 +12,12 @@ import org.w3c.dom.Element;
  */
 class PersistedElement {
   
+  /**
+   * Tags already found to be valid, by hash, so that the same few tags, which elements read from documents have over
+   * and over, are only checked once each. Filled racily, which at worst means checking a tag again.
+   */
+  private static final String[] VALID_TAGS = new String[256];
+  
   /** This element's tag name. */
   private final String tag;
   
@@ -20,8 +28,12 @@ class PersistedElement {
    * @throws PersistenceException If {@code tag} is not a valid XML tag name.
    */
   public PersistedElement(String tag) {
-    if (!PersistenceUtil.isValidXmlTag(tag)) {
-      throw new PersistenceException("'" + tag + "' is an invalid tag name");
+    int slot = tag == null ? 0 : tag.hashCode() & (VALID_TAGS.length - 1);
+    if (tag == null || !tag.equals(VALID_TAGS[slot])) {
+      if (!PersistenceUtil.isValidXmlTag(tag)) {
+        throw new PersistenceException("'" + tag + "' is an invalid tag name");
+      }
+      VALID_TAGS[slot] = tag;
     }
     this.tag = tag;
   }
@@ -43,4 +55,27 @@ class PersistedElement {
     return doc.createElement(getTag());
   }
   
+  /**
+   * Write this {@link PersistedElement} to {@code out} exactly as {@link #toXmlElement(Document)} would create it, but
+   * without building the {@link Element}.
+   * @param out The writer to which to write the element.
+   * @throws IOException If the element cannot be written.
+   */
+  public void write(XmlChannelWriter out) throws IOException {
+    out.startElement(getTag());
+    writeAttributes(out);
+    writeContents(out);
+    out.endElement(getTag());
+  }
+  
+  /**
+   * Write the attributes of this element, if any, to {@code out}. Called by {@link #write(XmlChannelWriter)}.
+   */
+  protected void writeAttributes(XmlChannelWriter out) throws IOException {}
+  
+  /**
+   * Write the contents of this element, if any, to {@code out}. Called by {@link #write(XmlChannelWriter)}.
+   */
+  protected void writeContents(XmlChannelWriter out) throws IOException {}
+  
 }
@@ -0,0 +1,87 @@
+package ca.keal.persistence;
+
+/**
+ * Receives measurements of what an {@link XmlPersistor} does: how many objects of each class it persists and
+ * regenerates and how long they take, how many bytes it writes and reads, how long each phase of persisting and
+ * regenerating takes, and how often its {@link ToplevelCache} is hit. Every method does nothing by default, so an
+ * implementation need only override those it wants.
+ * 
+ * The time taken by each object includes the time taken by the objects persisted or regenerated for the first time
+ * from its fields, so the times of nested objects overlap; only those of the root class add up to the whole.
+ * Implementations may be called by several threads at once if their persistor is.
+ * @see XmlPersistor#setMetrics(PersistenceMetrics)
+ * @see CountingMetrics
+ */
+public interface PersistenceMetrics {
+  
+  /** The phases of persisting and regenerating which are timed. */
+  enum Phase {
+    /** Walking the object graph, building the elements of each object as it is reached. */
+    PERSIST,
+    /** Building a DOM document from the persisted elements. */
+    BUILD_DOM,
+    /** Writing the persisted elements to a channel. */
+    WRITE,
+    /** Parsing a document with an XML parser. */
+    PARSE,
+    /** Reading a document with the strict reader, including checking its checksum if it is trusted. */
+    READ,
+    /** Regenerating the object graph from the elements read or parsed. */
+    REGENERATE
+  }
+  
+  /** Measures nothing, at almost no cost. */
+  PersistenceMetrics NONE = new PersistenceMetrics() {
+    @Override
+    public boolean isEnabled() {
+      return false;
+    }
+  };
+  
+  /**
+   * @return Whether anything is measured at all. If not, nothing is timed, and none of the other methods need be
+   *  called. Defaults to {@code true}.
+   */
+  default boolean isEnabled() {
+    return true;
+  }
+  
+  /**
+   * Called once an object has been persisted to a new element.
+   * @param cls The class of the object.
+   * @param toplevel Whether it was persisted to a toplevel element.
+   * @param nanos How long persisting it took, in nanoseconds.
+   */
+  default void objectPersisted(Class<?> cls, boolean toplevel, long nanos) {}
+  
+  /** Called once a {@code null} field has been persisted. */
+  default void nullPersisted() {}
+  
+  /**
+   * Called once an object has been regenerated from its element. Toplevel objects found in a {@link ToplevelCache}
+   * aren't regenerated, and are reported to {@link #cacheLookup(Class, boolean)} instead.
+   * @param cls The class of the object.
+   * @param toplevel Whether it was regenerated from a toplevel element.
+   * @param nanos How long regenerating it took, in nanoseconds.
+   */
+  default void objectRegenerated(Class<?> cls, boolean toplevel, long nanos) {}
+  
+  /** Called once a {@code null} field has been regenerated. */
+  default void nullRegenerated() {}
+  
+  /** Called once {@code bytes} bytes of a persisted document have been written. */
+  default void bytesWritten(long bytes) {}
+  
+  /**
+   * Called once the strict reader has read {@code bytes} bytes of a persisted document. Documents parsed by an XML
+   * parser aren't counted.
+   */
+  default void bytesRead(long bytes) {}
+  
+  /** Called once {@code phase} has finished, having taken {@code nanos} nanoseconds. */
+  default void phase(Phase phase, long nanos) {}
+  
+  /** Called once a toplevel object of class {@code cls} has been looked up in a {@link ToplevelCache}. */
+  default void cacheLookup(Class<?> cls, boolean hit) {}
+  
+}
@@ -0,0 +1,54 @@
+package ca.keal.persistence;
+
+import java.util.Map;
+
+/**
+ * The management interface through which {@link JmxMetrics} exposes {@link CountingMetrics}. Times are in
+ * nanoseconds; phases are named as in {@link PersistenceMetrics.Phase}, and classes by their names.
+ */
+public interface PersistenceMetricsMXBean {
+  
+  long getToplevelObjectsPersisted();
+  
+  long getEmbeddedObjectsPersisted();
+  
+  long getNullsPersisted();
+  
+  long getToplevelObjectsRegenerated();
+  
+  long getEmbeddedObjectsRegenerated();
+  
+  long getNullsRegenerated();
+  
+  long getBytesWritten();
+  
+  long getBytesRead();
+  
+  long getCacheHits();
+  
+  long getCacheMisses();
+  
+  double getCacheHitRate();
+  
+  /** @return The number of times each phase has finished. */
+  Map<String, Long> getPhaseCounts();
+  
+  /** @return The total time each phase has taken. */
+  Map<String, Long> getPhaseNanos();
+  
+  /** @return The number of objects of each class persisted. */
+  Map<String, Long> getObjectsPersistedByClass();
+  
+  /** @return The total time taken to persist the objects of each class. */
+  Map<String, Long> getPersistNanosByClass();
+  
+  /** @return The number of objects of each class regenerated. */
+  Map<String, Long> getObjectsRegeneratedByClass();
+  
+  /** @return The total time taken to regenerate the objects of each class. */
+  Map<String, Long> getRegenerateNanosByClass();
+  
+  /** Start counting again from zero. */
+  void reset();
+  
+}
@@ -0,0 +1,75 @@
+package ca.keal.persistence;
+
+import java.nio.file.Path;
+
+/**
+ * Is told as each document, and each toplevel object, starts and finishes being persisted or regenerated, so that
+ * they can be traced as spans, such as by the JDK Flight Recorder events of the {@code jfr} module. Whatever a
+ * {@code ...Started} method returns is passed back to the matching {@code ...Finished} method, on the same thread;
+ * if persisting or regenerating fails, the finishing method isn't called at all. Every method does nothing by
+ * default.
+ * 
+ * A document span covers a whole call to {@link XmlPersistor#toXml(Object)}, {@link XmlPersistor#fromXml(Path)} or
+ * one of their relatives, including writing or reading the document. A toplevel span covers persisting or
+ * regenerating one toplevel object, including the objects first reached through its fields, so spans are nested.
+ * Toplevel objects found in a {@link ToplevelCache} aren't regenerated, and have no span.
+ * @see XmlPersistor#setTracer(PersistenceTracer)
+ */
+public interface PersistenceTracer {
+  
+  /** Traces nothing, at almost no cost. */
+  PersistenceTracer NONE = new PersistenceTracer() {
+    @Override
+    public boolean isEnabled() {
+      return false;
+    }
+  };
+  
+  /**
+   * @return Whether anything is traced at all. If not, none of the other methods need be called. Defaults to
+   *  {@code true}.
+   */
+  default boolean isEnabled() {
+    return true;
+  }
+  
+  /**
+   * Called as a document starts being persisted or regenerated.
+   * @param persisting Whether it is being persisted, rather than regenerated.
+   * @return Anything to pass to {@link #documentFinished}.
+   */
+  default Object documentStarted(boolean persisting) {
+    return null;
+  }
+  
+  /**
+   * Called once a document has been persisted or regenerated.
+   * @param span What {@link #documentStarted(boolean)} returned.
+   * @param persisting Whether it was persisted, rather than regenerated.
+   * @param rootClass The class of the root object.
+   * @param toplevels The number of toplevel elements in the document.
+   */
+  default void documentFinished(Object span, boolean persisting, Class<?> rootClass, int toplevels) {}
+  
+  /**
+   * Called as a toplevel object starts being persisted or regenerated.
+   * @param persisting Whether it is being persisted, rather than regenerated.
+   * @return Anything to pass to {@link #toplevelFinished}.
+   */
+  default Object toplevelStarted(boolean persisting) {
+    return null;
+  }
+  
+  /**
+   * Called once a toplevel object has been persisted or regenerated.
+   * @param span What {@link #toplevelStarted(boolean)} returned.
+   * @param persisting Whether it was persisted, rather than regenerated.
+   * @param cls The class of the object.
+   * @param tag The tag of its toplevel element.
+   * @param id Its ID.
+   * @param elements The number of child elements of its toplevel element, one for each field.
+   */
+  default void toplevelFinished(Object span, boolean persisting, Class<?> cls, String tag, String id,
+      int elements) {}
+  
+}
@@ -2,6 +2,9 @@ package ca.keal.persistence;
 
 import org.w3c.dom.Element;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.util.regex.Pattern;
 
 /**
@@ -31,6 +34,7 @@ final class PersistenceUtil {
    *    <li>{@code idField} is not supplied</li>
    *    <li>{@code idField} is not a valid instance-level field in {@code cls}</li>
    *  </ul>
+   *  or if its {@link Persistable#shareable} parameter is {@code true} but it isn't toplevel.
    */
   static Persistable verifyAndGetPersistable(Class<?> cls) {
     Persistable persistable = cls.getAnnotation(Persistable.class);
@@ -67,6 +71,11 @@ final class PersistenceUtil {
       }
     }
     
+    if (persistable.shareable() && !persistable.toplevel()) {
+      throw new PersistenceException(cls.getCanonicalName()
+          + " is @Persistable with shareable=true and so must also be toplevel");
+    }
+    
     return persistable;
   }
   
@@ -97,6 +106,21 @@ final class PersistenceUtil {
     return pickStrategy(cls);
   }
   
+  /**
+   * Pick an appropriate {@link PersistRegenStrategy} to regenerate the given element into {@code field} and return it.
+   * This is the same as {@link #pickStrategy(Class, PersistedElement)} for the field's type, except that a
+   * {@link ToplevelHandle} is regenerated as a handle on the class given by the field's type argument.
+   */
+  static PersistRegenStrategy<?> pickStrategy(Field field, PersistedElement element) {
+    if (!(element instanceof NullElement) && field.getType().equals(ToplevelHandle.class)) {
+      Type type = field.getGenericType();
+      Type referenced = type instanceof ParameterizedType ? ((ParameterizedType) type).getActualTypeArguments()[0]
+          : null;
+      return new HandlePRStrategy<>(field.getType(), referenced instanceof Class ? (Class<?>) referenced : null);
+    }
+    return pickStrategy(field.getType(), element);
+  }
+  
   /**
    * Pick an appropriate {@link PersistRegenStrategy} to persist or regenerate the given class and return it. This
    * method will never return {@link NullPRStrategy}.
@@ -105,6 +129,10 @@ final class PersistenceUtil {
   static <R> PersistRegenStrategy<R> pickStrategy(Class<R> cls) {
     if (cls.isPrimitive() || cls.equals(String.class)) {
       return new PrimitivePRStrategy<>(cls);
+    } else if (cls.equals(LargeText.class) || cls.equals(LargeBytes.class)) {
+      return new StreamedPRStrategy<>(cls);
+    } else if (cls.equals(ToplevelHandle.class)) {
+      return new HandlePRStrategy<>(cls, null);
     } else {
       return new PersistablePRStrategy<>(cls);
     }
@@ -1,14 +1,56 @@
 package ca.keal.persistence;
 
+import java.util.IdentityHashMap;
+import java.util.Map;
+
 /**
- * Encapsulates all state that is global to a single call to {@link XmlPersistor#toXml(Object)}. Currently, this
- * includes the {@link ToplevelList} and the {@link DuplicatePersistableChecker}.
+ * Encapsulates all state that is global to a single call to {@link XmlPersistor#toXml(Object)}, or to writing a
+ * single record of a {@link ToplevelStore}. Currently, this includes the {@link ToplevelList}, the
+ * {@link DuplicatePersistableChecker}, the references to each toplevel object that has been persisted, and the elements
+ * of each non-toplevel object that has been persisted.
  */
 class PersistingState {
   
   private final ToplevelList toplevelList = new ToplevelList();
   private final DuplicatePersistableChecker duplicateChecker = new DuplicatePersistableChecker();
   
+  /**
+   * Maps each toplevel object which has been persisted (or is being persisted) to the last reference element created
+   * for it. Keyed by identity, so that a repeat reference to the same object needs neither its ID nor a lookup in the
+   * {@link ToplevelList}.
+   */
+  private final Map<Object, TextElement> toplevelReferences = new IdentityHashMap<>();
+  
+  /**
+   * Maps each non-toplevel object which has been persisted (or is being persisted) to its element, so that any further
+   * occurrence of that object can be persisted as a {@link BackReferenceElement} to it instead.
+   */
+  private final Map<Object, ParentElement> embeddedElements = new IdentityHashMap<>();
+  
+  /** The next shared ID to give out. */
+  private int nextSharedId;
+  
+  /** Where to report what is persisted. */
+  private PersistenceMetrics metrics = PersistenceMetrics.NONE;
+  
+  /** What to tell as toplevel objects are persisted. */
+  private PersistenceTracer tracer = PersistenceTracer.NONE;
+  
+  /** Where to report anything suspicious found as objects are persisted. */
+  private Diagnostics diagnostics = Diagnostics.SHARED;
+  
+  PersistingState() {
+    this(0);
+  }
+  
+  /**
+   * Create a {@link PersistingState} which gives out shared IDs from {@code firstSharedId}, so that they don't clash
+   * with those of elements persisted separately.
+   */
+  PersistingState(int firstSharedId) {
+    this.nextSharedId = firstSharedId;
+  }
+  
   public ToplevelList getToplevelList() {
     return toplevelList;
   }
@@ -17,4 +59,119 @@ class PersistingState {
     return duplicateChecker;
   }
   
+  /**
+   * @return Where to report what is persisted.
+   */
+  PersistenceMetrics getMetrics() {
+    return metrics;
+  }
+  
+  /**
+   * Set where to report what is persisted; defaults to {@link PersistenceMetrics#NONE}.
+   */
+  void setMetrics(PersistenceMetrics metrics) {
+    this.metrics = metrics;
+  }
+  
+  /**
+   * @return What to tell as toplevel objects are persisted.
+   */
+  PersistenceTracer getTracer() {
+    return tracer;
+  }
+  
+  /**
+   * Set what to tell as toplevel objects are persisted; defaults to {@link PersistenceTracer#NONE}.
+   */
+  void setTracer(PersistenceTracer tracer) {
+    this.tracer = tracer;
+  }
+  
+  /**
+   * @return Where to report anything suspicious found as objects are persisted.
+   */
+  Diagnostics getDiagnostics() {
+    return diagnostics;
+  }
+  
+  /**
+   * Set where to report anything suspicious found as objects are persisted, including by the toplevel list.
+   */
+  void setDiagnostics(Diagnostics diagnostics) {
+    this.diagnostics = diagnostics;
+    toplevelList.setDiagnostics(diagnostics);
+  }
+  
+  /**
+   * @return The last reference element created for the toplevel object {@code obj}, or {@code null} if {@code obj}
+   *  (that exact instance) has not been persisted yet.
+   */
+  public TextElement getToplevelReference(Object obj) {
+    return toplevelReferences.get(obj);
+  }
+  
+  /**
+   * Record {@code reference} as a reference to the toplevel object {@code obj}. Since {@link TextElement}s are
+   * immutable, it may be reused wherever {@code obj} is referenced with the same tag.
+   */
+  public void putToplevelReference(Object obj, TextElement reference) {
+    toplevelReferences.put(obj, reference);
+  }
+  
+  /**
+   * Mark the element of the non-toplevel object {@code obj} as shared, as {@link #share(ParentElement)} does.
+   * @return The shared ID of its element, or {@link ParentElement#NOT_SHARED} if {@code obj} (that exact instance) has
+   *  not been persisted yet.
+   */
+  public int shareEmbedded(Object obj) {
+    ParentElement element = embeddedElements.get(obj);
+    return element == null ? ParentElement.NOT_SHARED : share(element);
+  }
+  
+  /**
+   * Record {@code element} as the element of the non-toplevel object {@code obj}.
+   */
+  public void putEmbeddedElement(Object obj, ParentElement element) {
+    embeddedElements.put(obj, element);
+  }
+  
+  /**
+   * Forget the element of the non-toplevel object {@code obj}, once it is kept elsewhere.
+   */
+  void removeEmbeddedElement(Object obj) {
+    embeddedElements.remove(obj);
+  }
+  
+  /**
+   * Mark {@code element} as shared, giving it a shared ID if it doesn't have one yet.
+   * @return The shared ID of {@code element}.
+   */
+  public int share(ParentElement element) {
+    if (element.getSharedId() == ParentElement.NOT_SHARED) {
+      element.setSharedId(newSharedId());
+    }
+    return element.getSharedId();
+  }
+  
+  /**
+   * @return A shared ID which hasn't been given out before.
+   */
+  int newSharedId() {
+    return nextSharedId++;
+  }
+  
+  /**
+   * @return The next shared ID to give out.
+   */
+  int getNextSharedId() {
+    return nextSharedId;
+  }
+  
+  /**
+   * Called once the toplevel element {@code element} has been populated, with everything reachable from it that wasn't
+   * persisted already. Nothing will be added to it afterwards, although the shared IDs of elements inside it may still
+   * be set. Does nothing here.
+   */
+  void toplevelFinished(ToplevelElement element) {}
+  
 }
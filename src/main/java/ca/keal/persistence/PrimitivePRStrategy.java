@@ -15,12 +15,12 @@ class PrimitivePRStrategy<T> extends PersistRegenStrategy<T> {
   
   /**
    * @return A simple {@link TextElement} with the tag of the @{@link Persist} annotation's {@code value} and the text
-   *  being {@code toPersist.toString()}.
+   *  being {@code toPersist.toString()}, written as CDATA if the annotation's {@code cdata} is set.
    * @see PersistRegenStrategy#persist(PersistingState, Persist, Object)
    */
   @Override
   public PersistedElement persist(PersistingState state, Persist persistAnno, T toPersist) {
-    return new TextElement(persistAnno.value(), toPersist.toString());
+    return new TextElement(persistAnno.value(), toPersist.toString(), persistAnno.cdata());
   }
   
   @Override
@@ -0,0 +1,91 @@
+package ca.keal.persistence;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Selects which @{@link Persist} fields of each class are regenerated, so that reading a few fields of a large object
+ * graph doesn't regenerate the rest of it. Fields are named by their @{@link Persist} tags. The elements of the fields
+ * left out are skipped entirely: the objects embedded in them aren't regenerated, and the toplevel objects they refer to
+ * aren't regenerated either (unless they are reached through other fields), so those fields are left at their default
+ * values. Classes which aren't mentioned have all of their fields regenerated.
+ * 
+ * Fields passed to a @{@link PersistCreator} are always regenerated, since the object can't be created without them.
+ * 
+ * Projections are immutable; {@link #and(Class, String...)} returns a new one.
+ * @see XmlPersistor#setProjection(Projection)
+ */
+public final class Projection {
+  
+  /** Regenerates every field of every class. */
+  public static final Projection ALL = new Projection(Collections.emptyMap());
+  
+  /** The tags of the fields to regenerate, by class. */
+  private final Map<Class<?>, Set<String>> tags;
+  
+  private Projection(Map<Class<?>, Set<String>> tags) {
+    this.tags = tags;
+  }
+  
+  /**
+   * @return A projection regenerating only the fields of {@code cls} with the given @{@link Persist} tags, and every
+   *  field of every other class.
+   * @throws NullPointerException If {@code cls} or any tag is {@code null}.
+   * @throws PersistenceException If {@code cls} isn't @{@link Persistable}, or any tag isn't that of one of its
+   *  @{@link Persist} fields.
+   */
+  public static Projection of(Class<?> cls, String... tags) {
+    return ALL.and(cls, tags);
+  }
+  
+  /**
+   * @return A projection regenerating only the fields of {@code cls} with the given @{@link Persist} tags, and
+   *  otherwise the same fields as this one. Any fields of {@code cls} this projection selected are replaced.
+   * @throws NullPointerException If {@code cls} or any tag is {@code null}.
+   * @throws PersistenceException If {@code cls} isn't @{@link Persistable}, or any tag isn't that of one of its
+   *  @{@link Persist} fields.
+   */
+  public Projection and(Class<?> cls, String... tags) {
+    if (cls == null) {
+      throw new NullPointerException("Cannot project a null class");
+    }
+    
+    Set<String> persistTags = new HashSet<>();
+    for (Field field : PersistableModel.of(cls).getPersistFields()) {
+      persistTags.add(field.getAnnotation(Persist.class).value());
+    }
+    for (String tag : tags) {
+      if (tag == null) {
+        throw new NullPointerException("Cannot project a null tag");
+      }
+      if (!persistTags.contains(tag)) {
+        throw new PersistenceException(cls.getCanonicalName() + " has no @Persist field with tag '" + tag + "'");
+      }
+    }
+    
+    Map<Class<?>, Set<String>> projected = new HashMap<>(this.tags);
+    projected.put(cls, Collections.unmodifiableSet(new HashSet<>(Arrays.asList(tags))));
+    return new Projection(Collections.unmodifiableMap(projected));
+  }
+  
+  /**
+   * @return Whether the field of {@code cls} with the @{@link Persist} tag {@code tag} is regenerated.
+   */
+  boolean includes(Class<?> cls, String tag) {
+    Set<String> included = tags.get(cls);
+    return included == null || included.contains(tag);
+  }
+  
+  /**
+   * @return Whether this projection regenerates every field of every class.
+   */
+  boolean isAll() {
+    return tags.isEmpty();
+  }
+  
+}
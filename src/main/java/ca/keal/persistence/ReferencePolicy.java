@@ -0,0 +1,61 @@
+package ca.keal.persistence;
+
+import java.util.function.Consumer;
+
+/**
+ * Decides what a {@link ToplevelCursor} does with each reference from a streamed object to a toplevel object which is
+ * not being streamed itself. Since a cursor only ever reads one toplevel element at a time, loading a referenced object
+ * means scanning the document again from the start, so it is worth being selective.
+ * 
+ * Three policies are provided: {@link #SKIP}, {@link #ON_DEMAND}, and {@link #lazy(Consumer)}; any other may be
+ * plugged in.
+ */
+@FunctionalInterface
+public interface ReferencePolicy {
+  
+  /** Leave every reference {@code null}. */
+  ReferencePolicy SKIP = reference -> false;
+  
+  /**
+   * Load every referenced object as soon as the reference is found, along with everything it references in turn, and
+   * any shared embedded objects persisted inside other toplevel elements.
+   */
+  ReferencePolicy ON_DEMAND = new ReferencePolicy() {
+    @Override
+    public boolean loadNow(ToplevelReference<?> reference) {
+      return true;
+    }
+    
+    @Override
+    public boolean loadSharedObjects() {
+      return true;
+    }
+  };
+  
+  /**
+   * Leave every reference {@code null}, but hand it to {@code sink} first, so that it can be
+   * {@link ToplevelReference#load() loaded} later if it turns out to be needed.
+   */
+  static ReferencePolicy lazy(Consumer<? super ToplevelReference<?>> sink) {
+    return reference -> {
+      sink.accept(reference);
+      return false;
+    };
+  }
+  
+  /**
+   * Decide whether to load the object referred to by {@code reference} right away. If not, the reference is left
+   * {@code null}.
+   */
+  boolean loadNow(ToplevelReference<?> reference);
+  
+  /**
+   * Decide whether to load a non-toplevel object which is shared with (and persisted inside) another toplevel
+   * element, which means loading that element as well. If not, the reference is left {@code null}. Defaults to
+   * {@code false}.
+   */
+  default boolean loadSharedObjects() {
+    return false;
+  }
+  
+}
@@ -1,21 +1,114 @@
 package ca.keal.persistence;
 
-import org.objenesis.Objenesis;
-import org.objenesis.ObjenesisStd;
 import org.w3c.dom.Document;
 
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * Encapsulates all state that is global to a single call to {@link XmlPersistor#fromXml(Document)}. Currently, this
- * includes the {@link ToplevelList}, the {@link RegenToplevelRegistry}, and an {@link Objenesis} instance.
+ * includes the {@link ToplevelList}, the {@link RegenToplevelRegistry}, the {@link TemplateElement}s, the shared
+ * non-toplevel objects regenerated so far, and the references which have been deferred until the objects they refer to
+ * are created (see {@link PersistCreator.CyclePolicy#DEFER}). (Per-class state, such as how to instantiate each class,
+ * is kept in {@link PersistableModel}s instead, since it outlives any one regeneration.)
  * @see PersistingState
  */
 class RegenState {
   
   private final ToplevelList toplevelList = new ToplevelList();
-  private final RegenToplevelRegistry toplevelRegistry = new RegenToplevelRegistry();
+  private final RegenToplevelRegistry toplevelRegistry;
+  
+  /** Where to get toplevel elements missing from the toplevel list, or {@code null} if they are errors. */
+  private ToplevelSource toplevelSource = null;
+  
+  /** The store being loaded from, on which {@link ToplevelHandle}s are regenerated, or {@code null} if none is. */
+  private ToplevelStore toplevelStore = null;
+  
+  /** The directory in which to spill large values, or {@code null} for the default temporary directory. */
+  private Path spillDirectory = null;
+  
+  /** Which fields to regenerate. */
+  private Projection projection = Projection.ALL;
+  
+  /** The cache of shareable toplevel objects to consult before regenerating them, or {@code null} if there is none. */
+  private ToplevelCache toplevelCache = null;
+  
+  /** Where to report what is regenerated. */
+  private PersistenceMetrics metrics = PersistenceMetrics.NONE;
+  
+  /** What to tell as toplevel objects are regenerated. */
+  private PersistenceTracer tracer = PersistenceTracer.NONE;
+  
+  /** Where to report anything suspicious found as objects are regenerated. */
+  private Diagnostics diagnostics = Diagnostics.SHARED;
+  
+  /** The templates of deduplicated subtrees, by template ID. */
+  private final Map<Integer, TemplateElement> templates = new HashMap<>();
+  
+  /** The non-toplevel objects regenerated from each shared {@link ParentElement}, by shared ID. */
+  private final Map<Integer, Object> sharedObjects = new HashMap<>();
+  
+  /** The cycle policies of the shared objects whose @{@link PersistCreator}s are collecting their arguments. */
+  private final Map<Integer, PersistCreator.CyclePolicy> pendingSharedObjects = new HashMap<>();
   
-  // stored here to improve performance using objenesis' cache
-  private final Objenesis objenesis = new ObjenesisStd();
+  /**
+   * The shared {@link ParentElement}s in the toplevel list, by shared ID. Only built if a {@link BackReferenceElement}
+   * is regenerated before the element it refers to, which the order of persisting makes rare.
+   */
+  private Map<Integer, ParentElement> sharedElements = null;
+  
+  /**
+   * The {@link ElementArena}s holding the descendants of the {@link ArenaToplevelElement}s in the toplevel list, which
+   * index their own shared elements; built along with {@link #sharedElements}.
+   */
+  private Set<ElementArena> sharedArenas = null;
+  
+  /** The number of toplevel elements indexed in {@link #sharedElements}. */
+  private int sharedElementsIndexed = -1;
+  
+  /**
+   * The object whose reference was just deferred, if it hasn't been taken yet: the {@link ItemID} of a toplevel
+   * object, or the shared ID of a non-toplevel one.
+   */
+  private Object deferredReference = null;
+  
+  /** The fields waiting for each deferred object to be created, keyed as {@link #deferredReference} is. */
+  private final Map<Object, List<DeferredField>> deferredFields = new HashMap<>();
+  
+  /** The existing root object being regenerated into, or {@code null} if a new graph is being regenerated. */
+  private Object reusableRoot = null;
+  
+  /** The ID of the root toplevel element, into which {@link #reusableRoot} is regenerated. */
+  private ItemID reusableRootId = null;
+  
+  /** The existing non-toplevel objects which have been reused so far, each of which may only be reused once. */
+  private final Set<Object> reused = Collections.newSetFromMap(new IdentityHashMap<>());
+  
+  /** The existing object offered to be reused by the next regeneration of a non-toplevel object, if any. */
+  private Object offeredReusable = null;
+  
+  RegenState() {
+    this(new RegenToplevelRegistry());
+  }
+  
+  /**
+   * Create a {@link RegenState} whose toplevel objects are registered in {@code toplevelRegistry}, which may already
+   * hold objects regenerated before, so that references to them resolve to those objects.
+   */
+  RegenState(RegenToplevelRegistry toplevelRegistry) {
+    this.toplevelRegistry = toplevelRegistry;
+  }
   
   public ToplevelList getToplevelList() {
     return toplevelList;
@@ -25,8 +118,361 @@ class RegenState {
     return toplevelRegistry;
   }
   
-  public Objenesis getObjenesis() {
-    return objenesis;
+  /**
+   * @return Where to get toplevel elements which are missing from the toplevel list, or {@code null} if a reference to
+   *  one is an error.
+   */
+  ToplevelSource getToplevelSource() {
+    return toplevelSource;
+  }
+  
+  /**
+   * Set where to get toplevel elements which are missing from the toplevel list, or {@code null} if a reference to one
+   * is an error (the default).
+   */
+  void setToplevelSource(ToplevelSource toplevelSource) {
+    this.toplevelSource = toplevelSource;
+  }
+  
+  /**
+   * @return The store being loaded from, on which {@link ToplevelHandle}s are regenerated, or {@code null} if there is
+   *  none, in which case they can't be.
+   */
+  ToplevelStore getToplevelStore() {
+    return toplevelStore;
+  }
+  
+  /**
+   * Set the store being loaded from, on which {@link ToplevelHandle}s are regenerated, or {@code null} if there is none
+   * (the default).
+   */
+  void setToplevelStore(ToplevelStore toplevelStore) {
+    this.toplevelStore = toplevelStore;
+  }
+  
+  /**
+   * @return Which fields to regenerate.
+   */
+  Projection getProjection() {
+    return projection;
+  }
+  
+  /**
+   * Set which fields to regenerate; defaults to {@link Projection#ALL}.
+   */
+  void setProjection(Projection projection) {
+    this.projection = projection;
+  }
+  
+  /**
+   * @return The cache of shareable toplevel objects to consult before regenerating them, or {@code null} if there is
+   *  none.
+   */
+  ToplevelCache getToplevelCache() {
+    return toplevelCache;
+  }
+  
+  /**
+   * Set the cache of shareable toplevel objects to consult before regenerating them, or {@code null} for none (the
+   * default).
+   */
+  void setToplevelCache(ToplevelCache toplevelCache) {
+    this.toplevelCache = toplevelCache;
+  }
+  
+  /**
+   * @return Where to report what is regenerated.
+   */
+  PersistenceMetrics getMetrics() {
+    return metrics;
+  }
+  
+  /**
+   * Set where to report what is regenerated; defaults to {@link PersistenceMetrics#NONE}.
+   */
+  void setMetrics(PersistenceMetrics metrics) {
+    this.metrics = metrics;
+  }
+  
+  /**
+   * @return What to tell as toplevel objects are regenerated.
+   */
+  PersistenceTracer getTracer() {
+    return tracer;
+  }
+  
+  /**
+   * Set what to tell as toplevel objects are regenerated; defaults to {@link PersistenceTracer#NONE}.
+   */
+  void setTracer(PersistenceTracer tracer) {
+    this.tracer = tracer;
+  }
+  
+  /**
+   * @return Where to report anything suspicious found as objects are regenerated.
+   */
+  Diagnostics getDiagnostics() {
+    return diagnostics;
+  }
+  
+  /**
+   * Set where to report anything suspicious found as objects are regenerated, including by the toplevel list and
+   * registry.
+   */
+  void setDiagnostics(Diagnostics diagnostics) {
+    this.diagnostics = diagnostics;
+    toplevelList.setDiagnostics(diagnostics);
+    toplevelRegistry.setDiagnostics(diagnostics);
+  }
+  
+  /**
+   * Set the directory in which to spill large values, or {@code null} for the default temporary directory (the
+   * default).
+   */
+  void setSpillDirectory(Path spillDirectory) {
+    this.spillDirectory = spillDirectory;
+  }
+  
+  /**
+   * Create a new, empty file to which to spill a large value. The file is left for the value to delete when it is
+   * closed.
+   * @throws IOException If the file can't be created.
+   */
+  Path createSpillFile() throws IOException {
+    return spillDirectory == null ? Files.createTempFile("persisted-", ".spill")
+        : Files.createTempFile(spillDirectory, "persisted-", ".spill");
+  }
+  
+  /**
+   * Add a template of deduplicated subtrees, replacing any with the same template ID.
+   */
+  void putTemplate(TemplateElement template) {
+    templates.put(template.getTemplateId(), template);
+  }
+  
+  /**
+   * @return The template with the given template ID, or {@code null} if there is none.
+   */
+  TemplateElement getTemplate(int templateId) {
+    return templates.get(templateId);
+  }
+  
+  /**
+   * @return The object regenerated from the shared {@link ParentElement} with the given shared ID, or {@code null} if
+   *  it hasn't been regenerated (or is still being created).
+   */
+  Object getSharedObject(int sharedId) {
+    return sharedObjects.get(sharedId);
+  }
+  
+  /**
+   * Register {@code obj} as regenerated from the shared {@link ParentElement} with the given shared ID.
+   */
+  void putSharedObject(int sharedId, Object obj) {
+    pendingSharedObjects.remove(sharedId);
+    sharedObjects.put(sharedId, obj);
+  }
+  
+  /**
+   * Mark the shared object with the given shared ID as pending while its @{@link PersistCreator}, which has the given
+   * cycle policy, collects its arguments. The object must be {@link #putSharedObject put} once it is created.
+   */
+  void putPendingSharedObject(int sharedId, PersistCreator.CyclePolicy cycles) {
+    pendingSharedObjects.put(sharedId, cycles);
+  }
+  
+  /**
+   * @return The cycle policy of the pending shared object with the given shared ID, or {@code null} if it isn't
+   *  pending.
+   */
+  PersistCreator.CyclePolicy getPendingSharedPolicy(int sharedId) {
+    return pendingSharedObjects.get(sharedId);
+  }
+  
+  /**
+   * @return The shared {@link ParentElement} with the given shared ID anywhere in the toplevel list (or fetched from
+   *  the {@link ToplevelSource}, if there is one), or {@code null} if there is none.
+   * @throws RegenerationException If the {@link ToplevelSource} fails.
+   */
+  ParentElement getSharedElement(int sharedId) throws RegenerationException {
+    ParentElement shared = findSharedElement(sharedId);
+    if (shared == null && toplevelList.getAsCollection().size() != sharedElementsIndexed) {
+      // (Re)build the index, since toplevel elements may have been added since it was built
+      sharedElements = new HashMap<>();
+      sharedArenas = new HashSet<>();
+      for (ToplevelElement toplevel : toplevelList.getAsCollection()) {
+        indexSharedElements(toplevel);
+      }
+      sharedElementsIndexed = toplevelList.getAsCollection().size();
+      shared = findSharedElement(sharedId);
+    }
+    if (shared == null && toplevelSource != null) {
+      ToplevelElement container = toplevelSource.fetchSharedContainer(sharedId);
+      if (container != null) {
+        toplevelList.addElement(container);
+        indexSharedElements(container);
+        sharedElementsIndexed++;
+        shared = findSharedElement(sharedId);
+      }
+    }
+    return shared;
+  }
+  
+  /**
+   * @return The shared element with the given shared ID in the index, made anew from its arena if it's in one, or
+   *  {@code null} if it isn't indexed.
+   */
+  private ParentElement findSharedElement(int sharedId) {
+    if (sharedElements == null) {
+      return null;
+    }
+    ParentElement shared = sharedElements.get(sharedId);
+    for (Iterator<ElementArena> arenas = sharedArenas.iterator(); shared == null && arenas.hasNext(); ) {
+      shared = arenas.next().sharedElement(sharedId);
+    }
+    return shared;
+  }
+  
+  /**
+   * Index the shared elements in {@code toplevel}. Those of an {@link ArenaToplevelElement} are already indexed by its
+   * arena, so its children aren't made into objects just to be indexed, which would hold every subtree in memory.
+   */
+  private void indexSharedElements(ToplevelElement toplevel) {
+    ElementArena arena = toplevel instanceof ArenaToplevelElement ? ((ArenaToplevelElement) toplevel).getArena() : null;
+    if (arena != null) {
+      sharedArenas.add(arena);
+    } else {
+      indexSharedChildren(toplevel);
+    }
+  }
+  
+  private void indexSharedChildren(ParentElement parent) {
+    for (PersistedElement child : parent.getChildren()) {
+      if (child instanceof ParentElement) {
+        ParentElement childParent = (ParentElement) child;
+        if (childParent.getSharedId() != ParentElement.NOT_SHARED) {
+          sharedElements.put(childParent.getSharedId(), childParent);
+        }
+        indexSharedChildren(childParent);
+      }
+    }
+  }
+  
+  /**
+   * Regenerate into the existing object graph of {@code root} where possible, starting with {@code root} itself, which
+   * is reused for the root toplevel element {@code rootId}. Below the root, the current value of each field of a
+   * reused object is offered to be reused for whatever is regenerated into the field.
+   */
+  void reuseGraph(Object root, ItemID rootId) {
+    reusableRoot = root;
+    reusableRootId = rootId;
+  }
+  
+  /**
+   * @return Whether an existing object graph is being regenerated into.
+   */
+  boolean isReusing() {
+    return reusableRoot != null;
+  }
+  
+  /**
+   * Offer {@code existing}, the current value of the field about to be regenerated, to be reused by that regeneration;
+   * or withdraw the offer if {@code existing} is {@code null}.
+   */
+  void offerReusable(Object existing) {
+    offeredReusable = existing;
+  }
+  
+  /**
+   * @return The object offered by {@link #offerReusable(Object)}, or {@code null} if there is none. Clears the offer,
+   *  so that it is only ever taken by the regeneration it was made for.
+   */
+  Object takeOffered() {
+    Object offered = offeredReusable;
+    offeredReusable = null;
+    return offered;
+  }
+  
+  /**
+   * @return The existing object to reuse for the toplevel element of class {@code model} with the given tag and ID:
+   *  the root being regenerated into if this is the root element, or else {@code offered} if it is of exactly the
+   *  modelled class and has the same ID; or {@code null} if neither can be reused. Each toplevel element is only
+   *  regenerated once, and a reused object takes on the element's ID, so these are never reused twice.
+   */
+  <T> T claimToplevel(PersistableModel<T> model, String tag, String id, Object offered) {
+    Class<T> cls = model.getModelledClass();
+    if (reusableRootId != null && reusableRootId.getName().equals(tag) && reusableRootId.getId().equals(id)) {
+      return reusableRoot.getClass() == cls ? cls.cast(reusableRoot) : null;
+    }
+    if (offered == null || offered.getClass() != cls || !model.hasId(cls.cast(offered), id)) {
+      return null;
+    }
+    return cls.cast(offered);
+  }
+  
+  /**
+   * Mark the non-toplevel object {@code existing} as reused and return it, if it is of exactly class {@code cls} and
+   * not reused already (it may have been shared between fields in the existing graph); otherwise, return {@code null}.
+   */
+  <T> T claim(Class<T> cls, Object existing) {
+    if (existing == null || existing.getClass() != cls || !reused.add(existing)) {
+      return null;
+    }
+    return cls.cast(existing);
+  }
+  
+  /**
+   * Note that the reference just regenerated (as {@code null}) is really a reference to an object which is still being
+   * created: the toplevel object with the given {@link ItemID}, or the shared object with the given shared ID. Whoever
+   * asked for the reference must then take it with {@link #takeDeferredReference()}.
+   */
+  void deferReference(Object reference) {
+    deferredReference = reference;
+  }
+  
+  /**
+   * @return The object whose reference was deferred by the last regeneration, or {@code null} if it wasn't. Clears the
+   *  deferred reference.
+   */
+  Object takeDeferredReference() {
+    Object deferred = deferredReference;
+    deferredReference = null;
+    return deferred;
+  }
+  
+  /** Set {@code field} in {@code obj} to the object identified by {@code reference} once it is created. */
+  void deferField(Object reference, Object obj, Field field) {
+    deferredFields.computeIfAbsent(reference, ref -> new ArrayList<>()).add(new DeferredField(obj, field));
+  }
+  
+  /**
+   * Set every field waiting for the object identified by {@code reference}, which has now been created.
+   * @throws RegenerationException If a field cannot be set.
+   */
+  void resolveDeferredFields(Object reference, Object created) throws RegenerationException {
+    List<DeferredField> waiting = deferredFields.remove(reference);
+    if (waiting == null) return;
+    for (DeferredField deferred : waiting) {
+      try {
+        deferred.field.set(deferred.obj, created);
+      } catch (IllegalAccessException e) {
+        throw new RegenerationException("Could not access field '" + deferred.field.getName() + "' in '"
+            + deferred.field.getDeclaringClass().getCanonicalName() + "' to regenerate it.", e);
+      }
+    }
+  }
+  
+  /** A field of an object which is waiting for a toplevel object to be created. */
+  private static final class DeferredField {
+    
+    private final Object obj;
+    private final Field field;
+    
+    private DeferredField(Object obj, Field field) {
+      this.obj = obj;
+      this.field = field;
+    }
+    
   }
   
 }
@@ -1,46 +1,98 @@
 package ca.keal.persistence;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
- * A simple shell around a map for registering regenerated objects corresponding to {@link ToplevelElement}s with
- * given names and IDs. Global to each call of {@link XmlPersistor#fromXml}.
+ * A simple shell around a {@link ToplevelIndex} for registering regenerated objects corresponding to
+ * {@link ToplevelElement}s with given names and IDs. Global to each call of {@link XmlPersistor#fromXml}.
+ * 
+ * A name and ID may also be marked as pending while the @{@link PersistCreator} of its object is collecting its
+ * arguments, so that references to it in the meantime can be told apart from references to objects not yet
+ * regenerated.
  */
 class RegenToplevelRegistry {
   
-  private final Map<ItemID, Object> idsToObjs = new HashMap<>();
+  private final ToplevelIndex<Object> idsToObjs = new ToplevelIndex<>();
+  
+  /** Where to report duplicate registrations. */
+  private Diagnostics diagnostics = Diagnostics.SHARED;
+  
+  /**
+   * Set where to report objects registered under the same name and ID as an earlier one.
+   */
+  void setDiagnostics(Diagnostics diagnostics) {
+    this.diagnostics = diagnostics;
+  }
   
   /**
    * @return Whether the registry contains an object with the specified name and ID.
    */
   boolean contains(String name, String id) {
-    return idsToObjs.containsKey(new ItemID(name, id));
+    Object obj = idsToObjs.get(name, id);
+    return obj != null && !(obj instanceof Pending);
   }
   
   /**
-   * Registers {@code obj} under the given name and ID. Will emit a warning if the name and ID are a duplicate.
+   * Registers {@code obj} under the given name and ID. Will report a diagnostic if the name and ID are a duplicate (other
+   * than of a pending object, which {@code obj} then replaces).
    * @throws NullPointerException If any parameter is null.
    */
   <T> void register(String name, String id, T obj) {
     if (obj == null) {
       throw new NullPointerException("Cannot register a null object");
     }
-    ItemID itemID = new ItemID(name, id);
-    if (idsToObjs.containsKey(itemID)) {
-      System.err.println("Warning: registering duplicate object under itemID: " + itemID);
+    Object previous = idsToObjs.put(name, id, obj);
+    if (previous != null && !(previous instanceof Pending)) {
+      diagnostics.report(Diagnostic.Kind.DUPLICATE_REGISTRATION, null, name, id, null);
     }
-    idsToObjs.put(itemID, obj);
   }
   
   /**
-   * @return The object registered under the given name and ID.
+   * Mark the given name and ID as pending: its object's @{@link PersistCreator}, which has the given cycle policy, is
+   * collecting its arguments. The object must be {@link #register registered} once it is created.
+   * @throws NullPointerException If any parameter is null.
+   */
+  void registerPending(String name, String id, PersistCreator.CyclePolicy cycles) {
+    idsToObjs.put(name, id, cycles == PersistCreator.CyclePolicy.DEFER ? Pending.DEFER : Pending.FAIL);
+  }
+  
+  /**
+   * @return The cycle policy of the pending object with the given name and ID, or {@code null} if it isn't pending.
+   */
+  PersistCreator.CyclePolicy getPendingPolicy(String name, String id) {
+    Object obj = idsToObjs.get(name, id);
+    return obj instanceof Pending ? ((Pending) obj).cycles : null;
+  }
+  
+  /**
+   * @return The object registered under the given name and ID, or {@code null} if there is none (or it is pending).
    * @param <T> The type of the object.
    * @throws ClassCastException If the object is not of the parameterized type.
    */
   @SuppressWarnings("unchecked")
   <T> T get(String name, String id) {
-    return (T) idsToObjs.get(new ItemID(name, id));
+    Object obj = idsToObjs.get(name, id);
+    return obj instanceof Pending ? null : (T) obj;
+  }
+  
+  /**
+   * Unregister the object registered under the given name and ID, if any.
+   * @throws NullPointerException If either parameter is null.
+   */
+  void remove(String name, String id) {
+    idsToObjs.remove(name, id);
+  }
+  
+  /** Stands in for an object whose creator is collecting its arguments. */
+  private static final class Pending {
+    
+    static final Pending FAIL = new Pending(PersistCreator.CyclePolicy.FAIL);
+    static final Pending DEFER = new Pending(PersistCreator.CyclePolicy.DEFER);
+    
+    private final PersistCreator.CyclePolicy cycles;
+    
+    private Pending(PersistCreator.CyclePolicy cycles) {
+      this.cycles = cycles;
+    }
+    
   }
   
 }
@@ -0,0 +1,207 @@
+package ca.keal.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link PersistingState} which writes each toplevel element out to a temporary file as soon as it is finished, and
+ * lets go of its children, so that the elements of a large graph never all exist at once. Only the empty toplevel
+ * elements stay in the {@link ToplevelList}, holding their places in the document; {@link #writeToplevels} then copies
+ * each one's children back out of the file.
+ * 
+ * An embedded object in a toplevel element that has already been written out may still be referred to from another
+ * toplevel element, making its element shared after the fact. So the place in the file of each such element's start
+ * tag is kept (instead of the element), and its {@code shared} attribute is inserted there as it is copied out.
+ * @see XmlPersistor#setSpillToplevels(boolean)
+ */
+final class SpillingPersistingState extends PersistingState implements Closeable {
+  
+  /** An embedded element which has been written out: where its tag name ends in the file, and its shared ID. */
+  private static final class Spilled {
+    private final long position;
+    private int sharedId;
+    private Spilled(long position, int sharedId) {
+      this.position = position;
+      this.sharedId = sharedId;
+    }
+  }
+  
+  private final FileChannel file;
+  private final XmlChannelWriter spill;
+  
+  /** The range of the file holding the children of each toplevel element written out: {start, end}. */
+  private final Map<ToplevelElement, long[]> segments = new IdentityHashMap<>();
+  
+  /** The embedded objects whose elements have been written out, and where. */
+  private final Map<Object, Spilled> spilled = new IdentityHashMap<>();
+  
+  /** The written-out elements which were shared after they were written. */
+  private final List<Spilled> lateShared = new ArrayList<>();
+  
+  /**
+   * The embedded objects, and their elements, persisted in the toplevel elements not yet finished, in the order they
+   * were persisted. Since toplevel elements are finished innermost first, those of the element being finished are
+   * always at the end.
+   */
+  private final List<Object> openObjects = new ArrayList<>();
+  private final List<ParentElement> openElements = new ArrayList<>();
+  
+  /**
+   * Create a {@link SpillingPersistingState} which writes to a new temporary file in {@code directory}, or in the
+   * default temporary-file directory if it is {@code null}. The file is deleted when the state is closed.
+   * @throws PersistenceException If the file can't be created.
+   */
+  SpillingPersistingState(Path directory) {
+    try {
+      Path path = directory == null ? Files.createTempFile("persisting", ".xml")
+          : Files.createTempFile(directory, "persisting", ".xml");
+      file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+          StandardOpenOption.DELETE_ON_CLOSE);
+    } catch (IOException e) {
+      throw new PersistenceException("Could not create a file to spill the persisted elements to.", e);
+    }
+    spill = new XmlChannelWriter(file, false);
+  }
+  
+  @Override
+  public void putEmbeddedElement(Object obj, ParentElement element) {
+    super.putEmbeddedElement(obj, element);
+    openObjects.add(obj);
+    openElements.add(element);
+  }
+  
+  @Override
+  public int shareEmbedded(Object obj) {
+    Spilled element = spilled.get(obj);
+    if (element == null) {
+      return super.shareEmbedded(obj);
+    }
+    if (element.sharedId == ParentElement.NOT_SHARED) {
+      element.sharedId = newSharedId();
+      lateShared.add(element);
+    }
+    return element.sharedId;
+  }
+  
+  /**
+   * Write the children of {@code element} out to the file, and let go of them.
+   * @throws PersistenceException If they can't be written.
+   */
+  @Override
+  void toplevelFinished(ToplevelElement element) {
+    Map<ParentElement, Long> positions = new IdentityHashMap<>();
+    long start = spill.position();
+    try {
+      for (PersistedElement child : element.getChildren()) {
+        writeChild(child, positions);
+      }
+    } catch (IOException e) {
+      throw new PersistenceException("Could not spill the persisted elements.", e);
+    }
+    segments.put(element, new long[] {start, spill.position()});
+    
+    for (int i = openElements.size() - 1; i >= 0 && positions.containsKey(openElements.get(i)); i--) {
+      ParentElement embedded = openElements.remove(i);
+      Object obj = openObjects.remove(i);
+      removeEmbeddedElement(obj);
+      spilled.put(obj, new Spilled(positions.get(embedded), embedded.getSharedId()));
+    }
+    element.clearChildren();
+  }
+  
+  /** Write {@code child} to the file, noting where the tag name of each embedded element in it ends. */
+  private void writeChild(PersistedElement child, Map<ParentElement, Long> positions) throws IOException {
+    if (child.getClass() != ParentElement.class) {
+      child.write(spill);
+      return;
+    }
+    ParentElement parent = (ParentElement) child;
+    spill.startElement(parent.getTag());
+    positions.put(parent, spill.position());
+    parent.writeAttributes(spill);
+    for (PersistedElement grandchild : parent.getChildren()) {
+      writeChild(grandchild, positions);
+    }
+    spill.endElement(parent.getTag());
+  }
+  
+  /**
+   * Write every toplevel element in the {@link ToplevelList} to {@code out}, in order, copying the children of those
+   * written out back from the file.
+   */
+  void writeToplevels(XmlChannelWriter out) throws IOException {
+    spill.close();
+    
+    lateShared.sort((a, b) -> Long.compare(a.position, b.position));
+    long[] patchPositions = new long[lateShared.size()];
+    for (int i = 0; i < patchPositions.length; i++) {
+      patchPositions[i] = lateShared.get(i).position;
+    }
+    
+    ByteBuffer buffer = DirectBufferPool.acquire();
+    try {
+      for (ToplevelElement element : getToplevelList().getAsCollection()) {
+        long[] segment = segments.get(element);
+        if (segment == null) {
+          element.write(out);
+          continue;
+        }
+        out.startElement(element.getTag());
+        element.writeAttributes(out);
+        
+        long position = segment[0];
+        int patch = Arrays.binarySearch(patchPositions, position);
+        for (patch = patch < 0 ? -patch - 1 : patch; patch < patchPositions.length
+            && patchPositions[patch] < segment[1]; patch++) {
+          copy(position, patchPositions[patch], buffer, out);
+          position = patchPositions[patch];
+          out.copy(ByteBuffer.wrap((" shared=\"" + lateShared.get(patch).sharedId + '"')
+              .getBytes(StandardCharsets.US_ASCII)));
+        }
+        copy(position, segment[1], buffer, out);
+        out.endElement(element.getTag());
+      }
+    } finally {
+      DirectBufferPool.release(buffer);
+    }
+  }
+  
+  /** Copy the bytes of the file from {@code start} to {@code end} to {@code out}, through {@code buffer}. */
+  private void copy(long start, long end, ByteBuffer buffer, XmlChannelWriter out) throws IOException {
+    while (start < end) {
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), end - start));
+      int read = file.read(buffer, start);
+      if (read < 0) {
+        throw new IOException("The spilled elements were cut short.");
+      }
+      start += read;
+      buffer.flip();
+      out.copy(buffer);
+    }
+  }
+  
+  /**
+   * Delete the file.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      spill.close();
+    } finally {
+      file.close();
+    }
+  }
+  
+}
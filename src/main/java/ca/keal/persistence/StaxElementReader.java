@@ -0,0 +1,167 @@
+package ca.keal.persistence;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads {@link PersistedElement}s from an {@link XMLStreamReader}, one subtree at a time, following the same rules as
+ * the {@code fromXmlElement()} methods of each kind of element do for DOM elements. Used where a whole document is
+ * too big to load, i.e. by {@link ToplevelCursor}.
+ */
+final class StaxElementReader {
+  
+  /** This class cannot be instantiated */
+  private StaxElementReader() {}
+  
+  /**
+   * Read the toplevel element whose start tag {@code reader} is positioned at, leaving it at the end tag.
+   * @throws RegenerationException If the element or one of its children is malformed.
+   */
+  static ToplevelElement readToplevel(XMLStreamReader reader) throws XMLStreamException, RegenerationException {
+    String id = reader.getAttributeValue(null, "id");
+    if (id == null) {
+      throw new RegenerationException("Tried to get ToplevelElement from its XML, but there is no `id` attribute!");
+    }
+    ToplevelElement toplevel = new ToplevelElement(reader.getLocalName(), id,
+        reader.getAttributeValue(null, "root") != null);
+    readChildren(reader, toplevel);
+    return toplevel;
+  }
+  
+  /**
+   * Read the template element whose start tag {@code reader} is positioned at, leaving it at the end tag.
+   * @throws RegenerationException If the element or one of its children is malformed.
+   */
+  static TemplateElement readTemplate(XMLStreamReader reader) throws XMLStreamException, RegenerationException {
+    if (reader.getAttributeCount() > 1) {
+      throw new RegenerationException("Tried to get TemplateElement from its XML, but its attributes are wrong!");
+    }
+    TemplateElement template = new TemplateElement(reader.getLocalName(),
+        ParentElement.parseIdAttribute(reader.getAttributeValue(null, "template")));
+    readChildren(reader, template);
+    return template;
+  }
+  
+  /** Skip the element whose start tag {@code reader} is positioned at, leaving it at the end tag. */
+  static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+  
+  /** Read every child element up to the end tag of the current element into {@code parent}, ignoring text. */
+  private static void readChildren(XMLStreamReader reader, ParentElement parent)
+      throws XMLStreamException, RegenerationException {
+    while (true) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        parent.addChild(readChild(reader));
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        return;
+      }
+    }
+  }
+  
+  /** Read the child element whose start tag {@code reader} is positioned at, leaving it at the end tag. */
+  private static PersistedElement readChild(XMLStreamReader reader) throws XMLStreamException, RegenerationException {
+    String tag = reader.getLocalName();
+    int attributes = reader.getAttributeCount();
+    
+    if (reader.getAttributeValue(null, "null") != null) {
+      if (attributes > 1) {
+        throw new RegenerationException(
+            "Tried to get a NullElement from its XML element, but it has too many attributes!");
+      }
+      if (readText(reader, "NullElement").length() > 0) {
+        throw new RegenerationException("Tried to get a NullElement from its XML element, but it has text!");
+      }
+      return new NullElement(tag);
+    }
+    
+    String ref = reader.getAttributeValue(null, "ref");
+    if (ref != null) {
+      if (attributes > 1) {
+        throw new RegenerationException(
+            "Tried to get a BackReferenceElement from its XML element, but it has too many attributes!");
+      }
+      readText(reader, "BackReferenceElement");
+      return new BackReferenceElement(tag, ParentElement.parseIdAttribute(ref));
+    }
+    
+    String copyOf = reader.getAttributeValue(null, "copy-of");
+    if (copyOf != null) {
+      if (attributes > 1) {
+        throw new RegenerationException(
+            "Tried to get a CopyElement from its XML element, but it has too many attributes!");
+      }
+      readText(reader, "CopyElement");
+      return new CopyElement(tag, ParentElement.parseIdAttribute(copyOf));
+    }
+    
+    // Whether it's a ParentElement or a TextElement depends on whether it turns out to have children
+    String shared = reader.getAttributeValue(null, "shared");
+    StringBuilder text = new StringBuilder();
+    ParentElement parent = null;
+    while (true) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        if (parent == null) {
+          parent = new ParentElement(tag);
+        }
+        parent.addChild(readChild(reader));
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        break;
+      } else if (parent == null && isText(event)) {
+        text.append(reader.getText());
+      }
+    }
+    
+    if (parent == null && shared == null) {
+      if (attributes > 0) {
+        throw new RegenerationException("Tried to get a TextElement from its XML element, but it has attributes!");
+      }
+      return new TextElement(tag, text.toString());
+    }
+    if (attributes > (shared == null ? 0 : 1)) {
+      throw new RegenerationException("Tried to get a ParentElement from its XML element, but it has attributes!");
+    }
+    if (parent == null) {
+      parent = new ParentElement(tag);
+    }
+    if (shared != null) {
+      parent.setSharedId(ParentElement.parseIdAttribute(shared));
+    }
+    return parent;
+  }
+  
+  /**
+   * Read the text up to the end tag of the current element, which is a {@code kind} and must not have children.
+   * @throws RegenerationException If it has children.
+   */
+  private static String readText(XMLStreamReader reader, String kind) throws XMLStreamException, RegenerationException {
+    StringBuilder text = new StringBuilder();
+    while (true) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        throw new RegenerationException("Tried to get a " + kind + " from its XML element, but it has children!");
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        return text.toString();
+      } else if (isText(event)) {
+        text.append(reader.getText());
+      }
+    }
+  }
+  
+  private static boolean isText(int event) {
+    return event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+        || event == XMLStreamConstants.SPACE;
+  }
+  
+}
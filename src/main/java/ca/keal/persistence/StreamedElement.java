@@ -0,0 +1,116 @@
+package ca.keal.persistence;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+/**
+ * A {@link PersistedElement} containing the text of a {@link StreamedValue}, which is only read from the value's source
+ * when the element is written. {@link #write(XmlChannelWriter)} streams the text a chunk at a time, so it is never all
+ * in memory at once. It is regenerated from an ordinary {@link TextElement}.
+ */
+class StreamedElement extends PersistedElement {
+  
+  /** The number of chars of text written to the {@link XmlChannelWriter} at a time. */
+  private static final int CHUNK_SIZE = 8192;
+  
+  /** The value whose text this element contains. */
+  private final StreamedValue value;
+  
+  /**
+   * Create a new {@link StreamedElement}.
+   * @param tag The name of the tag of this XML element. This must be a valid XML tag name as determined by
+   *   {@link PersistenceUtil#isValidXmlTag(String)}.
+   * @param value The value whose text this element will contain.
+   * @throws PersistenceException If {@code tag} is not a valid XML tag name.
+   */
+  public StreamedElement(String tag, StreamedValue value) {
+    super(tag);
+    this.value = value;
+  }
+  
+  /**
+   * @return The value whose text this element contains.
+   */
+  StreamedValue getValue() {
+    return value;
+  }
+  
+  /**
+   * Create an XML element from this {@link StreamedElement}, containing all of the value's text, read now.
+   * @param doc The {@link Document} with which to create the element.
+   * @return An XML element representing this {@link StreamedElement}.
+   * @throws PersistenceException If the value can't be read.
+   */
+  @Override
+  public Element toXmlElement(Document doc) {
+    Element element = super.toXmlElement(doc);
+    StringWriter text = new StringWriter();
+    try {
+      value.writeXmlText(text);
+    } catch (IOException e) {
+      throw new PersistenceException("Could not read the value of <" + getTag() + ">.", e);
+    }
+    element.setTextContent(text.toString());
+    return element;
+  }
+  
+  @Override
+  protected void writeContents(XmlChannelWriter out) throws IOException {
+    try (ChunkWriter chunks = new ChunkWriter(out)) {
+      value.writeXmlText(chunks);
+    }
+  }
+  
+  /**
+   * Collects text into chunks of at most {@link #CHUNK_SIZE} chars and writes each as text to an
+   * {@link XmlChannelWriter}, never splitting a surrogate pair between chunks.
+   */
+  private static final class ChunkWriter extends Writer {
+    
+    private final XmlChannelWriter out;
+    private final char[] chunk = new char[CHUNK_SIZE];
+    private int length = 0;
+    
+    private ChunkWriter(XmlChannelWriter out) {
+      this.out = out;
+    }
+    
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      while (len > 0) {
+        int copied = Math.min(len, chunk.length - length);
+        System.arraycopy(cbuf, off, chunk, length, copied);
+        length += copied;
+        off += copied;
+        len -= copied;
+        if (length == chunk.length) {
+          // hold back a high surrogate until its low surrogate arrives
+          boolean split = Character.isHighSurrogate(chunk[length - 1]);
+          out.text(new String(chunk, 0, split ? length - 1 : length));
+          length = 0;
+          if (split) {
+            chunk[length++] = chunk[chunk.length - 1];
+          }
+        }
+      }
+    }
+    
+    @Override
+    public void flush() {}
+    
+    /** Write whatever text is left over. Doesn't close the {@link XmlChannelWriter}. */
+    @Override
+    public void close() throws IOException {
+      if (length > 0) {
+        out.text(new String(chunk, 0, length));
+        length = 0;
+      }
+    }
+    
+  }
+  
+}
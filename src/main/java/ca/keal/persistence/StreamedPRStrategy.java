@@ -0,0 +1,130 @@
+package ca.keal.persistence;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * A {@link PersistRegenStrategy} for {@link LargeText} and {@link LargeBytes}, which persists the value as a
+ * {@link StreamedElement} and regenerates it by spilling its text to a temporary file, chosen by
+ * {@link RegenState#createSpillFile()}, which backs the regenerated value and is deleted when it is closed.
+ * @param <T> The type of the value, {@link LargeText} or {@link LargeBytes}.
+ */
+class StreamedPRStrategy<T> extends PersistRegenStrategy<T> {
+  
+  /** Create a new {@link StreamedPRStrategy} persisting and regenerating the specified class. */
+  public StreamedPRStrategy(Class<T> cls) {
+    super(cls);
+  }
+  
+  /**
+   * @return A {@link StreamedElement} with the tag of the @{@link Persist} annotation's {@code value}, which reads
+   *  {@code toPersist} as it is written. The annotation's {@code cdata} is ignored.
+   * @see PersistRegenStrategy#persist(PersistingState, Persist, Object)
+   */
+  @Override
+  public PersistedElement persist(PersistingState state, Persist persistAnno, T toPersist) {
+    return new StreamedElement(persistAnno.value(), (StreamedValue) toPersist);
+  }
+  
+  @Override
+  @SuppressWarnings("unchecked")
+  public T regenerate(RegenState state, PersistedElement toRegen) throws RegenerationException {
+    if (!(toRegen instanceof TextElement)) {
+      throw new RegenerationException("Need a TextElement to regenerate a " + getPersistingClass().getSimpleName());
+    }
+    TextElement text = (TextElement) toRegen;
+    boolean bytes = getPersistingClass().equals(LargeBytes.class);
+    
+    Path file;
+    try {
+      file = state.createSpillFile();
+    } catch (IOException e) {
+      throw new RegenerationException("Could not spill <" + toRegen.getTag() + "> to a file.", e);
+    }
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+      if (bytes) {
+        try (OutputStream decoder = new Base64DecodingStream(out)) {
+          text.writeText(decoder);
+        }
+      } else {
+        text.writeText(out);
+      }
+    } catch (IOException e) {
+      deleteQuietly(file);
+      throw new RegenerationException("Could not spill <" + toRegen.getTag() + "> to a file.", e);
+    } catch (IllegalArgumentException e) {
+      deleteQuietly(file);
+      throw new RegenerationException("<" + toRegen.getTag() + "> is not valid base64.", e);
+    }
+    return (T) (bytes ? LargeBytes.spilled(file) : LargeText.spilled(file));
+  }
+  
+  /** Delete a spill file which won't back a value after all, ignoring any failure to do so. */
+  private static void deleteQuietly(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException ignored) {
+      // There's already an error to report
+    }
+  }
+  
+  /**
+   * Decodes the base64 written to it, ignoring whitespace, and writes the decoded bytes to another stream. The
+   * {@link Base64.Decoder#wrap(java.io.InputStream) decoders} in the JDK only decode as they are read from.
+   */
+  private static final class Base64DecodingStream extends OutputStream {
+    
+    private static final Base64.Decoder DECODER = Base64.getDecoder();
+    
+    private final OutputStream out;
+    
+    /** The base64 characters written but not yet decoded; a multiple of 4 long, so that it ends between quanta. */
+    private final byte[] encoded = new byte[8192];
+    private int length = 0;
+    
+    private final byte[] decoded = new byte[encoded.length / 4 * 3];
+    
+    private Base64DecodingStream(OutputStream out) {
+      this.out = out;
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+      if (b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+        return;
+      }
+      encoded[length++] = (byte) b;
+      if (length == encoded.length) {
+        decode(encoded);
+      }
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      for (int i = off; i < off + len; i++) {
+        write(b[i]);
+      }
+    }
+    
+    /** Decode whatever is left over. Doesn't close the stream written to. */
+    @Override
+    public void close() throws IOException {
+      if (length > 0) {
+        decode(Arrays.copyOf(encoded, length));
+      }
+    }
+    
+    /** Decode {@code quanta}, which must be {@link #encoded} or a copy of its start, and write the result out. */
+    private void decode(byte[] quanta) throws IOException {
+      out.write(decoded, 0, DECODER.decode(quanta, decoded));
+      length = 0;
+    }
+    
+  }
+  
+}
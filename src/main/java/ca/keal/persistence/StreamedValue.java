@@ -0,0 +1,19 @@
+package ca.keal.persistence;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A value too large to be held in memory comfortably, whose persisted text is streamed straight from its source when
+ * it is written rather than being built as a {@code String}. Implemented by {@link LargeText} and {@link LargeBytes}.
+ * @see StreamedElement
+ */
+interface StreamedValue {
+  
+  /**
+   * Write the text by which this value is persisted to {@code out}, unescaped, a chunk at a time.
+   * @throws IOException If the value's source can't be read, or {@code out} can't be written to.
+   */
+  void writeXmlText(Writer out) throws IOException;
+  
+}
@@ -0,0 +1,161 @@
+package ca.keal.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replaces embedded subtrees which appear more than once among a set of {@link ToplevelElement}s with
+ * {@link CopyElement}s of a single {@link TemplateElement} each. Subtrees are hash-consed bottom-up: each distinct
+ * {@link ParentElement} structure is interned once, keyed by its children's tags and contents, with each child subtree
+ * represented by its own interned shape, so comparing two subtrees never walks more than one level.
+ * 
+ * Subtrees containing {@link BackReferenceElement}s or shared {@link ParentElement}s are never deduplicated, since
+ * every copy is regenerated as a separate object, which would break the sharing. Empty subtrees are left alone too, as
+ * a copy of one would be no shorter.
+ * 
+ * Used by {@link XmlPersistor#toXml(Object)} when subtree deduplication is enabled.
+ * @see XmlPersistor#setDeduplicateSubtrees(boolean)
+ */
+final class SubtreeDeduplicator {
+  
+  /** Stands in for a {@link NullElement} child in a {@link Shape} key. */
+  private static final Object NULL_CHILD = new Object();
+  
+  /** The interned shapes. */
+  private final Map<Shape, Shape> shapes = new HashMap<>();
+  
+  /** The shape of each eligible {@link ParentElement}. */
+  private final Map<ParentElement, Shape> shapeOf = new IdentityHashMap<>();
+  
+  /** The templates created so far, in order of ID. */
+  private final List<TemplateElement> templates = new ArrayList<>();
+  
+  /**
+   * Deduplicate the embedded subtrees of {@code toplevels} in place.
+   * @return The templates which the {@link CopyElement}s now in {@code toplevels} refer to, in order of ID.
+   */
+  List<TemplateElement> deduplicate(Collection<ToplevelElement> toplevels) {
+    for (ToplevelElement toplevel : toplevels) {
+      for (PersistedElement child : toplevel.getChildren()) {
+        intern(child);
+      }
+    }
+    for (ToplevelElement toplevel : toplevels) {
+      replaceRepeats(toplevel);
+    }
+    return templates;
+  }
+  
+  /**
+   * Intern the shape of {@code element} and those of all its descendants, counting one more use of each.
+   * @return The key representing {@code element} in its parent's shape, or {@code null} if its parent can't be
+   *  deduplicated because of it.
+   */
+  private Object intern(PersistedElement element) {
+    if (element instanceof TextElement) {
+      return ((TextElement) element).getText();
+    } else if (element instanceof NullElement) {
+      return NULL_CHILD;
+    } else if (!(element instanceof ParentElement)) {
+      return null; // a BackReferenceElement, which refers elsewhere, or a StreamedElement, whose text isn't in memory
+    }
+    
+    ParentElement parent = (ParentElement) element;
+    List<PersistedElement> children = parent.getChildren();
+    Object[] key = new Object[children.size() * 2];
+    boolean eligible = parent.getSharedId() == ParentElement.NOT_SHARED;
+    for (int i = 0; i < children.size(); i++) {
+      PersistedElement child = children.get(i);
+      Object childKey = intern(child); // intern every child, even if this one is ineligible, to reach its descendants
+      eligible &= childKey != null;
+      key[2 * i] = child.getTag();
+      key[2 * i + 1] = childKey;
+    }
+    if (!eligible) {
+      return null;
+    }
+    
+    Shape shape = new Shape(key);
+    Shape interned = shapes.get(shape);
+    if (interned == null) {
+      shapes.put(shape, shape);
+      interned = shape;
+    }
+    interned.uses++;
+    shapeOf.put(parent, interned);
+    return interned;
+  }
+  
+  /** Replace each repeated subtree among the descendants of {@code parent} with a copy of its template. */
+  private void replaceRepeats(ParentElement parent) {
+    for (PersistedElement child : parent.getChildren()) {
+      if (!(child instanceof ParentElement)) continue;
+      ParentElement childParent = (ParentElement) child;
+      Shape shape = shapeOf.get(childParent);
+      
+      if (shape == null || shape.uses < 2 || childParent.getChildren().isEmpty()) {
+        replaceRepeats(childParent);
+      } else {
+        if (shape.template == null) {
+          shape.template = new TemplateElement(childParent.getTag(), templates.size());
+          templates.add(shape.template);
+          for (PersistedElement grandchild : childParent.getChildren()) {
+            shape.template.addChild(grandchild);
+          }
+          replaceRepeats(shape.template);
+        }
+        parent.replaceChild(childParent, new CopyElement(childParent.getTag(), shape.template.getTemplateId()));
+      }
+    }
+  }
+  
+  /**
+   * The interned shape of a {@link ParentElement}: its children's tags, each followed by the child's text, a marker
+   * for {@code null}, or the child's own interned {@link Shape}. Interned shapes are compared by identity.
+   */
+  private static final class Shape {
+    
+    private final Object[] key;
+    private final int hash;
+    
+    /** The number of times this shape has appeared. */
+    private int uses = 0;
+    
+    /** The template for this shape, once it has been created. */
+    private TemplateElement template = null;
+    
+    private Shape(Object[] key) {
+      this.key = key;
+      int hash = 1;
+      for (Object part : key) {
+        hash = 31 * hash + (part instanceof Shape ? System.identityHashCode(part) : part.hashCode());
+      }
+      this.hash = hash;
+    }
+    
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Shape)) return false;
+      Shape other = (Shape) obj;
+      if (hash != other.hash || key.length != other.key.length) return false;
+      for (int i = 0; i < key.length; i++) {
+        // Child shapes are interned and the marker is unique, so identity is enough for everything but strings
+        if (key[i] != other.key[i] && !(key[i] instanceof String && key[i].equals(other.key[i]))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    
+  }
+  
+}
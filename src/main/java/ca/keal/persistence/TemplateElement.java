@@ -0,0 +1,72 @@
+package ca.keal.persistence;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.IOException;
+
+/**
+ * A {@link ParentElement} holding a subtree which appears more than once in a document, written once alongside the
+ * {@link ToplevelElement}s and referred to by {@link CopyElement}s wherever it appears. It has the attribute
+ * {@code template}, which contains its ID. Only written when subtree deduplication is enabled.
+ * @see XmlPersistor#setDeduplicateSubtrees(boolean)
+ */
+class TemplateElement extends ParentElement {
+  
+  /** The ID of this template, by which {@link CopyElement}s refer to it. */
+  private final int templateId;
+  
+  /**
+   * Create a new {@link TemplateElement}.
+   * @param tag The name of the tag of this XML element. This must be a valid XML tag name as determined by
+   *  {@link PersistenceUtil#isValidXmlTag(String)}.
+   * @param templateId The ID of this template, by which {@link CopyElement}s refer to it.
+   * @throws PersistenceException If {@code tag} is not a valid XML tag name.
+   */
+  public TemplateElement(String tag, int templateId) {
+    super(tag);
+    this.templateId = templateId;
+  }
+  
+  /**
+   * @return The ID of this template, by which {@link CopyElement}s refer to it.
+   */
+  public int getTemplateId() {
+    return templateId;
+  }
+  
+  /**
+   * Create an XML element from this {@link TemplateElement}. The created {@link Element} is as for a
+   * {@link ParentElement}, with the attribute {@code template} containing this template's ID.
+   * @param doc The {@link Document} with which to create the element.
+   * @return An XML element representing this {@link TemplateElement}.
+   */
+  @Override
+  public Element toXmlElement(Document doc) {
+    Element element = super.toXmlElement(doc);
+    element.setAttribute("template", Integer.toString(templateId));
+    return element;
+  }
+  
+  @Override
+  protected void writeAttributes(XmlChannelWriter out) throws IOException {
+    super.writeAttributes(out);
+    out.attribute("template", Integer.toString(templateId));
+  }
+  
+  /**
+   * Create a {@link TemplateElement} from a given XML element. The {@link TemplateElement} will have the same tag name
+   * and template ID as the element, and its child elements will be loaded in as well.
+   * @param element An XML element in a valid format. It must have a "template" attribute and no others.
+   * @return A {@link TemplateElement} representing the XML element.
+   * @throws RegenerationException If the XML element has improper attributes, or a child is bad.
+   */
+  public static TemplateElement fromXmlElement(Element element) throws RegenerationException {
+    if (!element.hasAttribute("template") || element.getAttributes().getLength() > 1) {
+      throw new RegenerationException("Tried to get TemplateElement from its XML, but its attributes are wrong!");
+    }
+    int templateId = parseIdAttribute(element.getAttribute("template"));
+    return ParentElement.fromXmlElement(element, tag -> new TemplateElement(tag, templateId));
+  }
+  
+}
@@ -3,6 +3,12 @@ package ca.keal.persistence;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
 /**
  * A {@link PersistedElement} which contains text. This will be used to store primitives and IDs of toplevel elements.
  */
@@ -11,6 +17,9 @@ class TextElement extends PersistedElement {
   /** The text contained in this element. */
   private final String text;
   
+  /** Whether the text is written in CDATA sections rather than escaped. */
+  private final boolean cdata;
+  
   /**
    * Create a new {@link TextElement}.
    * @param tag The name of the tag of this XML element. This must be a valid XML tag name as determined by
@@ -20,11 +29,38 @@ class TextElement extends PersistedElement {
    * @throws NullPointerException If {@code text} is {@code null}.
    */
   public TextElement(String tag, String text) {
+    this(tag, text, false);
+  }
+  
+  /**
+   * Create a new {@link TextElement}.
+   * @param tag The name of the tag of this XML element. This must be a valid XML tag name as determined by
+   *   {@link PersistenceUtil#isValidXmlTag(String)}.
+   * @param text The text that this {@link TextElement} will contain.
+   * @param cdata Whether to write the text in CDATA sections rather than escaping it.
+   * @throws PersistenceException If {@code tag} is not a valid XML tag name.
+   * @throws NullPointerException If {@code text} is {@code null}.
+   */
+  public TextElement(String tag, String text, boolean cdata) {
     super(tag);
     if (text == null) {
       throw new NullPointerException("A TextElement cannot have null text");
     }
     this.text = text;
+    this.cdata = cdata;
+  }
+  
+  /**
+   * Create a new {@link TextElement} whose text is supplied by overriding {@link #getText()}, for subclasses which work
+   * out the text lazily.
+   * @param tag The name of the tag of this XML element. This must be a valid XML tag name as determined by
+   *   {@link PersistenceUtil#isValidXmlTag(String)}.
+   * @throws PersistenceException If {@code tag} is not a valid XML tag name.
+   */
+  protected TextElement(String tag) {
+    super(tag);
+    this.text = null;
+    this.cdata = false;
   }
   
   /**
@@ -34,19 +70,72 @@ class TextElement extends PersistedElement {
     return text;
   }
   
+  /**
+   * Write the text contained in this element to {@code out} as UTF-8, a chunk at a time. Doesn't close {@code out}.
+   * @throws IOException If {@code out} can't be written to.
+   */
+  void writeText(OutputStream out) throws IOException {
+    String text = getText();
+    Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    for (int start = 0; start < text.length(); start += 8192) {
+      writer.write(text, start, Math.min(8192, text.length() - start)); // the encoder carries split surrogate pairs
+    }
+    writer.flush();
+  }
+  
+  /**
+   * @return Whether the text is written in CDATA sections rather than escaped.
+   */
+  public boolean isCdata() {
+    return cdata;
+  }
+  
   /**
    * Create an XML element from this {@link TextElement}. The {@link Element} will have this {@link TextElement}'s tag
-   * name and will contain its text.
+   * name and will contain its text, in CDATA sections if this element is CDATA.
    * @param doc The {@link Document} with which to create the element.
    * @return An XML element representing this {@link TextElement}.
    */
   @Override
   public Element toXmlElement(Document doc) {
     Element element = super.toXmlElement(doc);
-    element.setTextContent(text);
+    if (!cdata) {
+      element.setTextContent(getText());
+      return element;
+    }
+    
+    // A CDATA section can't contain "]]>" or a carriage return which survives parsing, so split around those
+    String text = getText();
+    int start = 0;
+    for (int i = 0; i < text.length(); i++) {
+      if (text.charAt(i) == '\r') {
+        appendCdata(doc, element, text, start, i);
+        element.appendChild(doc.createTextNode("\r"));
+        start = i + 1;
+      } else if (text.startsWith("]]>", i)) {
+        appendCdata(doc, element, text, start, i + 2);
+        start = i + 2;
+      }
+    }
+    appendCdata(doc, element, text, start, text.length());
     return element;
   }
   
+  private static void appendCdata(Document doc, Element element, String text, int start, int end) {
+    if (end > start) {
+      element.appendChild(doc.createCDATASection(text.substring(start, end)));
+    }
+  }
+  
+  @Override
+  protected void writeContents(XmlChannelWriter out) throws IOException {
+    if (cdata) {
+      out.cdata(getText());
+    } else {
+      out.text(getText());
+    }
+  }
+  
   /**
    * Create a {@link TextElement} from a given XML element. The {@link TextElement} will have the same tag name
    * and text content as the XML element.
@@ -0,0 +1,206 @@
+package ca.keal.persistence;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded cache of regenerated toplevel objects, shared between regenerations, so that objects defined identically
+ * in many documents (such as common definitions which every document includes) are only regenerated once. Only the
+ * objects of @{@link Persistable} classes with {@link Persistable#shareable()} set are cached, since the same object is
+ * returned to every regeneration which finds it, and these must never be changed.
+ * 
+ * Objects are cached by their class, ID and a 64-bit hash of the contents of their toplevel elements, so an object is
+ * only reused if its element is the same as that it was regenerated from. The hash isn't checked against the element
+ * itself, so two different elements with the same class, ID and hash would regenerate to the same object; with a 64-bit
+ * hash, this is very unlikely, but not impossible. Hashing reads the whole element, which is much cheaper than
+ * regenerating it, but means that the cache only pays for itself when objects are found in it fairly often. Elements
+ * which contain shared embedded objects aren't cached at all.
+ * 
+ * When the cache is full, the least recently used object is evicted. A {@link ToplevelCache} may be used by several
+ * {@link XmlPersistor}s and threads at once.
+ * @see XmlPersistor#setToplevelCache(ToplevelCache)
+ */
+public final class ToplevelCache {
+  
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+  
+  /** A marker for the start of a {@link ParentElement}'s children, after their number. */
+  private static final int PARENT = -1;
+  
+  /** A marker for a {@link NullElement}. */
+  private static final int NULL = -2;
+  
+  private final int maxSize;
+  
+  /** The cached objects, in order of access. */
+  private final Map<Key, Object> objects;
+  
+  private long hits = 0;
+  private long misses = 0;
+  
+  /**
+   * Create a new, empty {@link ToplevelCache}.
+   * @param maxSize The most objects to keep at once.
+   * @throws IllegalArgumentException If {@code maxSize} is not positive.
+   */
+  public ToplevelCache(int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("A ToplevelCache must be able to hold at least one object, not " + maxSize);
+    }
+    this.maxSize = maxSize;
+    this.objects = new LinkedHashMap<Key, Object>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+        return size() > ToplevelCache.this.maxSize;
+      }
+    };
+  }
+  
+  /**
+   * @return The object of class {@code cls} cached with the given ID and content hash, or {@code null} if there is
+   *  none; either way, counted as a hit or a miss.
+   */
+  synchronized <T> T get(Class<T> cls, String id, long hash) {
+    Object cached = objects.get(new Key(cls, id, hash));
+    if (cached == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return cls.cast(cached);
+  }
+  
+  /**
+   * Cache {@code obj}, of class {@code cls}, with the given ID and content hash, evicting the least recently used
+   * object if the cache is full.
+   */
+  synchronized <T> void put(Class<T> cls, String id, long hash, T obj) {
+    objects.put(new Key(cls, id, hash), obj);
+  }
+  
+  /**
+   * @return The number of times a cached object was found and reused.
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+  
+  /**
+   * @return The number of times a cacheable object wasn't cached, and so was regenerated.
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+  
+  /**
+   * @return The number of objects currently cached.
+   */
+  public synchronized int size() {
+    return objects.size();
+  }
+  
+  /**
+   * @return The most objects kept at once.
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+  
+  /**
+   * Evict every cached object. The hit and miss counts are kept.
+   */
+  public synchronized void clear() {
+    objects.clear();
+  }
+  
+  /**
+   * @return A 64-bit hash of the contents of {@code element}, resolving {@link CopyElement}s with the templates in
+   *  {@code state}, or {@code null} if it can't be cached because it contains shared embedded objects or copies a
+   *  missing template.
+   */
+  static Long contentHash(RegenState state, ToplevelElement element) {
+    return hashChildren(state, FNV_OFFSET_BASIS, element.getChildren());
+  }
+  
+  /** @return {@code hash} updated with {@code children}, or {@code null} if one can't be cached. */
+  private static Long hashChildren(RegenState state, long hash, List<PersistedElement> children) {
+    hash = mix(hash, children.size());
+    hash = mix(hash, PARENT);
+    for (PersistedElement child : children) {
+      Long childHash = hash(state, hash, child);
+      if (childHash == null) {
+        return null;
+      }
+      hash = childHash;
+    }
+    return hash;
+  }
+  
+  /** @return {@code hash} updated with {@code element}, or {@code null} if it can't be cached. */
+  private static Long hash(RegenState state, long hash, PersistedElement element) {
+    hash = mix(hash, element.getTag());
+    
+    if (element instanceof CopyElement) {
+      element = state.getTemplate(((CopyElement) element).getTemplate());
+      if (element == null) {
+        return null;
+      }
+    }
+    
+    if (element instanceof NullElement) {
+      return mix(hash, NULL);
+    } else if (element instanceof TextElement) {
+      return mix(mix(hash, 0), ((TextElement) element).getText());
+    } else if (element instanceof ParentElement
+        && ((ParentElement) element).getSharedId() == ParentElement.NOT_SHARED) {
+      return hashChildren(state, hash, ((ParentElement) element).getChildren());
+    } else {
+      // A shared embedded object, whose sharing depends on the rest of the document
+      return null;
+    }
+  }
+  
+  /** @return {@code hash} updated with {@code value}, by a step of FNV-1a. */
+  private static long mix(long hash, int value) {
+    return (hash ^ value) * FNV_PRIME;
+  }
+  
+  /** @return {@code hash} updated with the length and then each character of {@code string}. */
+  private static long mix(long hash, String string) {
+    hash = mix(hash, string.length());
+    for (int i = 0; i < string.length(); i++) {
+      hash = mix(hash, string.charAt(i));
+    }
+    return hash;
+  }
+  
+  /** A cached object's class, ID and content hash. */
+  private static final class Key {
+    
+    private final Class<?> cls;
+    private final String id;
+    private final long hash;
+    
+    private Key(Class<?> cls, String id, long hash) {
+      this.cls = cls;
+      this.id = id;
+      this.hash = hash;
+    }
+    
+    @Override
+    public int hashCode() {
+      return 31 * (31 * cls.hashCode() + id.hashCode()) + Long.hashCode(hash);
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) return false;
+      Key key = (Key) obj;
+      return hash == key.hash && cls.equals(key.cls) && id.equals(key.id);
+    }
+    
+  }
+  
+}
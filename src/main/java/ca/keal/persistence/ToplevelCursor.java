@@ -0,0 +1,314 @@
+package ca.keal.persistence;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+/**
+ * Streams the toplevel objects with one tag out of a persisted document on disk, regenerating each from its own
+ * {@link ToplevelElement} without loading the rest of the document. Only one toplevel element is held in memory at a
+ * time (along with any templates of deduplicated subtrees, which are small and come first), so documents of any size
+ * can be scanned.
+ * 
+ * References from a streamed object to other toplevel objects are dealt with by a {@link ReferencePolicy}. Each
+ * streamed object is regenerated separately, so objects loaded through references are not shared between streamed
+ * objects, and a streamed object which is referenced by another is loaded again.
+ * 
+ * Created by {@link XmlPersistor#cursor(Path, Class, ReferencePolicy)}. Must be closed when done with.
+ * 
+ * @param <T> The type of object streamed. It must be @{@link Persistable} with {@code toplevel=true}.
+ */
+public final class ToplevelCursor<T> implements Iterator<T>, Closeable {
+  
+  private final Path file;
+  private final Class<T> cls;
+  private final String tag;
+  private final ReferencePolicy policy;
+  
+  /** Creates the state for each regeneration, configured as set on the persistor. */
+  private final Supplier<RegenState> states;
+  
+  /** Where to report anything suspicious about the document itself. */
+  private final Diagnostics diagnostics;
+  
+  private final XMLInputFactory inputFactory;
+  
+  /** The templates read so far; they come before every toplevel element. */
+  private final List<TemplateElement> templates = new ArrayList<>();
+  
+  private InputStream in;
+  private XMLStreamReader reader;
+  
+  /** The next element to be regenerated, or {@code null} if it hasn't been found yet. */
+  private ToplevelElement next = null;
+  
+  private boolean done = false;
+  private boolean closed = false;
+  
+  /**
+   * @throws PersistenceException If {@code cls} is not toplevel, as for {@link XmlPersistor#XmlPersistor(Class)}.
+   * @throws RegenerationException If {@code file} can't be opened.
+   */
+  ToplevelCursor(Path file, Class<T> cls, ReferencePolicy policy, Supplier<RegenState> states,
+      Diagnostics diagnostics) throws RegenerationException {
+    PersistableModel<T> model = PersistableModel.of(cls);
+    if (!model.isToplevel()) {
+      throw new PersistenceException(cls.getCanonicalName() + " must have toplevel=true in @Persistable to be "
+          + "streamed");
+    }
+    
+    this.file = file;
+    this.cls = cls;
+    this.tag = model.getPersistable().tag();
+    this.policy = policy;
+    this.states = states;
+    this.diagnostics = diagnostics;
+    
+    inputFactory = XMLInputFactory.newInstance();
+    inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    
+    in = open();
+    reader = openReader(in);
+  }
+  
+  /** Open the file. */
+  private InputStream open() throws RegenerationException {
+    try {
+      return Files.newInputStream(file);
+    } catch (IOException e) {
+      throw new RegenerationException("Could not open " + file + ".", e);
+    }
+  }
+  
+  /** Open a reader on {@code in}, positioned at the start tag of the document element. */
+  private XMLStreamReader openReader(InputStream in) throws RegenerationException {
+    try {
+      XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+      reader.nextTag();
+      if (!reader.getLocalName().equals("persisted")) {
+        diagnostics.report(Diagnostic.Kind.ROOT_TAG_NAME, null, reader.getLocalName(), null, null);
+      }
+      return reader;
+    } catch (XMLStreamException e) {
+      closeQuietly(in);
+      throw new RegenerationException("Could not read " + file + ".", e);
+    }
+  }
+  
+  /**
+   * @return Whether there is another object to stream.
+   * @throws UncheckedRegenerationException If the document can't be read.
+   * @throws IllegalStateException If the cursor has been closed.
+   */
+  @Override
+  public boolean hasNext() {
+    checkOpen();
+    if (next == null && !done) {
+      try {
+        next = findNext();
+      } catch (RegenerationException e) {
+        throw new UncheckedRegenerationException(e);
+      }
+      done = next == null;
+    }
+    return next != null;
+  }
+  
+  /**
+   * @return The next object streamed.
+   * @throws NoSuchElementException If there are no more objects.
+   * @throws UncheckedRegenerationException If the object can't be regenerated.
+   * @throws IllegalStateException If the cursor has been closed.
+   */
+  @Override
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    ToplevelElement element = next;
+    next = null;
+    try {
+      return regenerate(cls, element);
+    } catch (RegenerationException e) {
+      throw new UncheckedRegenerationException(e);
+    }
+  }
+  
+  /** Read up to the next toplevel element with the right tag, collecting templates along the way. */
+  private ToplevelElement findNext() throws RegenerationException {
+    try {
+      while (true) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.END_ELEMENT || event == XMLStreamConstants.END_DOCUMENT) {
+          return null; // the end of <persisted>; every child element is read or skipped in full
+        } else if (event != XMLStreamConstants.START_ELEMENT) {
+          continue;
+        }
+        
+        if (reader.getAttributeValue(null, "template") != null) {
+          templates.add(StaxElementReader.readTemplate(reader));
+        } else if (reader.getLocalName().equals(tag)) {
+          return StaxElementReader.readToplevel(reader);
+        } else {
+          StaxElementReader.skipElement(reader);
+        }
+      }
+    } catch (XMLStreamException e) {
+      throw new RegenerationException("Could not read " + file + ".", e);
+    }
+  }
+  
+  /** Regenerate an object of type {@code type} from {@code element}, fetching what it references per the policy. */
+  private <U> U regenerate(Class<U> type, ToplevelElement element) throws RegenerationException {
+    RegenState state = states.get();
+    state.setToplevelSource(new Source());
+    for (TemplateElement template : templates) {
+      state.putTemplate(template);
+    }
+    state.getToplevelList().addElement(element);
+    try {
+      return PersistenceUtil.pickStrategy(type, element).regenerate(state, element);
+    } catch (PersistenceException e) {
+      // as in XmlPersistor.fromXml(), some common persist/regen methods throw PersistenceExceptions
+      throw new RegenerationException(e.getMessage(), e.getCause());
+    }
+  }
+  
+  /** Load an object referred to by a {@link ToplevelReference}. */
+  <U> U load(Class<U> type, String tag, String id) throws RegenerationException {
+    checkOpen();
+    ToplevelElement element = scanFor(tag, id);
+    if (element == null) {
+      throw new RegenerationException("Toplevel element with tag name '" + tag + "' and id '" + id
+          + "' is referenced, but doesn't exist.");
+    }
+    return regenerate(type, element);
+  }
+  
+  /** Scan the whole file for the toplevel element with the given tag and ID. */
+  private ToplevelElement scanFor(String tag, String id) throws RegenerationException {
+    InputStream in = open();
+    try {
+      XMLStreamReader reader = openReader(in);
+      while (reader.hasNext()) {
+        if (reader.next() != XMLStreamConstants.START_ELEMENT) continue;
+        if (reader.getLocalName().equals(tag) && id.equals(reader.getAttributeValue(null, "id"))) {
+          return StaxElementReader.readToplevel(reader);
+        }
+        StaxElementReader.skipElement(reader);
+      }
+      return null;
+    } catch (XMLStreamException e) {
+      throw new RegenerationException("Could not read " + file + ".", e);
+    } finally {
+      closeQuietly(in);
+    }
+  }
+  
+  /** Scan the whole file for the toplevel element containing the shared element with the given shared ID. */
+  private ToplevelElement scanForShared(int sharedId) throws RegenerationException {
+    InputStream in = open();
+    try {
+      XMLStreamReader reader = openReader(in);
+      while (reader.hasNext()) {
+        if (reader.next() != XMLStreamConstants.START_ELEMENT) continue;
+        if (reader.getAttributeValue(null, "template") != null) {
+          StaxElementReader.skipElement(reader);
+          continue;
+        }
+        ToplevelElement toplevel = StaxElementReader.readToplevel(reader);
+        if (containsShared(toplevel, sharedId)) {
+          return toplevel;
+        }
+      }
+      return null;
+    } catch (XMLStreamException e) {
+      throw new RegenerationException("Could not read " + file + ".", e);
+    } finally {
+      closeQuietly(in);
+    }
+  }
+  
+  private static boolean containsShared(ParentElement parent, int sharedId) {
+    for (PersistedElement child : parent.getChildren()) {
+      if (child instanceof ParentElement) {
+        ParentElement childParent = (ParentElement) child;
+        if (childParent.getSharedId() == sharedId || containsShared(childParent, sharedId)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+  
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("The cursor has been closed");
+    }
+  }
+  
+  /**
+   * Close the file being streamed. Any {@link ToplevelReference}s handed out can no longer be loaded.
+   * @throws UncheckedIOException If the file can't be closed.
+   */
+  @Override
+  public void close() {
+    if (closed) return;
+    closed = true;
+    try {
+      reader.close();
+      in.close();
+    } catch (XMLStreamException e) {
+      closeQuietly(in);
+      throw new UncheckedIOException(new IOException("Could not close " + file + ".", e));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+  
+  private static void closeQuietly(InputStream in) {
+    try {
+      in.close();
+    } catch (IOException e) {
+      // nothing to be done
+    }
+  }
+  
+  /** Fetches referenced elements for the {@link RegenState}s of this cursor as the {@link ReferencePolicy} says. */
+  private final class Source implements ToplevelSource {
+    
+    @Override
+    public ToplevelElement fetchToplevel(Class<?> type, String tag, String id) throws RegenerationException {
+      if (!policy.loadNow(new ToplevelReference<>(ToplevelCursor.this, type, tag, id))) {
+        return null;
+      }
+      ToplevelElement element = scanFor(tag, id);
+      if (element == null) {
+        throw new RegenerationException("Toplevel element with tag name '" + tag + "' and id '" + id
+            + "' is referenced, but doesn't exist.");
+      }
+      return element;
+    }
+    
+    @Override
+    public ToplevelElement fetchSharedContainer(int sharedId) throws RegenerationException {
+      return policy.loadSharedObjects() ? scanForShared(sharedId) : null;
+    }
+    
+  }
+  
+}
@@ -3,6 +3,8 @@ package ca.keal.persistence;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import java.io.IOException;
+
 /**
  * A {@link ParentElement} which represents specifically a toplevel element. This essentially contains two specific
  * attributes: {@code root}, which is {@code true} if this element is the root element and not present otherwise, and
@@ -67,6 +69,12 @@ class ToplevelElement extends ParentElement {
     return id;
   }
   
+  /**
+   * Let go of anything held only so that this element could be regenerated, now that it has been. Its children may
+   * still be asked for afterwards. Does nothing, except in an {@link ArenaToplevelElement}.
+   */
+  void regenerated() {}
+  
   /**
    * Create an XML element from this {@link ToplevelElement}. The created {@link Element} has the tag name of this
    * element. This element's children's XML representations are children of the created {@link Element}. The
@@ -85,6 +93,15 @@ class ToplevelElement extends ParentElement {
     return element;
   }
   
+  @Override
+  protected void writeAttributes(XmlChannelWriter out) throws IOException {
+    super.writeAttributes(out);
+    out.attribute("id", getId());
+    if (isRoot()) {
+      out.attribute("root", "true");
+    }
+  }
+  
   /**
    * Create a {@link ToplevelElement} from a given XML element. The {@link ToplevelElement} will have the same tag name,
    * ID, and root value as the element, and its child elements will be loaded in as well.
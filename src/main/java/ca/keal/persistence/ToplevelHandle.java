@@ -0,0 +1,88 @@
+package ca.keal.persistence;
+
+/**
+ * A handle on a toplevel object in a {@link ToplevelStore}, through which the object is loaded when it is needed. The
+ * object may be evicted from memory whenever the store needs the space, so it should be fetched with {@link #get()}
+ * each time it is used rather than held on to, and changes to it must be reported with {@link #markDirty()} before it
+ * might next be evicted, so that they are written back.
+ * 
+ * A @{@link Persist} field of type {@code ToplevelHandle<T>} is how one stored object refers to another: it is
+ * persisted as the ID of the object it refers to, and regenerated as a handle on that object, which is loaded only when
+ * the handle is followed. Handles are equal when they refer to the same object in the same store.
+ * 
+ * @param <T> The type of the object.
+ */
+public final class ToplevelHandle<T> {
+  
+  private final ToplevelStore store;
+  private final Class<T> type;
+  private final String tag;
+  private final String id;
+  
+  ToplevelHandle(ToplevelStore store, Class<T> type, String tag, String id) {
+    this.store = store;
+    this.type = type;
+    this.tag = tag;
+    this.id = id;
+  }
+  
+  /**
+   * @return The class of the object.
+   */
+  public Class<T> getType() {
+    return type;
+  }
+  
+  /**
+   * @return The tag of the object's toplevel element.
+   */
+  public String getTag() {
+    return tag;
+  }
+  
+  /**
+   * @return The ID of the object.
+   */
+  public String getId() {
+    return id;
+  }
+  
+  /**
+   * Get the object, from memory if it is resident, or else by regenerating it alone from the store.
+   * @throws RegenerationException If the object isn't in the store, or can't be read or regenerated.
+   * @throws PersistenceException If a dirty object evicted to make room can't be written back; it stays resident.
+   * @throws IllegalStateException If the store has been closed.
+   */
+  public T get() throws RegenerationException {
+    return store.get(this);
+  }
+  
+  /**
+   * Note that the object has been changed, so that it is written back to the store when it is evicted or the store is
+   * flushed.
+   * @throws IllegalStateException If the object isn't resident, so that any change must have been made to a copy which
+   *  has since been evicted, or the store has been closed.
+   */
+  public void markDirty() {
+    store.markDirty(this);
+  }
+  
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof ToplevelHandle)) return false;
+    ToplevelHandle<?> other = (ToplevelHandle<?>) o;
+    return store == other.store && tag.equals(other.tag) && id.equals(other.id);
+  }
+  
+  @Override
+  public int hashCode() {
+    return 31 * tag.hashCode() + id.hashCode();
+  }
+  
+  @Override
+  public String toString() {
+    return "ToplevelHandle[tag=" + tag + ", id=" + id + "]";
+  }
+  
+}
@@ -0,0 +1,340 @@
+package ca.keal.persistence;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A two-level index of values by toplevel tag name and ID, used by {@link ToplevelList} and
+ * {@link RegenToplevelRegistry}. The first level maps each tag to its own open-addressing table keyed by ID; lookups
+ * never allocate.
+ * 
+ * IDs which are the canonical decimal form of a {@code long} (as produced by {@link Long#toString(long)}) are kept in a
+ * separate table keyed by the numeric value itself, so that numeric IDs may be looked up with
+ * {@link #get(String, long)} without ever being converted to strings. A string lookup of such an ID is parsed and
+ * routed to the numeric table, so both forms of lookup always agree.
+ * 
+ * Neither tags, IDs nor values may be {@code null}.
+ * 
+ * @param <V> The type of value indexed.
+ */
+final class ToplevelIndex<V> {
+  
+  /** The per-tag tables. Tags are few and come from annotations, so a plain map is fine at this level. */
+  private final Map<String, IdTable> tables = new HashMap<>();
+  
+  private int size = 0;
+  
+  /**
+   * @return The value indexed under the given tag and ID, or {@code null} if there is none.
+   * @throws NullPointerException If either key is {@code null}.
+   */
+  V get(String tag, String id) {
+    IdTable table = tables.get(checkTag(tag));
+    return table == null ? null : table.get(checkId(id));
+  }
+  
+  /**
+   * @return The value indexed under the given tag and numeric ID, or {@code null} if there is none. This is equivalent
+   *  to {@code get(tag, Long.toString(id))}.
+   * @throws NullPointerException If {@code tag} is {@code null}.
+   */
+  V get(String tag, long id) {
+    IdTable table = tables.get(checkTag(tag));
+    return table == null ? null : table.get(id);
+  }
+  
+  /**
+   * @return Whether there is a value indexed under the given tag and ID.
+   * @throws NullPointerException If either key is {@code null}.
+   */
+  boolean contains(String tag, String id) {
+    return get(tag, id) != null;
+  }
+  
+  /**
+   * Index {@code value} under the given tag and ID, replacing any previous value.
+   * @return The value previously indexed under the tag and ID, or {@code null} if there was none.
+   * @throws NullPointerException If any parameter is {@code null}.
+   */
+  V put(String tag, String id, V value) {
+    if (value == null) {
+      throw new NullPointerException("Cannot index a null value");
+    }
+    V previous = tableFor(checkTag(tag)).put(checkId(id), value);
+    if (previous == null) size++;
+    return previous;
+  }
+  
+  /**
+   * Remove the value indexed under the given tag and ID, if any.
+   * @return The value which was indexed under the tag and ID, or {@code null} if there was none.
+   * @throws NullPointerException If either key is {@code null}.
+   */
+  V remove(String tag, String id) {
+    IdTable table = tables.get(checkTag(tag));
+    V previous = table == null ? null : table.remove(checkId(id));
+    if (previous != null) size--;
+    return previous;
+  }
+  
+  /**
+   * @return The number of values indexed.
+   */
+  int size() {
+    return size;
+  }
+  
+  private IdTable tableFor(String tag) {
+    IdTable table = tables.get(tag);
+    if (table == null) {
+      table = new IdTable();
+      tables.put(tag, table);
+    }
+    return table;
+  }
+  
+  private static String checkTag(String tag) {
+    if (tag == null) {
+      throw new NullPointerException("No null tags are allowed in the toplevel index");
+    }
+    return tag;
+  }
+  
+  private static String checkId(String id) {
+    if (id == null) {
+      throw new NullPointerException("No null ids are allowed in the toplevel index");
+    }
+    return id;
+  }
+  
+  /**
+   * Parse {@code id} if it is the canonical decimal form of a {@code long}: an optional minus sign followed by digits,
+   * without leading zeroes, "-0" or overflow. {@link Long#MIN_VALUE} is treated as non-canonical so that it can be used
+   * as the "not numeric" result.
+   * @return The parsed value, or {@link Long#MIN_VALUE} if {@code id} is not canonical.
+   */
+  static long parseCanonicalLong(String id) {
+    int length = id.length();
+    boolean negative = length > 0 && id.charAt(0) == '-';
+    int start = negative ? 1 : 0;
+    int digits = length - start;
+    if (digits < 1 || digits > 19 || (id.charAt(start) == '0' && (digits > 1 || negative))) {
+      return Long.MIN_VALUE;
+    }
+    
+    // Accumulate negatively so that we don't overflow before we can check
+    long result = 0;
+    for (int i = start; i < length; i++) {
+      int digit = id.charAt(i) - '0';
+      if (digit < 0 || digit > 9 || result < (Long.MIN_VALUE + digit) / 10) {
+        return Long.MIN_VALUE;
+      }
+      result = result * 10 - digit;
+    }
+    if (negative) {
+      return result; // result == Long.MIN_VALUE is "not numeric" anyway
+    }
+    return result == Long.MIN_VALUE ? Long.MIN_VALUE : -result;
+  }
+  
+  /** Spread the bits of a hash so that similar keys land far apart; this is the finalizer of MurmurHash3. */
+  private static int mix(long hash) {
+    hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+    hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return (int) (hash ^ (hash >>> 33));
+  }
+  
+  /** The table of IDs for a single tag, split between numeric and string keys. Uses linear probing. */
+  private final class IdTable {
+    
+    private static final int INITIAL_CAPACITY = 16;
+    
+    // Numeric keys; a slot is empty iff its value is null
+    private long[] longKeys = new long[INITIAL_CAPACITY];
+    private Object[] longValues = new Object[INITIAL_CAPACITY];
+    private int longSize = 0;
+    
+    // String keys, with their hashes kept alongside so that most mismatches don't need equals()
+    private String[] stringKeys = new String[INITIAL_CAPACITY];
+    private int[] stringHashes = new int[INITIAL_CAPACITY];
+    private Object[] stringValues = new Object[INITIAL_CAPACITY];
+    private int stringSize = 0;
+    
+    V get(String id) {
+      long numeric = parseCanonicalLong(id);
+      if (numeric != Long.MIN_VALUE) {
+        return getLong(numeric);
+      }
+      
+      int hash = mix(id.hashCode());
+      int mask = stringKeys.length - 1;
+      for (int slot = hash & mask; stringValues[slot] != null; slot = (slot + 1) & mask) {
+        if (stringHashes[slot] == hash && id.equals(stringKeys[slot])) {
+          return value(stringValues[slot]);
+        }
+      }
+      return null;
+    }
+    
+    V get(long id) {
+      if (id == Long.MIN_VALUE) {
+        return get(Long.toString(id)); // the one numeric id kept with the strings
+      }
+      return getLong(id);
+    }
+    
+    private V getLong(long id) {
+      int mask = longKeys.length - 1;
+      for (int slot = mix(id) & mask; longValues[slot] != null; slot = (slot + 1) & mask) {
+        if (longKeys[slot] == id) {
+          return value(longValues[slot]);
+        }
+      }
+      return null;
+    }
+    
+    V put(String id, V value) {
+      long numeric = parseCanonicalLong(id);
+      if (numeric != Long.MIN_VALUE) {
+        return putLong(numeric, value);
+      }
+      
+      if ((stringSize + 1) * 2 > stringKeys.length) {
+        resizeStrings();
+      }
+      int hash = mix(id.hashCode());
+      int mask = stringKeys.length - 1;
+      int slot = hash & mask;
+      for (; stringValues[slot] != null; slot = (slot + 1) & mask) {
+        if (stringHashes[slot] == hash && id.equals(stringKeys[slot])) {
+          V previous = value(stringValues[slot]);
+          stringValues[slot] = value;
+          return previous;
+        }
+      }
+      stringKeys[slot] = id;
+      stringHashes[slot] = hash;
+      stringValues[slot] = value;
+      stringSize++;
+      return null;
+    }
+    
+    private V putLong(long id, V value) {
+      if ((longSize + 1) * 2 > longKeys.length) {
+        resizeLongs();
+      }
+      int mask = longKeys.length - 1;
+      int slot = mix(id) & mask;
+      for (; longValues[slot] != null; slot = (slot + 1) & mask) {
+        if (longKeys[slot] == id) {
+          V previous = value(longValues[slot]);
+          longValues[slot] = value;
+          return previous;
+        }
+      }
+      longKeys[slot] = id;
+      longValues[slot] = value;
+      longSize++;
+      return null;
+    }
+    
+    V remove(String id) {
+      long numeric = parseCanonicalLong(id);
+      if (numeric != Long.MIN_VALUE) {
+        return removeLong(numeric);
+      }
+      
+      int hash = mix(id.hashCode());
+      int mask = stringKeys.length - 1;
+      for (int slot = hash & mask; stringValues[slot] != null; slot = (slot + 1) & mask) {
+        if (stringHashes[slot] == hash && id.equals(stringKeys[slot])) {
+          V previous = value(stringValues[slot]);
+          // Shift back the entries after it which would no longer be reachable across the gap
+          int gap = slot;
+          for (int next = (gap + 1) & mask; stringValues[next] != null; next = (next + 1) & mask) {
+            if (!isBetween(stringHashes[next] & mask, gap, next)) {
+              stringKeys[gap] = stringKeys[next];
+              stringHashes[gap] = stringHashes[next];
+              stringValues[gap] = stringValues[next];
+              gap = next;
+            }
+          }
+          stringKeys[gap] = null;
+          stringValues[gap] = null;
+          stringSize--;
+          return previous;
+        }
+      }
+      return null;
+    }
+    
+    private V removeLong(long id) {
+      int mask = longKeys.length - 1;
+      for (int slot = mix(id) & mask; longValues[slot] != null; slot = (slot + 1) & mask) {
+        if (longKeys[slot] == id) {
+          V previous = value(longValues[slot]);
+          int gap = slot;
+          for (int next = (gap + 1) & mask; longValues[next] != null; next = (next + 1) & mask) {
+            if (!isBetween(mix(longKeys[next]) & mask, gap, next)) {
+              longKeys[gap] = longKeys[next];
+              longValues[gap] = longValues[next];
+              gap = next;
+            }
+          }
+          longValues[gap] = null;
+          longSize--;
+          return previous;
+        }
+      }
+      return null;
+    }
+    
+    /**
+     * @return Whether {@code home} is cyclically after {@code gap} and no later than {@code slot}, in which case an
+     *  entry with that home slot found at {@code slot} is still reachable without probing through the gap.
+     */
+    private boolean isBetween(int home, int gap, int slot) {
+      return gap <= slot ? gap < home && home <= slot : gap < home || home <= slot;
+    }
+    
+    private void resizeLongs() {
+      long[] oldKeys = longKeys;
+      Object[] oldValues = longValues;
+      longKeys = new long[oldKeys.length * 2];
+      longValues = new Object[oldKeys.length * 2];
+      int mask = longKeys.length - 1;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldValues[i] == null) continue;
+        int slot = mix(oldKeys[i]) & mask;
+        while (longValues[slot] != null) slot = (slot + 1) & mask;
+        longKeys[slot] = oldKeys[i];
+        longValues[slot] = oldValues[i];
+      }
+    }
+    
+    private void resizeStrings() {
+      String[] oldKeys = stringKeys;
+      int[] oldHashes = stringHashes;
+      Object[] oldValues = stringValues;
+      stringKeys = new String[oldKeys.length * 2];
+      stringHashes = new int[oldKeys.length * 2];
+      stringValues = new Object[oldKeys.length * 2];
+      int mask = stringKeys.length - 1;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldValues[i] == null) continue;
+        int slot = oldHashes[i] & mask;
+        while (stringValues[slot] != null) slot = (slot + 1) & mask;
+        stringKeys[slot] = oldKeys[i];
+        stringHashes[slot] = oldHashes[i];
+        stringValues[slot] = oldValues[i];
+      }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private V value(Object value) {
+      return (V) value;
+    }
+    
+  }
+  
+}
@@ -1,20 +1,32 @@
 package ca.keal.persistence;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * The toplevel list of {@link ToplevelElement}s. Global to each call of {@link XmlPersistor#toXml} or
- * {@link XmlPersistor#fromXml}. This is simply a list of toplevel elements (really a map) indexed by tag name and ID.
+ * {@link XmlPersistor#fromXml}. This is simply a list of toplevel elements indexed by tag name and ID. Elements are
+ * kept in the order in which they were added.
  */
 class ToplevelList {
   
+  /** The elements in this {@link ToplevelList}, in the order they were added. */
+  private final List<ToplevelElement> elements = new ArrayList<>();
+  
+  /** The index of the elements by tag name and ID. */
+  private final ToplevelIndex<ToplevelElement> index = new ToplevelIndex<>();
+  
+  /** Where to report duplicate elements. */
+  private Diagnostics diagnostics = Diagnostics.SHARED;
+  
   /**
-   * The map backing this {@link ToplevelList}. Maps {@link ItemID}s to their corresponding {@link ToplevelElement}s
-   * in the "list'.
+   * Set where to report elements added with the same tag name and ID as an earlier one.
    */
-  private final Map<ItemID, ToplevelElement> idsToElements = new HashMap<>();
+  void setDiagnostics(Diagnostics diagnostics) {
+    this.diagnostics = diagnostics;
+  }
   
   /**
    * Does this {@link ToplevelList} contain an element with this tag name and ID?
@@ -24,12 +36,21 @@ class ToplevelList {
    * @throws NullPointerException If either parameter is {@code null}.
    */
   public boolean contains(String tagName, String id) {
-    return idsToElements.containsKey(new ItemID(tagName, id));
+    return index.contains(tagName, id);
+  }
+  
+  /**
+   * Does this {@link ToplevelList} contain an element with this tag name and numeric ID? This is equivalent to
+   * {@code contains(tagName, Long.toString(id))} but does not convert {@code id} to a string.
+   * @throws NullPointerException If {@code tagName} is {@code null}.
+   */
+  public boolean contains(String tagName, long id) {
+    return index.get(tagName, id) != null;
   }
   
   /**
    * Add the element to this {@link ToplevelList}. This will overwrite any previous toplevel elements added with the
-   * same tag name and ID, but this is bad practice and a warning will be printed if that occurs.
+   * same tag name and ID, but this is bad practice and is reported to its {@link Diagnostics} if that occurs.
    * @param element The {@link ToplevelElement} to be added to the toplevel list.
    * @throws NullPointerException If the element is {@code null}.
    */
@@ -38,14 +59,13 @@ class ToplevelList {
       throw new NullPointerException("No null elements are allowed in the toplevel list");
     }
     
-    ItemID itemId = new ItemID(element.getTag(), element.getId());
-    if (idsToElements.containsKey(itemId)) {
-      // TODO a real logging system
-      System.err.print("Warning: added duplicate item with tag name '" + element.getTag() + "' and id '"
-        + element.getId() + "' to toplevel list's map; this probably means there's a duplicate ID");
+    ToplevelElement previous = index.put(element.getTag(), element.getId(), element);
+    if (previous == null) {
+      elements.add(element);
+    } else {
+      diagnostics.report(Diagnostic.Kind.DUPLICATE_TOPLEVEL_ELEMENT, null, element.getTag(), element.getId(), null);
+      elements.set(elements.indexOf(previous), element);
     }
-    
-    idsToElements.put(itemId, element);
   }
   
   /**
@@ -53,21 +73,35 @@ class ToplevelList {
    * element with the given name and ID in the list.
    */
   public ToplevelElement getElement(String name, String id) {
-    return idsToElements.get(new ItemID(name, id));
+    return index.get(name, id);
   }
   
   /**
-   * @return A collection of the {@link ToplevelElement}s in this {@link ToplevelList}.
+   * Return the toplevel element in the list with the specified name and numeric ID, or {@code null} if there is no
+   * such element. This is equivalent to {@code getElement(name, Long.toString(id))} but does not convert {@code id} to
+   * a string.
+   */
+  public ToplevelElement getElement(String name, long id) {
+    return index.get(name, id);
+  }
+  
+  /**
+   * @return An unmodifiable collection of the {@link ToplevelElement}s in this {@link ToplevelList}, in the order in
+   *  which they were added.
    */
   public Collection<ToplevelElement> getAsCollection() {
-    return idsToElements.values();
+    return Collections.unmodifiableList(elements);
   }
   
   /**
    * @return A collection of the {@link ItemID}s registered in this {@link ToplevelList}.
    */
   public Collection<ItemID> getItemIDs() {
-    return idsToElements.keySet();
+    List<ItemID> itemIds = new ArrayList<>(elements.size());
+    for (ToplevelElement element : elements) {
+      itemIds.add(new ItemID(element.getTag(), element.getId()));
+    }
+    return itemIds;
   }
   
 }
@@ -0,0 +1,60 @@
+package ca.keal.persistence;
+
+/**
+ * A reference found by a {@link ToplevelCursor} from a streamed object to another toplevel object, as handed to its
+ * {@link ReferencePolicy}. It remains loadable until the cursor is closed.
+ * 
+ * @param <T> The type of the object referred to.
+ */
+public final class ToplevelReference<T> {
+  
+  private final ToplevelCursor<?> cursor;
+  private final Class<T> type;
+  private final String tag;
+  private final String id;
+  
+  ToplevelReference(ToplevelCursor<?> cursor, Class<T> type, String tag, String id) {
+    this.cursor = cursor;
+    this.type = type;
+    this.tag = tag;
+    this.id = id;
+  }
+  
+  /**
+   * @return The class of the object referred to.
+   */
+  public Class<T> getType() {
+    return type;
+  }
+  
+  /**
+   * @return The tag of the toplevel element referred to.
+   */
+  public String getTag() {
+    return tag;
+  }
+  
+  /**
+   * @return The ID of the toplevel element referred to.
+   */
+  public String getId() {
+    return id;
+  }
+  
+  /**
+   * Load the object referred to by scanning the document for its element. Its own references are handled by the
+   * cursor's {@link ReferencePolicy}. Each call loads a new copy.
+   * @return The object referred to.
+   * @throws RegenerationException If the element does not exist or cannot be regenerated.
+   * @throws IllegalStateException If the cursor has been closed.
+   */
+  public T load() throws RegenerationException {
+    return cursor.load(type, tag, id);
+  }
+  
+  @Override
+  public String toString() {
+    return "ToplevelReference[tag=" + tag + ", id=" + id + "]";
+  }
+  
+}
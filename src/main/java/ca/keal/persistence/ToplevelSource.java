@@ -0,0 +1,23 @@
+package ca.keal.persistence;
+
+/**
+ * Supplies toplevel elements which are not in the {@link ToplevelList} of a {@link RegenState} when they are needed,
+ * for regeneration which doesn't load the whole document up front, i.e. by a {@link ToplevelCursor}.
+ */
+interface ToplevelSource {
+  
+  /**
+   * Fetch the toplevel element with the given tag and ID, which an object of {@code type} is to be regenerated from.
+   * @return The element, or {@code null} if the reference to it should be left {@code null}.
+   * @throws RegenerationException If the element should be fetched, but cannot be.
+   */
+  ToplevelElement fetchToplevel(Class<?> type, String tag, String id) throws RegenerationException;
+  
+  /**
+   * Fetch the toplevel element containing the shared {@link ParentElement} with the given shared ID.
+   * @return The element, or {@code null} if the reference to it should be left {@code null}.
+   * @throws RegenerationException If the element should be fetched, but cannot be.
+   */
+  ToplevelElement fetchSharedContainer(int sharedId) throws RegenerationException;
+  
+}
@@ -0,0 +1,596 @@
+package ca.keal.persistence;
+
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A store of toplevel objects on disk, each of which is only regenerated when it is accessed through a
+ * {@link ToplevelHandle}, so that object graphs too large for the heap can be worked with a part at a time. Loaded
+ * objects stay resident until the store needs the space, up to a memory budget; the least recently used are evicted
+ * first, being written back to the store if they were {@link ToplevelHandle#markDirty() marked dirty}.
+ * 
+ * Each toplevel object is stored as its own record, holding its toplevel element as a small persisted document.
+ * Records are only ever appended to the file, and a later record for the same tag and ID replaces an earlier one, so a
+ * crash never damages what was stored before it (a record cut short is discarded when the store is next opened), but
+ * the file grows with every write-back. The memory budget is measured in the bytes of the records of the resident
+ * objects, which is a proxy for, not a measure of, the heap they occupy.
+ * 
+ * Stored objects refer to each other only through {@link ToplevelHandle} fields, which are stored as the IDs of the
+ * objects they refer to and regenerated as handles on them, so loading an object never loads another, and evicting an
+ * object drops the store's only reference to it. Classes which refer to toplevel objects directly, which would have to
+ * pull those objects into memory along with them, can't be stored. An evicted object is loaded again as a new copy when
+ * next accessed, so objects should always be fetched (and changed) through their handles rather than held on to.
+ * Embedded objects shared between different toplevel objects are stored, and so regenerated, separately for each.
+ * 
+ * A store may be used from several threads, one operation at a time. It must be closed when done with, which flushes
+ * it.
+ */
+public final class ToplevelStore implements Closeable {
+  
+  /** The first bytes of every store file. */
+  private static final byte[] MAGIC = "XPSTORE1".getBytes(StandardCharsets.US_ASCII);
+  
+  private final Path file;
+  private final FileChannel channel;
+  private final long maxResidentBytes;
+  
+  /** The directory in which to spill large values, or {@code null} for the default temporary directory. */
+  private final Path spillDirectory;
+  
+  /** Where to report anything suspicious found as objects are written and loaded. */
+  private final Diagnostics diagnostics;
+  
+  /** Where the latest record of each stored object is, by tag and ID. */
+  private final ToplevelIndex<Record> records = new ToplevelIndex<>();
+  
+  /** The offset at which the next record is appended. */
+  private long end;
+  
+  /** The next shared ID to give out, so that those in separately stored records never clash. */
+  private int nextSharedId = 0;
+  
+  /** The classes which have been checked to refer to no toplevel objects directly, and so can be stored. */
+  private final Set<Class<?>> storable = Collections.newSetFromMap(new ConcurrentHashMap<>());
+  
+  /** The resident objects by tag and ID, in order of access. */
+  private final LinkedHashMap<ItemID, Resident> residents = new LinkedHashMap<>(16, 0.75f, true);
+  
+  private long residentBytes = 0;
+  private long loads = 0;
+  private long evictions = 0;
+  private long writes = 0;
+  private boolean closed = false;
+  
+  private ToplevelStore(Path file, FileChannel channel, long maxResidentBytes, Path spillDirectory,
+      Diagnostics diagnostics) {
+    this.file = file;
+    this.channel = channel;
+    this.maxResidentBytes = maxResidentBytes;
+    this.spillDirectory = spillDirectory;
+    this.diagnostics = diagnostics;
+  }
+  
+  /**
+   * Open the store in {@code file}, creating it if it doesn't exist. Large values are spilled to the default
+   * temporary-file directory, and diagnostics are printed to {@link System#err}; use
+   * {@link XmlPersistor#openStore(Path, long)} to use those of a persistor instead.
+   * @param file The file holding the store.
+   * @param maxResidentBytes The memory budget: the most bytes of records to keep resident at once. The object most
+   *  recently accessed is always kept, even if it alone is over budget.
+   * @throws NullPointerException If {@code file} is {@code null}.
+   * @throws IllegalArgumentException If {@code maxResidentBytes} is negative.
+   * @throws RegenerationException If {@code file} can't be opened or read, or isn't a store.
+   */
+  public static ToplevelStore open(Path file, long maxResidentBytes) throws RegenerationException {
+    return open(file, maxResidentBytes, null, Diagnostics.SHARED);
+  }
+  
+  /**
+   * Open the store in {@code file}, as {@link #open(Path, long)} does, spilling large values to
+   * {@code spillDirectory} (or the default temporary-file directory if it is {@code null}) and reporting diagnostics
+   * to {@code diagnostics}.
+   */
+  static ToplevelStore open(Path file, long maxResidentBytes, Path spillDirectory, Diagnostics diagnostics)
+      throws RegenerationException {
+    if (file == null) {
+      throw new NullPointerException("Cannot open a store in a null file");
+    }
+    if (maxResidentBytes < 0) {
+      throw new IllegalArgumentException("The memory budget cannot be negative: " + maxResidentBytes);
+    }
+    
+    FileChannel channel = null;
+    try {
+      channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+      ToplevelStore store = new ToplevelStore(file, channel, maxResidentBytes, spillDirectory, diagnostics);
+      if (channel.size() == 0) {
+        store.writeFully(ByteBuffer.wrap(MAGIC), 0);
+        store.end = MAGIC.length;
+      } else {
+        store.readRecords();
+      }
+      return store;
+    } catch (IOException e) {
+      closeQuietly(channel);
+      throw new RegenerationException("Could not open " + file + ".", e);
+    } catch (RegenerationException e) {
+      closeQuietly(channel);
+      throw e;
+    }
+  }
+  
+  /**
+   * Index the records in the file by reading their headers, skipping the records themselves, and discard any record
+   * cut short at the end.
+   */
+  private void readRecords() throws IOException, RegenerationException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+    byte[] magic = new byte[MAGIC.length];
+    long size = channel.size();
+    if (size < MAGIC.length) {
+      throw new RegenerationException(file + " is not a toplevel store.");
+    }
+    in.readFully(magic);
+    if (!Arrays.equals(magic, MAGIC)) {
+      throw new RegenerationException(file + " is not a toplevel store.");
+    }
+    
+    long position = MAGIC.length;
+    try {
+      while (position < size) {
+        int length = in.readInt();
+        int sharedIds = in.readInt();
+        String tag = readString(in, size);
+        String id = readString(in, size);
+        long offset = position + headerLength(tag, id);
+        if (length < 0 || offset + length > size) {
+          break;
+        }
+        skipFully(in, length);
+        
+        records.put(tag, id, new Record(offset, length));
+        nextSharedId = Math.max(nextSharedId, sharedIds);
+        position = offset + length;
+      }
+    } catch (EOFException e) {
+      // A record cut short, which is discarded below
+    }
+    
+    if (position < size) {
+      channel.truncate(position);
+    }
+    end = position;
+  }
+  
+  private static void skipFully(DataInputStream in, int length) throws IOException {
+    while (length > 0) {
+      int skipped = in.skipBytes(length);
+      if (skipped == 0) {
+        throw new EOFException();
+      }
+      length -= skipped;
+    }
+  }
+  
+  private static String readString(DataInputStream in, long size) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > size) {
+      throw new EOFException(); // only a record cut short can have a header like this
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+  
+  /** @return The length of the header of a record of the object with the given tag and ID. */
+  private static int headerLength(String tag, String id) {
+    return 16 + tag.getBytes(StandardCharsets.UTF_8).length + id.getBytes(StandardCharsets.UTF_8).length;
+  }
+  
+  /**
+   * Store {@code obj}, an instance of the toplevel @{@link Persistable} class {@code type}, replacing any object
+   * already stored with its tag and ID. It is written straight away, and stays resident until evicted. The objects its
+   * {@link ToplevelHandle}s refer to needn't be stored yet.
+   * @return A handle on {@code obj}.
+   * @throws NullPointerException If either parameter is {@code null}.
+   * @throws PersistenceException If {@code type} isn't a toplevel @{@link Persistable} class or refers to toplevel
+   *  objects other than through {@link ToplevelHandle}s, or {@code obj} can't be persisted or written.
+   * @throws IllegalStateException If the store has been closed.
+   */
+  public synchronized <T> ToplevelHandle<T> put(Class<T> type, T obj) {
+    if (obj == null) {
+      throw new NullPointerException("Cannot store null objects");
+    }
+    checkOpen();
+    
+    ToplevelHandle<T> handle = handle(type, PersistableModel.of(type).getIdString(obj));
+    ItemID itemID = new ItemID(handle.getTag(), handle.getId());
+    Resident replaced = residents.remove(itemID);
+    if (replaced != null) {
+      residentBytes -= replaced.weight;
+    }
+    
+    int weight = write(type, obj);
+    addResident(itemID, new Resident(type, obj, weight));
+    evict();
+    return handle;
+  }
+  
+  /**
+   * @return A handle on the stored object of the toplevel @{@link Persistable} class {@code type} with the given ID,
+   *  which needn't be stored yet.
+   * @throws NullPointerException If either parameter is {@code null}.
+   * @throws PersistenceException If {@code type} isn't a toplevel @{@link Persistable} class, or refers to toplevel
+   *  objects other than through {@link ToplevelHandle}s.
+   */
+  public <T> ToplevelHandle<T> handle(Class<T> type, String id) {
+    if (id == null) {
+      throw new NullPointerException("Cannot refer to a null ID");
+    }
+    PersistableModel<T> model = PersistableModel.of(type);
+    if (!model.isToplevel()) {
+      throw new PersistenceException(type.getCanonicalName() + " must have toplevel=true in @Persistable to be "
+          + "stored");
+    }
+    if (!storable.contains(type)) {
+      Field reference = model.findToplevelReference();
+      if (reference != null) {
+        throw new PersistenceException(type.getCanonicalName() + " refers to the toplevel "
+            + reference.getType().getCanonicalName() + " through '" + reference.getName() + "', so it can't be "
+            + "stored; objects in a ToplevelStore must refer to each other through ToplevelHandle fields");
+      }
+      storable.add(type);
+    }
+    return new ToplevelHandle<>(this, type, model.getPersistable().tag(), id);
+  }
+  
+  /**
+   * @return Whether an object of the toplevel @{@link Persistable} class {@code type} with the given ID is stored.
+   * @throws NullPointerException If either parameter is {@code null}.
+   * @throws PersistenceException If {@code type} isn't a toplevel @{@link Persistable} class, or can't be stored.
+   * @throws IllegalStateException If the store has been closed.
+   */
+  public synchronized boolean contains(Class<?> type, String id) {
+    checkOpen();
+    ToplevelHandle<?> handle = handle(type, id);
+    return records.contains(handle.getTag(), id);
+  }
+  
+  /** Get the object {@code handle} refers to, loading it if it isn't resident. */
+  synchronized <T> T get(ToplevelHandle<T> handle) throws RegenerationException {
+    checkOpen();
+    Resident existing = residents.get(new ItemID(handle.getTag(), handle.getId()));
+    if (existing != null) {
+      return handle.getType().cast(existing.obj);
+    }
+    
+    T loaded = load(handle);
+    evict();
+    return loaded;
+  }
+  
+  /** Mark the object {@code handle} refers to as changed. */
+  synchronized void markDirty(ToplevelHandle<?> handle) {
+    checkOpen();
+    Resident existing = residents.get(new ItemID(handle.getTag(), handle.getId()));
+    if (existing == null) {
+      throw new IllegalStateException("The object of " + handle + " is not resident, so it can't have been changed");
+    }
+    existing.dirty = true;
+  }
+  
+  /**
+   * Regenerate the object {@code handle} refers to and make it resident, as the most recently used. Its
+   * {@link ToplevelHandle}s are regenerated as handles on this store, without loading anything else.
+   */
+  private <T> T load(ToplevelHandle<T> handle) throws RegenerationException {
+    String tag = handle.getTag();
+    String id = handle.getId();
+    if (records.get(tag, id) == null) {
+      throw new RegenerationException("No toplevel object with tag name '" + tag + "' and id '" + id
+          + "' is stored.");
+    }
+    
+    RegenState state = new RegenState();
+    state.setSpillDirectory(spillDirectory);
+    state.setDiagnostics(diagnostics);
+    state.setToplevelStore(this);
+    ToplevelElement element = read(tag, id);
+    state.getToplevelList().addElement(element);
+    
+    T loaded;
+    try {
+      loaded = PersistenceUtil.pickStrategy(handle.getType(), element).regenerate(state, element);
+    } catch (PersistenceException e) {
+      // as in XmlPersistor.fromXml(), some common persist/regen methods throw PersistenceExceptions
+      throw new RegenerationException(e.getMessage(), e.getCause());
+    }
+    
+    addResident(new ItemID(tag, id), new Resident(handle.getType(), loaded, records.get(tag, id).length));
+    loads++;
+    return loaded;
+  }
+  
+  /** Read the toplevel element of the latest record of the object with the given tag and ID. */
+  private ToplevelElement read(String tag, String id) throws RegenerationException {
+    Record record = records.get(tag, id);
+    ByteBuffer bytes = ByteBuffer.allocate(record.length);
+    List<ParentElement> elements;
+    try {
+      while (bytes.hasRemaining()) {
+        if (channel.read(bytes, record.offset + bytes.position()) < 0) {
+          throw new EOFException();
+        }
+      }
+      bytes.flip();
+      elements = FastElementReader.read(bytes);
+      if (elements == null) {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .parse(new ByteArrayInputStream(bytes.array()));
+        elements = XmlPersistor.elementsOf(doc.getDocumentElement());
+      }
+    } catch (IOException | ParserConfigurationException | SAXException e) {
+      throw new RegenerationException("Could not read the record of the toplevel element with tag name '" + tag
+          + "' and id '" + id + "' from " + file + ".", e);
+    }
+    
+    if (elements.size() != 1 || !(elements.get(0) instanceof ToplevelElement)
+        || !elements.get(0).getTag().equals(tag) || !((ToplevelElement) elements.get(0)).getId().equals(id)) {
+      throw new RegenerationException("The record of the toplevel element with tag name '" + tag + "' and id '" + id
+          + "' in " + file + " doesn't hold that element.");
+    }
+    return (ToplevelElement) elements.get(0);
+  }
+  
+  /**
+   * Write a record of {@code obj}, an instance of {@code type}.
+   * @return The length of the record.
+   */
+  private int write(Class<?> type, Object obj) {
+    PersistingState state = new PersistingState(nextSharedId);
+    state.setDiagnostics(diagnostics);
+    ToplevelElement element = persist(state, type, obj);
+    nextSharedId = state.getNextSharedId();
+    return append(element);
+  }
+  
+  /** Persist the toplevel element of {@code obj}, as an instance of {@code type}. */
+  private static <T> ToplevelElement persist(PersistingState state, Class<T> type, Object obj) {
+    T toPersist = type.cast(obj);
+    TextElement reference = (TextElement) PersistenceUtil.pickStrategy(type, toPersist)
+        .persist(state, XmlPersistor.ROOT_PERSIST_ANNOTATION, toPersist);
+    return state.getToplevelList().getElement(PersistableModel.of(type).getPersistable().tag(), reference.getText());
+  }
+  
+  /**
+   * Append a record of {@code element} to the file, replacing any earlier record for its tag and ID.
+   * @return The length of the record, not counting its header.
+   */
+  private int append(ToplevelElement element) {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (XmlChannelWriter writer = new XmlChannelWriter(Channels.newChannel(body))) {
+      writer.startElement(XmlPersistor.ROOT_ELEMENT_NAME);
+      element.write(writer);
+      writer.endElement(XmlPersistor.ROOT_ELEMENT_NAME);
+    } catch (IOException e) {
+      throw new PersistenceException("Could not persist the toplevel element with tag name '" + element.getTag()
+          + "' and id '" + element.getId() + "'.", e);
+    }
+    
+    byte[] tag = element.getTag().getBytes(StandardCharsets.UTF_8);
+    byte[] id = element.getId().getBytes(StandardCharsets.UTF_8);
+    ByteBuffer record = ByteBuffer.allocate(headerLength(element.getTag(), element.getId()) + body.size());
+    record.putInt(body.size()).putInt(nextSharedId);
+    record.putInt(tag.length).put(tag);
+    record.putInt(id.length).put(id);
+    record.put(body.toByteArray());
+    record.flip();
+    
+    try {
+      writeFully(record, end);
+    } catch (IOException e) {
+      throw new PersistenceException("Could not write to " + file + ".", e);
+    }
+    records.put(element.getTag(), element.getId(), new Record(end + record.limit() - body.size(), body.size()));
+    end += record.limit();
+    writes++;
+    return body.size();
+  }
+  
+  private void writeFully(ByteBuffer bytes, long position) throws IOException {
+    while (bytes.hasRemaining()) {
+      position += channel.write(bytes, position);
+    }
+  }
+  
+  private void addResident(ItemID itemID, Resident added) {
+    residents.put(itemID, added);
+    residentBytes += added.weight;
+  }
+  
+  /**
+   * Evict the least recently used objects until the resident objects are within the memory budget, or only the most
+   * recently used one is left, writing back those which are dirty.
+   * @throws PersistenceException If a dirty object can't be persisted or written, in which case it stays resident.
+   */
+  private void evict() {
+    while (residentBytes > maxResidentBytes && residents.size() > 1) {
+      Map.Entry<ItemID, Resident> eldest = residents.entrySet().iterator().next();
+      ItemID itemID = eldest.getKey();
+      Resident evicted = eldest.getValue();
+      if (evicted.dirty) {
+        write(evicted.type, evicted.obj); // before it's dropped, so that its changes aren't lost if this fails
+      }
+      residents.remove(itemID);
+      residentBytes -= evicted.weight;
+      evictions++;
+    }
+  }
+  
+  /**
+   * Write back every dirty resident object, and force the file to disk.
+   * @throws PersistenceException If an object can't be persisted or written.
+   * @throws IllegalStateException If the store has been closed.
+   */
+  public synchronized void flush() {
+    checkOpen();
+    for (Resident dirty : new ArrayList<>(residents.values())) {
+      if (dirty.dirty) {
+        int weight = write(dirty.type, dirty.obj);
+        residentBytes += weight - dirty.weight;
+        dirty.weight = weight;
+        dirty.dirty = false;
+      }
+    }
+    try {
+      channel.force(false);
+    } catch (IOException e) {
+      throw new PersistenceException("Could not write to " + file + ".", e);
+    }
+    evict();
+  }
+  
+  /**
+   * @return The memory budget, in bytes of records.
+   */
+  public long getMaxResidentBytes() {
+    return maxResidentBytes;
+  }
+  
+  /**
+   * @return The bytes of the records of the objects currently resident.
+   */
+  public synchronized long getResidentBytes() {
+    return residentBytes;
+  }
+  
+  /**
+   * @return The number of objects currently resident.
+   */
+  public synchronized int getResidentCount() {
+    return residents.size();
+  }
+  
+  /**
+   * @return The number of objects stored.
+   */
+  public synchronized int size() {
+    return records.size();
+  }
+  
+  /**
+   * @return The number of times a non-resident object was loaded through a handle.
+   */
+  public synchronized long getLoads() {
+    return loads;
+  }
+  
+  /**
+   * @return The number of objects evicted.
+   */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+  
+  /**
+   * @return The number of records written.
+   */
+  public synchronized long getWrites() {
+    return writes;
+  }
+  
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("The store has been closed");
+    }
+  }
+  
+  /**
+   * Flush the store and close its file. Its handles can no longer be used.
+   * @throws PersistenceException If a dirty object can't be persisted or written.
+   * @throws UncheckedIOException If the file can't be closed.
+   */
+  @Override
+  public synchronized void close() {
+    if (closed) return;
+    try {
+      flush();
+    } finally {
+      closed = true;
+      try {
+        channel.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+  
+  private static void closeQuietly(FileChannel channel) {
+    if (channel == null) return;
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // nothing to be done
+    }
+  }
+  
+  /** Where the latest record of a stored object is in the file. */
+  private static final class Record {
+    
+    /** The offset of the record, just after its header. */
+    private final long offset;
+    private final int length;
+    
+    private Record(long offset, int length) {
+      this.offset = offset;
+      this.length = length;
+    }
+    
+  }
+  
+  /** A resident object, with what's needed to write it back. */
+  private static final class Resident {
+    
+    private final Class<?> type;
+    private final Object obj;
+    
+    /** The length of its record when it was last loaded or written. */
+    private int weight;
+    
+    private boolean dirty = false;
+    
+    private Resident(Class<?> type, Object obj, int weight) {
+      this.type = type;
+      this.obj = obj;
+      this.weight = weight;
+    }
+    
+  }
+  
+}
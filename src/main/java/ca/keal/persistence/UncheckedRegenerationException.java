@@ -0,0 +1,25 @@
+package ca.keal.persistence;
+
+/**
+ * Wraps a {@link RegenerationException} with an unchecked exception, for where a checked exception cannot be thrown,
+ * such as from {@link java.util.Iterator#next()}.
+ */
+public class UncheckedRegenerationException extends RuntimeException {
+  
+  /**
+   * @param cause The {@link RegenerationException} wrapped.
+   * @throws NullPointerException If {@code cause} is {@code null}.
+   */
+  public UncheckedRegenerationException(RegenerationException cause) {
+    super(cause.getMessage(), cause);
+  }
+  
+  /**
+   * @return The {@link RegenerationException} wrapped.
+   */
+  @Override
+  public synchronized RegenerationException getCause() {
+    return (RegenerationException) super.getCause();
+  }
+  
+}
@@ -0,0 +1,418 @@
+package ca.keal.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Writes XML straight to a {@link WritableByteChannel} as UTF-8, without building a DOM or going through a
+ * {@link java.io.Writer}. Tags and escaped text are encoded directly into a batch of pooled direct buffers (see
+ * {@link DirectBufferPool}), which are written out together with a gathering write when they are all full.
+ * 
+ * Element names are encoded once and cached; the names of the tags of every {@link PersistableModel} are encoded as the
+ * model is built.
+ * 
+ * Elements are written with {@link #startElement(String)}, any number of calls to
+ * {@link #attribute(String, String)}, the element's contents, and finally {@link #endElement(String)}. Elements with no
+ * contents are written as empty-element tags. Nothing is checked: it's up to the caller to write well-formed XML.
+ */
+final class XmlChannelWriter implements Closeable {
+  
+  /** The number of buffers written in one gathering write. */
+  private static final int BATCH_SIZE = 16;
+  
+  /** Enough room for the longest encoding of any one character, i.e. an escaped one. */
+  private static final int MAX_CHAR_BYTES = 8;
+  
+  private static final byte[] DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+      .getBytes(StandardCharsets.UTF_8);
+  
+  private static final byte[] CDATA_START = "<![CDATA[".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] CDATA_END = "]]>".getBytes(StandardCharsets.US_ASCII);
+  
+  /** Which ASCII characters can be copied as they are into text and attribute values, respectively. */
+  private static final boolean[] CLEAN_IN_TEXT = new boolean[0x80];
+  private static final boolean[] CLEAN_IN_ATTRIBUTE = new boolean[0x80];
+  static {
+    for (char c = 0x20; c < 0x80; c++) {
+      CLEAN_IN_TEXT[c] = CLEAN_IN_ATTRIBUTE[c] = c != '<' && c != '>' && c != '&';
+    }
+    CLEAN_IN_TEXT['\n'] = CLEAN_IN_TEXT['\t'] = true;
+    CLEAN_IN_ATTRIBUTE['"'] = false;
+  }
+  
+  /** The cache of encoded element and attribute names. Bounded in practice by the tags used in the models. */
+  private static final ConcurrentMap<String, byte[]> NAMES = new ConcurrentHashMap<>();
+  
+  private final WritableByteChannel channel;
+  private final ByteBuffer[] batch = new ByteBuffer[BATCH_SIZE];
+  
+  /** Runs of ASCII characters are copied into here, then into the buffer in bulk. */
+  private final byte[] scratch = new byte[1024];
+  
+  /** The index in {@link #batch} of the buffer being written to. */
+  private int current = 0;
+  private ByteBuffer buffer;
+  
+  /** The number of bytes written out to the channel so far. */
+  private long flushed = 0;
+  
+  /** Whether the last start tag written is still missing its closing {@code '>'}. */
+  private boolean startTagOpen = false;
+  
+  private boolean closed = false;
+  
+  /**
+   * Create a writer to {@code channel}, writing the XML declaration.
+   */
+  XmlChannelWriter(WritableByteChannel channel) {
+    this(channel, true);
+  }
+  
+  /**
+   * Create a writer to {@code channel}, writing the XML declaration if {@code declaration} is set, or else writing
+   * nothing but the elements written to it, such as to keep them to be copied into a document later.
+   */
+  XmlChannelWriter(WritableByteChannel channel, boolean declaration) {
+    this.channel = channel;
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      batch[i] = DirectBufferPool.acquire();
+    }
+    buffer = batch[0];
+    if (declaration) {
+      buffer.put(DECLARATION);
+    }
+  }
+  
+  /**
+   * @return The UTF-8 encoding of the element or attribute name {@code name}, cached.
+   */
+  static byte[] encodeName(String name) {
+    byte[] encoded = NAMES.get(name);
+    if (encoded == null) {
+      encoded = name.getBytes(StandardCharsets.UTF_8);
+      NAMES.putIfAbsent(name, encoded);
+    }
+    return encoded;
+  }
+  
+  /**
+   * Write the start of a start tag, {@code <name}.
+   */
+  void startElement(String name) throws IOException {
+    closeStartTag();
+    putByte('<');
+    putBytes(encodeName(name));
+    startTagOpen = true;
+  }
+  
+  /**
+   * Write an attribute of the element just started. {@code value} is escaped.
+   */
+  void attribute(String name, String value) throws IOException {
+    putByte(' ');
+    putBytes(encodeName(name));
+    putByte('=');
+    putByte('"');
+    putEscaped(value, true);
+    putByte('"');
+  }
+  
+  /**
+   * Write {@code text}, escaped, as contents of the current element.
+   */
+  void text(String text) throws IOException {
+    if (text.isEmpty()) {
+      return;
+    }
+    closeStartTag();
+    putEscaped(text, false);
+  }
+  
+  /**
+   * Write {@code text} as contents of the current element in CDATA sections, without escaping it. {@code "]]>"} and
+   * carriage returns, which can't be represented in CDATA, are split out of the sections.
+   */
+  void cdata(String text) throws IOException {
+    if (text.isEmpty()) {
+      return;
+    }
+    closeStartTag();
+    putBytes(CDATA_START);
+    int length = text.length();
+    int start = 0;
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      if (c == '\r') {
+        putUnescaped(text, start, i);
+        putBytes(CDATA_END);
+        putEscaped("\r", false);
+        putBytes(CDATA_START);
+        start = i + 1;
+      } else if (c == ']' && text.startsWith("]]>", i)) {
+        putUnescaped(text, start, i + 2);
+        putBytes(CDATA_END);
+        putBytes(CDATA_START);
+        start = i + 2;
+      }
+    }
+    putUnescaped(text, start, length);
+    putBytes(CDATA_END);
+  }
+  
+  /**
+   * Write the remaining bytes of {@code bytes}, which must already be well-formed UTF-8 encoded XML, as they are as
+   * contents of the current element.
+   */
+  void copy(ByteBuffer bytes) throws IOException {
+    if (!bytes.hasRemaining()) {
+      return;
+    }
+    closeStartTag();
+    while (bytes.hasRemaining()) {
+      if (!buffer.hasRemaining()) {
+        nextBuffer();
+      }
+      int length = Math.min(bytes.remaining(), buffer.remaining());
+      ByteBuffer part = bytes.duplicate();
+      part.limit(part.position() + length);
+      buffer.put(part);
+      bytes.position(bytes.position() + length);
+    }
+  }
+  
+  /**
+   * @return The number of bytes written so far, including those not yet written out to the channel.
+   */
+  long position() {
+    long position = flushed;
+    for (int i = 0; i <= current; i++) {
+      position += batch[i].position();
+    }
+    return position;
+  }
+  
+  /**
+   * Write the end of the current element, named {@code name}: either an end tag, or {@code />} if it has no contents.
+   */
+  void endElement(String name) throws IOException {
+    if (startTagOpen) {
+      startTagOpen = false;
+      putByte('/');
+      putByte('>');
+      return;
+    }
+    putByte('<');
+    putByte('/');
+    putBytes(encodeName(name));
+    putByte('>');
+  }
+  
+  /**
+   * Write out everything written so far, and return the buffers to the pool. Does not close the channel.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    try {
+      flush();
+    } finally {
+      for (ByteBuffer pooled : batch) {
+        DirectBufferPool.release(pooled);
+      }
+    }
+  }
+  
+  private void closeStartTag() throws IOException {
+    if (startTagOpen) {
+      startTagOpen = false;
+      putByte('>');
+    }
+  }
+  
+  private void putByte(char b) throws IOException {
+    if (!buffer.hasRemaining()) {
+      nextBuffer();
+    }
+    buffer.put((byte) b);
+  }
+  
+  private void putBytes(byte[] bytes) throws IOException {
+    int offset = 0;
+    while (offset < bytes.length) {
+      if (!buffer.hasRemaining()) {
+        nextBuffer();
+      }
+      int length = Math.min(bytes.length - offset, buffer.remaining());
+      buffer.put(bytes, offset, length);
+      offset += length;
+    }
+  }
+  
+  /**
+   * Encode {@code text} as UTF-8, escaping markup characters; in attribute values, also escape quotes and whitespace
+   * other than spaces so that they survive attribute value normalization. Runs of characters which need neither
+   * escaping nor encoding, which are most of most text, are copied in bulk.
+   */
+  private void putEscaped(String text, boolean attribute) throws IOException {
+    boolean[] clean = attribute ? CLEAN_IN_ATTRIBUTE : CLEAN_IN_TEXT;
+    int length = text.length();
+    int i = 0;
+    while (i < length) {
+      int run = i;
+      char c;
+      while (run < length && (c = text.charAt(run)) < 0x80 && clean[c]) {
+        run++;
+      }
+      if (run > i) {
+        putAsciiRun(text, i, run);
+        i = run;
+        continue;
+      }
+      
+      if (buffer.remaining() < MAX_CHAR_BYTES) {
+        nextBuffer();
+      }
+      c = text.charAt(i);
+      switch (c) {
+        case '<':
+          putAscii("&lt;");
+          break;
+        case '>':
+          putAscii("&gt;");
+          break;
+        case '&':
+          putAscii("&amp;");
+          break;
+        case '"':
+          putAscii("&quot;");
+          break;
+        case '\r':
+          putAscii("&#13;");
+          break;
+        case '\n':
+          putAscii("&#10;");
+          break;
+        case '\t':
+          putAscii("&#9;");
+          break;
+        default:
+          i = putNonAscii(text, i, c);
+      }
+      i++;
+    }
+  }
+  
+  /**
+   * Encode {@code text} from {@code start} to {@code end} as UTF-8 without escaping anything, copying runs of ASCII in
+   * bulk.
+   */
+  private void putUnescaped(String text, int start, int end) throws IOException {
+    int i = start;
+    while (i < end) {
+      int run = i;
+      while (run < end && text.charAt(run) < 0x80) {
+        run++;
+      }
+      if (run > i) {
+        putAsciiRun(text, i, run);
+        i = run;
+        continue;
+      }
+      
+      if (buffer.remaining() < MAX_CHAR_BYTES) {
+        nextBuffer();
+      }
+      i = putNonAscii(text, i, text.charAt(i)) + 1;
+    }
+  }
+  
+  /** Copy the ASCII characters of {@code text} from {@code start} to {@code end} in bulk. */
+  @SuppressWarnings("deprecation")
+  private void putAsciiRun(String text, int start, int end) throws IOException {
+    while (start < end) {
+      if (!buffer.hasRemaining()) {
+        nextBuffer();
+      }
+      int length = Math.min(end - start, Math.min(buffer.remaining(), scratch.length));
+      text.getBytes(start, start + length, scratch, 0); // just the low bytes, which is exactly ASCII
+      buffer.put(scratch, 0, length);
+      start += length;
+    }
+  }
+  
+  /**
+   * Encode the non-ASCII character {@code c} at {@code i} in {@code text}, which fits in the current buffer, as UTF-8.
+   * Unpaired surrogates are written as '?', as {@link String#getBytes(java.nio.charset.Charset)} does.
+   * @return The index of the last {@code char} encoded, which is {@code i + 1} for a surrogate pair.
+   */
+  private int putNonAscii(String text, int i, char c) {
+    if (c < 0x80) {
+      buffer.put((byte) c); // a control character
+    } else if (c < 0x800) {
+      buffer.put((byte) (0xC0 | c >> 6));
+      buffer.put((byte) (0x80 | c & 0x3F));
+    } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+      int codePoint = Character.toCodePoint(c, text.charAt(++i));
+      buffer.put((byte) (0xF0 | codePoint >> 18));
+      buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+      buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+      buffer.put((byte) (0x80 | codePoint & 0x3F));
+    } else if (Character.isSurrogate(c)) {
+      buffer.put((byte) '?');
+    } else {
+      buffer.put((byte) (0xE0 | c >> 12));
+      buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+      buffer.put((byte) (0x80 | c & 0x3F));
+    }
+    return i;
+  }
+  
+  /** Put an ASCII string which is known to fit in the current buffer. */
+  private void putAscii(String ascii) {
+    for (int i = 0; i < ascii.length(); i++) {
+      buffer.put((byte) ascii.charAt(i));
+    }
+  }
+  
+  /** Move on to the next buffer in the batch, writing the batch out if it's full. */
+  private void nextBuffer() throws IOException {
+    if (current == BATCH_SIZE - 1) {
+      flush();
+    } else {
+      buffer = batch[++current];
+    }
+  }
+  
+  /** Write out every buffer written to so far, then start again from the first. */
+  private void flush() throws IOException {
+    for (int i = 0; i <= current; i++) {
+      flushed += batch[i].position();
+      batch[i].flip();
+    }
+    if (channel instanceof GatheringByteChannel) {
+      GatheringByteChannel gathering = (GatheringByteChannel) channel;
+      while (batch[current].hasRemaining()) {
+        gathering.write(batch, 0, current + 1);
+      }
+    } else {
+      for (int i = 0; i <= current; i++) {
+        while (batch[i].hasRemaining()) {
+          channel.write(batch[i]);
+        }
+      }
+    }
+    for (int i = 0; i <= current; i++) {
+      batch[i].clear();
+    }
+    current = 0;
+    buffer = batch[0];
+  }
+  
+}
@@ -3,10 +3,27 @@ package ca.keal.persistence;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
 import java.lang.annotation.Annotation;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
 
 /**
  * Handles persisting an @{@link Persistable} object of type {@code R} to XML and regenerating it from XML.
@@ -17,10 +34,10 @@ import java.lang.annotation.Annotation;
 // TODO should we *really* be using objenesis? like should we *really*? or should we require default constructors?
 public class XmlPersistor<R> {
   
-  private static final String ROOT_ELEMENT_NAME = "persisted";
+  static final String ROOT_ELEMENT_NAME = "persisted";
   
-  // A base instance of Persist used for the root element
-  private static final Persist ROOT_PERSIST_ANNOTATION = new Persist() {
+  // A base instance of Persist used for the root element, and for each object written to a ToplevelStore
+  static final Persist ROOT_PERSIST_ANNOTATION = new Persist() {
     @Override
     public Class<? extends Annotation> annotationType() {
       return Persist.class;
@@ -30,11 +47,42 @@ public class XmlPersistor<R> {
     public String value() {
       return "root-persist-tag-YOU-SHOULD-NOT-SEE-THIS";
     }
+    
+    @Override
+    public boolean cdata() {
+      return false;
+    }
   };
   
   private final Class<R> rootClass;
   private final Persistable rootAnnotation;
   
+  private boolean deduplicateSubtrees = false;
+  
+  /** Which fields are regenerated. */
+  private Projection projection = Projection.ALL;
+  
+  /** The directory in which regenerated large values are spilled, or {@code null} for the default. */
+  private Path spillDirectory = null;
+  
+  /** The cache of shareable toplevel objects shared with other regenerations, or {@code null} if there is none. */
+  private ToplevelCache toplevelCache = null;
+  
+  /** Whether documents read from files keep the elements inside toplevel elements in an {@link ElementArena}. */
+  private boolean compactElements = true;
+  
+  /** Whether {@link #toXml(Object, WritableByteChannel)} writes out each toplevel element as soon as it's finished. */
+  private boolean spillToplevels = false;
+  
+  /** Where to report what is persisted and regenerated. */
+  private PersistenceMetrics metrics = PersistenceMetrics.NONE;
+  
+  /** What to tell as documents and toplevel objects are persisted and regenerated. */
+  private PersistenceTracer tracer = PersistenceTracer.NONE;
+  
+  /** Where to report anything suspicious found while persisting and regenerating. */
+  private Diagnostics diagnostics = new Diagnostics(DiagnosticListener.CONSOLE);
+  
   /**
    * Instantiate an {@link XmlPersistor}.
    * @param rootClass The class of the object to be persisted or regenerated. This must be @{@link Persistable} with
@@ -56,6 +104,191 @@ public class XmlPersistor<R> {
     this.rootClass = rootClass;
   }
   
+  /**
+   * @return Whether {@link #toXml(Object)} writes identical embedded subtrees only once.
+   * @see #setDeduplicateSubtrees(boolean)
+   */
+  public boolean isDeduplicateSubtrees() {
+    return deduplicateSubtrees;
+  }
+  
+  /**
+   * Set whether {@link #toXml(Object)} should write identical embedded subtrees only once. If so, each embedded
+   * element whose contents appear more than once in the document is written once as a template alongside the
+   * toplevel elements (an element with a {@code template} attribute), and every occurrence is replaced with an empty
+   * element with a {@code copy-of} attribute referring to the template. {@link #fromXml(Document)} regenerates each
+   * copy as a separate object, exactly as if it had been written out in full, so this only makes documents with many
+   * repeated subtrees smaller. Defaults to {@code false}.
+   */
+  public void setDeduplicateSubtrees(boolean deduplicateSubtrees) {
+    this.deduplicateSubtrees = deduplicateSubtrees;
+  }
+  
+  /**
+   * @return Which fields are regenerated.
+   * @see #setProjection(Projection)
+   */
+  public Projection getProjection() {
+    return projection;
+  }
+  
+  /**
+   * Set which fields are regenerated by {@link #fromXml(Document)} and its relatives, and by cursors. The elements of
+   * fields left out of {@code projection} are skipped, along with everything embedded in them or reached only through
+   * them, and the fields are left at their default values. Since toplevel elements are then expected to go unused, no
+   * warnings are given about them. Defaults to {@link Projection#ALL}.
+   * @throws NullPointerException If {@code projection} is {@code null}.
+   */
+  public void setProjection(Projection projection) {
+    if (projection == null) {
+      throw new NullPointerException("projection cannot be null; use Projection.ALL");
+    }
+    this.projection = projection;
+  }
+  
+  /**
+   * @return The directory in which the files backing regenerated {@link LargeText}s and {@link LargeBytes} are
+   *  created, or {@code null} for the default temporary-file directory.
+   * @see #setSpillDirectory(Path)
+   */
+  public Path getSpillDirectory() {
+    return spillDirectory;
+  }
+  
+  /**
+   * Set the directory in which the files backing regenerated {@link LargeText}s and {@link LargeBytes} are created,
+   * or {@code null} for the default temporary-file directory (the default). Each value is spilled to a file of its
+   * own, which is only deleted when the value is {@link LargeText#close() closed}, so close each regenerated value
+   * once it is no longer needed. Toplevel elements are also spilled here by {@link #setSpillToplevels(boolean)}.
+   */
+  public void setSpillDirectory(Path spillDirectory) {
+    this.spillDirectory = spillDirectory;
+  }
+  
+  /**
+   * @return The cache of shareable toplevel objects used when regenerating, or {@code null} if there is none.
+   * @see #setToplevelCache(ToplevelCache)
+   */
+  public ToplevelCache getToplevelCache() {
+    return toplevelCache;
+  }
+  
+  /**
+   * Set the cache of toplevel objects which {@link #fromXml(Document)} and its relatives, and cursors, reuse instead of
+   * regenerating, or {@code null} to use none. Only objects of classes with {@link Persistable#shareable()} set are
+   * cached, and only when every field is regenerated (see {@link #setProjection(Projection)}); the cached objects are
+   * then shared by every graph regenerated with the cache, so they must never be changed, and such graphs shouldn't be
+   * patched by {@link #applyPatch(PatchableGraph, GraphPatch)}. A cache may be shared by several persistors. Defaults
+   * to {@code null}.
+   */
+  public void setToplevelCache(ToplevelCache toplevelCache) {
+    this.toplevelCache = toplevelCache;
+  }
+  
+  /**
+   * @return Whether {@link #fromXml(Path)} keeps the elements of a document compactly while regenerating it.
+   * @see #setCompactElements(boolean)
+   */
+  public boolean isCompactElements() {
+    return compactElements;
+  }
+  
+  /**
+   * Set whether {@link #fromXml(Path)} and {@link #fromXml(Path, Object)} should keep the elements read from a
+   * document in a few large arrays rather than as an object each, making each toplevel element's elements into objects
+   * only while it is regenerated. This takes a fraction of the memory for documents with many elements, at the cost of
+   * making each element twice; it only applies to documents read by the strict reader. Defaults to {@code true}.
+   */
+  public void setCompactElements(boolean compactElements) {
+    this.compactElements = compactElements;
+  }
+  
+  /**
+   * @return Whether {@link #toXml(Object, WritableByteChannel)} spills toplevel elements to a file as it goes.
+   * @see #setSpillToplevels(boolean)
+   */
+  public boolean isSpillToplevels() {
+    return spillToplevels;
+  }
+  
+  /**
+   * Set whether {@link #toXml(Object, WritableByteChannel)} should write each toplevel element to a temporary file in
+   * the {@link #setSpillDirectory(Path) spill directory} as soon as it has been persisted, instead of keeping every
+   * element in memory until the document is written, and then copy them from the file into the document. The document
+   * is exactly the same either way. This lets graphs be persisted whose elements wouldn't fit in memory, at the cost of
+   * writing everything twice. It doesn't apply while subtrees are deduplicated, which needs every element at once.
+   * Defaults to {@code false}.
+   */
+  public void setSpillToplevels(boolean spillToplevels) {
+    this.spillToplevels = spillToplevels;
+  }
+  
+  /**
+   * @return Where what is persisted and regenerated is reported.
+   * @see #setMetrics(PersistenceMetrics)
+   */
+  public PersistenceMetrics getMetrics() {
+    return metrics;
+  }
+  
+  /**
+   * Set where to report what is persisted and regenerated: the objects of each class and the time they take, the bytes
+   * written and read, the time taken by each phase, and the lookups in the {@link #setToplevelCache(ToplevelCache)
+   * toplevel cache}. Use {@link CountingMetrics} to add them up, and {@link JmxMetrics} to watch those through JMX.
+   * Nothing is timed unless {@code metrics} is {@link PersistenceMetrics#isEnabled() enabled}. Defaults to
+   * {@link PersistenceMetrics#NONE}.
+   * @throws NullPointerException If {@code metrics} is {@code null}.
+   */
+  public void setMetrics(PersistenceMetrics metrics) {
+    if (metrics == null) {
+      throw new NullPointerException("metrics cannot be null; use PersistenceMetrics.NONE");
+    }
+    this.metrics = metrics;
+  }
+  
+  /**
+   * @return What is told as documents and toplevel objects are persisted and regenerated.
+   * @see #setTracer(PersistenceTracer)
+   */
+  public PersistenceTracer getTracer() {
+    return tracer;
+  }
+  
+  /**
+   * Set what to tell as each document, and each toplevel object, starts and finishes being persisted or regenerated,
+   * such as the JDK Flight Recorder events of the {@code jfr} module. Defaults to {@link PersistenceTracer#NONE}.
+   * @throws NullPointerException If {@code tracer} is {@code null}.
+   */
+  public void setTracer(PersistenceTracer tracer) {
+    if (tracer == null) {
+      throw new NullPointerException("tracer cannot be null; use PersistenceTracer.NONE");
+    }
+    this.tracer = tracer;
+  }
+  
+  /**
+   * @return Where anything suspicious found while persisting and regenerating is reported.
+   * @see #setDiagnostics(Diagnostics)
+   */
+  public Diagnostics getDiagnostics() {
+    return diagnostics;
+  }
+  
+  /**
+   * Set where to report anything suspicious, but not fatal, found while persisting and regenerating, such as
+   * elements which don't correspond to any field, or duplicate toplevel IDs. The {@link Diagnostics} count every
+   * {@link Diagnostic}, and pass only a sample of them on to their {@link DiagnosticListener}, so a malformed document
+   * doesn't flood it. They may be shared by several persistors. Defaults to diagnostics of this persistor's own,
+   * printing their sample to {@link System#err} with {@link DiagnosticListener#CONSOLE}.
+   * @throws NullPointerException If {@code diagnostics} is {@code null}.
+   */
+  public void setDiagnostics(Diagnostics diagnostics) {
+    if (diagnostics == null) {
+      throw new NullPointerException("diagnostics cannot be null; use new Diagnostics(DiagnosticListener.NONE)");
+    }
+    this.diagnostics = diagnostics;
+  }
+  
   /**
    * Persist {@code root} to an XML document.
    * @param root The object to be persisted.
@@ -64,13 +297,151 @@ public class XmlPersistor<R> {
    * @throws PersistenceException If an error is encountered when persisting {@code root}.
    */
   public Document toXml(R root) {
+    Object span = startDocument(true);
+    long start = startPhase();
+    ToplevelList toplevels = persistToplevels(root);
+    List<ParentElement> elements = documentElements(toplevels);
+    endPhase(PersistenceMetrics.Phase.PERSIST, start);
+    start = startPhase();
+    
+    // Load it all into an XML document and return
+    Document doc;
+    try {
+      doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+    } catch (ParserConfigurationException e) {
+      // Why must you do this Java, this really should never happen
+      throw new IllegalStateException("Something has, apparently, gone very wrong.", e);
+    }
+    
+    Element rootElement = doc.createElement(ROOT_ELEMENT_NAME);
+    doc.appendChild(rootElement);
+    
+    for (ParentElement element : elements) {
+      rootElement.appendChild(element.toXmlElement(doc));
+    }
+    endPhase(PersistenceMetrics.Phase.BUILD_DOM, start);
+    finishDocument(span, true, toplevels);
+    
+    return doc;
+  }
+  
+  /**
+   * Persist {@code root} straight to {@code out} as a UTF-8 encoded XML document, the same as that returned by
+   * {@link #toXml(Object)}, without building a DOM. Much faster and allocates much less than transforming the document
+   * returned by {@link #toXml(Object)}. {@code out} is not closed.
+   * @param root The object to be persisted.
+   * @param out The channel to which to write the document, such as a {@link java.nio.channels.FileChannel}.
+   * @throws NullPointerException If {@code root} or {@code out} is {@code null}.
+   * @throws PersistenceException If an error is encountered when persisting {@code root}, or when writing to
+   *  {@code out}.
+   */
+  public void toXml(R root, WritableByteChannel out) {
+    if (out == null) {
+      throw new NullPointerException("Cannot persist to a null channel");
+    }
+    Object span = startDocument(true);
+    if (spillToplevels && !deduplicateSubtrees) {
+      toXmlSpilling(root, out, span);
+      return;
+    }
+    long start = startPhase();
+    ToplevelList toplevels = persistToplevels(root);
+    List<ParentElement> elements = documentElements(toplevels);
+    endPhase(PersistenceMetrics.Phase.PERSIST, start);
+    
+    start = startPhase();
+    long written;
+    try (XmlChannelWriter writer = new XmlChannelWriter(out)) {
+      writer.startElement(ROOT_ELEMENT_NAME);
+      for (ParentElement element : elements) {
+        element.write(writer);
+      }
+      writer.endElement(ROOT_ELEMENT_NAME);
+      written = writer.position();
+    } catch (IOException e) {
+      throw new PersistenceException("Could not write the persisted document.", e);
+    }
+    endPhase(PersistenceMetrics.Phase.WRITE, start);
+    metrics.bytesWritten(written);
+    finishDocument(span, true, toplevels);
+  }
+  
+  /** The implementation of {@link #toXml(Object, WritableByteChannel)} for when toplevel elements are spilled. */
+  private void toXmlSpilling(R root, WritableByteChannel out, Object span) {
+    long written;
+    try (SpillingPersistingState state = new SpillingPersistingState(spillDirectory)) {
+      state.setMetrics(metrics);
+      state.setTracer(tracer);
+      state.setDiagnostics(diagnostics);
+      long start = startPhase();
+      persistToplevels(root, state);
+      endPhase(PersistenceMetrics.Phase.PERSIST, start);
+      start = startPhase();
+      try (XmlChannelWriter writer = new XmlChannelWriter(out)) {
+        writer.startElement(ROOT_ELEMENT_NAME);
+        state.writeToplevels(writer);
+        writer.endElement(ROOT_ELEMENT_NAME);
+        written = writer.position();
+      }
+      endPhase(PersistenceMetrics.Phase.WRITE, start);
+      finishDocument(span, true, state.getToplevelList());
+    } catch (IOException e) {
+      throw new PersistenceException("Could not write the persisted document.", e);
+    }
+    metrics.bytesWritten(written);
+  }
+  
+  /**
+   * Copy {@code root} and everything reachable from it, producing the same graph as {@code fromXml(toXml(root))} but
+   * without persisting anything: the @{@link Persist} fields are copied straight from each object to a new instance of
+   * its class. Toplevel objects are still copied once per tag and ID, and embedded objects once each, so sharing and
+   * cycles are kept. Immutable values ({@code String}s, {@link LargeText}s and {@link LargeBytes}) are shared with the
+   * original rather than copied, and text is copied exactly, even where it couldn't be persisted. Only the fields
+   * selected by the {@link #setProjection(Projection) projection} are copied; the rest are left at their default
+   * values.
+   * @param root The object to copy.
+   * @return The copy of {@code root}.
+   * @throws NullPointerException If {@code root} is {@code null}.
+   * @throws PersistenceException If an error is encountered when copying {@code root}, including an exception thrown
+   *  by a @{@link PersistCreator}.
+   */
+  public R deepCopy(R root) {
+    if (root == null) {
+      throw new NullPointerException("Cannot copy null objects");
+    }
+    return new DeepCopier(projection).copy(rootClass, root);
+  }
+  
+  /**
+   * @return The elements which make up the persisted document of {@code toplevels}, in order: the templates, if
+   *  subtree deduplication is enabled, then the toplevel elements.
+   */
+  private List<ParentElement> documentElements(ToplevelList toplevels) {
+    List<ParentElement> elements = new ArrayList<>();
+    if (deduplicateSubtrees) {
+      elements.addAll(new SubtreeDeduplicator().deduplicate(toplevels.getAsCollection()));
+    }
+    elements.addAll(toplevels.getAsCollection());
+    return elements;
+  }
+  
+  /** Persist {@code root} to the toplevel elements which make up the persisted document, with the root marked. */
+  private ToplevelList persistToplevels(R root) {
+    PersistingState state = new PersistingState();
+    state.setMetrics(metrics);
+    state.setTracer(tracer);
+    state.setDiagnostics(diagnostics);
+    return persistToplevels(root, state);
+  }
+  
+  /** Persist {@code root} to the toplevel elements in the {@link ToplevelList} of {@code state}, with the root marked. */
+  private ToplevelList persistToplevels(R root, PersistingState state) {
     if (root == null) {
       // TODO maybe support persisting null objects if a use case exists
       throw new NullPointerException("Cannot persist null objects");
     }
     
     // Persist the root element first
-    PersistingState state = new PersistingState();
     PersistRegenStrategy<R> strategy = PersistenceUtil.pickStrategy(rootClass, root);
     
     // We can do this because we checked that it's toplevel in the constructor
@@ -78,24 +449,131 @@ public class XmlPersistor<R> {
     
     // Find the toplevel element with this ID and set it to root
     state.getToplevelList().getElement(rootAnnotation.tag(), idElement.getText()).setRoot(true);
+    return state.getToplevelList();
+  }
+  
+  /**
+   * Work out the difference between the graphs of {@code from} and {@code to}, as a patch which turns the first into
+   * the second when applied by {@link #applyPatch(PatchableGraph, GraphPatch)}. Both graphs are persisted and their
+   * elements compared: the patch adds the toplevel elements only in {@code to}, removes those only in {@code from},
+   * and for those in both, changes only the fields whose persisted contents differ, so it is only as large as the
+   * change. {@link LargeText}s and {@link LargeBytes} are only the same if they are the same object. Graphs which
+   * share embedded objects (that is, which persist with {@code shared} elements) can't be diffed.
+   * @param from The graph to be patched.
+   * @param to The graph the patch should turn {@code from} into.
+   * @return The patch.
+   * @throws NullPointerException If either parameter is {@code null}.
+   * @throws PersistenceException If an error is encountered when persisting either graph, their roots have different
+   *  IDs, or either shares embedded objects.
+   */
+  public GraphPatch diff(R from, R to) {
+    return new GraphDiffer(Collections.emptyMap())
+        .diff(persistToplevels(from).getAsCollection(), persistToplevels(to).getAsCollection());
+  }
+  
+  /**
+   * Work out the difference between the graph persisted in the document {@code from} and the graph of {@code to}, as
+   * {@link #diff(Object, Object)} does, such as to bring a copy regenerated from an older document up to date.
+   * @param from The persisted document of the graph to be patched.
+   * @param to The graph the patch should turn that of {@code from} into.
+   * @return The patch.
+   * @throws NullPointerException If either parameter is {@code null}.
+   * @throws PersistenceException If an error is encountered when persisting {@code to}, the roots have different
+   *  IDs, or either graph shares embedded objects.
+   * @throws RegenerationException If {@code from} can't be read or parsed.
+   */
+  public GraphPatch diff(Path from, R to) throws RegenerationException {
+    if (from == null) {
+      throw new NullPointerException("Cannot diff a null file");
+    }
     
-    // Load it all into an XML document and return
-    Document doc;
-    try {
-      doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
-    } catch (ParserConfigurationException e) {
-      // Why must you do this Java, this really should never happen
-      throw new IllegalStateException("Something has, apparently, gone very wrong.", e);
+    Map<Integer, TemplateElement> templates = new HashMap<>();
+    List<ToplevelElement> toplevels = new ArrayList<>();
+    for (ParentElement element : readElements(from)) {
+      if (element instanceof TemplateElement) {
+        templates.put(((TemplateElement) element).getTemplateId(), (TemplateElement) element);
+      } else {
+        toplevels.add((ToplevelElement) element);
+      }
     }
+    return new GraphDiffer(templates).diff(toplevels, persistToplevels(to).getAsCollection());
+  }
   
-    Element rootElement = doc.createElement(ROOT_ELEMENT_NAME);
-    doc.appendChild(rootElement);
-    
-    for (ToplevelElement element : state.getToplevelList().getAsCollection()) {
-      rootElement.appendChild(element.toXmlElement(doc));
+  /**
+   * Start tracking the graph of {@code root} so that patches may be applied to it in place by
+   * {@link #applyPatch(PatchableGraph, GraphPatch)}. This walks the whole graph once to index its toplevel objects;
+   * applying patches afterwards doesn't.
+   * @param root The root of the graph, such as one just regenerated.
+   * @return The tracked graph.
+   * @throws NullPointerException If {@code root} is {@code null}.
+   * @throws PersistenceException If a class in the graph isn't properly @{@link Persistable}.
+   */
+  public PatchableGraph<R> track(R root) {
+    if (root == null) {
+      throw new NullPointerException("Cannot track a null graph");
+    }
+    return PatchableGraph.track(rootClass, root);
+  }
+  
+  /**
+   * Apply {@code patch}, made by {@link #diff(Object, Object)} or {@link #diff(Path, Object)}, to the tracked graph
+   * {@code graph} in place. Removed toplevel objects are forgotten; each changed toplevel object has only its changed
+   * fields regenerated, without calling any @{@link PersistCreator} again; and added toplevel objects are regenerated
+   * as the changed fields refer to them. References to the rest of the graph resolve to the objects already in it.
+   * The work done depends on the size of the patch, not of the graph. Objects of {@link Persistable#shareable()}
+   * classes may be shared with other graphs by a {@link #setToplevelCache(ToplevelCache) cache}, so a patch which
+   * changes one is refused before anything is patched. If the patch fails part-way otherwise, the graph is left partly
+   * patched.
+   * @param graph The graph to patch.
+   * @param patch The patch to apply.
+   * @throws NullPointerException If either parameter is {@code null}.
+   * @throws RegenerationException If the patch changes a toplevel object which isn't in the graph or is of a shareable
+   *  class, or an error is encountered when regenerating a field.
+   */
+  public void applyPatch(PatchableGraph<R> graph, GraphPatch patch) throws RegenerationException {
+    if (graph == null || patch == null) {
+      throw new NullPointerException("Cannot apply a patch with a null parameter");
     }
     
-    return doc;
+    try {
+      RegenState state = new RegenState(graph.getToplevelRegistry());
+      state.setSpillDirectory(spillDirectory);
+      state.setDiagnostics(diagnostics);
+      
+      // Find every changed object first, so that nothing is patched if any can't be
+      List<Object> changed = new ArrayList<>();
+      for (ToplevelElement changes : patch.getChanged()) {
+        Object existing = state.getToplevelRegistry().get(changes.getTag(), changes.getId());
+        if (existing == null) {
+          throw new RegenerationException("Patch changes toplevel element with tag name '" + changes.getTag()
+              + "' and id '" + changes.getId() + "', which doesn't exist.");
+        }
+        if (PersistableModel.of(graph.getToplevelClass(changes.getTag(), existing)).isShareable()) {
+          throw new RegenerationException("Patch changes toplevel element with tag name '" + changes.getTag()
+              + "' and id '" + changes.getId() + "', which is shareable and so can't be changed in place.");
+        }
+        changed.add(existing);
+      }
+      
+      for (ItemID itemID : patch.getRemoved()) {
+        state.getToplevelRegistry().remove(itemID.getName(), itemID.getId());
+      }
+      for (ToplevelElement element : patch.getAdded()) {
+        state.getToplevelList().addElement(element);
+      }
+      for (int i = 0; i < changed.size(); i++) {
+        ToplevelElement changes = patch.getChanged().get(i);
+        patchObject(state, graph.getToplevelClass(changes.getTag(), changed.get(i)), changed.get(i), changes);
+      }
+    } catch (PersistenceException e) {
+      throw new RegenerationException(e.getMessage(), e.getCause());
+    }
+  }
+  
+  /** Patch {@code existing}, an instance of {@code cls}, with {@code changes}. This exists for generics reasons. */
+  private static <T> void patchObject(RegenState state, Class<T> cls, Object existing, ToplevelElement changes)
+      throws RegenerationException {
+    new PersistablePRStrategy<>(cls).patch(state, cls.cast(existing), changes);
   }
   
   /**
@@ -106,60 +584,450 @@ public class XmlPersistor<R> {
    * @throws RegenerationException If an error is encountered when regenerating the object.
    */
   public R fromXml(Document doc) throws RegenerationException {
+    return fromXml(doc, null);
+  }
+  
+  /**
+   * Regenerate an object from {@code doc} into the existing object graph of {@code target}, reusing its objects
+   * instead of creating new ones wherever possible, so that reloading a document keeps the identities of its objects
+   * (references held elsewhere to objects in the graph stay valid) and any state they hold which isn't persisted.
+   * {@code target} is filled in for the root element, whatever its ID. Below it, the object in each field of a reused
+   * object is reused for the element regenerated into that field: always for a non-toplevel element, and for a
+   * toplevel element if it has the same ID. An object is only reused if it is of exactly the class regenerated and its
+   * class has no @{@link PersistCreator}, and only once; new objects are created for everything else. Fields which
+   * aren't regenerated (those without @{@link Persist}, or left out of the {@link #setProjection(Projection)
+   * projection}) keep their values.
+   * @param doc The XML document from which to regenerate the object.
+   * @param target The root object to regenerate into, or {@code null} to regenerate a new graph.
+   * @return The object regenerated from {@code doc}: {@code target}, unless it can't be reused.
+   * @throws NullPointerException If {@code doc} is {@code null}.
+   * @throws RegenerationException If an error is encountered when regenerating the object.
+   */
+  public R fromXml(Document doc, R target) throws RegenerationException {
+    return fromXml(doc, target, startDocument(false));
+  }
+  
+  /**
+   * The implementation of {@link #fromXml(Document, Object)}, finishing the tracer's {@code span} for the document.
+   */
+  private R fromXml(Document doc, R target, Object span) throws RegenerationException {
     if (doc == null) {
       throw new NullPointerException("Cannot regenerate from a null Document");
     }
     
     Element docRoot = doc.getDocumentElement();
     if (!docRoot.getTagName().equals("persisted")) {
-      System.err.println("WARNING: root tag name is '" + docRoot.getTagName() + "', not 'persisted'.");
+      diagnostics.report(Diagnostic.Kind.ROOT_TAG_NAME, null, docRoot.getTagName(), null, null);
     }
     if (docRoot.hasAttributes()) {
-      System.err.println("WARNING: root tag has attributes for some reason.");
+      diagnostics.report(Diagnostic.Kind.ROOT_ATTRIBUTES, null, null, null, null);
     }
     
     try {
       // Load everything into the ToplevelList + find the root ToplevelElement
-      RegenState state = new RegenState();
+      long start = startPhase();
+      RegenState state = newRegenState();
       ToplevelElement root = null;
       
-      for (int i = 0; i < docRoot.getChildNodes().getLength(); i++) { // for some reason NodeList isn't Iterable
-        Node childNode = docRoot.getChildNodes().item(i);
-        if (childNode instanceof Element) {
-          Element child = (Element) childNode;
-          ToplevelElement childToplevel = ToplevelElement.fromXmlElement(child);
-          state.getToplevelList().addElement(childToplevel);
-          
-          if (childToplevel.isRoot()) {
-            if (root != null) {
-              throw new RegenerationException("Multiple toplevel nodes marked `root`");
-            }
-            root = childToplevel;
-          }
-        }
+      for (ParentElement element : elementsOf(docRoot)) {
+        root = loadElement(state, element, root);
       }
       
-      if (root == null) {
-        throw new RegenerationException("No root toplevel node");
+      R regenerated = regenerateFromRoot(state, root, target, span);
+      endPhase(PersistenceMetrics.Phase.REGENERATE, start);
+      return regenerated;
+    } catch (PersistenceException e) {
+      // some common persist/regen methods throw PersistenceExceptions, so we just rethrow as RegenerationExceptions
+      throw new RegenerationException(e.getMessage(), e.getCause());
+    }
+  }
+  
+  /**
+   * Regenerate an object from the persisted document {@code file}, parsing it with {@code threads} threads. The
+   * toplevel elements of the document are split into chunks at their boundaries, which are parsed concurrently and then
+   * merged in document order, so the result (and any warnings) are the same as those of {@link #fromXml(Document)}.
+   * Documents in encodings other than UTF-8 and similar ASCII-compatible encodings, and documents with a DOCTYPE (whose
+   * entities every chunk would need), are parsed on one thread.
+   * @param file The persisted document.
+   * @param threads The number of threads with which to parse the document.
+   * @return The object regenerated from {@code file}.
+   * @throws NullPointerException If {@code file} is {@code null}.
+   * @throws IllegalArgumentException If {@code threads} is not positive.
+   * @throws RegenerationException If {@code file} can't be read or parsed, or an error is encountered when
+   *  regenerating the object.
+   */
+  public R fromXml(Path file, int threads) throws RegenerationException {
+    if (file == null) {
+      throw new NullPointerException("Cannot regenerate from a null file");
+    }
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be positive, not " + threads);
+    }
+    
+    Object span = startDocument(false);
+    long start = startPhase();
+    List<ParentElement> elements = ParallelLoader.load(file, threads, diagnostics);
+    if (elements == null) {
+      return fromXml(parseFile(file), null, span);
+    }
+    endPhase(PersistenceMetrics.Phase.PARSE, start);
+    return regenerateElements(elements, null, span);
+  }
+  
+  /**
+   * Regenerate an object from the persisted document {@code file}, read with a strict reader specialised to the subset
+   * of XML in which documents are persisted, which is much faster than parsing a DOM and only decodes the text which
+   * is actually regenerated. If the document contains anything the strict reader doesn't recognise (for instance, a
+   * DTD or an encoding other than UTF-8), it is parsed as by {@link #fromXml(Document)} instead.
+   * Either way, the result is the same as that of {@link #fromXml(Document)}.
+   * @param file The persisted document.
+   * @return The object regenerated from {@code file}.
+   * @throws NullPointerException If {@code file} is {@code null}.
+   * @throws RegenerationException If {@code file} can't be read or parsed, or an error is encountered when
+   *  regenerating the object.
+   */
+  public R fromXml(Path file) throws RegenerationException {
+    return fromXml(file, (R) null);
+  }
+  
+  /**
+   * Regenerate an object from the persisted document {@code file}, read as by {@link #fromXml(Path)}, into the
+   * existing object graph of {@code target}, reusing its objects as {@link #fromXml(Document, Object)} does.
+   * @param file The persisted document.
+   * @param target The root object to regenerate into, or {@code null} to regenerate a new graph.
+   * @return The object regenerated from {@code file}: {@code target}, unless it can't be reused.
+   * @throws NullPointerException If {@code file} is {@code null}.
+   * @throws RegenerationException If {@code file} can't be read or parsed, or an error is encountered when
+   *  regenerating the object.
+   */
+  public R fromXml(Path file, R target) throws RegenerationException {
+    return fromXml(file, target, startDocument(false));
+  }
+  
+  /** The implementation of {@link #fromXml(Path, Object)}, finishing the tracer's {@code span} for the document. */
+  private R fromXml(Path file, R target, Object span) throws RegenerationException {
+    if (file == null) {
+      throw new NullPointerException("Cannot regenerate from a null file");
+    }
+    
+    List<ParentElement> elements = readElementsFast(file, compactElements);
+    if (elements == null) {
+      return fromXml(parseFile(file), target, span);
+    }
+    return regenerateElements(elements, target, span);
+  }
+  
+  /**
+   * Regenerate an object from the persisted document {@code file}, as {@link #fromXml(Path)} does, but trusting that it
+   * was written by {@link #toXml(Object, WritableByteChannel)} and hasn't been changed since, as long as its checksum
+   * is {@code checksum}. The whole file is checksummed first, and then read without checking that it is well-formed
+   * XML, which is faster. Use this for documents written and checksummed (see {@link #checksum(Path)}) by a trusted
+   * source.
+   * @param file The persisted document.
+   * @param checksum The CRC-32 checksum of the whole of {@code file}, as given by {@link #checksum(Path)}.
+   * @return The object regenerated from {@code file}.
+   * @throws NullPointerException If {@code file} is {@code null}.
+   * @throws RegenerationException If {@code file} can't be read, its checksum doesn't match, or an error is
+   *  encountered when regenerating the object.
+   */
+  public R fromTrustedXml(Path file, long checksum) throws RegenerationException {
+    if (file == null) {
+      throw new NullPointerException("Cannot regenerate from a null file");
+    }
+    
+    Object span = startDocument(false);
+    List<ParentElement> elements;
+    long start = startPhase();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        checkChecksum(file, checksum(channel), checksum);
+        return fromXml(file, null, span); // too big to map at once, so it can't be read by the strict reader anyway
       }
-      
-      // Regenerate from the root
-      PersistRegenStrategy<R> strategy = PersistenceUtil.pickStrategy(rootClass, root);
-      R regenerated = strategy.regenerate(state, root);
-      
-      // Warn if any toplevel isn't used
-      for (ItemID itemID : state.getToplevelList().getItemIDs()) {
-        if (!state.getToplevelRegistry().contains(itemID.getName(), itemID.getId())) {
-          System.err.println("Warning: unused toplevel element with tag name '" + itemID.getName()
-              + "' and id '");
-        }
+      ByteBuffer document = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      CRC32 crc = new CRC32();
+      crc.update(document.duplicate());
+      checkChecksum(file, crc.getValue(), checksum);
+      elements = FastElementReader.readTrusted(document, compactElements);
+      endPhase(PersistenceMetrics.Phase.READ, start);
+      metrics.bytesRead(document.capacity());
+    } catch (IOException e) {
+      throw new RegenerationException("Could not read " + file + ".", e);
+    }
+    if (elements == null) {
+      return fromXml(parseFile(file), null, span);
+    }
+    return regenerateElements(elements, null, span);
+  }
+  
+  /**
+   * @return The CRC-32 checksum of the whole of {@code file}, by which {@link #fromTrustedXml(Path, long)} checks that
+   *  it hasn't been changed.
+   * @throws NullPointerException If {@code file} is {@code null}.
+   * @throws PersistenceException If {@code file} can't be read.
+   */
+  public static long checksum(Path file) {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      return checksum(channel);
+    } catch (IOException e) {
+      throw new PersistenceException("Could not read " + file + ".", e);
+    }
+  }
+  
+  /** @return The CRC-32 checksum of the whole of {@code channel}, mapped a part at a time. */
+  private static long checksum(FileChannel channel) throws IOException {
+    CRC32 crc = new CRC32();
+    long size = channel.size();
+    for (long position = 0; position < size; position += Integer.MAX_VALUE) {
+      crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Integer.MAX_VALUE, size - position)));
+    }
+    return crc.getValue();
+  }
+  
+  /**
+   * @throws RegenerationException If the checksum {@code actual} of {@code file} isn't {@code expected}.
+   */
+  private static void checkChecksum(Path file, long actual, long expected) throws RegenerationException {
+    if (actual != expected) {
+      throw new RegenerationException("The checksum of " + file + " is " + Long.toHexString(actual) + ", not "
+          + Long.toHexString(expected) + "; it has been changed or corrupted.");
+    }
+  }
+  
+  /**
+   * Regenerate an object from the children of the document element of a persisted document, into the existing object
+   * graph of {@code target} if it isn't {@code null}, finishing the tracer's {@code span} for the document.
+   */
+  private R regenerateElements(List<ParentElement> elements, R target, Object span) throws RegenerationException {
+    try {
+      long start = startPhase();
+      RegenState state = newRegenState();
+      ToplevelElement root = null;
+      for (ParentElement element : elements) {
+        root = loadElement(state, element, root);
       }
-      
+      R regenerated = regenerateFromRoot(state, root, target, span);
+      endPhase(PersistenceMetrics.Phase.REGENERATE, start);
       return regenerated;
     } catch (PersistenceException e) {
-      // some common persist/regen methods throw PersistenceExceptions, so we just rethrow as RegenerationExceptions
       throw new RegenerationException(e.getMessage(), e.getCause());
     }
   }
   
+  /**
+   * Read the children of the document element of the persisted document {@code file} with the strict reader.
+   * @param compact Whether to keep the elements inside toplevel elements in an {@link ElementArena}.
+   * @return The children, or {@code null} if the strict reader doesn't recognise the document.
+   * @throws RegenerationException If {@code file} can't be read.
+   */
+  private List<ParentElement> readElementsFast(Path file, boolean compact) throws RegenerationException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() <= Integer.MAX_VALUE) {
+        long start = startPhase();
+        ByteBuffer document = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        List<ParentElement> elements = compact ? FastElementReader.readCompact(document)
+            : FastElementReader.read(document);
+        if (elements != null) {
+          endPhase(PersistenceMetrics.Phase.READ, start);
+          metrics.bytesRead(document.capacity());
+        }
+        return elements;
+      }
+      return null;
+    } catch (IOException e) {
+      throw new RegenerationException("Could not read " + file + ".", e);
+    }
+  }
+  
+  /**
+   * Read the children of the document element of the persisted document {@code file}: with the strict reader if it
+   * recognises the document, and otherwise by parsing it.
+   * @throws RegenerationException If {@code file} can't be read or parsed.
+   */
+  private List<ParentElement> readElements(Path file) throws RegenerationException {
+    List<ParentElement> elements = readElementsFast(file, false);
+    return elements != null ? elements : elementsOf(parseFile(file).getDocumentElement());
+  }
+  
+  /**
+   * Convert the children of {@code docRoot}, the document element of a persisted document, to
+   * {@link TemplateElement}s and {@link ToplevelElement}s.
+   * @throws RegenerationException If a child is malformed.
+   */
+  static List<ParentElement> elementsOf(Element docRoot) throws RegenerationException {
+    List<ParentElement> elements = new ArrayList<>();
+    for (int i = 0; i < docRoot.getChildNodes().getLength(); i++) { // for some reason NodeList isn't Iterable
+      Node childNode = docRoot.getChildNodes().item(i);
+      if (childNode instanceof Element) {
+        Element child = (Element) childNode;
+        elements.add(child.hasAttribute("template")
+            ? TemplateElement.fromXmlElement(child)
+            : ToplevelElement.fromXmlElement(child));
+      }
+    }
+    return elements;
+  }
+  
+  /**
+   * Load {@code element}, a child of the document element, into {@code state}: a {@link TemplateElement} as a
+   * template, or a {@link ToplevelElement} into the toplevel list.
+   * @param root The root toplevel element found so far, or {@code null} if none has been.
+   * @return The root toplevel element found so far, including {@code element}.
+   * @throws RegenerationException If {@code element} is a root and {@code root} is not {@code null}.
+   */
+  static ToplevelElement loadElement(RegenState state, ParentElement element, ToplevelElement root)
+      throws RegenerationException {
+    if (element instanceof TemplateElement) {
+      state.putTemplate((TemplateElement) element);
+      return root;
+    }
+    
+    ToplevelElement toplevel = (ToplevelElement) element;
+    state.getToplevelList().addElement(toplevel);
+    if (toplevel.isRoot()) {
+      if (root != null) {
+        throw new RegenerationException("Multiple toplevel nodes marked `root`");
+      }
+      return toplevel;
+    }
+    return root;
+  }
+  
+  /** @return A new {@link RegenState} configured as set on this persistor, for one regeneration. */
+  private RegenState newRegenState() {
+    RegenState state = new RegenState();
+    state.setProjection(projection);
+    state.setSpillDirectory(spillDirectory);
+    state.setToplevelCache(toplevelCache);
+    state.setMetrics(metrics);
+    state.setTracer(tracer);
+    state.setDiagnostics(diagnostics);
+    return state;
+  }
+  
+  /** @return What the tracer returns as a document starts being persisted or regenerated, if it is enabled. */
+  private Object startDocument(boolean persisting) {
+    return tracer.isEnabled() ? tracer.documentStarted(persisting) : null;
+  }
+  
+  /** Tell the tracer that the document with the toplevel elements {@code toplevels} is finished. */
+  private void finishDocument(Object span, boolean persisting, ToplevelList toplevels) {
+    if (tracer.isEnabled()) {
+      tracer.documentFinished(span, persisting, rootClass, toplevels.getAsCollection().size());
+    }
+  }
+  
+  /** @return The time at which a phase starts, if it is to be timed. */
+  private long startPhase() {
+    return metrics.isEnabled() ? System.nanoTime() : 0;
+  }
+  
+  /** Report that {@code phase}, which started at {@code start}, has finished. */
+  private void endPhase(PersistenceMetrics.Phase phase, long start) {
+    if (metrics.isEnabled()) {
+      metrics.phase(phase, System.nanoTime() - start);
+    }
+  }
+  
+  /** Parse {@code file} into a DOM document, timing it as {@link PersistenceMetrics.Phase#PARSE}. */
+  private Document parseFile(Path file) throws RegenerationException {
+    long start = startPhase();
+    Document doc = parse(file);
+    endPhase(PersistenceMetrics.Phase.PARSE, start);
+    return doc;
+  }
+  
+  /** Parse {@code file} into a DOM document. */
+  private static Document parse(Path file) throws RegenerationException {
+    try {
+      return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file.toFile());
+    } catch (ParserConfigurationException | SAXException | IOException e) {
+      throw new RegenerationException("Could not parse " + file + ".", e);
+    }
+  }
+  
+  /**
+   * Regenerate the object from {@code root} once every toplevel element has been loaded into {@code state}, warning
+   * about any toplevel elements left unused, and then finish the tracer's {@code span} for the document.
+   * @param target The existing root object to regenerate into, or {@code null} to regenerate a new graph.
+   * @throws RegenerationException If {@code root} is {@code null}, or an error is encountered when regenerating.
+   */
+  private R regenerateFromRoot(RegenState state, ToplevelElement root, R target, Object span)
+      throws RegenerationException {
+    if (root == null) {
+      throw new RegenerationException("No root toplevel node");
+    }
+    if (target != null) {
+      state.reuseGraph(target, new ItemID(root.getTag(), root.getId()));
+    }
+    
+    // Regenerate from the root
+    PersistRegenStrategy<R> strategy = PersistenceUtil.pickStrategy(rootClass, root);
+    R regenerated = strategy.regenerate(state, root);
+    
+    // Report any toplevel which isn't used, unless the projection means to skip some
+    if (state.getProjection().isAll()) {
+      for (ToplevelElement toplevel : state.getToplevelList().getAsCollection()) {
+        if (!state.getToplevelRegistry().contains(toplevel.getTag(), toplevel.getId())) {
+          state.getDiagnostics().report(Diagnostic.Kind.UNUSED_TOPLEVEL, null, toplevel.getTag(), toplevel.getId(),
+              null);
+        }
+      }
+    }
+    finishDocument(span, false, state.getToplevelList());
+    
+    return regenerated;
+  }
+  
+  /**
+   * Open a cursor over every toplevel object of type {@code cls} in the persisted document {@code file}, regenerating
+   * each on its own as the cursor reaches it, so that huge documents can be scanned in bounded memory. See
+   * {@link ToplevelCursor} for details. The cursor must be closed when done with.
+   * @param file The persisted document.
+   * @param cls The class of the objects to stream. It must be @{@link Persistable} with {@code toplevel=true}; it need
+   *  not be this persistor's root class.
+   * @param references What to do with references from streamed objects to other toplevel objects.
+   * @throws NullPointerException If any parameter is {@code null}.
+   * @throws PersistenceException If {@code cls} is not toplevel.
+   * @throws RegenerationException If {@code file} can't be opened or read.
+   */
+  public <T> ToplevelCursor<T> cursor(Path file, Class<T> cls, ReferencePolicy references)
+      throws RegenerationException {
+    if (file == null || cls == null || references == null) {
+      throw new NullPointerException("Cannot stream with a null parameter");
+    }
+    return new ToplevelCursor<>(file, cls, references, this::newRegenState, diagnostics);
+  }
+  
+  /**
+   * Open the {@link ToplevelStore} in {@code file}, creating it if it doesn't exist, as
+   * {@link ToplevelStore#open(Path, long)} does, but spilling large values to this persistor's spill directory and
+   * reporting diagnostics to this persistor's {@link Diagnostics}. Nothing else of this persistor's configuration is
+   * used: in particular, stored objects are always regenerated in full, and never from the toplevel cache.
+   * @param file The file holding the store.
+   * @param maxResidentBytes The memory budget: the most bytes of records to keep resident at once.
+   * @throws NullPointerException If {@code file} is {@code null}.
+   * @throws IllegalArgumentException If {@code maxResidentBytes} is negative.
+   * @throws RegenerationException If {@code file} can't be opened or read, or isn't a store.
+   * @see #setSpillDirectory(Path)
+   * @see #setDiagnostics(Diagnostics)
+   */
+  public ToplevelStore openStore(Path file, long maxResidentBytes) throws RegenerationException {
+    return ToplevelStore.open(file, maxResidentBytes, spillDirectory, diagnostics);
+  }
+  
+  /**
+   * Stream every toplevel object of type {@code cls} in the persisted document {@code file}, as with
+   * {@link #cursor(Path, Class, ReferencePolicy)}. Closing the stream closes the file, so it should be used in a
+   * try-with-resources statement. Regeneration failures are thrown from the stream's terminal operation as
+   * {@link UncheckedRegenerationException}s.
+   * @throws NullPointerException If any parameter is {@code null}.
+   * @throws PersistenceException If {@code cls} is not toplevel.
+   * @throws RegenerationException If {@code file} can't be opened or read.
+   */
+  public <T> Stream<T> stream(Path file, Class<T> cls, ReferencePolicy references) throws RegenerationException {
+    ToplevelCursor<T> cursor = cursor(file, cls, references);
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor,
+        Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(cursor::close);
+  }
+  
 }
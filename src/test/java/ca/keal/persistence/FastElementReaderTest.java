@@ -0,0 +1,311 @@
+package ca.keal.persistence;
+
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FastElementReaderTest {
+  
+  @Persistable(toplevel=true, tag="library", idField="id")
+  @SuppressWarnings("unused")
+  private static class Library {
+    private final String id = "main & <only>";
+    @Persist("name") private String name = "Bibliothèque \"centrale\"\r\n\t€ 😀";
+    @Persist("founded") private int founded = 1850;
+    @Persist(value="catalogue", cdata=true) private String catalogue = "{\"<b>\": \"&amp;\"} ]]> é\r\n";
+    @Persist("nothing") private String nothing = null;
+    @Persist("first") private Book first;
+    @Persist("shelf") private Shelf shelf;
+    @Persist("sameShelf") private Shelf sameShelf;
+  }
+  
+  @Persistable(toplevel=true, tag="book", idField="isbn")
+  @SuppressWarnings("unused")
+  private static class Book {
+    private final long isbn;
+    @Persist("title") private final String title;
+    @Persist("sequel") private Book sequel;
+    @Persist("library") private Library library;
+    private Book(long isbn, String title) {
+      this.isbn = isbn;
+      this.title = title;
+    }
+  }
+  
+  @Persistable
+  @SuppressWarnings("unused")
+  private static class Shelf {
+    @Persist("label") private String label = "";
+    @Persist("height") private double height = 1.5;
+  }
+  
+  @Persistable(toplevel=true, tag="archive", idField="id")
+  @SuppressWarnings("unused")
+  private static class Archive {
+    private final int id = 1;
+    @Persist("volume") private Volume volume;
+    @Persist("shelf") private Shelf shelf;
+  }
+  
+  @Persistable(toplevel=true, tag="volume", idField="id")
+  @SuppressWarnings("unused")
+  private static class Volume {
+    private final int id = 2;
+    @Persist("shelf") private Shelf shelf;
+  }
+  
+  private static final String[] SNIPPETS = {
+      "<!-- comment -->", "<!-- -- -->", "&amp;", "&lt;", "&#233;", "&#x1F600;", "&bogus;", "&#0;", "&", "<![CDATA[x]]>",
+      "\r\n", "\r", "é", "€", "\uD83D", "<?pi x?>", " extra=\"1\"", " null=\"true\"", " shared=\"0\"", " ref=\"0\"",
+      " root=\"true\"", "<x/>", "<x>y</x>", "<", ">", "]]>", "\"", "'", "\t", "\u0001", "<!DOCTYPE persisted>", " ",
+      "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>", "﻿", "persisted", "xmlns:a=\"b\"", "a:b"
+  };
+  
+  private static Library library() {
+    Library library = new Library();
+    library.first = new Book(9780000000001L, "The First & the <Last>");
+    library.first.library = library;
+    library.first.sequel = new Book(9780000000002L, "Sequel");
+    library.first.sequel.sequel = library.first;
+    library.shelf = library.sameShelf = new Shelf();
+    return library;
+  }
+  
+  private static byte[] toBytes(Document doc, boolean indent) throws Exception {
+    Transformer transformer = TransformerFactory.newInstance().newTransformer();
+    transformer.setOutputProperty(OutputKeys.INDENT, indent ? "yes" : "no");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    transformer.transform(new DOMSource(doc), new StreamResult(out));
+    return out.toByteArray();
+  }
+  
+  /** Regenerate {@code bytes} from a file, either way, and describe the result so that it can be compared. */
+  private static String regenerate(XmlPersistor<Library> persistor, byte[] bytes, boolean fast) throws Exception {
+    Path file = Files.createTempFile("fast", ".xml");
+    try {
+      Files.write(file, bytes);
+      Library regenerated;
+      if (fast) {
+        regenerated = persistor.fromXml(file);
+      } else {
+        Document doc;
+        try {
+          doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file.toFile());
+        } catch (Exception e) {
+          return "unparseable";
+        }
+        regenerated = persistor.fromXml(doc);
+      }
+      return new String(toBytes(persistor.toXml(regenerated), false), StandardCharsets.UTF_8);
+    } catch (RegenerationException e) {
+      // Some messages include the identity of DOM objects, which naturally differ
+      return e.getMessage().startsWith("Could not parse") ? "unparseable"
+          : "failed: " + e.getMessage().replaceAll("@[0-9a-f]+", "");
+    } finally {
+      Files.delete(file);
+    }
+  }
+  
+  @Test
+  void persistedDocumentsAreRecognised() throws Exception {
+    XmlPersistor<Library> persistor = new XmlPersistor<>(Library.class);
+    ByteArrayOutputStream written = new ByteArrayOutputStream();
+    persistor.toXml(library(), java.nio.channels.Channels.newChannel(written));
+    
+    for (byte[] bytes : Arrays.asList(toBytes(persistor.toXml(library()), true), written.toByteArray())) {
+      assertThat(FastElementReader.read(ByteBuffer.wrap(bytes))).isNotNull().hasSize(3);
+      assertThat(regenerate(persistor, bytes, true)).isEqualTo(regenerate(persistor, bytes, false));
+    }
+  }
+  
+  @Test
+  void unrecognisedDocumentsFallBack() throws Exception {
+    XmlPersistor<Library> persistor = new XmlPersistor<>(Library.class);
+    String persisted = new String(toBytes(persistor.toXml(library()), true), StandardCharsets.UTF_8);
+    String withDoctype = persisted.replace("<persisted>", "<!DOCTYPE persisted><persisted>");
+    
+    byte[] bytes = withDoctype.getBytes(StandardCharsets.UTF_8);
+    assertThat(FastElementReader.read(ByteBuffer.wrap(bytes))).isNull();
+    assertThat(regenerate(persistor, bytes, true)).isEqualTo(regenerate(persistor, bytes, false))
+        .doesNotContain("failed");
+  }
+  
+  @Test
+  void textIsStreamedAsDecoded() throws Exception {
+    XmlPersistor<Library> persistor = new XmlPersistor<>(Library.class);
+    byte[] bytes = toBytes(persistor.toXml(library()), false);
+    
+    // Elements read separately, so that streaming the text can't use text already decoded
+    List<ParentElement> streamed = FastElementReader.read(ByteBuffer.wrap(bytes));
+    List<ParentElement> decoded = FastElementReader.read(ByteBuffer.wrap(bytes));
+    for (int i = 0; i < streamed.size(); i++) {
+      List<PersistedElement> children = streamed.get(i).getChildren();
+      for (int j = 0; j < children.size(); j++) {
+        if (children.get(j) instanceof TextElement) {
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          ((TextElement) children.get(j)).writeText(out);
+          String text = ((TextElement) decoded.get(i).getChildren().get(j)).getText();
+          assertThat(new String(out.toByteArray(), StandardCharsets.UTF_8)).isEqualTo(text);
+        }
+      }
+    }
+  }
+  
+  @Test
+  void fuzzedDocumentsMatchDom() throws Exception {
+    XmlPersistor<Library> persistor = new XmlPersistor<>(Library.class);
+    byte[][] seeds = {toBytes(persistor.toXml(library()), true), toBytes(persistor.toXml(library()), false)};
+    Random random = new Random(0x5EED);
+    
+    PrintStream err = System.err;
+    System.setErr(new PrintStream(new ByteArrayOutputStream())); // don't drown in warnings
+    try {
+      for (int i = 0; i < 1500; i++) {
+        byte[] mutant = seeds[i % seeds.length];
+        for (int mutations = 1 + random.nextInt(3); mutations > 0; mutations--) {
+          mutant = mutate(mutant, random);
+        }
+        String description = new String(mutant, StandardCharsets.UTF_8);
+        assertThat(regenerate(persistor, mutant, true)).as(description)
+            .isEqualTo(regenerate(persistor, mutant, false));
+      }
+    } finally {
+      System.setErr(err);
+    }
+  }
+  
+  @Test
+  void compactElementsMatchDom() throws Exception {
+    XmlPersistor<Library> persistor = new XmlPersistor<>(Library.class);
+    persistor.setCompactElements(false);
+    XmlPersistor<Library> compact = new XmlPersistor<>(Library.class);
+    byte[][] seeds = {toBytes(persistor.toXml(library()), true), toBytes(persistor.toXml(library()), false)};
+    
+    for (byte[] bytes : seeds) {
+      List<ParentElement> elements = FastElementReader.readCompact(ByteBuffer.wrap(bytes));
+      assertThat(elements).isNotNull().hasSize(3).allMatch(element -> element instanceof ArenaToplevelElement);
+      assertThat(regenerate(compact, bytes, true)).isEqualTo(regenerate(persistor, bytes, true))
+          .isEqualTo(regenerate(persistor, bytes, false));
+    }
+    
+    Random random = new Random(0xC0DE);
+    PrintStream err = System.err;
+    System.setErr(new PrintStream(new ByteArrayOutputStream())); // don't drown in warnings
+    try {
+      for (int i = 0; i < 500; i++) {
+        byte[] mutant = mutate(seeds[i % seeds.length], random);
+        String description = new String(mutant, StandardCharsets.UTF_8);
+        assertThat(regenerate(compact, mutant, true)).as(description)
+            .isEqualTo(regenerate(persistor, mutant, false));
+      }
+    } finally {
+      System.setErr(err);
+    }
+  }
+  
+  @Test
+  void compactSharedElementsAreFoundWithoutMaterializing() throws Exception {
+    // The shelf is persisted inside the volume, but the archive, which is regenerated first, refers to it too
+    Archive archive = new Archive();
+    archive.volume = new Volume();
+    archive.shelf = archive.volume.shelf = new Shelf();
+    XmlPersistor<Archive> persistor = new XmlPersistor<>(Archive.class);
+    ByteArrayOutputStream written = new ByteArrayOutputStream();
+    persistor.toXml(archive, java.nio.channels.Channels.newChannel(written));
+    
+    List<ParentElement> elements = FastElementReader.readCompact(ByteBuffer.wrap(written.toByteArray()));
+    assertThat(elements).isNotNull().hasSize(2);
+    RegenState state = new RegenState();
+    for (ParentElement element : elements) {
+      XmlPersistor.loadElement(state, element, null);
+    }
+    assertThat(state.getSharedElement(0).getTag()).isEqualTo("shelf");
+    assertThat(state.getSharedElement(0).getChildrenByTag("height")).hasSize(1);
+    assertThat(state.getSharedElement(1)).isNull();
+    assertThat(elements).noneMatch(element -> ((ArenaToplevelElement) element).isMaterialized());
+    
+    Path file = Files.createTempFile("shared", ".xml");
+    try {
+      Files.write(file, written.toByteArray());
+      Archive regenerated = persistor.fromXml(file);
+      assertThat(regenerated.shelf).isNotNull().isSameAs(regenerated.volume.shelf);
+      assertThat(regenerated.shelf.height).isEqualTo(1.5);
+    } finally {
+      Files.delete(file);
+    }
+  }
+  
+  @Test
+  void trustedDocumentsMatchCheckedOnes() throws Exception {
+    XmlPersistor<Library> persistor = new XmlPersistor<>(Library.class);
+    Path file = Files.createTempFile("trusted", ".xml");
+    try {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+        persistor.toXml(library(), channel);
+      }
+      long checksum = XmlPersistor.checksum(file);
+      byte[] bytes = Files.readAllBytes(file);
+      String checked = regenerate(persistor, bytes, true);
+      assertThat(new String(toBytes(persistor.toXml(persistor.fromTrustedXml(file, checksum)), false),
+          StandardCharsets.UTF_8)).isEqualTo(checked);
+      persistor.setCompactElements(false);
+      assertThat(new String(toBytes(persistor.toXml(persistor.fromTrustedXml(file, checksum)), false),
+          StandardCharsets.UTF_8)).isEqualTo(checked);
+      
+      // Any change at all is caught by the checksum
+      bytes[bytes.length / 2] ^= 1;
+      Files.write(file, bytes);
+      assertThrows(RegenerationException.class, () -> persistor.fromTrustedXml(file, checksum));
+    } finally {
+      Files.delete(file);
+    }
+  }
+  
+  private static byte[] mutate(byte[] bytes, Random random) {
+    int at = random.nextInt(bytes.length + 1);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(bytes, 0, at);
+    switch (random.nextInt(4)) {
+      case 0: // insert a snippet
+        byte[] snippet = SNIPPETS[random.nextInt(SNIPPETS.length)].getBytes(StandardCharsets.UTF_8);
+        out.write(snippet, 0, snippet.length);
+        out.write(bytes, at, bytes.length - at);
+        break;
+      case 1: // delete a few bytes
+        int end = Math.min(bytes.length, at + 1 + random.nextInt(8));
+        out.write(bytes, end, bytes.length - end);
+        break;
+      case 2: // replace a byte
+        out.write(random.nextInt(256));
+        out.write(bytes, Math.min(bytes.length, at + 1), bytes.length - Math.min(bytes.length, at + 1));
+        break;
+      default: // duplicate a range
+        int length = Math.min(bytes.length - at, random.nextInt(64));
+        out.write(bytes, at, length);
+        out.write(bytes, at, bytes.length - at);
+    }
+    return out.toByteArray();
+  }
+  
+}
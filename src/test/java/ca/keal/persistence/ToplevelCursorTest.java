@@ -0,0 +1,148 @@
+package ca.keal.persistence;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ToplevelCursorTest {
+  
+  @Persistable(toplevel=true, tag="world", idField="id")
+  @SuppressWarnings("unused")
+  private static class World {
+    private final String id = "world";
+    @Persist("first") private Player first;
+    @Persist("guild") private Guild guild;
+  }
+  
+  @Persistable(toplevel=true, tag="player", idField="id")
+  @SuppressWarnings("unused")
+  private static class Player {
+    private final int id;
+    @Persist("name") private final String name;
+    @Persist("guild") private final Guild guild;
+    @Persist("next") private Player next;
+    @Persist("badge") private Badge badge;
+    private Player(int id, String name, Guild guild) {
+      this.id = id;
+      this.name = name;
+      this.guild = guild;
+    }
+  }
+  
+  @Persistable(toplevel=true, tag="guild", idField="id")
+  @SuppressWarnings("unused")
+  private static class Guild {
+    private final String id;
+    @Persist("motto") private final String motto;
+    @Persist("badge") private Badge badge;
+    private Guild(String id, String motto) {
+      this.id = id;
+      this.motto = motto;
+    }
+  }
+  
+  @Persistable
+  @SuppressWarnings("unused")
+  private static class Badge {
+    @Persist("colour") private final String colour;
+    private Badge(String colour) {
+      this.colour = colour;
+    }
+  }
+  
+  private Path file;
+  
+  @BeforeEach
+  void writeWorld() throws Exception {
+    // A guild and a chain of three players, all in the guild; the guild's badge is shared with the last player
+    World world = new World();
+    world.guild = new Guild("knights", "ni");
+    world.guild.badge = new Badge("red");
+    Player third = new Player(3, "Robin", world.guild);
+    third.badge = world.guild.badge;
+    Player second = new Player(2, "Lancelot", world.guild);
+    second.next = third;
+    world.first = new Player(1, "Arthur", world.guild);
+    world.first.next = second;
+    
+    file = Files.createTempFile("toplevel-cursor-test", ".xml");
+    TransformerFactory.newInstance().newTransformer().transform(
+        new DOMSource(new XmlPersistor<>(World.class).toXml(world)), new StreamResult(file.toFile()));
+  }
+  
+  @AfterEach
+  void deleteWorld() throws Exception {
+    Files.delete(file);
+  }
+  
+  @Test
+  void skipLeavesReferencesNull() throws Exception {
+    try (Stream<Player> players = new XmlPersistor<>(World.class).stream(file, Player.class, ReferencePolicy.SKIP)) {
+      List<Player> list = players.collect(Collectors.toList());
+      assertThat(list).extracting(player -> player.name).containsExactly("Arthur", "Lancelot", "Robin");
+      assertThat(list).allSatisfy(player -> {
+        assertThat(player.guild).isNull();
+        assertThat(player.next).isNull();
+      });
+      assertThat(list.get(2).badge).isNull();
+    }
+  }
+  
+  @Test
+  void onDemandLoadsReferences() throws Exception {
+    try (ToplevelCursor<Player> cursor = new XmlPersistor<>(World.class)
+        .cursor(file, Player.class, ReferencePolicy.ON_DEMAND)) {
+      Player arthur = cursor.next();
+      assertThat(arthur.guild.motto).isEqualTo("ni");
+      assertThat(arthur.next.next.name).isEqualTo("Robin");
+      assertThat(arthur.next.guild).isSameAs(arthur.guild);
+      assertThat(arthur.next.next.badge).isSameAs(arthur.guild.badge);
+      
+      cursor.next();
+      Player robin = cursor.next();
+      assertThat(robin.badge.colour).isEqualTo("red");
+      assertThat(cursor.hasNext()).isFalse();
+    }
+  }
+  
+  @Test
+  void lazyReferencesCanBeLoadedLater() throws Exception {
+    List<ToplevelReference<?>> references = new ArrayList<>();
+    try (ToplevelCursor<Guild> cursor = new XmlPersistor<>(World.class)
+        .cursor(file, Guild.class, ReferencePolicy.lazy(references::add))) {
+      assertThat(cursor.next().motto).isEqualTo("ni");
+      assertThat(cursor.hasNext()).isFalse();
+    }
+    assertThat(references).isEmpty();
+    
+    try (ToplevelCursor<Player> cursor = new XmlPersistor<>(World.class)
+        .cursor(file, Player.class, ReferencePolicy.lazy(references::add))) {
+      Player arthur = cursor.next();
+      assertThat(arthur.guild).isNull();
+      assertThat(references).extracting(ToplevelReference::getTag).containsExactly("guild", "player");
+      assertThat(((Guild) references.get(0).load()).motto).isEqualTo("ni");
+      assertThat(((Player) references.get(1).load()).name).isEqualTo("Lancelot");
+    }
+    assertThrows(IllegalStateException.class, () -> references.get(0).load());
+  }
+  
+  @Test
+  void streamingNonToplevelClassThrows() {
+    assertThrows(PersistenceException.class,
+        () -> new XmlPersistor<>(World.class).cursor(file, Badge.class, ReferencePolicy.SKIP));
+  }
+  
+}
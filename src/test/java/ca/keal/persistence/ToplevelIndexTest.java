@@ -0,0 +1,100 @@
+package ca.keal.persistence;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ToplevelIndexTest {
+  
+  @ParameterizedTest(name = "parseCanonicalLong should reject non-canonical numbers")
+  @ValueSource(strings = {"", "-", "-0", "007", "+7", "1.0", "1e3", "9223372036854775808", "-9223372036854775808",
+      "12a", " 1"})
+  void shouldRejectNonCanonicalLongs(String id) {
+    assertEquals(Long.MIN_VALUE, ToplevelIndex.parseCanonicalLong(id));
+  }
+  
+  @ParameterizedTest(name = "parseCanonicalLong should parse canonical numbers")
+  @ValueSource(longs = {0, 7, -7, 10, Long.MAX_VALUE, Long.MIN_VALUE + 1})
+  void shouldParseCanonicalLongs(long id) {
+    assertEquals(id, ToplevelIndex.parseCanonicalLong(Long.toString(id)));
+  }
+  
+  @Test
+  void numericAndStringLookupsAgree() {
+    ToplevelIndex<String> index = new ToplevelIndex<>();
+    for (long id = -1000; id <= 1000; id++) {
+      index.put("tag", Long.toString(id), "value" + id);
+    }
+    index.put("tag", Long.toString(Long.MIN_VALUE), "min");
+    index.put("tag", "007", "padded");
+    
+    assertEquals(2003, index.size());
+    for (long id = -1000; id <= 1000; id++) {
+      assertEquals("value" + id, index.get("tag", id));
+      assertEquals("value" + id, index.get("tag", Long.toString(id)));
+    }
+    assertEquals("min", index.get("tag", Long.MIN_VALUE));
+    assertEquals("padded", index.get("tag", "007"));
+    assertEquals("value7", index.get("tag", 7));
+    assertNull(index.get("otherTag", 7));
+  }
+  
+  @Test
+  void collidingAndZeroHashIdsAreDistinct() {
+    // "Aa" and "BB" share a hash code, as does any concatenation of them; "" and "f5a5a608" hash to 0
+    String[] parts = {"Aa", "BB"};
+    ToplevelIndex<Integer> index = new ToplevelIndex<>();
+    for (int i = 0; i < 1 << 10; i++) {
+      index.put("tag", collidingId(parts, i), i);
+    }
+    index.put("tag", "", -1);
+    index.put("tag", "f5a5a608", -2);
+    
+    for (int i = 0; i < 1 << 10; i++) {
+      assertEquals(Integer.valueOf(i), index.get("tag", collidingId(parts, i)));
+    }
+    assertEquals(Integer.valueOf(-1), index.get("tag", ""));
+    assertEquals(Integer.valueOf(-2), index.get("tag", "f5a5a608"));
+    assertEquals(Integer.valueOf(0), index.put("tag", collidingId(parts, 0), 42));
+    assertEquals((1 << 10) + 2, index.size());
+  }
+  
+  @Test
+  void removedIdsLeaveTheRestReachable() {
+    // Colliding strings and consecutive numbers both make long probe sequences for removal to shift back
+    String[] parts = {"Aa", "BB"};
+    ToplevelIndex<Integer> index = new ToplevelIndex<>();
+    for (int i = 0; i < 1 << 10; i++) {
+      index.put("tag", collidingId(parts, i), i);
+      index.put("tag", Integer.toString(i), i);
+    }
+    for (int i = 0; i < 1 << 10; i += 3) {
+      assertEquals(Integer.valueOf(i), index.remove("tag", collidingId(parts, i)));
+      assertEquals(Integer.valueOf(i), index.remove("tag", Integer.toString(i)));
+    }
+    assertNull(index.remove("tag", collidingId(parts, 0)));
+    assertNull(index.remove("other", "0"));
+    
+    int remaining = 0;
+    for (int i = 0; i < 1 << 10; i++) {
+      Integer expected = i % 3 == 0 ? null : i;
+      assertEquals(expected, index.get("tag", collidingId(parts, i)));
+      assertEquals(expected, index.get("tag", i));
+      if (expected != null) remaining += 2;
+    }
+    assertEquals(remaining, index.size());
+  }
+  
+  /** Build one of the 2^10 ten-part ids made from {@code parts}, all of which have the same hash code. */
+  private static String collidingId(String[] parts, int bits) {
+    StringBuilder id = new StringBuilder();
+    for (int i = 0; i < 10; i++) {
+      id.append(parts[(bits >> i) & 1]);
+    }
+    return id.toString();
+  }
+  
+}
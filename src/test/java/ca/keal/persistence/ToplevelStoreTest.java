@@ -0,0 +1,277 @@
+package ca.keal.persistence;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ToplevelStoreTest {
+  
+  @Persistable(toplevel=true, tag="book", idField="id")
+  @SuppressWarnings("unused")
+  private static class Book {
+    private final int id;
+    @Persist("title") private String title;
+    @Persist("author") private final ToplevelHandle<Author> author;
+    @Persist("sequel") private ToplevelHandle<Book> sequel;
+    @Persist("front") private Cover front;
+    @Persist("back") private Cover back;
+    @Persist("blurb") private LargeText blurb;
+    private Book(int id, String title, ToplevelHandle<Author> author) {
+      this.id = id;
+      this.title = title;
+      this.author = author;
+      this.front = this.back = new Cover(title + " cover");
+    }
+  }
+  
+  @Persistable(toplevel=true, tag="author", idField="name")
+  @SuppressWarnings("unused")
+  private static class Author {
+    private final String name;
+    @Persist("born") private final int born;
+    private Author(String name, int born) {
+      this.name = name;
+      this.born = born;
+    }
+  }
+  
+  @Persistable
+  @SuppressWarnings("unused")
+  private static class Cover {
+    @Persist("art") private final String art;
+    private Cover(String art) {
+      this.art = art;
+    }
+  }
+  
+  @Persistable(toplevel=true, tag="shelf", idField="id")
+  @SuppressWarnings("unused")
+  private static class Shelf {
+    private final int id;
+    @Persist("book") private final Book book;
+    private Shelf(int id, Book book) {
+      this.id = id;
+      this.book = book;
+    }
+  }
+  
+  @Persistable(toplevel=true, tag="book", idField="id")
+  @SuppressWarnings("unused")
+  private static class BookTitle {
+    private final int id;
+    @Persist("title") private final String title;
+    private BookTitle(int id, String title) {
+      this.id = id;
+      this.title = title;
+    }
+  }
+  
+  private Path file;
+  
+  @BeforeEach
+  void storeBooks() throws Exception {
+    // Three books by one author, each the sequel of the one before
+    file = Files.createTempFile("store", ".xps");
+    Files.delete(file);
+    try (ToplevelStore store = ToplevelStore.open(file, Long.MAX_VALUE)) {
+      ToplevelHandle<Author> author = store.put(Author.class, new Author("Tolkien", 1892));
+      Book first = new Book(1, "Fellowship", author);
+      first.sequel = store.handle(Book.class, "2"); // handles needn't refer to stored objects yet
+      store.put(Book.class, first);
+      Book second = new Book(2, "Towers", author);
+      second.sequel = store.handle(Book.class, "3");
+      store.put(Book.class, second);
+      store.put(Book.class, new Book(3, "Return", author));
+      assertThat(store.size()).isEqualTo(4);
+      assertThat(store.getWrites()).isEqualTo(4);
+    }
+  }
+  
+  @AfterEach
+  void deleteFile() throws Exception {
+    Files.deleteIfExists(file);
+  }
+  
+  @Test
+  void objectsAreLoadedOnAccess() throws Exception {
+    try (ToplevelStore store = ToplevelStore.open(file, Long.MAX_VALUE)) {
+      assertThat(store.size()).isEqualTo(4);
+      assertThat(store.contains(Book.class, "3")).isTrue();
+      assertThat(store.contains(Book.class, "4")).isFalse();
+      assertThat(store.getResidentCount()).isZero();
+      
+      // Loading the second book loads nothing it refers to
+      Book second = store.handle(Book.class, "2").get();
+      assertThat(second.title).isEqualTo("Towers");
+      assertThat(second.sequel).isEqualTo(store.handle(Book.class, "3"));
+      assertThat(store.getResidentCount()).isEqualTo(1);
+      
+      // Following a handle loads only what it refers to
+      Book third = second.sequel.get();
+      assertThat(third.title).isEqualTo("Return");
+      assertThat(third.sequel).isNull();
+      assertThat(third.author).isEqualTo(second.author);
+      assertThat(second.author.get().born).isEqualTo(1892);
+      assertThat(store.getResidentCount()).isEqualTo(3);
+      
+      // Resident objects are reused
+      assertThat(store.handle(Book.class, "3").get()).isSameAs(third);
+      Book first = store.handle(Book.class, "1").get();
+      assertThat(first.sequel.get()).isSameAs(second);
+      assertThat(store.getLoads()).isEqualTo(4);
+      
+      // Embedded objects shared within each book stay shared, and separate between books
+      assertThat(first.front).isSameAs(first.back);
+      assertThat(second.front).isSameAs(second.back).isNotSameAs(first.front);
+      assertThat(second.front.art).isEqualTo("Towers cover");
+      
+      assertThrows(RegenerationException.class, () -> store.handle(Book.class, "4").get());
+      assertThrows(PersistenceException.class, () -> store.handle(Cover.class, "1"));
+    }
+  }
+  
+  @Test
+  void classesReferringToToplevelObjectsDirectlyAreRefused() throws Exception {
+    try (ToplevelStore store = ToplevelStore.open(file, Long.MAX_VALUE)) {
+      Book first = store.handle(Book.class, "1").get();
+      assertThrows(PersistenceException.class, () -> store.put(Shelf.class, new Shelf(1, first)));
+      assertThrows(PersistenceException.class, () -> store.handle(Shelf.class, "1"));
+      assertThat(store.size()).isEqualTo(4);
+    }
+  }
+  
+  @Test
+  void coldObjectsAreEvictedAndWrittenBackIfDirty() throws Exception {
+    try (ToplevelStore store = ToplevelStore.open(file, 0)) {
+      ToplevelHandle<Book> secondHandle = store.handle(Book.class, "2");
+      ToplevelHandle<Book> thirdHandle = store.handle(Book.class, "3");
+      Book third = thirdHandle.get();
+      assertThat(store.getResidentCount()).isEqualTo(1);
+      
+      third.title = "The Return of the King";
+      thirdHandle.markDirty();
+      third.author.get();
+      assertThat(store.getResidentCount()).isEqualTo(1);
+      assertThat(store.getEvictions()).isEqualTo(1);
+      assertThrows(IllegalStateException.class, thirdHandle::markDirty);
+      
+      // It was written back when evicted, so following the second book's handle loads it anew with the change
+      Book second = secondHandle.get();
+      assertThat(store.getResidentCount()).isEqualTo(1);
+      Book reloaded = second.sequel.get();
+      assertThat(store.getResidentCount()).isEqualTo(1);
+      assertThat(reloaded).isNotSameAs(third);
+      assertThat(reloaded.title).isEqualTo("The Return of the King");
+      
+      // ...and the second book, evicted in turn, is reloaded with its handle on the third intact
+      assertThat(secondHandle.get()).isNotSameAs(second);
+      assertThat(secondHandle.get().sequel).isEqualTo(thirdHandle);
+      assertThat(store.getEvictions()).isEqualTo(4);
+      
+      // Objects referred to by dirty ones needn't be stored yet
+      reloaded = thirdHandle.get();
+      reloaded.sequel = store.handle(Book.class, "4");
+      thirdHandle.markDirty();
+      store.flush();
+      assertThat(store.contains(Book.class, "4")).isFalse();
+      store.put(Book.class, new Book(4, "Silmarillion", reloaded.author));
+    }
+    
+    try (ToplevelStore store = ToplevelStore.open(file, 0)) {
+      Book third = store.handle(Book.class, "3").get();
+      assertThat(third.title).isEqualTo("The Return of the King");
+      assertThat(third.sequel.get().title).isEqualTo("Silmarillion");
+      assertThat(store.getResidentCount()).isEqualTo(1);
+      assertThat(store.size()).isEqualTo(5);
+    }
+  }
+  
+  @Test
+  void objectsWhichCantBeWrittenBackStayResident() throws Exception {
+    Path blurb = Files.createTempFile("blurb", ".txt");
+    blurb.toFile().deleteOnExit();
+    Files.delete(blurb);
+    try (ToplevelStore store = ToplevelStore.open(file, 0)) {
+      ToplevelHandle<Book> thirdHandle = store.handle(Book.class, "3");
+      Book third = thirdHandle.get();
+      third.title = "The Return of the King";
+      third.blurb = LargeText.of(blurb); // which can't be read, so the book can't be written back
+      thirdHandle.markDirty();
+      
+      // Evicting it fails, so it stays resident with its changes
+      assertThrows(PersistenceException.class, () -> third.author.get());
+      assertThat(store.getEvictions()).isZero();
+      assertThat(store.getResidentCount()).isEqualTo(2);
+      assertThat(thirdHandle.get()).isSameAs(third);
+      
+      // ...until it can be written back
+      Files.write(blurb, "The end".getBytes(StandardCharsets.UTF_8));
+      store.flush();
+      assertThat(store.getEvictions()).isEqualTo(1);
+    }
+    
+    try (ToplevelStore store = ToplevelStore.open(file, 0)) {
+      Book third = store.handle(Book.class, "3").get();
+      assertThat(third.title).isEqualTo("The Return of the King");
+      assertThat(third.blurb.read()).isEqualTo("The end");
+      third.blurb.close();
+    }
+  }
+  
+  @Test
+  void storesOpenedByAPersistorUseItsSpillDirectoryAndDiagnostics() throws Exception {
+    Path spillDirectory = Files.createTempDirectory("spill");
+    Diagnostics diagnostics = new Diagnostics(DiagnosticListener.NONE);
+    XmlPersistor<Book> persistor = new XmlPersistor<>(Book.class);
+    persistor.setSpillDirectory(spillDirectory);
+    persistor.setDiagnostics(diagnostics);
+    try (ToplevelStore store = persistor.openStore(file, 0)) {
+      ToplevelHandle<Book> firstHandle = store.handle(Book.class, "1");
+      firstHandle.get().blurb = LargeText.of("There and back again");
+      firstHandle.markDirty();
+      store.handle(Book.class, "2").get();
+      
+      Book first = firstHandle.get();
+      assertThat(first.blurb.getFile().getParent()).isEqualTo(spillDirectory);
+      first.blurb.close();
+      
+      // Loading a book as a class without most of its fields warns about each of them
+      assertThat(store.handle(BookTitle.class, "2").get().title).isEqualTo("Towers");
+      assertThat(diagnostics.getCount(Diagnostic.Kind.UNUSED_CHILD)).isEqualTo(5);
+    } finally {
+      Files.delete(spillDirectory);
+    }
+  }
+  
+  @Test
+  void recordsCutShortAreDiscarded() throws Exception {
+    try (ToplevelStore store = ToplevelStore.open(file, Long.MAX_VALUE)) {
+      Book first = store.handle(Book.class, "1").get();
+      first.title = "The Fellowship of the Ring";
+      store.handle(Book.class, "1").markDirty();
+    }
+    
+    // Cut the new record of the first book short, as a crash might
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() - 10);
+    }
+    try (ToplevelStore store = ToplevelStore.open(file, Long.MAX_VALUE)) {
+      assertThat(store.handle(Book.class, "1").get().title).isEqualTo("Fellowship");
+    }
+    
+    Path notAStore = Files.createTempFile("persisted", ".xml");
+    notAStore.toFile().deleteOnExit();
+    Files.write(notAStore, "<persisted/>".getBytes("UTF-8"));
+    assertThrows(RegenerationException.class, () -> ToplevelStore.open(notAStore, 0));
+  }
+  
+}
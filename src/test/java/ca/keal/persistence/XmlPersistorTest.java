@@ -2,10 +2,15 @@ package ca.keal.persistence;
 
 import org.junit.jupiter.api.Test;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.xmlunit.builder.DiffBuilder;
 import org.xmlunit.builder.Input;
 import org.xmlunit.diff.Diff;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.OutputKeys;
@@ -15,9 +20,20 @@ import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertFalse;
@@ -213,6 +229,37 @@ class XmlPersistorTest {
     assertSame(persisted, "src/test/resources/null-things-test.xml");
   }
   
+  @Test
+  void channelToXmlMatchesDocument() throws Exception {
+    XmlPersistor<NullThingsTest> persistor = new XmlPersistor<>(NullThingsTest.class);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    persistor.toXml(new NullThingsTest(), Channels.newChannel(bytes));
+    Document written = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+        .parse(new ByteArrayInputStream(bytes.toByteArray()));
+    assertSame(written, "src/test/resources/null-things-test.xml");
+  }
+  
+  @Test
+  void channelToXmlEscapesAndEncodesText() throws Exception {
+    // Long enough to span several buffers, with markup, quotes, and characters of every UTF-8 length
+    StringBuilder awkward = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      awkward.append("<a href=\"x\">&amp;\té\u20ac\ud83d\ude00\r\n");
+    }
+    ChainLink link = new ChainLink(1, awkward.toString());
+    link.next = new ChainLink(2, "\"'\n");
+    
+    XmlPersistor<ChainLink> persistor = new XmlPersistor<>(ChainLink.class);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    persistor.toXml(link, Channels.newChannel(bytes));
+    Document written = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+        .parse(new ByteArrayInputStream(bytes.toByteArray()));
+    
+    ChainLink regenerated = persistor.fromXml(written);
+    assertThat(regenerated.name.thing1).isEqualTo(awkward.toString());
+    assertThat(regenerated.next.name.thing1).isEqualTo("\"'\n");
+  }
+  
   // ==========================================================================================
   
   @Persistable(toplevel=true, tag="noPersistFields", idField="id")
@@ -528,6 +575,1018 @@ class XmlPersistorTest {
         .isEqualToComparingFieldByFieldRecursively(control);
   }
   
+  // ==========================================================================================
+  
+  @Persistable(toplevel=true, tag="uuidKeyed", idField="id")
+  @SuppressWarnings("unused")
+  private static class UuidIdTest {
+    private final UUID id;
+    @Persist("other") private final CustomIdTest other;
+    private UuidIdTest(UUID id, CustomIdTest other) {
+      this.id = id;
+      this.other = other;
+    }
+  }
+  
+  @Persistable(toplevel=true, tag="customKeyed", idField="id")
+  @SuppressWarnings("unused")
+  private static class CustomIdTest {
+    private final CustomId id;
+    @Persist("value") private final int value;
+    private CustomIdTest(CustomId id, int value) {
+      this.id = id;
+      this.value = value;
+    }
+  }
+  
+  private static class CustomId {
+    private final String key;
+    private CustomId(String key) {
+      this.key = key;
+    }
+    @Override
+    public String toString() {
+      return key;
+    }
+  }
+  
+  @Test
+  void nonPrimitiveIdsRoundTrip() throws Exception {
+    XmlPersistor<UuidIdTest> persistor = new XmlPersistor<>(UuidIdTest.class);
+    UuidIdTest control = new UuidIdTest(UUID.randomUUID(), new CustomIdTest(new CustomId("custom-1"), 7));
+    assertThat(persistor.fromXml(persistor.toXml(control))).isEqualToComparingFieldByFieldRecursively(control);
+  }
+  
+  // ==========================================================================================
+  
+  @Persistable(toplevel=true, tag="sharer", idField="id")
+  @SuppressWarnings("unused")
+  private static class SharedToplevelTest {
+    private final long id = 1;
+    @Persist("first") private SharedToplevel first;
+    @Persist("second") private SharedToplevel second;
+    @Persist("third") private SharedToplevel third;
+  }
+  
+  @Persistable(toplevel=true, tag="shared", idField="id")
+  @SuppressWarnings("unused")
+  private static class SharedToplevel {
+    private final int id;
+    @Persist("name") private final String name;
+    private SharedToplevel(int id, String name) {
+      this.id = id;
+      this.name = name;
+    }
+  }
+  
+  @Test
+  void sharedToplevelIsPersistedOnce() throws Exception {
+    XmlPersistor<SharedToplevelTest> persistor = new XmlPersistor<>(SharedToplevelTest.class);
+    SharedToplevelTest test = new SharedToplevelTest();
+    test.first = test.second = new SharedToplevel(5, "config");
+    test.third = new SharedToplevel(5, "an impostor with the same id");
+    
+    Document persisted = persistor.toXml(test);
+    assertThat(persisted.getElementsByTagName("shared").getLength()).isEqualTo(1);
+    
+    SharedToplevelTest regenerated = persistor.fromXml(persisted);
+    assertThat(regenerated.first).isSameAs(regenerated.second).isSameAs(regenerated.third);
+    assertThat(regenerated.first.name).isEqualTo("config");
+  }
+  
+  // ==========================================================================================
+  
+  @Persistable(toplevel=true, tag="projected", idField="id")
+  @SuppressWarnings("unused")
+  private static class ProjectionTest {
+    private final int id = 1;
+    @Persist("name") private String name = "kept";
+    @Persist("count") private int count = 3;
+    @Persist("embedded") private SimpleEmbedded embedded = new SimpleEmbedded("abc", "def");
+    @Persist("other") private SharedToplevel other = new SharedToplevel(2, "other");
+  }
+  
+  @Test
+  void projectionSkipsFieldsLeftOut() throws Exception {
+    XmlPersistor<ProjectionTest> persistor = new XmlPersistor<>(ProjectionTest.class);
+    Document persisted = persistor.toXml(new ProjectionTest());
+    // Without the referenced toplevel element, only a projection without "other" can succeed
+    Node other = persisted.getElementsByTagName("shared").item(0);
+    other.getParentNode().removeChild(other);
+    assertThrows(RegenerationException.class, () -> persistor.fromXml(persisted));
+    
+    persistor.setProjection(Projection.of(ProjectionTest.class, "name", "embedded")
+        .and(SimpleEmbedded.class, "thing2"));
+    ProjectionTest regenerated = persistor.fromXml(persisted);
+    assertThat(regenerated.name).isEqualTo("kept");
+    assertThat(regenerated.count).isZero();
+    assertThat(regenerated.embedded.thing1).isNull();
+    assertThat(regenerated.embedded.thing2).isEqualTo("def");
+    assertThat(regenerated.other).isNull();
+  }
+  
+  @Test
+  void projectingUnknownFieldThrows() {
+    PersistenceException e = assertThrows(PersistenceException.class,
+        () -> Projection.of(ProjectionTest.class, "name", "nonexistent"));
+    assertThat(e).hasMessageContaining("no @Persist field with tag 'nonexistent'");
+  }
+  
+  // ==========================================================================================
+  
+  @Persistable(toplevel=true, tag="reused", idField="id")
+  @SuppressWarnings("unused")
+  private static class ReuseTest {
+    private final int id;
+    @Persist("name") private String name;
+    @Persist("embedded") private SimpleEmbedded embedded;
+    @Persist("other") private SharedToplevel other;
+    @Persist("missing") private SharedToplevel missing;
+    private int notPersisted;
+    private ReuseTest(int id, String name, SimpleEmbedded embedded, SharedToplevel other) {
+      this.id = id;
+      this.name = name;
+      this.embedded = embedded;
+      this.other = other;
+    }
+  }
+  
+  @Test
+  void regenerateIntoExistingGraph() throws Exception {
+    XmlPersistor<ReuseTest> persistor = new XmlPersistor<>(ReuseTest.class);
+    ReuseTest original = new ReuseTest(1, "new", new SimpleEmbedded("a", "b"), new SharedToplevel(2, "x"));
+    original.missing = new SharedToplevel(3, "y");
+    File file = File.createTempFile("reuse", ".xml");
+    file.deleteOnExit();
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+      persistor.toXml(original, channel);
+    }
+    
+    for (boolean fromDocument : new boolean[] {true, false}) {
+      SimpleEmbedded embedded = new SimpleEmbedded("old", "old");
+      SharedToplevel other = new SharedToplevel(2, "old");
+      ReuseTest target = new ReuseTest(5, "old", embedded, other);
+      target.missing = new SharedToplevel(4, "not the same ID");
+      SharedToplevel oldMissing = target.missing;
+      target.notPersisted = 7;
+      
+      ReuseTest regenerated = fromDocument ? persistor.fromXml(load(file.getPath()), target)
+          : persistor.fromXml(file.toPath(), target);
+      assertThat(regenerated).isSameAs(target);
+      assertThat(regenerated.id).isEqualTo(1);
+      assertThat(regenerated.name).isEqualTo("new");
+      assertThat(regenerated.embedded).isSameAs(embedded);
+      assertThat(regenerated.embedded.thing1).isEqualTo("a");
+      assertThat(regenerated.other).isSameAs(other);
+      assertThat(regenerated.other.name).isEqualTo("x");
+      assertThat(regenerated.missing).isNotSameAs(oldMissing);
+      assertThat(regenerated.missing.id).isEqualTo(3);
+      assertThat(regenerated.notPersisted).isEqualTo(7);
+    }
+  }
+  
+  // ==========================================================================================
+  
+  @Persistable(toplevel=true, tag="patched", idField="id")
+  @SuppressWarnings("unused")
+  private static class PatchTest {
+    private final int id = 1;
+    @Persist("label") private String label;
+    @Persist("embedded") private SimpleEmbedded embedded;
+    @Persist("first") private SharedToplevel first;
+    @Persist("second") private SharedToplevel second;
+    private PatchTest(String label, SimpleEmbedded embedded, SharedToplevel first, SharedToplevel second) {
+      this.label = label;
+      this.embedded = embedded;
+      this.first = first;
+      this.second = second;
+    }
+  }
+  
+  @Test
+  void patchTurnsOneGraphIntoAnother() throws Exception {
+    XmlPersistor<PatchTest> persistor = new XmlPersistor<>(PatchTest.class);
+    PatchTest from = new PatchTest("same", new SimpleEmbedded("x", "y"), new SharedToplevel(2, "two"),
+        new SharedToplevel(3, "three"));
+    PatchTest to = new PatchTest("same", new SimpleEmbedded("x", "changed"), new SharedToplevel(2, "renamed"),
+        new SharedToplevel(4, "four"));
+    assertThat(persistor.diff(to, to).isEmpty()).isTrue();
+    
+    GraphPatch patch = persistor.diff(from, to);
+    Document patchDoc = patch.toXml();
+    assertThat(patchDoc.getElementsByTagName("label").getLength()).isZero();
+    assertThat(patchDoc.getElementsByTagName("first").getLength()).isZero(); // it's still the same reference
+    assertThat(patchDoc.getElementsByTagName("thing1").getLength()).isEqualTo(1); // fields are replaced whole
+    assertThat(patchDoc.getElementsByTagName("shared").getLength()).isEqualTo(3);
+    
+    // Ship it as bytes, just as it would be between nodes
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    patch.write(Channels.newChannel(bytes));
+    GraphPatch shipped = GraphPatch.fromXml(DocumentBuilderFactory.newInstance().newDocumentBuilder()
+        .parse(new ByteArrayInputStream(bytes.toByteArray())));
+    
+    PatchTest regenerated = persistor.fromXml(persistor.toXml(from));
+    SharedToplevel first = regenerated.first;
+    PatchableGraph<PatchTest> graph = persistor.track(regenerated);
+    persistor.applyPatch(graph, shipped);
+    assertThat(graph.getRoot()).isSameAs(regenerated);
+    assertThat(regenerated.label).isEqualTo("same");
+    assertThat(regenerated.embedded.thing2).isEqualTo("changed");
+    assertThat(regenerated.first).isSameAs(first);
+    assertThat(regenerated.first.name).isEqualTo("renamed");
+    assertThat(regenerated.second.id).isEqualTo(4);
+    assertThat(regenerated.second.name).isEqualTo("four");
+    
+    // The same patch can be made against the persisted document
+    File file = File.createTempFile("patch", ".xml");
+    file.deleteOnExit();
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+      persistor.toXml(from, channel);
+    }
+    ByteArrayOutputStream fromDocument = new ByteArrayOutputStream();
+    persistor.diff(file.toPath(), to).write(Channels.newChannel(fromDocument));
+    assertThat(fromDocument.toByteArray()).isEqualTo(bytes.toByteArray());
+    
+    // Removed objects can no longer be changed
+    GraphPatch stale = persistor.diff(new PatchTest("same", new SimpleEmbedded("x", "y"), new SharedToplevel(2, "two"),
+        new SharedToplevel(3, "three")), new PatchTest("same", new SimpleEmbedded("x", "y"),
+        new SharedToplevel(2, "two"), new SharedToplevel(3, "3")));
+    RegenerationException e = assertThrows(RegenerationException.class, () -> persistor.applyPatch(graph, stale));
+    assertThat(e).hasMessageContaining("doesn't exist");
+  }
+  
+  @Test
+  void diffingSharedEmbeddedObjectsThrows() {
+    XmlPersistor<SharedEmbeddedTest> persistor = new XmlPersistor<>(SharedEmbeddedTest.class);
+    SharedEmbeddedTest test = new SharedEmbeddedTest();
+    test.first = test.second = new SharedNode("shared");
+    assertThrows(PersistenceException.class, () -> persistor.diff(test, test));
+  }
+  
+  @Test
+  void patchChangingShareableObjectThrows() throws Exception {
+    XmlPersistor<CachedMeasurementsTest> persistor = new XmlPersistor<>(CachedMeasurementsTest.class);
+    persistor.setToplevelCache(new ToplevelCache(10));
+    CachedMeasurementsTest from = new CachedMeasurementsTest();
+    CachedMeasurementsTest to = new CachedMeasurementsTest();
+    to.feet = new ShareableUnit("ft", 0.305);
+    to.recorder = new SharedToplevel(1, "renamed");
+    GraphPatch patch = persistor.diff(from, to);
+    
+    // The cached unit may be shared with other graphs, so nothing at all is patched
+    CachedMeasurementsTest regenerated = persistor.fromXml(persistor.toXml(from));
+    PatchableGraph<CachedMeasurementsTest> graph = persistor.track(regenerated);
+    RegenerationException e = assertThrows(RegenerationException.class, () -> persistor.applyPatch(graph, patch));
+    assertThat(e).hasMessageContaining("shareable");
+    assertThat(regenerated.feet.factor).isEqualTo(0.3048);
+    assertThat(regenerated.recorder.name).isEqualTo("recorder");
+    assertThat(persistor.fromXml(persistor.toXml(from)).feet).isSameAs(regenerated.feet);
+  }
+  
+  @Persistable(toplevel=true, tag="blobs", idField="id")
+  @SuppressWarnings("unused")
+  private static class CdataTest {
+    private final int id = 1;
+    @Persist(value="json", cdata=true) private String json;
+    @Persist(value="empty", cdata=true) private String empty = "";
+    @Persist(value="number", cdata=true) private double number = 2.5;
+    @Persist("escaped") private String escaped;
+  }
+  
+  @Test
+  void cdataFieldsRoundTrip() throws Exception {
+    CdataTest test = new CdataTest();
+    test.json = "{\"html\": \"<p>Fish &amp; chips</p>\", \"end\": \"]]>\"}\r\n]]]]>>\r";
+    test.escaped = test.json;
+    XmlPersistor<CdataTest> persistor = new XmlPersistor<>(CdataTest.class);
+    
+    Document persisted = persistor.toXml(test);
+    assertThat(persisted.getElementsByTagName("json").item(0).getFirstChild().getNodeType())
+        .isEqualTo(Node.CDATA_SECTION_NODE);
+    
+    // Through a DOM, through a channel, and through the fast reader
+    File domFile = File.createTempFile("cdata", ".xml");
+    domFile.deleteOnExit();
+    TransformerFactory.newInstance().newTransformer().transform(new DOMSource(persisted), new StreamResult(domFile));
+    File channelFile = File.createTempFile("cdata", ".xml");
+    channelFile.deleteOnExit();
+    try (FileChannel channel = FileChannel.open(channelFile.toPath(), StandardOpenOption.WRITE)) {
+      persistor.toXml(test, channel);
+    }
+    assertThat(new String(Files.readAllBytes(channelFile.toPath()), StandardCharsets.UTF_8))
+        .contains("<json><![CDATA[{\"html\": \"<p>Fish &amp; chips</p>\"");
+    
+    for (CdataTest regenerated : Arrays.asList(persistor.fromXml(load(domFile.getPath())),
+        persistor.fromXml(domFile.toPath()), persistor.fromXml(channelFile.toPath()))) {
+      assertThat(regenerated.json).isEqualTo(test.json);
+      assertThat(regenerated.escaped).isEqualTo(test.json);
+      assertThat(regenerated.empty).isEmpty();
+      assertThat(regenerated.number).isEqualTo(2.5);
+    }
+  }
+  
+  // ==========================================================================================
+  
+  @Persistable(toplevel=true, tag="large", idField="id")
+  @SuppressWarnings("unused")
+  private static class LargeTest {
+    private final int id = 1;
+    @Persist("text") private LargeText text;
+    @Persist("bytes") private LargeBytes bytes;
+    @Persist("nothing") private LargeText nothing = null;
+  }
+  
+  @Test
+  void largeValuesStreamAndSpill() throws Exception {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      text.append(i % 1000 == 0 ? "<&]]>\r\n" : "a\uD83D\uDE00"); // surrogate pairs straddle the chunk boundaries
+    }
+    byte[] bytes = new byte[100000];
+    new java.util.Random(38).nextBytes(bytes);
+    
+    LargeTest test = new LargeTest();
+    test.text = LargeText.of(() -> new java.io.StringReader(text.toString()));
+    test.bytes = LargeBytes.of(() -> new ByteArrayInputStream(bytes));
+    XmlPersistor<LargeTest> persistor = new XmlPersistor<>(LargeTest.class);
+    File spillDirectory = Files.createTempDirectory("spill").toFile();
+    spillDirectory.deleteOnExit();
+    persistor.setSpillDirectory(spillDirectory.toPath());
+    
+    // Through a DOM, through a channel, and through the fast reader
+    File domFile = File.createTempFile("large", ".xml");
+    domFile.deleteOnExit();
+    TransformerFactory.newInstance().newTransformer()
+        .transform(new DOMSource(persistor.toXml(test)), new StreamResult(domFile));
+    File channelFile = File.createTempFile("large", ".xml");
+    channelFile.deleteOnExit();
+    try (FileChannel channel = FileChannel.open(channelFile.toPath(), StandardOpenOption.WRITE)) {
+      persistor.toXml(test, channel);
+    }
+    
+    for (LargeTest regenerated : Arrays.asList(persistor.fromXml(load(domFile.getPath())),
+        persistor.fromXml(domFile.toPath()), persistor.fromXml(channelFile.toPath()))) {
+      assertThat(regenerated.text.read()).isEqualTo(text.toString());
+      assertThat(regenerated.bytes.read()).isEqualTo(bytes);
+      assertThat(regenerated.nothing).isNull();
+      assertThat(regenerated.text.getFile().getParent()).isEqualTo(spillDirectory.toPath());
+      assertThat(regenerated.bytes.getFile().getParent()).isEqualTo(spillDirectory.toPath());
+      regenerated.text.close();
+      regenerated.bytes.close();
+      assertThat(regenerated.text.getFile()).doesNotExist();
+      assertThat(regenerated.bytes.getFile()).doesNotExist();
+    }
+    
+    // Closing values which weren't regenerated leaves their sources alone
+    File kept = File.createTempFile("large", ".txt");
+    kept.deleteOnExit();
+    LargeText.of(kept.toPath()).close();
+    assertThat(kept).exists();
+  }
+  
+  @Persistable(toplevel=true, tag="large", idField="id")
+  @SuppressWarnings("unused")
+  private static class BadBytesTest {
+    private final int id = 1;
+    @Persist("bytes") private LargeBytes bytes;
+  }
+  
+  @Test
+  void badBase64Throws() {
+    XmlPersistor<BadBytesTest> persistor = new XmlPersistor<>(BadBytesTest.class);
+    RegenerationException e = assertThrows(RegenerationException.class,
+        () -> persistor.fromXml(load("src/test/resources/bad-base64-test.xml")));
+    assertThat(e).hasMessage("<bytes> is not valid base64.");
+  }
+  
+  // ==========================================================================================
+  
+  @Persistable(toplevel=true, tag="link", idField="id")
+  @SuppressWarnings("unused")
+  private static class ChainLink {
+    private final int id;
+    @Persist("name") private final SimpleEmbedded name;
+    @Persist("next") private ChainLink next;
+    private ChainLink(int id, String name) {
+      this.id = id;
+      this.name = new SimpleEmbedded(name, "link");
+    }
+  }
+  
+  @Test
+  void parallelFromXmlMatchesSequential() throws Exception {
+    // A ring of links, with awkward characters and a comment for the scanner to skip over
+    ChainLink first = new ChainLink(0, "<first> & \"friends\" ]]>");
+    ChainLink last = first;
+    for (int i = 1; i < 200; i++) {
+      last.next = new ChainLink(i, "link " + i);
+      last = last.next;
+    }
+    last.next = first;
+    
+    XmlPersistor<ChainLink> persistor = new XmlPersistor<>(ChainLink.class);
+    Document persisted = persistor.toXml(first);
+    persisted.getDocumentElement().insertBefore(persisted.createComment(" <link> "),
+        persisted.getDocumentElement().getFirstChild());
+    File file = File.createTempFile("parallel", ".xml");
+    file.deleteOnExit();
+    Transformer transformer = TransformerFactory.newInstance().newTransformer();
+    transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+    transformer.transform(new DOMSource(persisted), new StreamResult(file));
+    
+    for (int threads : new int[] {1, 3, 8}) {
+      ChainLink regenerated = persistor.fromXml(file.toPath(), threads);
+      ChainLink expected = persistor.fromXml(persisted);
+      ChainLink regeneratedFirst = regenerated;
+      for (int i = 0; i < 200; i++) {
+        assertThat(regenerated.id).isEqualTo(expected.id);
+        assertThat(regenerated.name.thing1).isEqualTo(expected.name.thing1);
+        regenerated = regenerated.next;
+        expected = expected.next;
+      }
+      assertThat(regenerated).isSameAs(regeneratedFirst);
+    }
+  }
+  
+  @Test
+  void parallelFromXmlExpandsDoctypeEntities() throws Exception {
+    // The chunks can't be parsed without the DOCTYPE declaring the entity, so the document is parsed on one thread
+    XmlPersistor<SimpleEmbeddedRegenTest> persistor = new XmlPersistor<>(SimpleEmbeddedRegenTest.class);
+    SimpleEmbeddedRegenTest control = new SimpleEmbeddedRegenTest(1234,
+        new SimpleEmbedded("hello world", "bbb"), new SimpleEmbedded("ccc", "ddd"));
+    assertThat(persistor.fromXml(load("src/test/resources/doctype-entity-test.xml")))
+        .isEqualToComparingFieldByFieldRecursively(control);
+    for (int threads : new int[] {1, 2}) {
+      assertThat(persistor.fromXml(new File("src/test/resources/doctype-entity-test.xml").toPath(), threads))
+          .isEqualToComparingFieldByFieldRecursively(control);
+    }
+  }
+  
+  // ==========================================================================================
+  
+  @Persistable(toplevel=true, tag="constructed", idField="id", useConstructor=true)
+  @SuppressWarnings("unused")
+  private static class UseConstructorTest {
+    private final String id = "hi";
+    @Persist("persisted") private int persisted = 3;
+    private final StringBuilder notPersisted = new StringBuilder("initialized");
+  }
+  
+  @Test
+  void useConstructorRunsInitializers() throws Exception {
+    XmlPersistor<UseConstructorTest> persistor = new XmlPersistor<>(UseConstructorTest.class);
+    UseConstructorTest test = new UseConstructorTest();
+    test.persisted = 12;
+    UseConstructorTest regenerated = persistor.fromXml(persistor.toXml(test));
+    assertThat(regenerated.persisted).isEqualTo(12);
+    assertThat(regenerated.notPersisted).hasToString("initialized");
+  }
+  
+  // ==========================================================================================
+  
+  @Persistable(toplevel=true, tag="created", idField="id")
+  @SuppressWarnings("unused")
+  private static final class CreatorTest {
+    private final String id;
+    @Persist("point") private final CreatorPoint point;
+    @Persist("label") private final String label;
+    @Persist("notInCreator") private int notInCreator;
+    
+    @PersistCreator
+    private static CreatorTest create(@PersistCreator.Id String id, @Persist("label") String label,
+                                      @Persist("point") CreatorPoint point) {
+      return new CreatorTest(id, point, label);
+    }
+    
+    private CreatorTest(String id, CreatorPoint point, String label) {
+      this.id = id;
+      this.point = point;
+      this.label = label;
+    }
+  }
+  
+  @Persistable
+  @SuppressWarnings("unused")
+  private static final class CreatorPoint {
+    @Persist("x") private final int x;
+    @Persist("y") private final int y;
+    private final int sum;
+    
+    @PersistCreator
+    private CreatorPoint(@Persist("x") int x, @Persist("y") int y) {
+      this.x = x;
+      this.y = y;
+      this.sum = x + y;
+    }
+  }
+  
+  @Test
+  void creatorRegeneratesThroughConstructorAndFactory() throws Exception {
+    XmlPersistor<CreatorTest> persistor = new XmlPersistor<>(CreatorTest.class);
+    CreatorTest test = new CreatorTest("made", new CreatorPoint(3, 4), "a label");
+    test.notInCreator = 12;
+    CreatorTest regenerated = persistor.fromXml(persistor.toXml(test));
+    assertThat(regenerated).isEqualToComparingFieldByFieldRecursively(test);
+    assertThat(regenerated.point.sum).isEqualTo(7);
+  }
+  
+  @Persistable(toplevel=true, tag="failingCycle", idField="id")
+  @SuppressWarnings("unused")
+  private static final class FailingCycleTest {
+    private final int id;
+    @Persist("other") private final FailingCycleOther other;
+    
+    @PersistCreator
+    private FailingCycleTest(@PersistCreator.Id int id, @Persist("other") FailingCycleOther other) {
+      this.id = id;
+      this.other = other;
+    }
+  }
+  
+  @Persistable(toplevel=true, tag="deferredCycle", idField="id")
+  @SuppressWarnings("unused")
+  private static final class DeferredCycleTest {
+    private final int id;
+    @Persist("other") private final DeferredCycleOther other;
+    
+    @PersistCreator(cycles = PersistCreator.CyclePolicy.DEFER)
+    private DeferredCycleTest(@PersistCreator.Id int id, @Persist("other") DeferredCycleOther other) {
+      this.id = id;
+      this.other = other;
+    }
+  }
+  
+  @Persistable(toplevel=true, tag="failingCycleOther", idField="id")
+  @SuppressWarnings("unused")
+  private static class FailingCycleOther {
+    private final int id = 2;
+    @Persist("back") private FailingCycleTest back;
+  }
+  
+  @Persistable(toplevel=true, tag="deferredCycleOther", idField="id")
+  @SuppressWarnings("unused")
+  private static class DeferredCycleOther {
+    private final int id = 2;
+    @Persist("back") private DeferredCycleTest back;
+  }
+  
+  @Test
+  void creatorCycleFailsByDefault() {
+    XmlPersistor<FailingCycleTest> persistor = new XmlPersistor<>(FailingCycleTest.class);
+    FailingCycleOther other = new FailingCycleOther();
+    FailingCycleTest test = new FailingCycleTest(1, other);
+    other.back = test;
+    Document persisted = persistor.toXml(test);
+    RegenerationException e = assertThrows(RegenerationException.class, () -> persistor.fromXml(persisted));
+    assertThat(e).hasMessageContaining("DEFER");
+  }
+  
+  @Test
+  void creatorCycleIsDeferred() throws Exception {
+    XmlPersistor<DeferredCycleTest> persistor = new XmlPersistor<>(DeferredCycleTest.class);
+    DeferredCycleOther other = new DeferredCycleOther();
+    DeferredCycleTest test = new DeferredCycleTest(1, other);
+    other.back = test;
+    DeferredCycleTest regenerated = persistor.fromXml(persistor.toXml(test));
+    assertThat(regenerated.other.back).isSameAs(regenerated);
+  }
+  
+  // ==========================================================================================
+  
+  @Persistable(toplevel=true, tag="embeddedSharer", idField="id")
+  @SuppressWarnings("unused")
+  private static class SharedEmbeddedTest {
+    private final String id = "sharer";
+    @Persist("first") private SharedNode first;
+    @Persist("second") private SharedNode second;
+    @Persist("other") private SharedNodeHolder other;
+  }
+  
+  @Persistable(toplevel=true, tag="nodeHolder", idField="id")
+  @SuppressWarnings("unused")
+  private static class SharedNodeHolder {
+    private final int id = 3;
+    @Persist("node") private SharedNode node;
+  }
+  
+  @Persistable
+  @SuppressWarnings("unused")
+  private static class SharedNode {
+    @Persist("name") private String name;
+    @Persist("next") private SharedNode next;
+    private SharedNode(String name) {
+      this.name = name;
+    }
+  }
+  
+  @Test
+  void sharedEmbeddedObjectsKeepIdentity() throws Exception {
+    XmlPersistor<SharedEmbeddedTest> persistor = new XmlPersistor<>(SharedEmbeddedTest.class);
+    SharedEmbeddedTest test = new SharedEmbeddedTest();
+    test.first = test.second = new SharedNode("shared");
+    test.other = new SharedNodeHolder();
+    test.other.node = test.first;
+    
+    Document persisted = persistor.toXml(test);
+    assertThat(persisted.getElementsByTagName("name").getLength()).isEqualTo(1);
+    
+    SharedEmbeddedTest regenerated = persistor.fromXml(persisted);
+    assertThat(regenerated.first).isSameAs(regenerated.second).isSameAs(regenerated.other.node);
+    assertThat(regenerated.first.name).isEqualTo("shared");
+  }
+  
+  @Test
+  void embeddedCyclesRoundTrip() throws Exception {
+    XmlPersistor<SharedEmbeddedTest> persistor = new XmlPersistor<>(SharedEmbeddedTest.class);
+    SharedEmbeddedTest test = new SharedEmbeddedTest();
+    test.first = new SharedNode("a");
+    test.first.next = new SharedNode("b");
+    test.first.next.next = test.first;
+    
+    SharedEmbeddedTest regenerated = persistor.fromXml(persistor.toXml(test));
+    assertThat(regenerated.first.next.name).isEqualTo("b");
+    assertThat(regenerated.first.next.next).isSameAs(regenerated.first);
+    assertThat(regenerated.second).isNull();
+  }
+  
+  @Persistable(toplevel=true, tag="spiller", idField="id")
+  @SuppressWarnings("unused")
+  private static class SpilledTest {
+    private final String id = "spiller";
+    @Persist("holder") private SharedNodeHolder holder;
+    @Persist("node") private SharedNode node;
+    @Persist("again") private SharedNode again;
+  }
+  
+  @Test
+  void spilledToplevelsWriteTheSameDocument() throws Exception {
+    XmlPersistor<SpilledTest> persistor = new XmlPersistor<>(SpilledTest.class);
+    SpilledTest test = new SpilledTest();
+    test.holder = new SharedNodeHolder();
+    test.holder.node = new SharedNode("a");
+    test.holder.node.next = new SharedNode("b");
+    // Both nodes are shared only after the holder is finished and spilled
+    test.node = test.holder.node;
+    test.again = new SharedNode("c");
+    test.again.next = test.holder.node.next;
+    
+    ByteArrayOutputStream kept = new ByteArrayOutputStream();
+    persistor.toXml(test, Channels.newChannel(kept));
+    persistor.setSpillToplevels(true);
+    ByteArrayOutputStream spilled = new ByteArrayOutputStream();
+    persistor.toXml(test, Channels.newChannel(spilled));
+    assertThat(new String(spilled.toByteArray(), StandardCharsets.UTF_8))
+        .isEqualTo(new String(kept.toByteArray(), StandardCharsets.UTF_8)).contains("shared=\"1\"");
+    
+    SpilledTest regenerated = persistor.fromXml(DocumentBuilderFactory.newInstance().newDocumentBuilder()
+        .parse(new ByteArrayInputStream(spilled.toByteArray())));
+    assertThat(regenerated.node).isSameAs(regenerated.holder.node);
+    assertThat(regenerated.again.next).isSameAs(regenerated.node.next);
+    assertThat(regenerated.again.next.name).isEqualTo("b");
+  }
+  
+  @Persistable(toplevel=true, tag="outOfOrder", idField="id")
+  @SuppressWarnings("unused")
+  private static final class BackReferenceFirstTest {
+    private final int id = 1;
+    @Persist("a") private final SharedNode a;
+    @Persist("b") private final SharedNode b;
+    
+    @PersistCreator
+    private BackReferenceFirstTest(@Persist("b") SharedNode b, @Persist("a") SharedNode a) {
+      this.a = a;
+      this.b = b;
+    }
+  }
+  
+  @Test
+  void backReferenceRegeneratedBeforeItsElement() throws Exception {
+    XmlPersistor<BackReferenceFirstTest> persistor = new XmlPersistor<>(BackReferenceFirstTest.class);
+    SharedNode node = new SharedNode("x");
+    BackReferenceFirstTest regenerated = persistor.fromXml(persistor.toXml(new BackReferenceFirstTest(node, node)));
+    assertThat(regenerated.a).isSameAs(regenerated.b);
+    assertThat(regenerated.a.name).isEqualTo("x");
+  }
+  
+  @Test
+  void deepCopyMatchesRoundTrip() throws Exception {
+    XmlPersistor<SharedEmbeddedTest> persistor = new XmlPersistor<>(SharedEmbeddedTest.class);
+    SharedEmbeddedTest test = new SharedEmbeddedTest();
+    test.first = test.second = new SharedNode("a");
+    test.first.next = new SharedNode("b");
+    test.first.next.next = test.first;
+    test.other = new SharedNodeHolder();
+    test.other.node = test.first.next;
+    
+    SharedEmbeddedTest copy = persistor.deepCopy(test);
+    assertThat(copy).isNotSameAs(test);
+    assertThat(copy.first).isNotSameAs(test.first).isSameAs(copy.second).isSameAs(copy.first.next.next);
+    assertThat(copy.other).isNotSameAs(test.other);
+    assertThat(copy.other.node).isSameAs(copy.first.next);
+    assertThat(copy.first.name).isEqualTo("a");
+    assertThat(copy.first.next.name).isEqualTo("b");
+    
+    XmlPersistor<CreatorTest> creatorPersistor = new XmlPersistor<>(CreatorTest.class);
+    CreatorTest creatorTest = new CreatorTest("made", new CreatorPoint(3, 4), "a label");
+    creatorTest.notInCreator = 12;
+    CreatorTest creatorCopy = creatorPersistor.deepCopy(creatorTest);
+    assertThat(creatorCopy).isEqualToComparingFieldByFieldRecursively(
+        creatorPersistor.fromXml(creatorPersistor.toXml(creatorTest)));
+    assertThat(creatorCopy.point).isNotSameAs(creatorTest.point);
+    assertThat(creatorCopy.point.sum).isEqualTo(7);
+  }
+  
+  @Test
+  void deepCopyHandlesCreatorCycles() {
+    FailingCycleOther failingOther = new FailingCycleOther();
+    FailingCycleTest failing = new FailingCycleTest(1, failingOther);
+    failingOther.back = failing;
+    PersistenceException e = assertThrows(PersistenceException.class,
+        () -> new XmlPersistor<>(FailingCycleTest.class).deepCopy(failing));
+    assertThat(e).hasMessageContaining("DEFER");
+    
+    DeferredCycleOther deferredOther = new DeferredCycleOther();
+    DeferredCycleTest deferred = new DeferredCycleTest(1, deferredOther);
+    deferredOther.back = deferred;
+    DeferredCycleTest copy = new XmlPersistor<>(DeferredCycleTest.class).deepCopy(deferred);
+    assertThat(copy).isNotSameAs(deferred);
+    assertThat(copy.other.back).isSameAs(copy);
+  }
+  
+  @Persistable(toplevel=true, tag="unit", idField="name", shareable=true)
+  @SuppressWarnings("unused")
+  private static class ShareableUnit {
+    private final String name;
+    @Persist("factor") private final double factor;
+    @Persist("symbol") private final SimpleEmbedded symbol;
+    private ShareableUnit(String name, double factor) {
+      this.name = name;
+      this.factor = factor;
+      this.symbol = new SimpleEmbedded(name, "symbol");
+    }
+  }
+  
+  @Persistable(toplevel=true, tag="measurements", idField="id")
+  @SuppressWarnings("unused")
+  private static class CachedMeasurementsTest {
+    private final int id = 1;
+    @Persist("metres") private ShareableUnit metres = new ShareableUnit("m", 1);
+    @Persist("feet") private ShareableUnit feet = new ShareableUnit("ft", 0.3048);
+    @Persist("recorder") private SharedToplevel recorder = new SharedToplevel(1, "recorder");
+  }
+  
+  @Persistable(toplevel=true, tag="bad-unit", idField="id", shareable=true)
+  @SuppressWarnings("unused")
+  private static class ShareableReferrerTest {
+    private final int id = 1;
+    @Persist("outer") private RepeatedOuter outer;
+  }
+  
+  @Persistable(shareable=true)
+  private static class ShareableEmbeddedTest {}
+  
+  @Test
+  void toplevelCacheSharesShareableObjectsBetweenLoads() throws Exception {
+    XmlPersistor<CachedMeasurementsTest> persistor = new XmlPersistor<>(CachedMeasurementsTest.class);
+    ToplevelCache cache = new ToplevelCache(10);
+    persistor.setToplevelCache(cache);
+    File file = File.createTempFile("cached", ".xml");
+    file.deleteOnExit();
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+      persistor.toXml(new CachedMeasurementsTest(), channel);
+    }
+    
+    CachedMeasurementsTest first = persistor.fromXml(file.toPath());
+    CachedMeasurementsTest second = persistor.fromXml(file.toPath());
+    assertThat(cache.getMisses()).isEqualTo(2);
+    assertThat(cache.getHits()).isEqualTo(2);
+    assertThat(second.metres).isSameAs(first.metres);
+    assertThat(second.feet).isSameAs(first.feet);
+    assertThat(second.recorder).isNotSameAs(first.recorder);
+    assertThat(second.feet.factor).isEqualTo(0.3048);
+    
+    // A unit which is defined differently is regenerated anew
+    CachedMeasurementsTest changed = new CachedMeasurementsTest();
+    changed.feet = new ShareableUnit("ft", 0.305);
+    CachedMeasurementsTest third = persistor.fromXml(persistor.toXml(changed));
+    assertThat(third.metres).isSameAs(first.metres);
+    assertThat(third.feet).isNotSameAs(first.feet);
+    assertThat(third.feet.factor).isEqualTo(0.305);
+    
+    // Without the cache, or with a projection, nothing is shared
+    persistor.setProjection(Projection.of(CachedMeasurementsTest.class, "metres"));
+    assertThat(persistor.fromXml(file.toPath()).metres).isNotSameAs(first.metres);
+    persistor.setProjection(Projection.ALL);
+    persistor.setToplevelCache(null);
+    assertThat(persistor.fromXml(file.toPath()).metres).isNotSameAs(first.metres);
+    
+    PersistenceException e = assertThrows(PersistenceException.class,
+        () -> new XmlPersistor<>(ShareableReferrerTest.class).toXml(new ShareableReferrerTest()));
+    assertThat(e).hasMessageContaining("shareable");
+    assertThrows(PersistenceException.class, () -> PersistenceUtil.verifyAndGetPersistable(
+        ShareableEmbeddedTest.class));
+  }
+  
+  @Test
+  void toplevelCacheIsNotRegeneratedIntoInPlace() throws Exception {
+    XmlPersistor<CachedMeasurementsTest> persistor = new XmlPersistor<>(CachedMeasurementsTest.class);
+    persistor.setToplevelCache(new ToplevelCache(10));
+    Document original = persistor.toXml(new CachedMeasurementsTest());
+    CachedMeasurementsTest first = persistor.fromXml(original);
+    ShareableUnit cachedFeet = first.feet;
+    
+    // A differently defined unit with the same ID is regenerated anew rather than into the cached one
+    CachedMeasurementsTest changed = new CachedMeasurementsTest();
+    changed.feet = new ShareableUnit("ft", 0.305);
+    CachedMeasurementsTest reloaded = persistor.fromXml(persistor.toXml(changed), first);
+    assertThat(reloaded).isSameAs(first);
+    assertThat(first.feet).isNotSameAs(cachedFeet);
+    assertThat(first.feet.factor).isEqualTo(0.305);
+    assertThat(cachedFeet.factor).isEqualTo(0.3048);
+    
+    // ...and the cached unit is still shared under its own definition
+    assertThat(persistor.fromXml(original).feet).isSameAs(cachedFeet);
+  }
+  
+  @Test
+  void metricsCountWhatIsPersistedAndRegenerated() throws Exception {
+    XmlPersistor<CachedMeasurementsTest> persistor = new XmlPersistor<>(CachedMeasurementsTest.class);
+    CountingMetrics metrics = new CountingMetrics();
+    persistor.setMetrics(metrics);
+    persistor.setToplevelCache(new ToplevelCache(10));
+    File file = File.createTempFile("metrics", ".xml");
+    file.deleteOnExit();
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+      persistor.toXml(new CachedMeasurementsTest(), channel);
+    }
+    assertThat(metrics.getToplevelObjectsPersisted()).isEqualTo(4);
+    assertThat(metrics.getEmbeddedObjectsPersisted()).isEqualTo(2);
+    assertThat(metrics.getObjectsPersisted(ShareableUnit.class)).isEqualTo(2);
+    assertThat(metrics.getBytesWritten()).isEqualTo(file.length());
+    assertThat(metrics.getPhaseCount(PersistenceMetrics.Phase.PERSIST)).isEqualTo(1);
+    assertThat(metrics.getPhaseCount(PersistenceMetrics.Phase.WRITE)).isEqualTo(1);
+    assertThat(metrics.getPersistNanos(CachedMeasurementsTest.class))
+        .isGreaterThanOrEqualTo(metrics.getPersistNanos(ShareableUnit.class)).isPositive();
+    
+    // The units are regenerated the first time, and found in the cache the second
+    persistor.fromXml(file.toPath());
+    persistor.fromXml(file.toPath());
+    assertThat(metrics.getToplevelObjectsRegenerated()).isEqualTo(6);
+    assertThat(metrics.getEmbeddedObjectsRegenerated()).isEqualTo(2);
+    assertThat(metrics.getObjectsRegenerated(ShareableUnit.class)).isEqualTo(2);
+    assertThat(metrics.getCacheHits()).isEqualTo(2);
+    assertThat(metrics.getCacheHitRate()).isEqualTo(0.5);
+    assertThat(metrics.getBytesRead()).isEqualTo(2 * file.length());
+    assertThat(metrics.getPhaseCount(PersistenceMetrics.Phase.READ)).isEqualTo(2);
+    assertThat(metrics.getPhaseCount(PersistenceMetrics.Phase.REGENERATE)).isEqualTo(2);
+    
+    XmlPersistor<NullThingsTest> nulls = new XmlPersistor<>(NullThingsTest.class);
+    nulls.setMetrics(metrics);
+    metrics.reset();
+    nulls.fromXml(nulls.toXml(new NullThingsTest()));
+    assertThat(metrics.getNullsPersisted()).isEqualTo(4);
+    assertThat(metrics.getNullsRegenerated()).isEqualTo(4);
+    assertThat(metrics.getPhaseCount(PersistenceMetrics.Phase.BUILD_DOM)).isEqualTo(1);
+    assertThat(metrics.getObjectsPersisted(ShareableUnit.class)).isZero();
+    
+    // The same counts can be read through JMX
+    JmxMetrics jmx = new JmxMetrics(metrics);
+    ObjectName name = jmx.register("metricsTest");
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      assertThat(server.getAttribute(name, "NullsPersisted")).isEqualTo(4L);
+      assertThat(server.getAttribute(name, "ObjectsPersistedByClass")).isInstanceOf(TabularData.class);
+      assertThrows(PersistenceException.class, () -> new JmxMetrics(metrics).register("metricsTest"));
+    } finally {
+      jmx.unregister();
+    }
+    assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(name)).isFalse();
+    assertThrows(NullPointerException.class, () -> persistor.setMetrics(null));
+  }
+  
+  @Test
+  void tracerSpansNestToplevelsInDocuments() throws Exception {
+    XmlPersistor<CachedMeasurementsTest> persistor = new XmlPersistor<>(CachedMeasurementsTest.class);
+    List<String> trace = new ArrayList<>();
+    persistor.setTracer(new PersistenceTracer() {
+      @Override
+      public Object documentStarted(boolean persisting) {
+        trace.add(persisting ? "persist" : "regenerate");
+        return "document";
+      }
+      @Override
+      public void documentFinished(Object span, boolean persisting, Class<?> rootClass, int toplevels) {
+        trace.add(span + " " + rootClass.getSimpleName() + " " + toplevels);
+      }
+      @Override
+      public Object toplevelStarted(boolean persisting) {
+        return trace.size();
+      }
+      @Override
+      public void toplevelFinished(Object span, boolean persisting, Class<?> cls, String tag, String id,
+          int elements) {
+        trace.add(span + ":" + tag + " " + id + " " + elements);
+      }
+    });
+    File file = File.createTempFile("traced", ".xml");
+    file.deleteOnExit();
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+      persistor.toXml(new CachedMeasurementsTest(), channel);
+    }
+    persistor.fromXml(file.toPath());
+    
+    // Each toplevel span starts where the trace was when it started, so nested ones finish first
+    assertThat(trace).containsExactly("persist", "1:unit m 2", "2:unit ft 2", "3:shared 1 1",
+        "1:measurements 1 3", "document CachedMeasurementsTest 4", "regenerate", "7:unit m 2", "8:unit ft 2",
+        "9:shared 1 1", "7:measurements 1 3", "document CachedMeasurementsTest 4");
+  }
+  
+  @Test
+  void diagnosticsAreCountedAndSampled() throws Exception {
+    XmlPersistor<CachedMeasurementsTest> persistor = new XmlPersistor<>(CachedMeasurementsTest.class);
+    List<Diagnostic> received = new ArrayList<>();
+    Diagnostics diagnostics = new Diagnostics(received::add);
+    persistor.setDiagnostics(diagnostics);
+    assertThat(persistor.getDiagnostics()).isSameAs(diagnostics);
+    
+    // A legacy document, with a renamed root, thousands of stale fields and a stray toplevel element
+    Document doc = persistor.toXml(new CachedMeasurementsTest());
+    doc.renameNode(doc.getDocumentElement(), null, "legacy");
+    Node measurements = doc.getElementsByTagName("measurements").item(0);
+    for (int i = 0; i < 2500; i++) {
+      measurements.appendChild(doc.createElement("stale"));
+    }
+    Element stray = doc.createElement("stray");
+    stray.setAttribute("id", "9");
+    doc.getDocumentElement().appendChild(stray);
+    persistor.fromXml(doc);
+    
+    assertThat(diagnostics.getCount(Diagnostic.Kind.UNUSED_CHILD)).isEqualTo(2500);
+    assertThat(diagnostics.getCount(Diagnostic.Kind.ROOT_TAG_NAME)).isEqualTo(1);
+    assertThat(diagnostics.getCount(Diagnostic.Kind.UNUSED_TOPLEVEL)).isEqualTo(1);
+    assertThat(diagnostics.getTotalCount()).isEqualTo(2502);
+    
+    // The first 10 unused children, then one in 1000, each saying how many were suppressed since the last
+    assertThat(received).filteredOn(d -> d.getKind() == Diagnostic.Kind.UNUSED_CHILD)
+        .extracting(Diagnostic::getSuppressed).containsExactly(0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 999L, 999L);
+    assertThat(diagnostics.getDelivered()).isEqualTo(received.size()).isEqualTo(14);
+    assertThat(received.get(0).getMessage()).isEqualTo("root tag name is 'legacy', not 'persisted'.");
+    assertThat(received.get(1).getPersistingClass()).isEqualTo(CachedMeasurementsTest.class);
+    assertThat(received.get(1).getChildTag()).isEqualTo("stale");
+    assertThat(received.get(11).toString()).endsWith("(999 more like this were suppressed)");
+    assertThat(received.get(13).getMessage()).isEqualTo("unused toplevel element with tag name 'stray' and id '9'.");
+    
+    // Past the rate limit, diagnostics are only counted
+    diagnostics.reset();
+    diagnostics.setSampling(0, 1);
+    diagnostics.setRateLimit(3);
+    received.clear();
+    persistor.fromXml(doc);
+    assertThat(diagnostics.getTotalCount()).isEqualTo(2502);
+    assertThat(received).hasSize(3);
+    
+    assertThrows(IllegalArgumentException.class, () -> diagnostics.setSampling(1, 0));
+    assertThrows(NullPointerException.class, () -> persistor.setDiagnostics(null));
+  }
+  
+  // ==========================================================================================
+  
+  @Persistable(toplevel=true, tag="repetitive", idField="id")
+  @SuppressWarnings("unused")
+  private static class RepeatedSubtreesTest {
+    private final String id = "repeats";
+    @Persist("first") private RepeatedOuter first = new RepeatedOuter();
+    @Persist("second") private RepeatedOuter second = new RepeatedOuter();
+    @Persist("third") private RepeatedOuter third = new RepeatedOuter();
+    @Persist("shared1") private SimpleEmbedded shared1;
+    @Persist("shared2") private SimpleEmbedded shared2;
+  }
+  
+  @Persistable
+  @SuppressWarnings("unused")
+  private static class RepeatedOuter {
+    @Persist("inner") private SimpleEmbedded inner = new SimpleEmbedded("same", "stuff");
+    @Persist("toplevel") private SharedToplevel toplevel = new SharedToplevel(1, "referenced");
+  }
+  
+  @Test
+  void deduplicatedSubtreesRoundTripAsSeparateObjects() throws Exception {
+    XmlPersistor<RepeatedSubtreesTest> persistor = new XmlPersistor<>(RepeatedSubtreesTest.class);
+    persistor.setDeduplicateSubtrees(true);
+    RepeatedSubtreesTest test = new RepeatedSubtreesTest();
+    test.shared1 = test.shared2 = new SimpleEmbedded("same", "stuff");
+    
+    Document persisted = persistor.toXml(test);
+    assertThat(persisted.getElementsByTagName("thing1").getLength()).isEqualTo(2); // one template, one shared
+    
+    RepeatedSubtreesTest regenerated = persistor.fromXml(persisted);
+    assertThat(regenerated).isEqualToComparingFieldByFieldRecursively(test);
+    assertThat(regenerated.first).isNotSameAs(regenerated.second);
+    assertThat(regenerated.first.inner).isNotSameAs(regenerated.second.inner);
+    assertThat(regenerated.first.toplevel).isSameAs(regenerated.second.toplevel);
+    assertThat(regenerated.shared1).isSameAs(regenerated.shared2);
+  }
+  
   // ==========================================================================================
   // NEGATIVE TESTS - fromXml()
   
@@ -570,6 +1629,26 @@ class XmlPersistorTest {
     assertThat(e).hasMessageContaining("Multiple").hasMessageContaining("root");
   }
   
+  @Test
+  void parallelRegenMultipleRootsThrows() {
+    XmlPersistor<CommonRegenTest> persistor = new XmlPersistor<>(CommonRegenTest.class);
+    RegenerationException e = assertThrows(RegenerationException.class,
+        () -> persistor.fromXml(new File("src/test/resources/multiple-roots-test.xml").toPath(), 2));
+    assertThat(e).hasMessageContaining("Multiple").hasMessageContaining("root");
+  }
+  
+  @Test
+  void parallelRegenUnknownEncodingThrows() throws Exception {
+    XmlPersistor<CommonRegenTest> persistor = new XmlPersistor<>(CommonRegenTest.class);
+    File file = File.createTempFile("encoding", ".xml");
+    file.deleteOnExit();
+    for (String encoding : new String[] {"no-such-encoding", "-illegal"}) {
+      Files.write(file.toPath(), ("<?xml version=\"1.0\" encoding=\"" + encoding + "\"?><persisted/>")
+          .getBytes(StandardCharsets.US_ASCII));
+      assertThrows(RegenerationException.class, () -> persistor.fromXml(file.toPath(), 2));
+    }
+  }
+  
   @Test
   void regenRootButNoIdThrows() {
     XmlPersistor<CommonRegenTest> persistor = new XmlPersistor<>(CommonRegenTest.class);